@@ -1,21 +1,112 @@
 package box.star.chron;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Runs callbacks after a delay, at a date, or at regular intervals.
+ * <p>
+ * Timers are kept in a hashed hierarchical wheel: six levels of 64 slots,
+ * where level n holds the timers due within 64<sup>n+1</sup> ticks, filed by
+ * their deadline. One thread advances the wheel a tick at a time, moves the
+ * timers of a higher slot down when the wheel reaches it, and hands the due
+ * timers to an executor, so scheduling and cancelling cost the same however
+ * many timers there are, and a slow callback only holds up its own thread.
+ * <p>
+ * Deadlines are rounded up to the tick; timers due in the same tick fire
+ * together, each handed to the executor on its own, so that a slow callback
+ * does not hold up the others of its tick. How late callbacks start, compared
+ * to their deadlines, is kept as drift statistics.
+ * <p>
+ * The returned {@link TimerTask}s cancel their timer, which leaves the wheel at
+ * once; a timer that was already handed to the executor is not started.
+ */
 public class Timer {
 
-  private java.util.Timer timer = new java.util.Timer();
+  /**
+   * The tick of timers created without one, in milliseconds.
+   */
+  public static final long DEFAULT_TICK = 10;
 
-  public TimerTask createTimeout(int time, ITimerMethod<Object> callback, Object... parameter) {
-    TimerTask timerTask = new TimerTask() {
+  private static final Logger LOG = Logger.getLogger(Timer.class.getName());
+  private static final int SLOT_BITS = 6, SLOTS = 1 << SLOT_BITS, LEVELS = 6;
+  private static final AtomicInteger serial = new AtomicInteger();
+
+  private final long tickNanos;
+  private final Executor executor;
+  /**
+   * The executor created by this timer, shut down with it.
+   */
+  private final ExecutorService ownExecutor;
+  private final long origin = System.nanoTime();
+  private final Task[][] wheel = new Task[LEVELS][SLOTS];
+  /**
+   * The timers handed to the executor that have not finished.
+   */
+  private final Task handedOut = new Task(null, null, 0);
+  private final Thread thread;
+  private long tick;
+  private int pending;
+  private boolean cancelled;
+
+  private final LongAdder fired = new LongAdder(), drift = new LongAdder();
+  private final AtomicLong maxDrift = new AtomicLong();
+
+  public Timer() {
+    this(DEFAULT_TICK, null);
+  }
+
+  /**
+   * @param executor runs the callbacks; null for a pool of a thread per processor
+   */
+  public Timer(Executor executor) {
+    this(DEFAULT_TICK, executor);
+  }
+
+  /**
+   * @param tick     the resolution of the timer, in milliseconds
+   * @param executor runs the callbacks; null for a pool of a thread per processor
+   */
+  public Timer(long tick, Executor executor) {
+    if (tick <= 0) throw new IllegalArgumentException("tick must be positive");
+    this.tickNanos = tick * 1000000;
+    final int id = serial.incrementAndGet();
+    if (executor == null) {
+      ownExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          return new Thread(runnable, "Timer-" + id + " callback " + count.incrementAndGet());
+        }
+      });
+      executor = ownExecutor;
+    } else ownExecutor = null;
+    this.executor = executor;
+    for (int level = 0; level < LEVELS; level++)
+      for (int slot = 0; slot < SLOTS; slot++) wheel[level][slot] = new Task(null, null, 0);
+    thread = new Thread(new Runnable() {
       @Override
       public void run() {
-        callback.onTimer(parameter);
+        turn();
       }
-    };
-    timer.schedule(timerTask, time);
-    return timerTask;
+    }, "Timer-" + id);
+    thread.start();
+  }
+
+  public TimerTask createTimeout(int time, ITimerMethod<Object> callback, Object... parameter) {
+    return schedule(new Task(callback, parameter, 0), time);
   }
 
   /**
@@ -27,6 +118,8 @@ public class Timer {
    * the actual execution time of the previous execution.  If an execution
    * is delayed for any reason (such as garbage collection or other
    * background activity), subsequent executions will be delayed as well.
+   * An execution that outlasts the period is followed by the next one right
+   * away; executions of one pulse never overlap.
    *
    * <p>Fixed-delay execution is appropriate for recurring activities
    * that require "smoothness."  In other words, it is appropriate for
@@ -40,29 +133,269 @@ public class Timer {
    * @param time time in milliseconds between successive task executions.
    */
   public TimerTask createPulse(int time, ITimerMethod<Object> callback, Object... parameter) {
-    TimerTask timerTask = new TimerTask() {
-      @Override
-      public void run() {
-        callback.onTimer(parameter);
-      }
-    };
-    timer.schedule(timerTask, time, time);
-    return timerTask;
+    if (time <= 0) throw new IllegalArgumentException("Non-positive period.");
+    return schedule(new Task(callback, parameter, time), time);
   }
 
   public TimerTask createAlarm(Date time, ITimerMethod<Object> callback, Object... parameter) {
-    TimerTask timerTask = new TimerTask() {
+    return schedule(new Task(callback, parameter, 0), Math.max(0, time.getTime() - System.currentTimeMillis()));
+  }
+
+  /**
+   * Cancels every timer and stops the timer thread, and the executor if the timer made it.
+   */
+  public void cancelTimers() {
+    synchronized (wheel) {
+      if (cancelled) return;
+      cancelled = true;
+      for (Task[] level : wheel)
+        for (Task head : level) {
+          for (Task task = head.next; task != head; task = task.next) task.cancelled = true;
+          head.next = head.previous = head;
+        }
+      for (Task task = handedOut.next; task != handedOut; task = task.next) task.cancelled = true;
+      pending = 0;
+      wheel.notifyAll();
+    }
+    if (ownExecutor != null) ownExecutor.shutdown();
+  }
+
+  /**
+   * @return the number of timers waiting to fire
+   */
+  public int getPendingCount() {
+    synchronized (wheel) {
+      return pending;
+    }
+  }
+
+  /**
+   * @return the number of callbacks started
+   */
+  public long getFiredCount() {
+    return fired.sum();
+  }
+
+  /**
+   * @return how late callbacks started on average, in milliseconds
+   */
+  public double getMeanDriftMillis() {
+    long count = fired.sum();
+    return count == 0 ? 0 : drift.sum() / 1e6 / count;
+  }
+
+  /**
+   * @return the latest a callback started, in milliseconds
+   */
+  public double getMaxDriftMillis() {
+    return maxDrift.get() / 1e6;
+  }
+
+  public void resetStatistics() {
+    fired.reset();
+    drift.reset();
+    maxDrift.set(0);
+  }
+
+  private TimerTask schedule(Task task, long delay) {
+    if (delay < 0) throw new IllegalArgumentException("Negative delay.");
+    synchronized (wheel) {
+      if (cancelled) throw new IllegalStateException("Timer already cancelled.");
+      insert(task, System.nanoTime() - origin + delay * 1000000);
+      // with timers pending, the wheel thread is already waking every tick
+      if (pending == 1) wheel.notifyAll();
+    }
+    return task;
+  }
+
+  /**
+   * Files a task under its deadline; called with the wheel locked.
+   *
+   * @param deadline nanoseconds since the origin of the timer
+   */
+  private void insert(Task task, long deadline) {
+    if (pending == 0) tick = Math.max(tick, (System.nanoTime() - origin) / tickNanos);
+    task.deadline = deadline;
+    task.due = Math.max(tick + 1, (deadline + tickNanos - 1) / tickNanos);
+    pending++;
+    file(task);
+  }
+
+  private void file(Task task) {
+    long delta = task.due - tick;
+    int level = Math.min(LEVELS - 1, (63 - Long.numberOfLeadingZeros(delta)) / SLOT_BITS);
+    Task head = wheel[level][(int) (task.due >>> (level * SLOT_BITS)) & (SLOTS - 1)];
+    task.previous = head.previous;
+    task.next = head;
+    head.previous.next = task;
+    head.previous = task;
+  }
+
+  private void handOut(Task task) {
+    task.previous = handedOut.previous;
+    task.next = handedOut;
+    handedOut.previous.next = task;
+    handedOut.previous = task;
+  }
+
+  private void unlink(Task task) {
+    task.previous.next = task.next;
+    task.next.previous = task.previous;
+    task.next = task.previous = null;
+  }
+
+  /**
+   * The timer thread: advances the wheel to the current tick and hands out the due timers.
+   */
+  private void turn() {
+    List<Task> due = new ArrayList<>();
+    while (true) {
+      synchronized (wheel) {
+        while (true) {
+          if (cancelled) return;
+          long now = (System.nanoTime() - origin) / tickNanos;
+          while (tick < now && pending > 0) advance(due);
+          if (pending == 0) tick = Math.max(tick, now);
+          if (!due.isEmpty()) break;
+          try {
+            if (pending == 0) wheel.wait();
+            else {
+              long wait = (tick + 1) * tickNanos - (System.nanoTime() - origin);
+              if (wait > 0) wheel.wait(wait / 1000000, (int) (wait % 1000000));
+            }
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+      for (Task task : due) {
+        try {
+          executor.execute(task.firing);
+        }
+        catch (RuntimeException e) {
+          LOG.log(Level.SEVERE, "Could not run timer callback", e);
+          synchronized (wheel) {
+            task.running = false;
+            unlink(task);
+          }
+        }
+      }
+      due.clear();
+    }
+  }
+
+  /**
+   * Moves the wheel one tick on, cascading the higher slots that start there.
+   */
+  private void advance(List<Task> due) {
+    tick++;
+    for (int level = LEVELS - 1; level > 0; level--) {
+      if ((tick & ((1L << (level * SLOT_BITS)) - 1)) != 0) continue;
+      Task head = wheel[level][(int) (tick >>> (level * SLOT_BITS)) & (SLOTS - 1)];
+      Task task = head.next;
+      head.next = head.previous = head;
+      while (task != head) {
+        Task next = task.next;
+        file(task);
+        task = next;
+      }
+    }
+    Task head = wheel[0][(int) tick & (SLOTS - 1)];
+    for (Task task = head.next; task != head; ) {
+      Task next = task.next;
+      if (task.due <= tick) {
+        unlink(task);
+        pending--;
+        task.running = true;
+        handOut(task);
+        due.add(task);
+      }
+      task = next;
+    }
+  }
+
+  private final class Task extends TimerTask {
+
+    final ITimerMethod<Object> callback;
+    final Object[] parameter;
+    final long period;
+    final Runnable firing = new Runnable() {
       @Override
       public void run() {
-        callback.onTimer(parameter);
+        fire();
       }
     };
-    timer.schedule(timerTask, time);
-    return timerTask;
-  }
+    Task previous = this, next = this;
+    long deadline, due;
+    volatile boolean cancelled;
+    boolean running;
+    private volatile long executionTime;
+
+    Task(ITimerMethod<Object> callback, Object[] parameter, long period) {
+      this.callback = callback;
+      this.parameter = parameter;
+      this.period = period;
+    }
+
+    /**
+     * Runs the callback now.
+     */
+    @Override
+    public void run() {
+      callback.onTimer(parameter);
+    }
+
+    /**
+     * Runs the callback for its deadline, and files a pulse again.
+     */
+    void fire() {
+      long started = System.nanoTime() - origin;
+      if (!cancelled) {
+        long late = Math.max(0, started - deadline);
+        fired.increment();
+        drift.add(late);
+        while (true) {
+          long max = maxDrift.get();
+          if (late <= max || maxDrift.compareAndSet(max, late)) break;
+        }
+        executionTime = System.currentTimeMillis() - late / 1000000;
+        try {
+          run();
+        }
+        catch (Throwable e) {
+          LOG.log(Level.SEVERE, "Uncaught exception in timer callback", e);
+        }
+      }
+      synchronized (wheel) {
+        running = false;
+        unlink(this);
+        if (period == 0 || cancelled || Timer.this.cancelled) return;
+        insert(this, Math.max(started + period * 1000000, System.nanoTime() - origin));
+        if (pending == 1) wheel.notifyAll();
+      }
+    }
+
+    @Override
+    public boolean cancel() {
+      super.cancel();
+      synchronized (wheel) {
+        if (cancelled) return false;
+        cancelled = true;
+        // a timer that was handed out has not started yet, or is a pulse with an execution to prevent
+        if (running) return true;
+        if (next == null) return false;
+        unlink(this);
+        pending--;
+        return true;
+      }
+    }
+
+    @Override
+    public long scheduledExecutionTime() {
+      return executionTime;
+    }
 
-  public void cancelTimers() {
-    timer.cancel();
   }
 
 }
@@ -3,10 +3,23 @@ package box.star.content;
 import box.star.io.Streams;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
+/**
+ * <p>Maps file extensions to mime types.</p>
+ * <br>
+ * <p>Extensions are looked up in a trie of the reversed extensions, which
+ * finds the longest extension that a file name ends with in a single walk
+ * from the end of the name. The trie and the index of the extensions of each
+ * mime type are rebuilt on the first lookup after the map changes, through
+ * any of its methods or views.</p>
+ * <br>
+ */
 public class MimeTypeMap extends HashMap<String, String> {
 
   public static final String MIME_SEPARATOR = " ";
@@ -14,6 +27,8 @@ public class MimeTypeMap extends HashMap<String, String> {
   private static final Map<String, String> mimeTypePaths = new HashMap<>();
   private static final List<MimeTypeScanner> mimeTypeScanners = new ArrayList<>();
 
+  private transient volatile Index index;
+
   public MimeTypeMap() {
     super(64);
     this.loadMimeTypesPropertyStream(
@@ -38,14 +53,231 @@ public class MimeTypeMap extends HashMap<String, String> {
   @Override
   public String put(String key, String value) {
     if (this.containsKey(key)) value = super.get(key) + MIME_SEPARATOR + value;
+    index = null;
     return super.put(key, value);
   }
 
+  @Override
+  public String remove(Object key) {
+    index = null;
+    return super.remove(key);
+  }
+
+  @Override
+  public void clear() {
+    index = null;
+    super.clear();
+  }
+
   @Override
   public void putAll(Map<? extends String, ? extends String> map) {
     for (String key : map.keySet()) this.put(key, map.get(key));
   }
 
+  @Override
+  public String putIfAbsent(String key, String value) {
+    String old = super.putIfAbsent(key, value);
+    index = null;
+    return old;
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    boolean removed = super.remove(key, value);
+    index = null;
+    return removed;
+  }
+
+  @Override
+  public String replace(String key, String value) {
+    String old = super.replace(key, value);
+    index = null;
+    return old;
+  }
+
+  @Override
+  public boolean replace(String key, String oldValue, String newValue) {
+    boolean replaced = super.replace(key, oldValue, newValue);
+    index = null;
+    return replaced;
+  }
+
+  @Override
+  public void replaceAll(BiFunction<? super String, ? super String, ? extends String> function) {
+    super.replaceAll(function);
+    index = null;
+  }
+
+  @Override
+  public String compute(String key, BiFunction<? super String, ? super String, ? extends String> function) {
+    String value = super.compute(key, function);
+    index = null;
+    return value;
+  }
+
+  @Override
+  public String computeIfAbsent(String key, Function<? super String, ? extends String> function) {
+    String value = super.computeIfAbsent(key, function);
+    index = null;
+    return value;
+  }
+
+  @Override
+  public String computeIfPresent(String key, BiFunction<? super String, ? super String, ? extends String> function) {
+    String value = super.computeIfPresent(key, function);
+    index = null;
+    return value;
+  }
+
+  @Override
+  public String merge(String key, String value, BiFunction<? super String, ? super String, ? extends String> function) {
+    String merged = super.merge(key, value, function);
+    index = null;
+    return merged;
+  }
+
+  /**
+   * @return the extensions, a view that drops the index when an extension is removed through it
+   */
+  @Override
+  public Set<String> keySet() {
+    final Set<String> keys = super.keySet();
+    return new AbstractSet<String>() {
+      @Override
+      public Iterator<String> iterator() {
+        return invalidating(keys.iterator());
+      }
+
+      @Override
+      public int size() {
+        return keys.size();
+      }
+
+      @Override
+      public boolean contains(Object key) {
+        return keys.contains(key);
+      }
+
+      @Override
+      public boolean remove(Object key) {
+        boolean removed = keys.remove(key);
+        index = null;
+        return removed;
+      }
+
+      @Override
+      public void clear() {
+        MimeTypeMap.this.clear();
+      }
+    };
+  }
+
+  /**
+   * @return the mime types, a view that drops the index when a mime type is removed through it
+   */
+  @Override
+  public Collection<String> values() {
+    final Collection<String> values = super.values();
+    return new AbstractCollection<String>() {
+      @Override
+      public Iterator<String> iterator() {
+        return invalidating(values.iterator());
+      }
+
+      @Override
+      public int size() {
+        return values.size();
+      }
+
+      @Override
+      public void clear() {
+        MimeTypeMap.this.clear();
+      }
+    };
+  }
+
+  /**
+   * @return the entries, a view that drops the index when it is changed through
+   * it or through the value of an entry
+   */
+  @Override
+  public Set<Map.Entry<String, String>> entrySet() {
+    final Set<Map.Entry<String, String>> entries = super.entrySet();
+    return new AbstractSet<Map.Entry<String, String>>() {
+      @Override
+      public Iterator<Map.Entry<String, String>> iterator() {
+        final Iterator<Map.Entry<String, String>> iterator = invalidating(entries.iterator());
+        return new Iterator<Map.Entry<String, String>>() {
+          @Override
+          public boolean hasNext() {
+            return iterator.hasNext();
+          }
+
+          @Override
+          public Map.Entry<String, String> next() {
+            final Map.Entry<String, String> entry = iterator.next();
+            return new AbstractMap.SimpleEntry<String, String>(entry) {
+              @Override
+              public String setValue(String value) {
+                super.setValue(value);
+                String old = entry.setValue(value);
+                index = null;
+                return old;
+              }
+            };
+          }
+
+          @Override
+          public void remove() {
+            iterator.remove();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return entries.size();
+      }
+
+      @Override
+      public boolean contains(Object entry) {
+        return entries.contains(entry);
+      }
+
+      @Override
+      public boolean remove(Object entry) {
+        boolean removed = entries.remove(entry);
+        index = null;
+        return removed;
+      }
+
+      @Override
+      public void clear() {
+        MimeTypeMap.this.clear();
+      }
+    };
+  }
+
+  private <T> Iterator<T> invalidating(final Iterator<T> iterator) {
+    return new Iterator<T>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public T next() {
+        return iterator.next();
+      }
+
+      @Override
+      public void remove() {
+        iterator.remove();
+        index = null;
+      }
+    };
+  }
+
   public void setPathMimeType(String path, String mimeType) {
     mimeTypePaths.put(path, mimeType);
   }
@@ -57,32 +289,49 @@ public class MimeTypeMap extends HashMap<String, String> {
   }
 
   public String scanFileExtension(String fileName) {
-    String name = new java.io.File(fileName).getName();
-    List<String> extensions = new ArrayList<>();
-    if (name.contains(".")) {
-      for (String extension : super.keySet()) {
-        if (name.endsWith(extension)) extensions.add(extension);
-      }
-      if (!extensions.isEmpty()) {
-        String longest = "";
-        for (String e : extensions) {
-          if (e.length() > longest.length()) longest = e;
-        }
-        return longest;
+    // the name of the file is the last segment of the path
+    int end = fileName.length();
+    while (end > 0 && isSeparator(fileName.charAt(end - 1))) end--;
+    int start = end;
+    while (start > 0 && !isSeparator(fileName.charAt(start - 1))) start--;
+    int dot = -1;
+    for (int i = end - 1; i >= start; i--) {
+      if (fileName.charAt(i) == '.') {
+        dot = i;
+        break;
       }
-      return name.substring(name.lastIndexOf('.') + 1);
     }
-    return "";
+    if (dot == -1) return "";
+    String extension = getIndex().longestExtension(fileName, start, end);
+    if (extension != null) return extension;
+    return fileName.substring(dot + 1, end);
+  }
+
+  private static boolean isSeparator(char c) {
+    return c == '/' || c == File.separatorChar;
   }
 
   public String getFileExtensionForMimeType(String mimeType) {
-    if (mimeType != null || mimeType.length() != 0) {
-      for (String extension : super.keySet())
-        if (super.get(extension).contains(mimeType)) return extension;
+    if (mimeType != null && mimeType.length() != 0) {
+      String extension = getIndex().extensions.get(mimeType);
+      if (extension != null) return extension;
+      for (String key : super.keySet())
+        if (super.get(key).contains(mimeType)) return key;
     }
     return DEFAULT_MIME_TYPE;
   }
 
+  private Index getIndex() {
+    Index current = index;
+    if (current == null) {
+      synchronized (this) {
+        current = index;
+        if (current == null) index = current = new Index(this);
+      }
+    }
+    return current;
+  }
+
 //  public String scanMimeType(File file){
 //    try {
 //      FileInputStream fr = new FileInputStream(file);
@@ -111,5 +360,64 @@ public class MimeTypeMap extends HashMap<String, String> {
     return this;
   }
 
-}
+  /**
+   * The extension trie and the extension of each mime type, for one state of
+   * the map.
+   */
+  private static class Index {
+    final Node root = new Node();
+    final Map<String, String> extensions = new HashMap<>();
+
+    Index(MimeTypeMap map) {
+      for (Map.Entry<String, String> entry : map.entrySet()) {
+        String extension = entry.getKey();
+        Node node = root;
+        for (int i = extension.length() - 1; i >= 0; i--) node = node.child(extension.charAt(i), true);
+        node.extension = extension;
+        for (String mimeType : entry.getValue().split("[ ,]+")) {
+          if (!mimeType.isEmpty() && !extensions.containsKey(mimeType)) extensions.put(mimeType, extension);
+        }
+      }
+    }
+
+    /**
+     * @return the longest extension that the region of the name ends with, or null
+     */
+    String longestExtension(String name, int start, int end) {
+      Node node = root;
+      String longest = node.extension;
+      for (int i = end - 1; i >= start; i--) {
+        node = node.child(name.charAt(i), false);
+        if (node == null) break;
+        if (node.extension != null) longest = node.extension;
+      }
+      return longest;
+    }
+  }
+
+  private static class Node {
+    char[] keys = new char[0];
+    Node[] children = new Node[0];
+    String extension;
+
+    Node child(char key, boolean create) {
+      int i = Arrays.binarySearch(keys, key);
+      if (i >= 0) return children[i];
+      if (!create) return null;
+      i = -(i + 1);
+      Node child = new Node();
+      char[] k = new char[keys.length + 1];
+      Node[] c = new Node[children.length + 1];
+      System.arraycopy(keys, 0, k, 0, i);
+      System.arraycopy(children, 0, c, 0, i);
+      k[i] = key;
+      c[i] = child;
+      System.arraycopy(keys, i, k, i + 1, keys.length - i);
+      System.arraycopy(children, i, c, i + 1, children.length - i);
+      keys = k;
+      children = c;
+      return child;
+    }
+  }
 
+}
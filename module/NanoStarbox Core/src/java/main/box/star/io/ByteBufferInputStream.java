@@ -0,0 +1,64 @@
+package box.star.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the remaining bytes of a {@link ByteBuffer}, without copying them
+ * out of the buffer first.
+ * <p>
+ * The stream owns the buffer's position; pass a {@link ByteBuffer#duplicate()}
+ * or {@link ByteBuffer#slice()} of a shared buffer.
+ * </p>
+ */
+public class ByteBufferInputStream extends InputStream {
+
+  private final ByteBuffer buffer;
+  private int mark = -1;
+
+  public ByteBufferInputStream(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  @Override
+  public int read() {
+    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) {
+    if (len == 0) return 0;
+    if (!buffer.hasRemaining()) return -1;
+    int n = Math.min(len, buffer.remaining());
+    buffer.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public long skip(long n) {
+    int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+    buffer.position(buffer.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {
+    mark = buffer.position();
+  }
+
+  @Override
+  public synchronized void reset() {
+    if (mark >= 0) buffer.position(mark);
+  }
+
+}
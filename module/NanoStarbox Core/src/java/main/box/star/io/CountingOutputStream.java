@@ -0,0 +1,40 @@
+package box.star.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to a stream, passing writes through as they are.
+ * <p>
+ * The count is a plain field, read by the thread that writes the stream.
+ * </p>
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+  private long count;
+
+  public CountingOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  /**
+   * @return the number of bytes written so far
+   */
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    count += len;
+  }
+
+}
@@ -4,18 +4,22 @@ import box.star.Tools;
 import box.star.content.MimeTypeMap;
 import box.star.contract.Nullable;
 import box.star.io.Streams;
+import box.star.net.http.IHTTPSession;
+import box.star.net.http.response.Response;
 import box.star.net.http.response.Status;
+import box.star.net.http.websocket.WebSocket;
+import box.star.net.http.websocket.WebSocketHandler;
 import box.star.net.tools.MimeTypeDriver;
 import box.star.net.tools.ServerContent;
 import box.star.net.tools.ServerResult;
 import box.star.text.Char;
 import box.star.text.MacroShell;
 import box.star.text.basic.Scanner;
-import org.mozilla.javascript.Context;
-import org.mozilla.javascript.ScriptRuntime;
-import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.*;
+import org.mozilla.javascript.tools.SourceReader;
+import org.mozilla.javascript.tools.ToolErrorReporter;
 import org.mozilla.javascript.tools.shell.Global;
-import org.mozilla.javascript.tools.shell.Main;
+import org.mozilla.javascript.tools.shell.ShellContextFactory;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
@@ -23,7 +27,9 @@ import java.io.InputStream;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static box.star.net.http.HTTPServer.MIME_HTML;
 
@@ -79,78 +85,33 @@ public class RhinoPageDriver implements
           Tools.switchNull(System.getProperty(URI_LIST_SPLITTER_PROPERTY), System.getenv(URI_LIST_SPLITTER_VAR)),
           Char.toString(Char.BACKSLASH, Char.PIPE)); // default
   private final static String HTML_MAGIC = "<!MIME " + NANO_STARBOX_JAVASCRIPT_SERVER_PAGE + ">";
-  private final static MacroShell.Command srcCommand = new MacroShell.Command() {
-    @Override
-    protected String run(String command, Stack<String> parameters) {
-      Context cx = Context.enter();
-      cx.setOptimizationLevel(9);
-      try {
-        // TODO: optimize this loop's cache request
-        for (String file : parameters)
-          Main.processFileNoThrow(cx, (Scriptable) main.objects.get("this"), main.objects.get("directory") + "/" + file);
-      }
-      finally {
-        Context.exit();
-      }
-      return "";
-    }
-  };
-  private final static MacroShell.Command starCommand = new MacroShell.Command() {
-    @Override
-    protected String run(String command, Stack<String> parameters) {
-      if (command.equalsIgnoreCase("<script>")) {
-        Context cx = Context.enter();
-        cx.setOptimizationLevel(9);
-        String result;
-        try {
-          result = call("val", parameters);
-        }
-        finally {
-          Context.exit();
-        }
-        return result;
-      }
-      throw new IllegalArgumentException("unknown command: " + command);
-    }
-  };
-  private final static MacroShell.Command doCommand = new MacroShell.Command() {
-    @Override
-    protected String run(String command, Stack<String> parameters) {
-      Context cx = Context.getCurrentContext();
-      Scriptable jsThis = (Scriptable) main.objects.get("this");
-      for (String p : parameters)
-        cx.evaluateString(jsThis, p,
-            scanner.getPath(), (int) scanner.getLine(),
-            null);
-      return "";
-    }
-  };
-  private final static MacroShell.Command valCommand = new MacroShell.Command() {
-    @Override
-    protected String run(String command, Stack<String> parameters) {
-      Context cx = Context.getCurrentContext();
-      Scriptable jsThis = (Scriptable) main.objects.get("this");
-      StringBuilder output = new StringBuilder();
-      for (String p : parameters)
-        output.append((String)
-            Context.jsToJava(
-                cx.evaluateString(jsThis, p,
-                    scanner.getPath(), (int) scanner.getLine(),
-                    null), String.class)
-        );
-      return output.toString();
-    }
-  };
   private static RhinoPageDriver impl;
   /**
    * <p>The global JavaScript object/environment</p>
    * <br>
    */
   private Global global;
+  /**
+   * <p>The context factory that pages are rendered with</p>
+   * <br>
+   */
+  private final ContextFactory contextFactory = new PageContextFactory();
+  /**
+   * <p>Compiled pages by {@link #pageKey}, and the modification times of pages that could not be compiled</p>
+   * <br>
+   */
+  private final Map<String, RhinoServerPage> pageCache = new ConcurrentHashMap<>();
+  private final Map<String, Long> dynamicPages = new ConcurrentHashMap<>();
+  private final Map<String, IncludeScript> includeCache = new ConcurrentHashMap<>();
+  private int optimizationLevel = -1;
 
   /**
    * <p>Creates a new page-driver with the specified script environment</p>
    * <br>
+   * <p>Every page render runs in a new top level scope whose prototype is the global.
+   * If pages are rendered concurrently, the global should be sealed, so that
+   * a page cannot modify the environment of another page.</p>
+   * <br>
    *
    * @param global the global JavaScript environment to use for this page-driver
    */
@@ -173,6 +134,11 @@ public class RhinoPageDriver implements
    * multiple requests. Other usages are of a foreign nature with respect to this
    * documentation.
    * </p>
+   * <p>The driver creates its own global with a sealed standard library, and seals the
+   * global when it is installed, so that pages may be rendered from any number of threads.
+   * Each page is rendered in its own top-level scope, with the global as its prototype;
+   * page variables, declared or not, are created in that scope and never reach the global.
+   * </p>
    *
    * @param moduleURIs a list of modules and directories to initialize the REQUIRE.JS module with. <br><br><b>Default Values:</b> the value of the system property identified by: {@link #REQUIRE_MODULE_URIS_PROPERTY} or the value of the system environment variable identified by: {@link #REQUIRE_MODULE_URIS_VAR} if this parameter is null. If this parameter is not provided or resolved, it is ignored.
    * @see #URI_LIST_SPLITTER
@@ -180,8 +146,9 @@ public class RhinoPageDriver implements
    * @see #URI_LIST_SPLITTER_VAR
    */
   public RhinoPageDriver(@Nullable List<String> moduleURIs) {
-    Context cx = Context.enter();
-    global = Main.global;
+    Context cx = contextFactory.enterContext();
+    global = new Global();
+    global.setSealedStdLib(true);
     global.init(cx);
     if (moduleURIs == null) {
       String modulePath = Tools.switchNull(
@@ -192,11 +159,12 @@ public class RhinoPageDriver implements
       else
         global.installRequire(cx, null, false);
     } else global.installRequire(cx, moduleURIs, false);
+    global.sealObject();
     Context.exit();
   }
 
   // support a bare-bones-global-system-runtime-configuration
-  public final static RhinoPageDriver getInstance() {
+  public synchronized static RhinoPageDriver getInstance() {
     if (impl != null) return impl;
     impl = new RhinoPageDriver();
     return impl;
@@ -222,34 +190,185 @@ public class RhinoPageDriver implements
   public Global getGlobal() { return global; }
 
   private Scriptable getScriptShell(Context cx, @Nullable Scriptable parent) {
-    Scriptable o = ScriptRuntime.newObject(cx, Tools.switchNull(parent, global), "Object", null);
+    // a top level scope of its own, so that undeclared variables land in it and not in the global
+    Scriptable o = cx.newObject(global);
+    o.setPrototype(Tools.switchNull(parent, global));
+    o.setParentScope(null);
     ScriptRuntime.setObjectProp(o, "global", global, cx);
     return o;
   }
 
+  /**
+   * <p>Sets the optimization level that page scripts are compiled with.</p>
+   * <br>
+   * <p>The default of -1 interprets the compiled pages; 9 compiles them to
+   * Java classes, which costs more on the first request of a page.</p>
+   * <br>
+   *
+   * @param optimizationLevel the Rhino optimization level
+   */
+  public void setOptimizationLevel(int optimizationLevel) {
+    Context.checkOptimizationLevel(optimizationLevel);
+    this.optimizationLevel = optimizationLevel;
+    clearPageCache();
+  }
+
+  public int getOptimizationLevel() { return optimizationLevel; }
+
+  /**
+   * <p>Discards the compiled pages, so that every page is parsed again on its next request.</p>
+   */
+  public void clearPageCache() {
+    pageCache.clear();
+    dynamicPages.clear();
+    includeCache.clear();
+  }
+
+  /**
+   * <p>Runs a script file or URL in the scope, compiling it again only when its source changes.</p>
+   * <br>
+   * <p>Errors are reported like those of the {@code src} files of the Rhino shell.</p>
+   * <br>
+   */
+  void include(Context cx, Scriptable scope, String path) {
+    try {
+      String source = (String) SourceReader.readFileOrUrl(path, true, null);
+      IncludeScript include = includeCache.get(path);
+      if (include == null || include.optimizationLevel != cx.getOptimizationLevel() || !include.source.equals(source)) {
+        String code = source;
+        // skip an executable script's #! line
+        if (code.length() > 0 && code.charAt(0) == '#') {
+          int eol = 1;
+          while (eol < code.length() && code.charAt(eol) != '\n' && code.charAt(eol) != '\r') eol++;
+          code = code.substring(eol);
+        }
+        include = new IncludeScript(source, cx.getOptimizationLevel(), cx.compileString(code, path, 1, null));
+        includeCache.put(path, include);
+      }
+      include.script.exec(cx, scope);
+    }
+    catch (IOException ioex) {
+      Context.reportError(ToolErrorReporter.getMessage("msg.couldnt.read.source", path, ioex.getMessage()));
+    }
+    catch (RhinoException rex) {
+      ToolErrorReporter.reportException(cx.getErrorReporter(), rex);
+    }
+  }
+
+  /**
+   * <p>The key of a page in the page cache: its URI, with the file or directory the URI resolved to,
+   * so that a URI which is mounted somewhere else is not served the page of its old source.</p>
+   */
+  private static String pageKey(ServerContent content) {
+    Object source = content.isFile() ? content.get() : content.getDirectory();
+    return content.session.getUri() + "\n" + source;
+  }
+
+  /**
+   * <p>Compiles and caches the page for the content's source.</p>
+   * <br>
+   *
+   * @return the page, or null if the page has to be evaluated by the macro shell
+   */
+  private RhinoServerPage compilePage(ServerContent content, String source, Scriptable jsThis) {
+    String uri = content.session.getUri();
+    RhinoServerPage page = RhinoServerPage.compile(uri, content.lastModified, source,
+        new MacroShell(System.getenv())
+            .addObject("this", jsThis)
+            .addObject("directory", content.getDirectory()),
+        content.getDirectory());
+    if (page == null) dynamicPages.put(pageKey(content), content.lastModified);
+    else pageCache.put(pageKey(content), page);
+    return page;
+  }
+
+  /**
+   * <p>Creates the macro shell for a page render, with its own command instances.</p>
+   */
+  private MacroShell createDocumentBuilder() {
+    MacroShell documentBuilder = new MacroShell(System.getenv());
+    documentBuilder.addCommand("src", new MacroShell.Command() {
+      @Override
+      protected String run(String command, Stack<String> parameters) {
+        Context cx = Context.getCurrentContext();
+        for (String file : parameters)
+          include(cx, (Scriptable) main.objects.get("this"), main.objects.get("directory") + "/" + file);
+        return "";
+      }
+    });
+    documentBuilder.addCommand("*", new MacroShell.Command() {
+      @Override
+      protected String run(String command, Stack<String> parameters) {
+        if (command.equalsIgnoreCase("<script>")) return call("val", parameters);
+        throw new IllegalArgumentException("unknown command: " + command);
+      }
+    });
+    documentBuilder.addCommand("do", new MacroShell.Command() {
+      @Override
+      protected String run(String command, Stack<String> parameters) {
+        Context cx = Context.getCurrentContext();
+        Scriptable jsThis = (Scriptable) main.objects.get("this");
+        for (String p : parameters)
+          cx.evaluateString(jsThis, p,
+              scanner.getPath(), (int) scanner.getLine(),
+              null);
+        return "";
+      }
+    });
+    documentBuilder.addCommand("val", new MacroShell.Command() {
+      @Override
+      protected String run(String command, Stack<String> parameters) {
+        Context cx = Context.getCurrentContext();
+        Scriptable jsThis = (Scriptable) main.objects.get("this");
+        StringBuilder output = new StringBuilder();
+        for (String p : parameters)
+          output.append((String)
+              Context.jsToJava(
+                  cx.evaluateString(jsThis, p,
+                      scanner.getPath(), (int) scanner.getLine(),
+                      null), String.class)
+          );
+        return output.toString();
+      }
+    });
+    return documentBuilder;
+  }
+
   @Override
   public ServerResult createMimeTypeResult(ServerContent content) {
-    Context cx = Context.enter();
-    cx.setOptimizationLevel(-1);
+    Context cx = contextFactory.enterContext();
+    cx.setOptimizationLevel(optimizationLevel);
     try {
       Scriptable jsThis = getScriptShell(cx, global);
-      InputStream sourceStream = content.getStream();
-      Scanner scanner = new Scanner(content.session.getUri(), Streams.readWholeString(sourceStream));
-      sourceStream.close();
-      MacroShell documentBuilder = new MacroShell(System.getenv());
+      String uri = content.session.getUri(), key = pageKey(content);
+      // server generated content has no modification time to key the page on
+      boolean cacheable = !content.isServerGenerated();
+      RhinoServerPage page = cacheable ? pageCache.get(key) : null;
+      String source = null;
+      if (page != null && page.getLastModified() == content.lastModified) {
+        if (content.isBufferedInputStream()) ((InputStream) content.get()).close();
+      } else {
+        InputStream sourceStream = content.getStream();
+        source = Streams.readWholeString(sourceStream);
+        sourceStream.close();
+        Long dynamic = dynamicPages.get(key);
+        boolean known = dynamic != null && dynamic == content.lastModified;
+        page = (cacheable && !known) ? compilePage(content, source, jsThis) : null;
+      }
+      MacroShell documentBuilder = createDocumentBuilder();
       ScriptRuntime.setObjectProp(jsThis, "directory", Context.javaToJS(content.getDirectory(), jsThis), cx);
       ScriptRuntime.setObjectProp(jsThis, "content", Context.javaToJS(content, jsThis), cx);
       ScriptRuntime.setObjectProp(jsThis, "server", Context.javaToJS(content.session.getServer(), jsThis), cx);
       ScriptRuntime.setObjectProp(jsThis, "session", Context.javaToJS(content.session, jsThis), cx);
       ScriptRuntime.setObjectProp(jsThis, "shell", Context.javaToJS(documentBuilder, jsThis), cx);
+      WebSocketBinding websocket = new WebSocketBinding(content.session, jsThis);
+      ScriptRuntime.setObjectProp(jsThis, "websocket", Context.javaToJS(websocket, jsThis), cx);
       documentBuilder.objects.put("this", jsThis);
       documentBuilder.objects.put("directory", content.getDirectory());
-      documentBuilder.addCommand("*", starCommand);
-      documentBuilder.addCommand("src", srcCommand);
-      documentBuilder.addCommand("do", doCommand);
-      documentBuilder.addCommand("val", valCommand);
       if (content.mimeType.equals(NANO_STARBOX_JAVASCRIPT_SERVER_PAGE)) content.mimeType = MIME_HTML;
-      return new ServerResult(content.session, Status.OK, content.mimeType, documentBuilder.start(scanner));
+      String document = (page != null) ? page.render(cx, jsThis, this, documentBuilder) : documentBuilder.start(new Scanner(uri, source));
+      if (websocket.response != null) return new ServerResult(new ServerContent(websocket.response));
+      return new ServerResult(content.session, Status.OK, content.mimeType, document);
     }
     catch (Exception e) {throw new RuntimeException(e);}
     finally {
@@ -286,4 +405,100 @@ public class RhinoPageDriver implements
     indexFiles.add("index.jsp");
   }
 
+  /**
+   * <p>The {@code websocket} object of a page render.</p>
+   * <br>
+   * <p>A page that is asked for a WebSocket upgrade calls
+   * {@code websocket.accept(handler)}, and is answered with the upgrade
+   * instead of its document. The handler is a script object with any of the
+   * functions {@code onOpen(socket)}, {@code onText(socket, text)},
+   * {@code onBinary(socket, data)} and {@code onClose(socket, code, reason)},
+   * called in the scope of the page on the threads of the {@link WebSocket}.</p>
+   * <br>
+   */
+  public class WebSocketBinding {
+
+    private final IHTTPSession session;
+    private final Scriptable scope;
+    private Response response;
+
+    WebSocketBinding(IHTTPSession session, Scriptable scope) {
+      this.session = session;
+      this.scope = scope;
+    }
+
+    /**
+     * @return true if the request asks for a WebSocket upgrade
+     */
+    public boolean isRequested() {
+      return WebSocket.isUpgradeRequest(session);
+    }
+
+    public void accept(final Scriptable handler, String... protocols) {
+      response = WebSocket.upgrade(session, new WebSocketHandler() {
+        @Override
+        public void onOpen(WebSocket socket) {
+          call(handler, "onOpen", socket);
+        }
+
+        @Override
+        public void onText(WebSocket socket, String text) {
+          call(handler, "onText", socket, text);
+        }
+
+        @Override
+        public void onBinary(WebSocket socket, byte[] data) {
+          call(handler, "onBinary", socket, data);
+        }
+
+        @Override
+        public void onClose(WebSocket socket, int code, String reason) {
+          call(handler, "onClose", socket, code, reason);
+        }
+      }, protocols);
+    }
+
+    private void call(Scriptable handler, String name, Object... args) {
+      Context cx = contextFactory.enterContext();
+      try {
+        Object function = ScriptableObject.getProperty(handler, name);
+        if (!(function instanceof Function)) return;
+        for (int i = 0; i < args.length; i++) args[i] = Context.javaToJS(args[i], scope);
+        ((Function) function).call(cx, scope, handler, args);
+      }
+      finally {
+        Context.exit();
+      }
+    }
+
+  }
+
+  /**
+   * <p>Context factory of the page renders</p>
+   * <br>
+   * <p>Dynamic scope lets functions of the shared global resolve names in the
+   * scope of the page that calls them, as the Rhino documentation recommends for
+   * a sealed scope that is shared between threads.</p>
+   * <br>
+   */
+  private static class PageContextFactory extends ShellContextFactory {
+    @Override
+    protected boolean hasFeature(Context cx, int featureIndex) {
+      if (featureIndex == Context.FEATURE_DYNAMIC_SCOPE) return true;
+      return super.hasFeature(cx, featureIndex);
+    }
+  }
+
+  private static class IncludeScript {
+    final String source;
+    final int optimizationLevel;
+    final Script script;
+
+    IncludeScript(String source, int optimizationLevel, Script script) {
+      this.source = source;
+      this.optimizationLevel = optimizationLevel;
+      this.script = script;
+    }
+  }
+
 }
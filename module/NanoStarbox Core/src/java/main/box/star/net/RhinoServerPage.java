@@ -0,0 +1,219 @@
+package box.star.net;
+
+import box.star.Tools;
+import box.star.text.MacroShell;
+import box.star.text.basic.Scanner;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * <p>A javascript server page, parsed once into literal text and compiled
+ * script fragments.</p>
+ * <br>
+ * <p>The page macros are expanded a single time by {@link #compile}, with the
+ * {@code do}, {@code val}, {@code <script>} and {@code src} commands
+ * recording a fragment instead of running. Rendering the page then only
+ * runs the fragments in document order, between the literal text.</p>
+ * <br>
+ * <p>The environment variable and object macros are recorded in the same way,
+ * and are looked up in the shell of each render, so that a fragment which
+ * changes the {@code shell} of the page is seen by the macros after it, as it
+ * is when the page is evaluated by the {@link MacroShell}.</p>
+ * <br>
+ * <p>A page that feeds the output of a fragment into another macro cannot be
+ * split this way; {@link #compile} returns null for it, and the page must be
+ * evaluated by the {@link MacroShell} on every request.</p>
+ * <br>
+ */
+public class RhinoServerPage {
+
+  private final static char MARK = '\uFFFF';
+
+  private final String uri;
+  private final long lastModified;
+  private final String[] text;
+  private final Fragment[] fragments;
+
+  private RhinoServerPage(String uri, long lastModified, String[] text, Fragment[] fragments) {
+    this.uri = uri;
+    this.lastModified = lastModified;
+    this.text = text;
+    this.fragments = fragments;
+  }
+
+  public String getUri() { return uri; }
+
+  public long getLastModified() { return lastModified; }
+
+  /**
+   * <p>Parses the source of a page, compiling its script fragments with the
+   * optimization level of the current context.</p>
+   * <br>
+   *
+   * @param uri          the uri of the page
+   * @param lastModified the modification time of the source
+   * @param source       the page text
+   * @param shell        a shell configured with the objects of the page
+   * @param directory    the directory that {@code src} files are relative to
+   * @return the page, or null if the page cannot be compiled into fragments
+   */
+  public static RhinoServerPage compile(String uri, long lastModified, String source, MacroShell shell, final Object directory) {
+    if (source.indexOf(MARK) != -1) return null;
+    final List<Fragment> fragments = new ArrayList<>();
+    final boolean[] dynamic = new boolean[1];
+    MacroShell.Command srcCommand = new MacroShell.Command() {
+      @Override
+      protected String run(String command, Stack<String> parameters) {
+        StringBuilder marks = new StringBuilder();
+        for (String file : parameters) {
+          if (file.indexOf(MARK) != -1) dynamic[0] = true;
+          marks.append(mark(fragments, new Fragment(Fragment.SRC, directory + "/" + file, null)));
+        }
+        return marks.toString();
+      }
+    };
+    MacroShell.Command doCommand = new MacroShell.Command() {
+      @Override
+      protected String run(String command, Stack<String> parameters) {
+        return record(fragments, dynamic, Fragment.DO, scanner, parameters);
+      }
+    };
+    MacroShell.Command valCommand = new MacroShell.Command() {
+      @Override
+      protected String run(String command, Stack<String> parameters) {
+        return record(fragments, dynamic, Fragment.VAL, scanner, parameters);
+      }
+    };
+    MacroShell.Command starCommand = new MacroShell.Command() {
+      @Override
+      protected String run(String command, Stack<String> parameters) {
+        if (command.equalsIgnoreCase("<script>"))
+          return record(fragments, dynamic, Fragment.VAL, scanner, parameters);
+        throw new IllegalArgumentException("unknown command: " + command);
+      }
+    };
+    shell.addCommand("*", starCommand);
+    shell.addCommand("src", srcCommand);
+    shell.addCommand("do", doCommand);
+    shell.addCommand("val", valCommand);
+    shell.environment = new MacroRecorder<String>(fragments, Fragment.VARIABLE);
+    shell.objects = new MacroRecorder<Object>(fragments, Fragment.OBJECT);
+    String output = shell.start(new Scanner(uri, source));
+    if (dynamic[0]) return null;
+
+    // split the output at the fragment marks
+    String[] text = new String[fragments.size() + 1];
+    int fragment = 0, start = 0;
+    for (int i = output.indexOf(MARK); i != -1; i = output.indexOf(MARK, start)) {
+      int end = output.indexOf(MARK, i + 1);
+      if (end == -1 || fragment == fragments.size()) return null;
+      try {
+        if (Integer.parseInt(output.substring(i + 1, end)) != fragment) return null;
+      }
+      catch (NumberFormatException e) { return null; }
+      text[fragment++] = output.substring(start, i);
+      start = end + 1;
+    }
+    if (fragment != fragments.size()) return null;
+    text[fragment] = output.substring(start);
+    return new RhinoServerPage(uri, lastModified, text, fragments.toArray(new Fragment[0]));
+  }
+
+  private static String record(List<Fragment> fragments, boolean[] dynamic, int type, Scanner scanner, Stack<String> parameters) {
+    Context cx = Context.getCurrentContext();
+    StringBuilder marks = new StringBuilder();
+    for (String p : parameters) {
+      if (p.indexOf(MARK) != -1) {
+        dynamic[0] = true;
+        continue;
+      }
+      Script script = cx.compileString(p, scanner.getPath(), (int) scanner.getLine(), null);
+      marks.append(mark(fragments, new Fragment(type, null, script)));
+    }
+    return marks.toString();
+  }
+
+  private static String mark(List<Fragment> fragments, Fragment fragment) {
+    fragments.add(fragment);
+    return MARK + String.valueOf(fragments.size() - 1) + MARK;
+  }
+
+  /**
+   * <p>Runs the fragments of the page against the page object, and returns
+   * the document.</p>
+   * <br>
+   *
+   * @param cx     the current context
+   * @param jsThis the page object, which the fragments use as scope
+   * @param driver the driver that runs the {@code src} files
+   * @param shell  the shell of the render, which the macros are looked up in
+   * @return the document text
+   */
+  public String render(Context cx, Scriptable jsThis, RhinoPageDriver driver, MacroShell shell) {
+    StringBuilder output = new StringBuilder();
+    for (int i = 0; i < fragments.length; i++) {
+      output.append(text[i]);
+      Fragment fragment = fragments[i];
+      switch (fragment.type) {
+        case Fragment.SRC:
+          driver.include(cx, jsThis, fragment.path);
+          break;
+        case Fragment.DO:
+          fragment.script.exec(cx, jsThis);
+          break;
+        case Fragment.VAL:
+          output.append((String) Context.jsToJava(fragment.script.exec(cx, jsThis), String.class));
+          break;
+        case Fragment.VARIABLE:
+          output.append(Tools.switchNull(shell.environment.get(fragment.path), ""));
+          break;
+        case Fragment.OBJECT:
+          output.append(Tools.switchNull(shell.objects.get(fragment.path), "undefined").toString());
+          break;
+      }
+    }
+    output.append(text[fragments.length]);
+    return output.toString();
+  }
+
+  /**
+   * <p>The environment or objects of the compiling shell, which answer every
+   * lookup of a macro with the mark of a fragment.</p>
+   */
+  private static class MacroRecorder<V> extends Hashtable<String, V> {
+    private static final long serialVersionUID = 4172302905361265812L;
+    private final List<Fragment> fragments;
+    private final int type;
+
+    MacroRecorder(List<Fragment> fragments, int type) {
+      this.fragments = fragments;
+      this.type = type;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized V get(Object key) {
+      return (V) mark(fragments, new Fragment(type, String.valueOf(key), null));
+    }
+  }
+
+  private static class Fragment {
+    static final int SRC = 0, DO = 1, VAL = 2, VARIABLE = 3, OBJECT = 4;
+    final int type;
+    final String path;
+    final Script script;
+
+    Fragment(int type, String path, Script script) {
+      this.type = type;
+      this.path = path;
+      this.script = script;
+    }
+  }
+
+}
@@ -17,7 +17,7 @@ public class WebService extends HTTPServer {
    * <p>Specifically: Response, byte[], File, String, or InputStream</p>
    * <br>
    */
-  public final List<ContentProvider> contentProviders = new ArrayList<ContentProvider>();
+  public final List<ContentProvider> contentProviders = new MountList();
   /**
    * <p>{@link MimeTypeDriver}s manipulate {@link ServerContent}.</p>
    * <br>
@@ -34,7 +34,21 @@ public class WebService extends HTTPServer {
    * See the {@link MimeTypeMap} for details
    */
   public final MimeTypeMap mimeTypeMap = new MimeTypeMap();
+  /**
+   * Compressed representations of static files, see {@link CompressedContentCache}.
+   */
+  public final CompressedContentCache compressedContentCache = new CompressedContentCache();
+  /**
+   * Validators, conditional requests and ranges, see {@link ConditionalContent}.
+   */
+  public final ConditionalContent conditionalContent = new ConditionalContent();
+  /**
+   * Stats and small files of mounted {@link FileContentProvider}s, see {@link ContentCache}.
+   */
+  public final ContentCache contentCache = new ContentCache();
   private boolean quiet = true;
+  private volatile MountTable mountTable;
+  private volatile int mountTableVersion = -1;
 
   public WebService() { super(); }
 
@@ -47,6 +61,8 @@ public class WebService extends HTTPServer {
   public WebService mount(ContentProvider contentProvider) {
     contentProviders.add(contentProvider);
     contentProvider.setMimeTypeMap(mimeTypeMap);
+    if (contentProvider instanceof FileContentProvider)
+      ((FileContentProvider) contentProvider).setContentCache(contentCache);
     return this;
   }
 
@@ -56,31 +72,7 @@ public class WebService extends HTTPServer {
    */
   @Deprecated
   final public File getFile(String uri) {
-    // first: uri-equality
-    for (ContentProvider provider : contentProviders) {
-      if (!(provider instanceof NativeContentProvider)) continue;
-      String path = provider.getBaseUri();
-      if (path.equals(uri)) {
-        File c = ((NativeContentProvider) provider).getFile(uri);
-        if (c != null && c.exists()) return c;
-      }
-    }
-    String u = uri;
-    // second: parent-uri-equality
-    while (!u.equals("/")) {
-      u = u.substring(0, Math.max(0, u.lastIndexOf('/')));
-      if (u.equals("")) u = "/";
-      for (ContentProvider provider : contentProviders) {
-        if (!(provider instanceof NativeContentProvider)) continue;
-        String path = provider.getBaseUri();
-        if (path.equals(u)) {
-          File f = ((NativeContentProvider) provider).getFile(uri);
-          if (f != null && f.exists()) return f;
-        }
-      }
-    }
-    // third: fail-silently
-    return null;
+    return getMountTable().getFile(uri);
   }
 
   final public void addMimeTypeDriver(String mimeType, MimeTypeDriver driver) {
@@ -98,27 +90,35 @@ public class WebService extends HTTPServer {
   }
 
   public ServerContent getContent(IHTTPSession session) {
+    return getMountTable().getContent(session);
+  }
+
+  /**
+   * <p>Routes requests by the base URI of their mount, see {@link MountTable#getRoute(String)}.</p>
+   */
+  @Override
+  protected String getRoute(IHTTPSession session) {
     String uri = session.getUri();
-    // first: uri-equality
-    for (ContentProvider provider : contentProviders) {
-      String path = provider.getBaseUri();
-      if (path.equals(uri)) return provider.getContent(session);
-    }
-    String u = uri;
-    // second: parent-uri-equality
-    while (!u.equals("/")) {
-      u = u.substring(0, Math.max(0, u.lastIndexOf('/')));
-      if (u.equals("")) u = "/";
-      for (ContentProvider provider : contentProviders) {
-        String path = provider.getBaseUri();
-        if (path.equals(u)) {
-          ServerContent content = provider.getContent(session);
-          if (content != null) return content;
-        }
-      }
+    return uri == null ? null : getMountTable().getRoute(uri);
+  }
+
+  /**
+   * <p>Gets the routing table of the {@link #contentProviders}, rebuilding it
+   * if the providers have changed since it was built.</p>
+   */
+  protected MountTable getMountTable() {
+    MountList mounts = (MountList) contentProviders;
+    // the version is published after the table, so read it first
+    int current = mountTableVersion;
+    MountTable table = mountTable;
+    if (table != null && current == mounts.version()) return table;
+    synchronized (mounts) {
+      int version = mounts.version();
+      table = new MountTable(mounts);
+      mountTable = table;
+      mountTableVersion = version;
+      return table;
     }
-    // third: fail-silently
-    return null;
   }
 
   protected ServerResult getResult(ServerContent content) {
@@ -154,11 +154,32 @@ public class WebService extends HTTPServer {
     try {
       ServerResult serverResult = getResult(getContent(session));
       if (serverResult == null) return Response.notFoundResponse();
-      return serverResult.getResponse();
+      Response response = conditionalContent.getResponse(serverResult);
+      if (response != null) return response;
+      response = compressedContentCache.getResponse(serverResult);
+      if (response == null) response = serverResult.getResponse();
+      conditionalContent.addValidators(serverResult, response);
+      return response;
     }
     catch (Exception e) {
       return serverExceptionResponse(e);
     }
   }
 
+  /**
+   * <p>The provider list, which counts its changes so that the mount table
+   * can be rebuilt when it is modified.</p>
+   */
+  private static class MountList extends ArrayList<ContentProvider> {
+    private static final long serialVersionUID = -2496318751472384406L;
+
+    int version() { return modCount; }
+
+    @Override
+    public ContentProvider set(int index, ContentProvider element) {
+      modCount++;
+      return super.set(index, element);
+    }
+  }
+
 }
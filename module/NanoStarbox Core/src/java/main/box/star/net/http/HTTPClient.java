@@ -33,13 +33,23 @@ package box.star.net.http;
  * #L%
  */
 
+import box.star.net.http.response.Response;
+import box.star.net.http.response.Status;
+import box.star.net.http.response.UpgradeResponse;
+import box.star.net.http.sockets.ChannelOutputStream;
+import box.star.net.http.sockets.TLSConfiguration;
 import box.star.net.http.tempfiles.ITempFileManager;
 
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
 /**
@@ -47,32 +57,182 @@ import java.util.logging.Level;
  */
 public class HTTPClient implements Runnable {
 
+  /**
+   * How long, and for how many bytes, a connection closed with a request body
+   * unread is read before it is closed, see {@link #closeLingering(OutputStream)}.
+   */
+  protected static final int LINGER_TIME = 2000, LINGER_SIZE = 1024 * 1024;
+
   private final HTTPServer httpd;
 
   private final InputStream inputStream;
 
   private final Socket acceptSocket;
 
+  private final AtomicBoolean open = new AtomicBoolean(true);
+
   public HTTPClient(HTTPServer httpd, InputStream inputStream, Socket acceptSocket) {
     this.httpd = httpd;
     this.inputStream = inputStream;
     this.acceptSocket = acceptSocket;
+    httpd.metrics.connectionOpened();
   }
 
   public void close() {
     HTTPServer.safeClose(this.inputStream);
     HTTPServer.safeClose(this.acceptSocket);
+    released();
+  }
+
+  /**
+   * Counts the connection as closed in the server metrics, once.
+   */
+  protected final void released() {
+    if (open.compareAndSet(true, false)) httpd.metrics.connectionClosed();
+  }
+
+  /**
+   * Refuses the client with a 503 response and closes the connection.
+   * <p>
+   * Used by async runners that are out of capacity.
+   * </p>
+   */
+  public void reject() {
+    OutputStream outputStream = null;
+    try {
+      outputStream = this.acceptSocket.getOutputStream();
+      sendRejection(outputStream);
+    }
+    catch (IOException e) {
+      HTTPServer.LOG.log(Level.FINE, "Could not refuse the client", e);
+    }
+    finally {
+      HTTPServer.safeClose(outputStream);
+      close();
+    }
+  }
+
+  protected void sendRejection(OutputStream outputStream) {
+    Response response = Response.plainTextResponse(Status.SERVICE_UNAVAILABLE, "Service Unavailable");
+    response.setUseGzip(false);
+    response.closeConnection(true);
+    response.addHeader("Retry-After", "1");
+    response.send(outputStream);
+  }
+
+  /**
+   * Writes through the socket channel when the socket has one, so that file
+   * responses can be transferred without copying; TLS sockets have no channel
+   * and use the socket stream.
+   */
+  protected OutputStream openOutputStream() throws IOException {
+    SocketChannel channel = this.acceptSocket.getChannel();
+    if (channel != null) return new ChannelOutputStream(channel, this.acceptSocket.getSoTimeout());
+    return this.acceptSocket.getOutputStream();
+  }
+
+  /**
+   * Completes the TLS handshake before the first request is read, within the
+   * handshake timeout of the server's {@link TLSConfiguration}, and records
+   * its time in the server metrics.
+   */
+  protected void handshake(SSLSocket socket) throws IOException {
+    TLSConfiguration tls = httpd.getTLSConfiguration();
+    int readTimeout = socket.getSoTimeout();
+    long started = System.currentTimeMillis(), start = System.nanoTime();
+    try {
+      if (tls != null) socket.setSoTimeout(tls.getHandshakeTimeout());
+      socket.startHandshake();
+    }
+    catch (IOException e) {
+      httpd.metrics.handshakeFailed();
+      HTTPServer.LOG.log(Level.FINE, "TLS handshake failed", e);
+      throw new SocketException("NanoHttpd Shutdown");
+    }
+    long nanos = System.nanoTime() - start;
+    SSLSession session = socket.getSession();
+    // a resumed session was made by an earlier handshake
+    httpd.metrics.handshakeEnded(nanos, session.getCreationTime() < started);
+    socket.setSoTimeout(readTimeout);
+  }
+
+  /**
+   * Shuts down the sending side of the connection, then reads and discards
+   * what the client still sends for a moment.
+   * <p>
+   * Closing a socket with received bytes unread resets the connection, and
+   * the client can lose the response that was sent before the reset; this is
+   * used when a request body was too long to drain.
+   * </p>
+   */
+  protected void closeLingering(OutputStream outputStream) {
+    if (this.acceptSocket instanceof SSLSocket) return;
+    try {
+      outputStream.flush();
+      this.acceptSocket.shutdownOutput();
+      this.acceptSocket.setSoTimeout(LINGER_TIME);
+      long deadline = System.currentTimeMillis() + LINGER_TIME;
+      byte[] discard = new byte[HTTPSession.BUFSIZE];
+      int read, total = 0;
+      while (total < LINGER_SIZE && System.currentTimeMillis() < deadline && (read = this.inputStream.read(discard)) > 0) {
+        total += read;
+      }
+    }
+    catch (IOException e) {
+      HTTPServer.LOG.log(Level.FINEST, "Lingering close ended", e);
+    }
+  }
+
+  /**
+   * Keeps the worker reading an upgraded connection until it is closed; the
+   * protocol decides how long the connection may be idle.
+   */
+  private void serveUpgrade(HTTPSession session, final OutputStream outputStream) throws IOException {
+    UpgradeResponse upgrade = session.getUpgradeResponse();
+    try {
+      upgrade.open(new UpgradeResponse.Connection() {
+        @Override
+        public OutputStream getOutputStream() {
+          return outputStream;
+        }
+
+        @Override
+        public boolean isNonBlocking() {
+          return false;
+        }
+
+        @Override
+        public void close() {
+          HTTPServer.safeClose(acceptSocket);
+        }
+      });
+      do {
+        this.acceptSocket.setSoTimeout(upgrade.getTimeout());
+      } while (!this.acceptSocket.isClosed() && session.receiveUpgraded());
+    }
+    catch (IOException e) {
+      if (!this.acceptSocket.isClosed()) throw e;
+    }
+    finally {
+      upgrade.closed();
+    }
   }
 
   @Override
   public void run() {
     OutputStream outputStream = null;
+    HTTPSession session = null;
     try {
-      outputStream = this.acceptSocket.getOutputStream();
+      if (this.acceptSocket instanceof SSLSocket) handshake((SSLSocket) this.acceptSocket);
+      outputStream = openOutputStream();
       ITempFileManager tempFileManager = httpd.getTempFileManagerFactory().create();
-      HTTPSession session = new HTTPSession(httpd, tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
+      session = new HTTPSession(httpd, tempFileManager, this.inputStream, outputStream, this.acceptSocket.getInetAddress());
       while (!this.acceptSocket.isClosed()) {
         session.execute();
+        if (session.getUpgradeResponse() != null) {
+          serveUpgrade(session, outputStream);
+          break;
+        }
       }
     }
     catch (Exception e) {
@@ -88,9 +248,11 @@ public class HTTPClient implements Runnable {
       }
     }
     finally {
+      if (session != null && session.hasUnreadBody()) closeLingering(outputStream);
       HTTPServer.safeClose(outputStream);
       HTTPServer.safeClose(this.inputStream);
       HTTPServer.safeClose(this.acceptSocket);
+      released();
       httpd.asyncRunner.closed(this);
     }
   }
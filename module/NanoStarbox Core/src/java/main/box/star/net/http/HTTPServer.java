@@ -34,14 +34,16 @@ package box.star.net.http;
  */
 
 import box.star.net.http.content.CookieHandler;
+import box.star.net.http.metrics.ServerMetrics;
 import box.star.net.http.response.Response;
 import box.star.net.http.response.Status;
 import box.star.net.http.sockets.DefaultServerSocketFactory;
 import box.star.net.http.sockets.SecureServerSocketFactory;
+import box.star.net.http.sockets.TLSConfiguration;
 import box.star.net.http.tempfiles.DefaultTempFileManagerFactory;
 import box.star.net.http.tempfiles.ITempFileManager;
-import box.star.net.http.threading.DefaultAsyncRunner;
-import box.star.net.http.threading.IAsyncRunner;
+import box.star.net.http.sockets.ChannelServerSocketFactory;
+import box.star.net.http.threading.*;
 import box.star.net.http.util.IFactory;
 import box.star.net.http.util.IFactoryThrowing;
 import box.star.net.http.util.IHandler;
@@ -117,7 +119,21 @@ public abstract class HTTPServer {
       CONFIG_PORT = "port",
       CONFIG_DAEMON = "daemon",
       CONFIG_INDEX_FILES = "index-files",
-      CONFIG_SOCKET_READ_TIMEOUT = "socket-read-timeout";
+      CONFIG_SOCKET_READ_TIMEOUT = "socket-read-timeout",
+      CONFIG_ASYNC_RUNNER = "async-runner",
+      CONFIG_MAX_WORKERS = "max-workers",
+      CONFIG_ACCEPT_QUEUE_SIZE = "accept-queue-size",
+      CONFIG_MAX_DRAIN_SIZE = "max-drain-size",
+      CONFIG_ZERO_COPY = "zero-copy";
+  /**
+   * Values of {@link #CONFIG_ASYNC_RUNNER}: a thread per connection, a bounded
+   * worker pool, a virtual thread per connection, or a selector with a worker pool.
+   */
+  public static final String
+      ASYNC_RUNNER_DEFAULT = "default",
+      ASYNC_RUNNER_BOUNDED = "bounded",
+      ASYNC_RUNNER_VIRTUAL = "virtual",
+      ASYNC_RUNNER_SELECTOR = "selector";
   public static final String CONTENT_DISPOSITION_REGEX = "([ |\t]*Content-Disposition[ |\t]*:)(.*)";
   public static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern.compile(CONTENT_DISPOSITION_REGEX, Pattern.CASE_INSENSITIVE);
   public static final String CONTENT_TYPE_REGEX = "([ |\t]*content-type[ |\t]*:)(.*)";
@@ -156,7 +172,15 @@ public abstract class HTTPServer {
    */
   protected IAsyncRunner asyncRunner;
   private volatile ServerSocket myServerSocket;
+  /**
+   * Creates the server socket; the default socket has no channel, and is
+   * replaced by a channel socket at {@link #start()} for the selector runner,
+   * or when {@link #CONFIG_ZERO_COPY} is true, so that file responses can be
+   * transferred without copying.
+   */
   private IFactoryThrowing<ServerSocket, IOException> serverSocketFactory = new DefaultServerSocketFactory();
+
+  private TLSConfiguration tlsConfiguration;
   private Thread myThread;
   private IHandler<IHTTPSession, Response> httpHandler;
   /**
@@ -164,6 +188,10 @@ public abstract class HTTPServer {
    */
   private IFactory<ITempFileManager> tempFileManagerFactory;
   private long lastAccessTime = 0;
+  /**
+   * Request counts, connection numbers and latencies of this server, see {@link ServerMetrics}.
+   */
+  public final ServerMetrics metrics = new ServerMetrics();
   /**
    * Constructs an HTTP server on given hostname and port.
    */
@@ -176,8 +204,12 @@ public abstract class HTTPServer {
     configurationManager.set(CONFIG_PORT, 8080);
     configurationManager.set(CONFIG_DAEMON, true);
     configurationManager.set(CONFIG_SOCKET_READ_TIMEOUT, 80000);
+    configurationManager.set(CONFIG_ASYNC_RUNNER, ASYNC_RUNNER_DEFAULT);
+    configurationManager.set(CONFIG_MAX_WORKERS, 200);
+    configurationManager.set(CONFIG_ACCEPT_QUEUE_SIZE, 100);
+    configurationManager.set(CONFIG_MAX_DRAIN_SIZE, 64 * 1024);
+    configurationManager.set(CONFIG_ZERO_COPY, false);
     setTempFileManagerFactory(new DefaultTempFileManagerFactory());
-    setAsyncRunner(new DefaultAsyncRunner());
     // creates a default handler that redirects to deprecated serviceRequest();
     this.httpHandler = new IHandler<IHTTPSession, Response>() {
       @Override
@@ -188,7 +220,8 @@ public abstract class HTTPServer {
   }
 
   public final static String getParentUri(String uri) {
-    return "/" + uri.substring(0, Math.max(0, uri.lastIndexOf("/"))).substring(1);
+    int slash = uri.lastIndexOf('/');
+    return slash <= 0 ? "/" : "/" + uri.substring(1, slash);
   }
 
   /**
@@ -424,9 +457,28 @@ public abstract class HTTPServer {
    * @return the server runnable.
    */
   protected HTTPService createServerRunnable(final int timeout) {
+    if (asyncRunner instanceof SelectorAsyncRunner) return new SelectorHTTPService(this, timeout);
     return new HTTPService(this, timeout);
   }
 
+  /**
+   * Instantiate the async runner selected by {@link #CONFIG_ASYNC_RUNNER}, when
+   * no runner was set through {@link #setAsyncRunner(IAsyncRunner)}.
+   *
+   * @return the async runner.
+   */
+  protected IAsyncRunner createAsyncRunner() {
+    String mode = configuration.get(CONFIG_ASYNC_RUNNER);
+    int maxWorkers = configuration.get(CONFIG_MAX_WORKERS);
+    if (mode == null || ASYNC_RUNNER_DEFAULT.equals(mode)) return new DefaultAsyncRunner();
+    else if (ASYNC_RUNNER_BOUNDED.equals(mode))
+      return new BoundedAsyncRunner(maxWorkers, configuration.<Integer>get(CONFIG_ACCEPT_QUEUE_SIZE));
+    else if (ASYNC_RUNNER_VIRTUAL.equals(mode)) return new VirtualThreadAsyncRunner();
+    else if (ASYNC_RUNNER_SELECTOR.equals(mode))
+      return new SelectorAsyncRunner(maxWorkers, configuration.<Integer>get(CONFIG_ACCEPT_QUEUE_SIZE));
+    throw new IllegalStateException("unknown " + CONFIG_ASYNC_RUNNER + ": " + mode);
+  }
+
   public final int getPort() {
     return this.myServerSocket == null ? configuration.get(CONFIG_PORT) : this.myServerSocket.getLocalPort();
   }
@@ -460,24 +512,38 @@ public abstract class HTTPServer {
     this.tempFileManagerFactory = tempFileManagerFactory;
   }
 
+  /**
+   * Call before start() to serve over HTTPS with the key store file, which is
+   * read again when it changes; see {@link TLSConfiguration}.
+   */
   public void makeSecure(File jks, String password) {
-    try {
-      SSLServerSocketFactory socketFactory =
-          makeSSLSocketFactory(jks, password.toCharArray());
-      makeSecure(socketFactory, null);
-    }
-    catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    makeSecure(new TLSConfiguration(jks, password.toCharArray()));
+  }
+
+  /**
+   * Call before start() to serve over HTTPS with the configuration, whose
+   * context and session cache are kept across restarts.
+   */
+  public void makeSecure(TLSConfiguration tlsConfiguration) {
+    this.tlsConfiguration = tlsConfiguration;
+    this.serverSocketFactory = new SecureServerSocketFactory(tlsConfiguration);
   }
 
   /**
    * Call before start() to serve over HTTPS instead of HTTP
    */
   public void makeSecure(SSLServerSocketFactory sslServerSocketFactory, String[] sslProtocols) {
+    this.tlsConfiguration = null;
     this.serverSocketFactory = new SecureServerSocketFactory(sslServerSocketFactory, sslProtocols);
   }
 
+  /**
+   * @return the TLS configuration given to {@link #makeSecure(TLSConfiguration)}, or null
+   */
+  public TLSConfiguration getTLSConfiguration() {
+    return tlsConfiguration;
+  }
+
   public long getLastAccessTime() {
     return lastAccessTime;
   }
@@ -499,7 +565,7 @@ public abstract class HTTPServer {
    */
   public Response handle(IHTTPSession session) {
 
-    lastAccessTime = new Date().getTime();
+    lastAccessTime = System.currentTimeMillis();
     CookieHandler cookies = session.getCookies();
 
     for (IHandler<IHTTPSession, Response> interceptor : interceptors) {
@@ -510,6 +576,19 @@ public abstract class HTTPServer {
     return cookies.unloadQueue(httpHandler.handle(session));
   }
 
+  /**
+   * Names the route of a request, for the {@link #metrics} by route.
+   * <p>
+   * Routes should be few, such as the base URI of a mount; by default
+   * requests have no route.
+   * </p>
+   *
+   * @return the route, or null
+   */
+  protected String getRoute(IHTTPSession session) {
+    return null;
+  }
+
   /**
    * Override this to customize the server.
    * <p/>
@@ -524,8 +603,22 @@ public abstract class HTTPServer {
     return Response.plainTextResponse(Status.NOT_FOUND, "Not Found");
   }
 
+  /**
+   * @return the async runner; when no runner was set, the one configured by
+   * {@link #CONFIG_ASYNC_RUNNER} is created on the first call, so the runner
+   * configuration must be complete by then.
+   */
+  public synchronized IAsyncRunner getAsyncRunner() {
+    if (this.asyncRunner == null) setAsyncRunner(createAsyncRunner());
+    return asyncRunner;
+  }
+
   /**
    * Pluggable strategy for asynchronously executing requests.
+   * <p>
+   * When no runner is set, {@link #getAsyncRunner()} or {@link #start()}
+   * creates one as configured by {@link #CONFIG_ASYNC_RUNNER}.
+   * </p>
    *
    * @param asyncRunner new strategy for handling threads.
    */
@@ -544,6 +637,15 @@ public abstract class HTTPServer {
     configurationManager.get(CONFIG_PORT).setWritable(false);
     configurationManager.get(CONFIG_SOCKET_READ_TIMEOUT).setWritable(false);
     configurationManager.get(CONFIG_DAEMON).setWritable(false);
+    configurationManager.get(CONFIG_ASYNC_RUNNER).setWritable(false);
+    configurationManager.get(CONFIG_MAX_WORKERS).setWritable(false);
+    configurationManager.get(CONFIG_ACCEPT_QUEUE_SIZE).setWritable(false);
+    configurationManager.get(CONFIG_ZERO_COPY).setWritable(false);
+
+    boolean channels = getAsyncRunner() instanceof SelectorAsyncRunner || Boolean.TRUE.equals(configuration.get(CONFIG_ZERO_COPY));
+    if (channels && this.serverSocketFactory instanceof DefaultServerSocketFactory) {
+      this.serverSocketFactory = new ChannelServerSocketFactory();
+    }
 
     this.myServerSocket = this.getServerSocketFactory().create();
     this.myServerSocket.setReuseAddress(true);
@@ -574,7 +676,7 @@ public abstract class HTTPServer {
   public void stop() {
     try {
       safeClose(this.myServerSocket);
-      this.asyncRunner.closeAll();
+      if (this.asyncRunner != null) this.asyncRunner.closeAll();
       if (this.myThread != null) {
         this.myThread.join();
       }
@@ -594,101 +696,93 @@ public abstract class HTTPServer {
 
     Response res;
     Map<String, String> header = query.getHeaders();
-    try {
-      // Calculate etag
-      String etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
-
-      // Support (simple) skipping:
-      long startFrom = 0;
-      long endAt = -1;
-      String range = header.get("range");
-      if (range != null) {
-        if (range.startsWith("bytes=")) {
-          range = range.substring("bytes=".length());
-          int minus = range.indexOf('-');
-          try {
-            if (minus > 0) {
-              startFrom = Long.parseLong(range.substring(0, minus));
-              endAt = Long.parseLong(range.substring(minus + 1));
-            }
-          }
-          catch (NumberFormatException ignored) {
+    // Calculate etag
+    String etag = Integer.toHexString((file.getAbsolutePath() + file.lastModified() + "" + file.length()).hashCode());
+
+    // Support (simple) skipping:
+    long startFrom = 0;
+    long endAt = -1;
+    String range = header.get("range");
+    if (range != null) {
+      if (range.startsWith("bytes=")) {
+        range = range.substring("bytes=".length());
+        int minus = range.indexOf('-');
+        try {
+          if (minus > 0) {
+            startFrom = Long.parseLong(range.substring(0, minus));
+            endAt = Long.parseLong(range.substring(minus + 1));
           }
         }
+        catch (NumberFormatException ignored) {
+        }
       }
+    }
 
-      // get if-range header. If present, it must match etag or else we
-      // should ignore the range request
-      String ifRange = header.get("if-range");
-      boolean headerIfRangeMissingOrMatching = (ifRange == null || etag.equals(ifRange));
+    // get if-range header. If present, it must match etag or else we
+    // should ignore the range request
+    String ifRange = header.get("if-range");
+    boolean headerIfRangeMissingOrMatching = (ifRange == null || etag.equals(ifRange));
 
-      String ifNoneMatch = header.get("if-none-match");
-      boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag));
+    String ifNoneMatch = header.get("if-none-match");
+    boolean headerIfNoneMatchPresentAndMatching = ifNoneMatch != null && ("*".equals(ifNoneMatch) || ifNoneMatch.equals(etag));
 
-      // Change return code and add Content-Range header when skipping is
-      // requested
-      long fileLen = file.length();
+    // Change return code and add Content-Range header when skipping is
+    // requested
+    long fileLen = file.length();
 
-      if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
+    if (headerIfRangeMissingOrMatching && range != null && startFrom >= 0 && startFrom < fileLen) {
+      // range request that matches current etag
+      // and the startFrom of the range is satisfiable
+      if (headerIfNoneMatchPresentAndMatching) {
         // range request that matches current etag
         // and the startFrom of the range is satisfiable
-        if (headerIfNoneMatchPresentAndMatching) {
-          // range request that matches current etag
-          // and the startFrom of the range is satisfiable
-          // would return range from file
-          // respond with not-modified
-          res = Response.newFixedLengthResponse(Status.NOT_MODIFIED, mimeType, "");
-          res.addHeader("ETag", etag);
-        } else {
-          if (endAt < 0) {
-            endAt = fileLen - 1;
-          }
-          long newLen = endAt - startFrom + 1;
-          if (newLen < 0) {
-            newLen = 0;
-          }
-
-          InputStream fis = new FileInputStream(file);
-          fis.skip(startFrom);
-
-          res = Response.newFixedLengthResponse(Status.PARTIAL_CONTENT, mimeType, fis, newLen);
-          res.addHeader("Accept-Ranges", "bytes");
-          res.addHeader("Content-Length", "" + newLen);
-          res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
-          res.addHeader("ETag", etag);
-        }
+        // would return range from file
+        // respond with not-modified
+        res = Response.newFixedLengthResponse(Status.NOT_MODIFIED, mimeType, "");
+        res.addHeader("ETag", etag);
       } else {
-
-        if (headerIfRangeMissingOrMatching && range != null && startFrom >= fileLen) {
-          // return the size of the file
-          // 4xx responses are not trumped by if-none-match
-          res = Response.newFixedLengthResponse(Status.RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "");
-          res.addHeader("Content-Range", "bytes */" + fileLen);
-          res.addHeader("ETag", etag);
-        } else if (range == null && headerIfNoneMatchPresentAndMatching) {
-          // full-file-fetch request
-          // would return entire file
-          // respond with not-modified
-          res = Response.newFixedLengthResponse(Status.NOT_MODIFIED, mimeType, "");
-          res.addHeader("ETag", etag);
-        } else if (!headerIfRangeMissingOrMatching && headerIfNoneMatchPresentAndMatching) {
-          // range request that doesn't match current etag
-          // would return entire (different) file
-          // respond with not-modified
-
-          res = Response.newFixedLengthResponse(Status.NOT_MODIFIED, mimeType, "");
-          res.addHeader("ETag", etag);
-        } else {
-          // supply the file
-          res = Response.newFixedLengthResponse(Status.OK, mimeType, new FileInputStream(file), (int) fileLen);
-          res.addHeader("Accept-Ranges", "bytes");
-          res.addHeader("Content-Length", "" + fileLen);
-          res.addHeader("ETag", etag);
+        if (endAt < 0 || endAt >= fileLen) {
+          endAt = fileLen - 1;
+        }
+        long newLen = endAt - startFrom + 1;
+        if (newLen < 0) {
+          newLen = 0;
         }
+
+        res = Response.newFileResponse(Status.PARTIAL_CONTENT, mimeType, file, startFrom, newLen);
+        res.addHeader("Accept-Ranges", "bytes");
+        res.addHeader("Content-Length", "" + newLen);
+        res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
+        res.addHeader("ETag", etag);
+      }
+    } else {
+
+      if (headerIfRangeMissingOrMatching && range != null && startFrom >= fileLen) {
+        // return the size of the file
+        // 4xx responses are not trumped by if-none-match
+        res = Response.newFixedLengthResponse(Status.RANGE_NOT_SATISFIABLE, MIME_PLAINTEXT, "");
+        res.addHeader("Content-Range", "bytes */" + fileLen);
+        res.addHeader("ETag", etag);
+      } else if (range == null && headerIfNoneMatchPresentAndMatching) {
+        // full-file-fetch request
+        // would return entire file
+        // respond with not-modified
+        res = Response.newFixedLengthResponse(Status.NOT_MODIFIED, mimeType, "");
+        res.addHeader("ETag", etag);
+      } else if (!headerIfRangeMissingOrMatching && headerIfNoneMatchPresentAndMatching) {
+        // range request that doesn't match current etag
+        // would return entire (different) file
+        // respond with not-modified
+
+        res = Response.newFixedLengthResponse(Status.NOT_MODIFIED, mimeType, "");
+        res.addHeader("ETag", etag);
+      } else {
+        // supply the file
+        res = Response.newFileResponse(Status.OK, mimeType, file, 0, fileLen);
+        res.addHeader("Accept-Ranges", "bytes");
+        res.addHeader("Content-Length", "" + fileLen);
+        res.addHeader("ETag", etag);
       }
-    }
-    catch (IOException ioe) {
-      res = Response.plainTextResponse(Status.INTERNAL_ERROR, getErrorStackText(ioe));
     }
 
     return res;
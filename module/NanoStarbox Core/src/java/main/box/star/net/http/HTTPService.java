@@ -44,29 +44,40 @@ import java.util.logging.Level;
  */
 public class HTTPService implements Runnable {
 
-  private final int timeout;
-  private HTTPServer httpd;
-  private IOException socketBindingException;
+  protected final int timeout;
+  protected HTTPServer httpd;
+  protected IOException socketBindingException;
 
-  private boolean boundSocketConnection = false;
+  protected volatile boolean boundSocketConnection = false;
 
   public HTTPService(HTTPServer httpd, int timeout) {
     this.httpd = httpd;
     this.timeout = timeout;
   }
 
-  @Override
-  public void run() {
+  /**
+   * Binds the server socket to the configured host and port.
+   *
+   * @return false if the binding failed, in which case the exception is
+   * available through {@link #getSocketBindingException()}
+   */
+  protected boolean bindServerSocket() {
     try {
       String host = httpd.configuration.get(HTTPServer.CONFIG_HOST);
       int port = httpd.configuration.get(HTTPServer.CONFIG_PORT);
       httpd.getMyServerSocket().bind(host != null ? new InetSocketAddress(host, port) : new InetSocketAddress(port));
       boundSocketConnection = true;
+      return true;
     }
     catch (IOException e) {
       this.socketBindingException = e;
-      return;
+      return false;
     }
+  }
+
+  @Override
+  public void run() {
+    if (!bindServerSocket()) return;
     do {
       try {
         final Socket finalAccept = httpd.getMyServerSocket().accept();
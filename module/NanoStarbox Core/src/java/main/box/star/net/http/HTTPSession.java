@@ -33,11 +33,22 @@ package box.star.net.http;
  * #L%
  */
 
+import box.star.io.CountingInputStream;
+import box.star.io.CountingOutputStream;
 import box.star.net.http.content.ContentType;
 import box.star.net.http.content.CookieHandler;
+import box.star.net.http.request.BodyInputStream;
 import box.star.net.http.request.Method;
+import box.star.net.http.request.MultipartParser;
+import box.star.net.http.metrics.ServerMetrics;
+import box.star.net.http.request.RequestHeaderParser;
+import box.star.net.http.response.IStatus;
 import box.star.net.http.response.Response;
+import box.star.net.http.response.ResponseHeadEncoder;
 import box.star.net.http.response.Status;
+import box.star.net.http.response.StreamingResponse;
+import box.star.net.http.response.UpgradeResponse;
+import box.star.net.http.sockets.ChannelOutputStream;
 import box.star.net.http.tempfiles.ITempFile;
 import box.star.net.http.tempfiles.ITempFileManager;
 
@@ -51,14 +62,13 @@ import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
 
 public class HTTPSession implements IHTTPSession<HTTPServer> {
 
   public static final String POST_DATA = "postData";
   public static final int BUFSIZE = 8192;
   public static final int MAX_HEADER_SIZE = 1024;
-  private static final int REQUEST_BUFFER_LEN = 512;
+  private static final int REQUEST_BUFFER_LEN = BUFSIZE;
   private static final int MEMORY_STORE_LIMIT = 1024;
   private final HTTPServer httpd;
 
@@ -68,10 +78,20 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
 
   private final BufferedInputStream inputStream;
 
+  private final CountingInputStream countingInputStream;
+
+  private final byte[] headerBuffer = new byte[HTTPSession.BUFSIZE];
+
+  private final RequestHeaderParser headerParser = new RequestHeaderParser();
+
+  private final ResponseHeadEncoder headEncoder = new ResponseHeadEncoder();
+
   private int splitbyte;
 
   private int rlen;
 
+  private BodyInputStream body;
+
   private String uri;
 
   private Method method;
@@ -90,18 +110,30 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
 
   private String protocolVersion;
 
+  private int requestsServed;
+
+  private long bytesInMark, bytesOutMark;
+
+  private long maxDrainSize;
+
+  private StreamingResponse streamingResponse;
+
+  private UpgradeResponse upgradeResponse;
+
   public HTTPSession(HTTPServer httpd, ITempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
     this.httpd = httpd;
     this.tempFileManager = tempFileManager;
-    this.inputStream = new BufferedInputStream(inputStream, HTTPSession.BUFSIZE);
-    this.outputStream = outputStream;
+    this.countingInputStream = new CountingInputStream(inputStream);
+    this.inputStream = new BufferedInputStream(this.countingInputStream, HTTPSession.BUFSIZE);
+    this.outputStream = outputStream instanceof ChannelOutputStream ? outputStream : new CountingOutputStream(outputStream);
   }
 
   public HTTPSession(HTTPServer httpd, ITempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream, InetAddress inetAddress) {
     this.httpd = httpd;
     this.tempFileManager = tempFileManager;
-    this.inputStream = new BufferedInputStream(inputStream, HTTPSession.BUFSIZE);
-    this.outputStream = outputStream;
+    this.countingInputStream = new CountingInputStream(inputStream);
+    this.inputStream = new BufferedInputStream(this.countingInputStream, HTTPSession.BUFSIZE);
+    this.outputStream = outputStream instanceof ChannelOutputStream ? outputStream : new CountingOutputStream(outputStream);
     this.remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress();
     this.remoteHostname = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "localhost" : inetAddress.getHostName();
     this.headers = new HashMap<String, String>();
@@ -118,178 +150,101 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
   }
 
   /**
-   * Decodes the sent headers and loads the data into Key/value pairs
+   * Decodes the Multipart Body data and put it into Key/Value pairs.
    */
-  private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, List<String>> parms, Map<String, String> headers) throws HTTPServer.ResponseException {
-    try {
-      // Read the request line
-      String inLine = in.readLine();
-      if (inLine == null) {
-        return;
-      }
-
-      StringTokenizer st = new StringTokenizer(inLine);
-      if (!st.hasMoreTokens()) {
-        throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-      }
-
-      pre.put("method", st.nextToken());
-
-      if (!st.hasMoreTokens()) {
-        throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-      }
-
-      String uri = st.nextToken();
-
-      // Decode parameters from the URI
-      int qmi = uri.indexOf('?');
-      if (qmi >= 0) {
-        decodeParms(uri.substring(qmi + 1), parms);
-        uri = HTTPServer.decodePercent(uri.substring(0, qmi));
-      } else {
-        uri = HTTPServer.decodePercent(uri);
-      }
-
-      // If there's another token, its protocol version,
-      // followed by HTTP headers.
-      // NOTE: this now forces header names lower case since they are
-      // case insensitive and vary by client.
-      if (st.hasMoreTokens()) {
-        protocolVersion = st.nextToken();
-      } else {
-        protocolVersion = "HTTP/1.1";
-        HTTPServer.LOG.log(Level.FINE, "no protocol version specified, strange. Assuming HTTP/1.1.");
-      }
-      String line = in.readLine();
-      while (line != null && !line.trim().isEmpty()) {
-        int p = line.indexOf(':');
-        if (p >= 0) {
-          headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
+  private void decodeMultipartFormData(ContentType contentType, long size, final Map<String, List<String>> parms, final Map<String, String> files) throws IOException, HTTPServer.ResponseException {
+    final Charset charset = Charset.forName(contentType.getEncoding());
+    MultipartParser.Handler handler = new MultipartParser.Handler() {
+      private int pcount;
+      private String partName;
+      private ITempFile tempFile;
+      private OutputStream output;
+      private ByteArrayOutputStream value;
+
+      @Override
+      public void startPart(MultipartParser.Part part) {
+        partName = part.getName();
+        String fileName = part.getFileName();
+        // add these two line to support multiple
+        // files uploaded using the same field Id
+        if (fileName != null && !fileName.isEmpty()) {
+          if (pcount > 0)
+            partName = partName + pcount++;
+          else
+            pcount++;
         }
-        line = in.readLine();
+        if (part.getContentType() == null) value = new ByteArrayOutputStream();
       }
 
-      pre.put("uri", uri);
-    }
-    catch (IOException ioe) {
-      throw new HTTPServer.ResponseException(Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
-    }
-  }
-
-  /**
-   * Decodes the Multipart Body data and put it into Key/Value pairs.
-   */
-  private void decodeMultipartFormData(ContentType contentType, ByteBuffer fbuf, Map<String, List<String>> parms, Map<String, String> files) throws HTTPServer.ResponseException {
-    int pcount = 0;
-    try {
-      int[] boundaryIdxs = getBoundaryPositions(fbuf, contentType.getBoundary().getBytes());
-      if (boundaryIdxs.length < 2) {
-        throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but contains less than two boundary strings.");
-      }
-
-      byte[] partHeaderBuff = new byte[MAX_HEADER_SIZE];
-      for (int boundaryIdx = 0; boundaryIdx < boundaryIdxs.length - 1; boundaryIdx++) {
-        fbuf.position(boundaryIdxs[boundaryIdx]);
-        int len = (fbuf.remaining() < MAX_HEADER_SIZE) ? fbuf.remaining() : MAX_HEADER_SIZE;
-        fbuf.get(partHeaderBuff, 0, len);
-        BufferedReader in =
-            new BufferedReader(new InputStreamReader(new ByteArrayInputStream(partHeaderBuff, 0, len), Charset.forName(contentType.getEncoding())), len);
-
-        int headerLines = 0;
-        // First line is boundary string
-        String mpline = in.readLine();
-        headerLines++;
-        if (mpline == null || !mpline.contains(contentType.getBoundary())) {
-          throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but chunk does not start with boundary.");
+      @Override
+      public void partData(MultipartParser.Part part, byte[] buffer, int offset, int length) throws IOException {
+        if (value != null) {
+          value.write(buffer, offset, length);
+          return;
         }
-
-        String partName = null, fileName = null, partContentType = null;
-        // Parse the reset of the header lines
-        mpline = in.readLine();
-        headerLines++;
-        while (mpline != null && mpline.trim().length() > 0) {
-          Matcher matcher = HTTPServer.CONTENT_DISPOSITION_PATTERN.matcher(mpline);
-          if (matcher.matches()) {
-            String attributeString = matcher.group(2);
-            matcher = HTTPServer.CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(attributeString);
-            while (matcher.find()) {
-              String key = matcher.group(1);
-              if ("name".equalsIgnoreCase(key)) {
-                partName = matcher.group(2);
-              } else if ("filename".equalsIgnoreCase(key)) {
-                fileName = matcher.group(2);
-                // add these two line to support multiple
-                // files uploaded using the same field Id
-                if (!fileName.isEmpty()) {
-                  if (pcount > 0)
-                    partName = partName + pcount++;
-                  else
-                    pcount++;
-                }
-              }
-            }
+        if (output == null) {
+          // Read it into a file
+          try {
+            tempFile = tempFileManager.createTempFile(part.getFileName());
+            output = tempFile.open();
           }
-          matcher = HTTPServer.CONTENT_TYPE_PATTERN.matcher(mpline);
-          if (matcher.matches()) {
-            partContentType = matcher.group(2).trim();
+          catch (Exception e) { // Catch exception if any
+            throw new Error(e); // we won't recover, so throw an error
           }
-          mpline = in.readLine();
-          headerLines++;
         }
-        int partHeaderLength = 0;
-        while (headerLines-- > 0) {
-          partHeaderLength = scipOverNewLine(partHeaderBuff, partHeaderLength);
-        }
-        // Read the part data
-        if (partHeaderLength >= len - 4) {
-          throw new HTTPServer.ResponseException(Status.INTERNAL_ERROR, "Multipart header size exceeds MAX_HEADER_SIZE.");
-        }
-        int partDataStart = boundaryIdxs[boundaryIdx] + partHeaderLength;
-        int partDataEnd = boundaryIdxs[boundaryIdx + 1] - 4;
-
-        fbuf.position(partDataStart);
+        output.write(buffer, offset, length);
+      }
 
+      @Override
+      public void endPart(MultipartParser.Part part) throws IOException {
         List<String> values = parms.get(partName);
         if (values == null) {
           values = new ArrayList<String>();
           parms.put(partName, values);
         }
-
-        if (partContentType == null) {
+        if (value != null) {
           // Read the part into a string
-          byte[] data_bytes = new byte[partDataEnd - partDataStart];
-          fbuf.get(data_bytes);
-
-          values.add(new String(data_bytes, contentType.getEncoding()));
+          values.add(new String(value.toByteArray(), charset));
+          value = null;
+          return;
+        }
+        String path = "";
+        if (output != null) {
+          output.close();
+          path = tempFile.getName();
+          output = null;
+          tempFile = null;
+        }
+        if (!files.containsKey(partName)) {
+          files.put(partName, path);
         } else {
-          // Read it into a file
-          String path = saveTmpFile(fbuf, partDataStart, partDataEnd - partDataStart, fileName);
-          if (!files.containsKey(partName)) {
-            files.put(partName, path);
-          } else {
-            int count = 2;
-            while (files.containsKey(partName + count)) {
-              count++;
-            }
-            files.put(partName + count, path);
+          int count = 2;
+          while (files.containsKey(partName + count)) {
+            count++;
           }
-          values.add(fileName);
+          files.put(partName + count, path);
         }
+        values.add(part.getFileName());
       }
-    }
-    catch (HTTPServer.ResponseException re) {
-      throw re;
-    }
-    catch (Exception e) {
-      throw new HTTPServer.ResponseException(Status.INTERNAL_ERROR, e.toString());
-    }
+    };
+    new MultipartParser(contentType.getBoundary(), charset, MAX_HEADER_SIZE).parse(this.body, size, handler);
   }
 
-  private int scipOverNewLine(byte[] partHeaderBuff, int index) {
-    while (partHeaderBuff[index] != '\n') {
-      index++;
+  /**
+   * <p>Reads a multipart/form-data request body, passing each part to the
+   * handler as it is received.</p>
+   * <br>
+   * <p>This is the streaming alternative to {@link #parseBody(Map)}, for
+   * handlers that process uploads without storing them first; the body
+   * can only be read once.</p>
+   * <br>
+   */
+  public void parseMultipartBody(MultipartParser.Handler handler) throws IOException, HTTPServer.ResponseException {
+    ContentType contentType = new ContentType(this.headers.get("content-type"));
+    if (!contentType.isMultipart() || contentType.getBoundary() == null) {
+      throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Content type is not multipart/form-data with a boundary.");
     }
-    return ++index;
+    new MultipartParser(contentType.getBoundary(), Charset.forName(contentType.getEncoding()), MAX_HEADER_SIZE).parse(this.body, getBodySize(), handler);
   }
 
   /**
@@ -331,15 +286,22 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
   @Override
   public void execute() throws IOException {
     Response r = null;
+    ServerMetrics metrics = httpd.metrics;
+    boolean started = false;
+    long startTime = 0;
+    IStatus status = null;
+    String route = null;
     try {
       // Read the first 8192 bytes.
       // The full header should fit in here.
       // Apache's default header limit is 8KB.
       // Do NOT assume that a single read will get the entire header
       // at once!
-      byte[] buf = new byte[HTTPSession.BUFSIZE];
+      byte[] buf = this.headerBuffer;
       this.splitbyte = 0;
       this.rlen = 0;
+      this.streamingResponse = null;
+      this.upgradeResponse = null;
 
       int read = -1;
       this.inputStream.mark(HTTPSession.BUFSIZE);
@@ -360,6 +322,9 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
         HTTPServer.safeClose(this.outputStream);
         throw new SocketException("NanoHttpd Shutdown");
       }
+      startTime = System.nanoTime();
+      started = true;
+      metrics.requestStarted(this.requestsServed++ > 0);
       while (read > 0) {
         this.rlen += read;
         this.splitbyte = findHeaderEnd(buf, this.rlen);
@@ -381,38 +346,46 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
         this.headers.clear();
       }
 
-      // Create a BufferedReader for parsing the header.
-      BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, this.rlen)));
-
       // Decode the header into parms and header java properties
-      Map<String, String> pre = new HashMap<String, String>();
-      decodeHeader(hin, pre, this.parms, this.headers);
+      this.headerParser.parse(buf, this.splitbyte > 0 ? this.splitbyte : this.rlen, this.headers);
+      this.protocolVersion = this.headerParser.getProtocolVersion();
 
       if (null != this.remoteIp) {
         this.headers.put("remote-addr", this.remoteIp);
         this.headers.put("http-client-ip", this.remoteIp);
       }
 
-      this.method = Method.lookup(pre.get("method"));
+      this.method = this.headerParser.getMethod();
       if (this.method == null) {
-        throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb " + pre.get("method") + " unhandled.");
+        throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Syntax error. HTTP verb " + this.headerParser.getMethodName() + " unhandled.");
       }
+      this.body = openBody();
 
-      this.uri = pre.get("uri");
+      // Decode parameters from the URI
+      String uri = this.headerParser.getUri();
+      int qmi = uri.indexOf('?');
+      if (qmi >= 0) {
+        decodeParms(uri.substring(qmi + 1), this.parms);
+        uri = uri.substring(0, qmi);
+      } else {
+        this.queryParameterString = null;
+      }
+      this.uri = (uri.indexOf('%') < 0 && uri.indexOf('+') < 0) ? uri : HTTPServer.decodePercent(uri);
 
       this.cookies = new CookieHandler(this.headers);
 
       String connection = this.headers.get("connection");
-      boolean keepAlive = "HTTP/1.1".equals(protocolVersion) && (connection == null || !connection.matches("(?i).*close.*"));
+      boolean keepAlive = "HTTP/1.1".equals(protocolVersion) && (connection == null || !containsIgnoreCase(connection, "close"));
 
       // Ok, now do the serviceRequest()
 
-      // TODO: long body_size = getBodySize();
-      // TODO: long pos_before_serve = this.inputStream.totalRead()
-      // (requires implementation for totalRead())
+      long parsedTime = System.nanoTime();
+      metrics.headerParse.record(parsedTime - startTime);
+
       r = httpd.handle(this);
-      // TODO: this.inputStream.skip(body_size -
-      // (this.inputStream.totalRead() - pos_before_serve))
+      long handledTime = System.nanoTime();
+      metrics.handler.record(handledTime - parsedTime);
+      route = httpd.getRoute(this);
 
       if (r == null) {
         throw new HTTPServer.ResponseException(Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
@@ -420,13 +393,30 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
         String acceptEncoding = this.headers.get("accept-encoding");
         this.cookies.unloadQueue(r);
         r.setRequestMethod(this.method);
-        if (acceptEncoding == null || !acceptEncoding.contains("gzip")) {
+        if (!Response.acceptsEncoding(acceptEncoding, "gzip")) {
           r.setUseGzip(false);
         }
+        // the next request starts after this body, so what the handler
+        // left unread is drained, or the connection is closed
+        if (keepAlive && !this.body.isFinished()) keepAlive = canDrainBody();
         r.setKeepAlive(keepAlive);
-        r.send(this.outputStream);
+        status = r.getStatus();
+        r.send(this.outputStream, this.headEncoder);
+        metrics.send.record(System.nanoTime() - handledTime);
+      }
+      if (r instanceof StreamingResponse && ((StreamingResponse) r).isOpen()) {
+        // the producer owns the connection until the stream ends
+        if (!keepAlive || !this.body.drain(this.maxDrainSize)) r.setKeepAlive(false);
+        this.streamingResponse = (StreamingResponse) r;
+        return;
+      }
+      if (r instanceof UpgradeResponse && !r.isCloseConnection()) {
+        // the connection no longer speaks HTTP; the response owns it from here
+        if (!this.body.drain(this.maxDrainSize)) throw new SocketException("NanoHttpd Shutdown");
+        this.upgradeResponse = (UpgradeResponse) r;
+        return;
       }
-      if (!keepAlive || r.isCloseConnection()) {
+      if (!keepAlive || r.isCloseConnection() || !this.body.drain(this.maxDrainSize)) {
         throw new SocketException("NanoHttpd Shutdown");
       }
     }
@@ -442,25 +432,129 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
     }
     catch (SSLException ssle) {
       Response resp = Response.newFixedLengthResponse(Status.INTERNAL_ERROR, HTTPServer.MIME_PLAINTEXT, "SSL PROTOCOL FAILURE: " + ssle.getMessage());
-      resp.send(this.outputStream);
+      resp.setKeepAlive(false);
+      status = resp.getStatus();
+      resp.send(this.outputStream, this.headEncoder);
       HTTPServer.safeClose(this.outputStream);
     }
     catch (IOException ioe) {
       Response resp = Response.newFixedLengthResponse(Status.INTERNAL_ERROR, HTTPServer.MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
-      resp.send(this.outputStream);
+      resp.setKeepAlive(false);
+      status = resp.getStatus();
+      resp.send(this.outputStream, this.headEncoder);
       HTTPServer.safeClose(this.outputStream);
     }
     catch (HTTPServer.ResponseException re) {
       Response resp = Response.newFixedLengthResponse(re.getStatus(), HTTPServer.MIME_PLAINTEXT, re.getMessage());
-      resp.send(this.outputStream);
+      resp.setKeepAlive(false);
+      status = resp.getStatus();
+      resp.send(this.outputStream, this.headEncoder);
       HTTPServer.safeClose(this.outputStream);
     }
     finally {
       HTTPServer.safeClose(r);
       this.tempFileManager.clear();
+      if (started) {
+        long bytesIn = this.countingInputStream.getCount(), bytesOut = getBytesWritten();
+        metrics.requestEnded(route, status, bytesIn - this.bytesInMark, bytesOut - this.bytesOutMark);
+        this.bytesInMark = bytesIn;
+        this.bytesOutMark = bytesOut;
+      }
     }
   }
 
+  /**
+   * Opens the body of the request, as framed by its Transfer-Encoding or
+   * Content-Length header; a request with neither has no body.
+   */
+  private BodyInputStream openBody() throws HTTPServer.ResponseException {
+    String transferEncoding = this.headers.get("transfer-encoding");
+    if (transferEncoding != null && !"identity".equalsIgnoreCase(transferEncoding.trim())) {
+      if (!containsIgnoreCase(transferEncoding, "chunked")) {
+        throw new HTTPServer.ResponseException(Status.NOT_IMPLEMENTED, "NOT IMPLEMENTED: Transfer-Encoding " + transferEncoding + " is not supported.");
+      }
+      return new BodyInputStream(this.inputStream);
+    }
+    String contentLength = this.headers.get("content-length");
+    if (contentLength == null) return new BodyInputStream(this.inputStream, 0);
+    try {
+      long length = Long.parseLong(contentLength.trim());
+      if (length >= 0) return new BodyInputStream(this.inputStream, length);
+    }
+    catch (NumberFormatException e) {}
+    throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Invalid Content-Length " + contentLength + ".");
+  }
+
+  /**
+   * Decides whether the unread rest of the request body can be drained after
+   * the response, to keep the connection.
+   * <p>
+   * A body longer than {@link HTTPServer#CONFIG_MAX_DRAIN_SIZE} is not read,
+   * and neither is a body the client is holding back for a 100 Continue.
+   * </p>
+   */
+  private boolean canDrainBody() {
+    this.maxDrainSize = httpd.configuration.<Integer>get(HTTPServer.CONFIG_MAX_DRAIN_SIZE);
+    String expect = this.headers.get("expect");
+    if (expect != null && containsIgnoreCase(expect, "100-continue") && this.body.getBytesRead() == 0) return false;
+    return this.body.getRemaining() <= this.maxDrainSize;
+  }
+
+  /**
+   * @return the response of the last request, if its body is still being
+   * written by a producer, or null
+   */
+  StreamingResponse getStreamingResponse() {
+    return this.streamingResponse;
+  }
+
+  /**
+   * @return the response of the last request, if it switched the connection
+   * to another protocol, or null
+   */
+  UpgradeResponse getUpgradeResponse() {
+    return this.upgradeResponse;
+  }
+
+  /**
+   * Hands what the client has sent on an upgraded connection to the response,
+   * starting with what was received after the upgrade request.
+   *
+   * @return false if the connection should be closed
+   */
+  boolean receiveUpgraded() throws IOException {
+    return this.upgradeResponse.receive(this.inputStream);
+  }
+
+  /**
+   * @return true if the connection is being closed with the request body unread
+   */
+  boolean hasUnreadBody() {
+    return this.body != null && !this.body.isFinished();
+  }
+
+  /**
+   * @return true if the start of another request has already been received
+   */
+  boolean hasPipelinedRequest() throws IOException {
+    return this.inputStream.available() > 0;
+  }
+
+  /**
+   * @return the number of bytes written to the connection so far
+   */
+  private long getBytesWritten() {
+    if (this.outputStream instanceof ChannelOutputStream) return ((ChannelOutputStream) this.outputStream).getBytesWritten();
+    return ((CountingOutputStream) this.outputStream).getCount();
+  }
+
+  private static boolean containsIgnoreCase(String text, String token) {
+    for (int i = 0, last = text.length() - token.length(); i <= last; i++) {
+      if (text.regionMatches(true, i, token, 0, token.length())) return true;
+    }
+    return false;
+  }
+
   /**
    * Find byte index separating header from body. It must be the last byte of
    * the first two sequential new lines.
@@ -483,52 +577,6 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
     return 0;
   }
 
-  /**
-   * Find the byte positions where multipart boundaries start. This reads a
-   * large block at a time and uses a temporary buffer to optimize (memory
-   * mapped) file access.
-   */
-  private int[] getBoundaryPositions(ByteBuffer b, byte[] boundary) {
-    int[] res = new int[0];
-    if (b.remaining() < boundary.length) {
-      return res;
-    }
-
-    int search_window_pos = 0;
-    byte[] search_window = new byte[4 * 1024 + boundary.length];
-
-    int first_fill = (b.remaining() < search_window.length) ? b.remaining() : search_window.length;
-    b.get(search_window, 0, first_fill);
-    int new_bytes = first_fill - boundary.length;
-
-    do {
-      // Search the search_window
-      for (int j = 0; j < new_bytes; j++) {
-        for (int i = 0; i < boundary.length; i++) {
-          if (search_window[j + i] != boundary[i])
-            break;
-          if (i == boundary.length - 1) {
-            // Match found, add it to results
-            int[] new_res = new int[res.length + 1];
-            System.arraycopy(res, 0, new_res, 0, res.length);
-            new_res[res.length] = search_window_pos + j;
-            res = new_res;
-          }
-        }
-      }
-      search_window_pos += new_bytes;
-
-      // Copy the end of the buffer to the start
-      System.arraycopy(search_window, search_window.length - boundary.length, search_window, 0, boundary.length);
-
-      // Refill search_window
-      new_bytes = search_window.length - boundary.length;
-      new_bytes = (b.remaining() < new_bytes) ? b.remaining() : new_bytes;
-      b.get(search_window, boundary.length, new_bytes);
-    } while (new_bytes > 0);
-    return res;
-  }
-
   @Override
   public CookieHandler getCookies() {
     return this.cookies;
@@ -539,9 +587,12 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
     return this.headers;
   }
 
+  /**
+   * @return the body of the current request, which ends where the body ends
+   */
   @Override
   public final InputStream getInputStream() {
-    return this.inputStream;
+    return this.body;
   }
 
   @Override
@@ -589,28 +640,40 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
   }
 
   /**
-   * Deduce body length in bytes. Either from "content-length" header or read
-   * bytes.
+   * The body length in bytes, from the "content-length" header.
+   *
+   * @return the length, or -1 for a chunked body
    */
   public long getBodySize() {
-    if (this.headers.containsKey("content-length")) {
-      return Long.parseLong(this.headers.get("content-length"));
-    } else if (this.splitbyte < this.rlen) {
-      return this.rlen - this.splitbyte;
-    }
-    return 0;
+    if (this.body == null) return 0;
+    return this.body.isChunked() ? -1 : this.body.getBytesRead() + this.body.getRemaining();
   }
 
   @Override
   public void parseBody(Map<String, String> files) throws IOException, HTTPServer.ResponseException {
+    long size = getBodySize();
+    // Multipart and PUT bodies are streamed to their destination in one pass
+    if (Method.POST.equals(this.method)) {
+      ContentType contentType = new ContentType(this.headers.get("content-type"));
+      if (contentType.isMultipart()) {
+        String boundary = contentType.getBoundary();
+        if (boundary == null) {
+          throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
+        }
+        decodeMultipartFormData(contentType, size, this.parms, files);
+        return;
+      }
+    } else if (Method.PUT.equals(this.method)) {
+      files.put("content", saveTmpFile(size, null));
+      return;
+    }
     RandomAccessFile randomAccessFile = null;
     try {
-      long size = getBodySize();
       ByteArrayOutputStream baos = null;
       DataOutput requestDataOutput = null;
 
       // Store the request in memory or a file, depending on size
-      if (size < MEMORY_STORE_LIMIT) {
+      if (size >= 0 && size < MEMORY_STORE_LIMIT) {
         baos = new ByteArrayOutputStream();
         requestDataOutput = new DataOutputStream(baos);
       } else {
@@ -620,12 +683,9 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
 
       // Read all the body and write it to request_data_output
       byte[] buf = new byte[REQUEST_BUFFER_LEN];
-      while (this.rlen >= 0 && size > 0) {
-        this.rlen = this.inputStream.read(buf, 0, (int) Math.min(size, REQUEST_BUFFER_LEN));
-        size -= this.rlen;
-        if (this.rlen > 0) {
-          requestDataOutput.write(buf, 0, this.rlen);
-        }
+      int read;
+      while ((read = this.body.read(buf, 0, REQUEST_BUFFER_LEN)) > 0) {
+        requestDataOutput.write(buf, 0, read);
       }
 
       ByteBuffer fbuf = null;
@@ -640,28 +700,18 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
       // in data section, too, read it:
       if (Method.POST.equals(this.method)) {
         ContentType contentType = new ContentType(this.headers.get("content-type"));
-        if (contentType.isMultipart()) {
-          String boundary = contentType.getBoundary();
-          if (boundary == null) {
-            throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
-          }
-          decodeMultipartFormData(contentType, fbuf, this.parms, files);
-        } else {
-          byte[] postBytes = new byte[fbuf.remaining()];
-          fbuf.get(postBytes);
-          String postLine = new String(postBytes, contentType.getEncoding()).trim();
-          // Handle application/x-www-form-urlencoded
-          if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType.getContentType())) {
-            decodeParms(postLine, this.parms);
-          } else if (postLine.length() != 0) {
-            // Special case for raw POST data => create a
-            // special files entry "postData" with raw content
-            // data
-            files.put(POST_DATA, postLine);
-          }
+        byte[] postBytes = new byte[fbuf.remaining()];
+        fbuf.get(postBytes);
+        String postLine = new String(postBytes, contentType.getEncoding()).trim();
+        // Handle application/x-www-form-urlencoded
+        if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType.getContentType())) {
+          decodeParms(postLine, this.parms);
+        } else if (postLine.length() != 0) {
+          // Special case for raw POST data => create a
+          // special files entry "postData" with raw content
+          // data
+          files.put(POST_DATA, postLine);
         }
-      } else if (Method.PUT.equals(this.method)) {
-        files.put("content", saveTmpFile(fbuf, 0, fbuf.limit(), null));
       }
     }
     finally {
@@ -670,28 +720,32 @@ public class HTTPSession implements IHTTPSession<HTTPServer> {
   }
 
   /**
-   * Retrieves the content of a sent file and saves it to a temporary file.
+   * Reads the request body into a temporary file.
    * The full path to the saved file is returned.
    */
-  private String saveTmpFile(ByteBuffer b, int offset, int len, String filename_hint) {
+  private String saveTmpFile(long size, String filename_hint) throws IOException {
     String path = "";
-    if (len > 0) {
-      FileOutputStream fileOutputStream = null;
+    if (size != 0) {
+      OutputStream output;
+      ITempFile tempFile;
       try {
-        ITempFile tempFile = this.tempFileManager.createTempFile(filename_hint);
-        ByteBuffer src = b.duplicate();
-        fileOutputStream = new FileOutputStream(tempFile.getName());
-        FileChannel dest = fileOutputStream.getChannel();
-        src.position(offset).limit(offset + len);
-        dest.write(src.slice());
-        path = tempFile.getName();
+        tempFile = this.tempFileManager.createTempFile(filename_hint);
+        output = tempFile.open();
       }
       catch (Exception e) { // Catch exception if any
         throw new Error(e); // we won't recover, so throw an error
       }
+      try {
+        byte[] buf = new byte[BUFSIZE];
+        int read;
+        while ((read = this.body.read(buf, 0, BUFSIZE)) > 0) {
+          output.write(buf, 0, read);
+        }
+      }
       finally {
-        HTTPServer.safeClose(fileOutputStream);
+        HTTPServer.safeClose(output);
       }
+      path = tempFile.getName();
     }
     return path;
   }
@@ -55,6 +55,10 @@ public interface IHTTPSession<TYPE extends HTTPServer> {
 
   Map<String, String> getHeaders();
 
+  /**
+   * @return the body of the request; it ends at the end of the body, and
+   * what is left unread is skipped before the next request
+   */
   InputStream getInputStream();
 
   Method getMethod();
@@ -0,0 +1,235 @@
+package box.star.net.http;
+
+import box.star.net.http.response.StreamingResponse;
+import box.star.net.http.response.UpgradeResponse;
+import box.star.net.http.sockets.ChannelInputStream;
+import box.star.net.http.sockets.ChannelOutputStream;
+import box.star.net.http.sockets.ChannelSelectors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+
+/**
+ * The runnable for a connection managed by a {@link SelectorHTTPService}.
+ * <p>
+ * Unlike {@link HTTPClient}, a run only serves the requests that have already
+ * arrived, and then hands the connection back to the selector to wait for the
+ * next keep-alive request without holding a thread. A connection upgraded to
+ * another protocol is parked the same way between the reads of its
+ * {@link UpgradeResponse}.
+ * </p>
+ */
+public class SelectorHTTPClient extends HTTPClient {
+
+  private final HTTPServer httpd;
+  private final SelectorHTTPService service;
+  private final SocketChannel channel;
+  private final ChannelInputStream inputStream;
+  private final ChannelOutputStream outputStream;
+  private HTTPSession session;
+  private SelectionKey selectionKey;
+  private volatile long lastActivity;
+  /**
+   * The response that took over the connection, once it has been upgraded.
+   */
+  private volatile UpgradeResponse upgrade;
+
+  public SelectorHTTPClient(HTTPServer httpd, SelectorHTTPService service, SocketChannel channel, int timeout) {
+    this(httpd, service, channel, new ChannelInputStream(channel, HTTPSession.BUFSIZE, timeout), timeout);
+  }
+
+  private SelectorHTTPClient(HTTPServer httpd, SelectorHTTPService service, SocketChannel channel, ChannelInputStream inputStream, int timeout) {
+    super(httpd, inputStream, channel.socket());
+    this.httpd = httpd;
+    this.service = service;
+    this.channel = channel;
+    this.inputStream = inputStream;
+    this.outputStream = new ChannelOutputStream(channel, timeout);
+    this.lastActivity = System.currentTimeMillis();
+  }
+
+  public SocketChannel getChannel() {
+    return channel;
+  }
+
+  public ChannelInputStream getInputStream() {
+    return inputStream;
+  }
+
+  SelectionKey getSelectionKey() {
+    return selectionKey;
+  }
+
+  void setSelectionKey(SelectionKey selectionKey) {
+    this.selectionKey = selectionKey;
+  }
+
+  long getLastActivity() {
+    return lastActivity;
+  }
+
+  void touch() {
+    this.lastActivity = System.currentTimeMillis();
+  }
+
+  /**
+   * @return true if the connection no longer speaks HTTP; it is handed to the
+   * worker on any data, and its idle timeout is that of the upgrade
+   */
+  boolean isUpgraded() {
+    return upgrade != null;
+  }
+
+  /**
+   * @return the idle timeout of the upgraded connection, see {@link UpgradeResponse#getTimeout()}
+   */
+  int getUpgradeTimeout() {
+    return upgrade.getTimeout();
+  }
+
+  @Override
+  public void close() {
+    HTTPServer.safeClose(this.channel);
+    if (selectionKey != null) selectionKey.cancel();
+    released();
+    UpgradeResponse upgrade = this.upgrade;
+    if (upgrade != null) upgrade.closed();
+  }
+
+  /**
+   * Closes the connection and tells the runner; an upgraded connection can be
+   * closed by its protocol from any thread.
+   */
+  private void end() {
+    close();
+    httpd.asyncRunner.closed(this);
+  }
+
+  private void openUpgrade(UpgradeResponse upgrade) throws IOException {
+    this.upgrade = upgrade;
+    upgrade.open(new UpgradeResponse.Connection() {
+      @Override
+      public OutputStream getOutputStream() {
+        return outputStream;
+      }
+
+      @Override
+      public boolean isNonBlocking() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+        end();
+      }
+    });
+  }
+
+  /**
+   * Refuses the connection on the selector thread, which must not wait for
+   * the client: the response is written with a single non-blocking write, and
+   * whatever did not fit in the socket buffer is dropped with the connection.
+   */
+  @Override
+  public void reject() {
+    ByteArrayOutputStream rejection = new ByteArrayOutputStream();
+    sendRejection(rejection);
+    try {
+      channel.write(ByteBuffer.wrap(rejection.toByteArray()));
+    }
+    catch (IOException e) {
+      HTTPServer.LOG.log(Level.FINE, "Could not refuse the client", e);
+    }
+    finally {
+      close();
+    }
+  }
+
+  /**
+   * Goes on with the connection after a streaming response has ended: serves
+   * a request that has already arrived, or parks the connection.
+   */
+  private void resume(StreamingResponse streaming) {
+    touch();
+    try {
+      if (channel.isOpen() && streaming.isKeepAlive() && !streaming.isCloseConnection()) {
+        if (session.hasPipelinedRequest()) httpd.asyncRunner.exec(this);
+        else service.park(this);
+        return;
+      }
+    }
+    catch (IOException e) {
+      HTTPServer.LOG.log(Level.FINE, "Communication with the client broken", e);
+    }
+    end();
+  }
+
+  @Override
+  protected void closeLingering(OutputStream outputStream) {
+    try {
+      channel.shutdownOutput();
+      long deadline = System.currentTimeMillis() + LINGER_TIME;
+      ByteBuffer discard = ByteBuffer.allocate(HTTPSession.BUFSIZE);
+      int read, total = 0;
+      while (total < LINGER_SIZE && (read = channel.read(discard)) >= 0) {
+        total += read;
+        discard.clear();
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) break;
+        if (read == 0) ChannelSelectors.await(channel, SelectionKey.OP_READ, (int) wait);
+      }
+    }
+    catch (IOException e) {
+      HTTPServer.LOG.log(Level.FINEST, "Lingering close ended", e);
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      if (upgrade == null) {
+        if (session == null) {
+          session = new HTTPSession(httpd, httpd.getTempFileManagerFactory().create(), this.inputStream, this.outputStream, this.channel.socket().getInetAddress());
+        }
+        // serve pipelined requests that are already buffered before parking
+        do {
+          session.execute();
+        } while (channel.isOpen() && session.getStreamingResponse() == null && session.getUpgradeResponse() == null && session.hasPipelinedRequest());
+        touch();
+        final StreamingResponse streaming = session.getStreamingResponse();
+        if (streaming != null) {
+          // the worker is free; the connection is resumed when the stream ends
+          streaming.whenEnded(new Runnable() {
+            @Override
+            public void run() {
+              resume(streaming);
+            }
+          });
+          return;
+        }
+        if (session.getUpgradeResponse() != null) openUpgrade(session.getUpgradeResponse());
+      }
+      // an upgraded connection gets what has arrived, and waits parked for more
+      if ((upgrade == null || session.receiveUpgraded()) && channel.isOpen()) {
+        touch();
+        service.park(this);
+        return;
+      }
+    }
+    catch (Exception e) {
+      if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage())) && !(e instanceof SocketTimeoutException) && !(e instanceof IOException && !channel.isOpen())) {
+        HTTPServer.LOG.log(Level.SEVERE, "Communication with the client broken, or an bug in the handler code", e);
+      }
+    }
+    if (session != null && session.hasUnreadBody()) closeLingering(this.outputStream);
+    end();
+  }
+
+}
@@ -0,0 +1,174 @@
+package box.star.net.http;
+
+import box.star.net.http.sockets.ChannelServerSocketFactory;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+/**
+ * A listening service that multiplexes all connections on a single
+ * {@link Selector}.
+ * <p>
+ * Idle keep-alive connections are parked in the selector, and a connection is
+ * handed to the {@link box.star.net.http.threading.IAsyncRunner} only when a
+ * complete request header has arrived, so the number of threads tracks the
+ * number of active requests instead of the number of open connections.
+ * </p>
+ * <p>
+ * The server installs this service when its async runner is a
+ * {@link box.star.net.http.threading.SelectorAsyncRunner}, and switches the
+ * default server socket factory to a {@link ChannelServerSocketFactory}.
+ * Secure sockets have no channel and are not supported by this service.
+ * </p>
+ */
+public class SelectorHTTPService extends HTTPService {
+
+  /**
+   * How often idle connections are checked for expiration, in milliseconds.
+   */
+  protected static final int IDLE_SWEEP_INTERVAL = 1000;
+
+  private final ConcurrentLinkedQueue<SelectorHTTPClient> parked = new ConcurrentLinkedQueue<>();
+  private volatile Selector selector;
+
+  public SelectorHTTPService(HTTPServer httpd, int timeout) {
+    super(httpd, timeout);
+  }
+
+  /**
+   * Creates the client for an accepted connection, can be overwritten by
+   * subclasses to provide a subclass of the SelectorHTTPClient.
+   */
+  protected SelectorHTTPClient createClientHandler(SocketChannel channel) {
+    return new SelectorHTTPClient(httpd, this, channel, timeout);
+  }
+
+  /**
+   * Returns a connection to the selector to wait for its next request.
+   * <p>
+   * Called by the worker thread when it is done with the connection.
+   * </p>
+   */
+  void park(SelectorHTTPClient client) {
+    parked.offer(client);
+    Selector selector = this.selector;
+    if (selector != null) selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    ServerSocketChannel server = httpd.getMyServerSocket().getChannel();
+    if (server == null) {
+      socketBindingException = new IOException("selector service requires a server socket channel, see: " + ChannelServerSocketFactory.class.getName());
+      return;
+    }
+    try {
+      selector = Selector.open();
+      server.configureBlocking(false);
+    }
+    catch (IOException e) {
+      socketBindingException = e;
+      return;
+    }
+    if (!bindServerSocket()) {
+      HTTPServer.safeClose(selector);
+      return;
+    }
+    try {
+      server.register(selector, SelectionKey.OP_ACCEPT);
+      long lastSweep = System.currentTimeMillis();
+      while (server.isOpen()) {
+        selector.select(IDLE_SWEEP_INTERVAL);
+        unpark();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) continue;
+          if (key.isAcceptable()) accept(server);
+          else if (key.isReadable()) read(key);
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastSweep >= IDLE_SWEEP_INTERVAL) {
+          sweep(now);
+          lastSweep = now;
+        }
+      }
+    }
+    catch (ClosedSelectorException | IOException e) {
+      HTTPServer.LOG.log(Level.FINE, "Selector service stopped", e);
+    }
+    finally {
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof SelectorHTTPClient) ((SelectorHTTPClient) key.attachment()).close();
+      }
+      HTTPServer.safeClose(selector);
+    }
+  }
+
+  private void accept(ServerSocketChannel server) {
+    SocketChannel channel;
+    try {
+      while ((channel = server.accept()) != null) {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectorHTTPClient client = createClientHandler(channel);
+        client.setSelectionKey(channel.register(selector, SelectionKey.OP_READ, client));
+      }
+    }
+    catch (IOException e) {
+      HTTPServer.LOG.log(Level.FINE, "Communication with the client broken", e);
+    }
+  }
+
+  private void read(SelectionKey key) {
+    SelectorHTTPClient client = (SelectorHTTPClient) key.attachment();
+    try {
+      if (client.getInputStream().fill() < 0) {
+        client.close();
+        httpd.asyncRunner.closed(client);
+        return;
+      }
+      client.touch();
+      if (client.isUpgraded() || client.getInputStream().hasRequestHeader() || client.getInputStream().isFull()) {
+        // the worker owns the connection until it is parked again
+        key.interestOps(0);
+        httpd.asyncRunner.exec(client);
+      }
+    }
+    catch (IOException | CancelledKeyException e) {
+      client.close();
+      httpd.asyncRunner.closed(client);
+    }
+  }
+
+  private void unpark() {
+    SelectorHTTPClient client;
+    while ((client = parked.poll()) != null) {
+      SelectionKey key = client.getSelectionKey();
+      try {
+        key.interestOps(SelectionKey.OP_READ);
+      }
+      catch (CancelledKeyException e) {
+        client.close();
+        httpd.asyncRunner.closed(client);
+      }
+    }
+  }
+
+  private void sweep(long now) {
+    for (SelectionKey key : selector.keys()) {
+      if (!(key.attachment() instanceof SelectorHTTPClient)) continue;
+      SelectorHTTPClient client = (SelectorHTTPClient) key.attachment();
+      long limit = client.isUpgraded() ? client.getUpgradeTimeout() : timeout;
+      if (key.isValid() && key.interestOps() == SelectionKey.OP_READ && limit > 0 && now - client.getLastActivity() > limit) {
+        client.close();
+        httpd.asyncRunner.closed(client);
+      }
+    }
+  }
+
+}
@@ -33,6 +33,8 @@ package box.star.net.http.content;
  * #L%
  */
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -54,6 +56,12 @@ public class ContentType {
 
   private static final Pattern BOUNDARY_PATTERN = Pattern.compile(BOUNDARY_REGEX, Pattern.CASE_INSENSITIVE);
 
+  private static final int CACHE_SIZE = 256;
+
+  private static final Map<String, ContentType> cache = new ConcurrentHashMap<String, ContentType>();
+
+  private static final ContentType NONE = new ContentType(null);
+
   private final String contentTypeHeader;
 
   private final String contentType;
@@ -78,6 +86,22 @@ public class ContentType {
     }
   }
 
+  /**
+   * Gets the parsed form of a content type header, sharing the instances of
+   * the headers that are seen again and again, such as the mime types of
+   * responses.
+   */
+  public static ContentType valueOf(String contentTypeHeader) {
+    if (contentTypeHeader == null) return NONE;
+    ContentType contentType = cache.get(contentTypeHeader);
+    if (contentType == null) {
+      if (cache.size() >= CACHE_SIZE) cache.clear();
+      contentType = new ContentType(contentTypeHeader);
+      cache.put(contentTypeHeader, contentType);
+    }
+    return contentType;
+  }
+
   private String getDetailFromContentHeader(String contentTypeHeader, Pattern pattern, String defaultValue, int group) {
     Matcher matcher = pattern.matcher(contentTypeHeader);
     return matcher.find() ? matcher.group(group) : defaultValue;
@@ -0,0 +1,90 @@
+package box.star.net.http.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets, as in an HDR histogram: every
+ * power of two is split into {@link #SUB_BUCKETS} buckets, so a reported
+ * percentile is within 1/{@link #SUB_BUCKETS} of the recorded value, from a
+ * nanosecond to the range of a long. Recording is an array increment and
+ * does not allocate.
+ * </p>
+ */
+public class LatencyHistogram {
+
+  public static final int SUB_BUCKETS = 16;
+
+  private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder(), sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) return (int) Math.max(0, value);
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  /**
+   * @return the largest value counted in a bucket
+   */
+  static long highestValue(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  public void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    counts.incrementAndGet(bucket(nanos));
+    count.increment();
+    sum.add(nanos);
+    long current = max.get();
+    while (nanos > current && !max.compareAndSet(current, nanos)) current = max.get();
+  }
+
+  public long getCount() { return count.sum(); }
+
+  public long getSum() { return sum.sum(); }
+
+  public long getMax() { return max.get(); }
+
+  public double getMean() {
+    long count = getCount();
+    return count == 0 ? 0 : (double) getSum() / count;
+  }
+
+  /**
+   * @param percentile a percentile from 0 to 100
+   * @return the value below which the percentile of the recorded values fall
+   */
+  public long getValueAtPercentile(double percentile) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) total += snapshot[i] = counts.get(i);
+    if (total == 0) return 0;
+    long target = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= target) return Math.min(highestValue(i), getMax());
+    }
+    return getMax();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+    count.reset();
+    sum.reset();
+    max.set(0);
+  }
+
+}
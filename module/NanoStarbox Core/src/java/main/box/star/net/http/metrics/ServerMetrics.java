@@ -0,0 +1,293 @@
+package box.star.net.http.metrics;
+
+import box.star.net.http.response.IStatus;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Operational numbers of an {@link box.star.net.http.HTTPServer}.
+ * <p>
+ * Requests are counted by status and by route, with the time spent reading
+ * the request head, in the handler, and sending the response, in
+ * {@link LatencyHistogram}s. Connections, keep-alive reuse and the bytes read
+ * and written are counted too, and so are TLS handshakes, full or resumed,
+ * with their time. All of it is recorded with adders and atomic
+ * arrays, so recording takes no lock and does not allocate once a route has
+ * been seen.
+ * </p>
+ * <p>
+ * The numbers can be registered as a platform MXBean with
+ * {@link #register(String)}, or written in the Prometheus text format with
+ * {@link #writeText(Appendable)}.
+ * </p>
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+  /**
+   * The number of routes counted separately; requests on other routes are
+   * counted as {@link #OTHER_ROUTE}.
+   */
+  public static final int MAX_ROUTES = 256;
+  public static final String OTHER_ROUTE = "other";
+
+  private static final int STATUS_CODES = 600;
+
+  public final LatencyHistogram headerParse = new LatencyHistogram();
+  public final LatencyHistogram handler = new LatencyHistogram();
+  public final LatencyHistogram send = new LatencyHistogram();
+  public final LatencyHistogram tlsHandshake = new LatencyHistogram();
+
+  private final LongAdder requests = new LongAdder(), requestsInFlight = new LongAdder();
+  private final LongAdder connections = new LongAdder(), openConnections = new LongAdder();
+  private final LongAdder keepAliveReuses = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder(), bytesOut = new LongAdder();
+  private final LongAdder tlsResumedHandshakes = new LongAdder(), tlsFailedHandshakes = new LongAdder();
+  private final AtomicLongArray statuses = new AtomicLongArray(STATUS_CODES);
+  private final ConcurrentHashMap<String, LongAdder> routes = new ConcurrentHashMap<>();
+  private ObjectName objectName;
+
+  public void connectionOpened() {
+    connections.increment();
+    openConnections.increment();
+  }
+
+  public void connectionClosed() {
+    openConnections.decrement();
+  }
+
+  /**
+   * @param reused true if an earlier request was served on the connection
+   */
+  public void requestStarted(boolean reused) {
+    requestsInFlight.increment();
+    if (reused) keepAliveReuses.increment();
+  }
+
+  /**
+   * @param route    the route of the request, or null if it has none
+   * @param status   the status of the response, or null if none was sent
+   * @param bytesIn  the bytes read for the request
+   * @param bytesOut the bytes written for the response
+   */
+  public void requestEnded(String route, IStatus status, long bytesIn, long bytesOut) {
+    requestsInFlight.decrement();
+    requests.increment();
+    int code = status == null ? 0 : status.getRequestStatus();
+    statuses.incrementAndGet(code > 0 && code < STATUS_CODES ? code : 0);
+    this.bytesIn.add(bytesIn);
+    this.bytesOut.add(bytesOut);
+    if (route != null) {
+      LongAdder counter = routes.get(route);
+      if (counter == null) {
+        if (routes.size() >= MAX_ROUTES) route = OTHER_ROUTE;
+        counter = routes.get(route);
+        if (counter == null) {
+          LongAdder created = new LongAdder();
+          counter = routes.putIfAbsent(route, created);
+          if (counter == null) counter = created;
+        }
+      }
+      counter.increment();
+    }
+  }
+
+  /**
+   * @param resumed true if the client resumed an earlier session
+   */
+  public void handshakeEnded(long nanos, boolean resumed) {
+    tlsHandshake.record(nanos);
+    if (resumed) tlsResumedHandshakes.increment();
+  }
+
+  public void handshakeFailed() {
+    tlsFailedHandshakes.increment();
+  }
+
+  @Override
+  public long getRequests() { return requests.sum(); }
+
+  @Override
+  public long getRequestsInFlight() { return requestsInFlight.sum(); }
+
+  @Override
+  public long getConnections() { return connections.sum(); }
+
+  @Override
+  public long getOpenConnections() { return openConnections.sum(); }
+
+  @Override
+  public long getKeepAliveReuses() { return keepAliveReuses.sum(); }
+
+  @Override
+  public long getBytesIn() { return bytesIn.sum(); }
+
+  @Override
+  public long getBytesOut() { return bytesOut.sum(); }
+
+  public long getStatusCount(int status) {
+    return status > 0 && status < STATUS_CODES ? statuses.get(status) : statuses.get(0);
+  }
+
+  /**
+   * @return the requests by status code, with "none" for requests that got no response
+   */
+  @Override
+  public Map<String, Long> getStatusCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    for (int i = 0; i < STATUS_CODES; i++) {
+      long count = statuses.get(i);
+      if (count > 0) counts.put(i == 0 ? "none" : Integer.toString(i), count);
+    }
+    return counts;
+  }
+
+  @Override
+  public Map<String, Long> getRouteCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> entry : routes.entrySet()) counts.put(entry.getKey(), entry.getValue().sum());
+    return counts;
+  }
+
+  @Override
+  public double getHeaderParseMeanMicros() { return headerParse.getMean() / 1000; }
+
+  @Override
+  public long getHeaderParseP99Micros() { return micros(headerParse.getValueAtPercentile(99)); }
+
+  @Override
+  public double getHandlerMeanMicros() { return handler.getMean() / 1000; }
+
+  @Override
+  public long getHandlerP50Micros() { return micros(handler.getValueAtPercentile(50)); }
+
+  @Override
+  public long getHandlerP99Micros() { return micros(handler.getValueAtPercentile(99)); }
+
+  @Override
+  public long getHandlerMaxMicros() { return micros(handler.getMax()); }
+
+  @Override
+  public double getSendMeanMicros() { return send.getMean() / 1000; }
+
+  @Override
+  public long getSendP99Micros() { return micros(send.getValueAtPercentile(99)); }
+
+  @Override
+  public long getTlsHandshakes() { return tlsHandshake.getCount(); }
+
+  @Override
+  public long getTlsResumedHandshakes() { return tlsResumedHandshakes.sum(); }
+
+  @Override
+  public long getTlsFailedHandshakes() { return tlsFailedHandshakes.sum(); }
+
+  @Override
+  public double getTlsHandshakeMeanMicros() { return tlsHandshake.getMean() / 1000; }
+
+  @Override
+  public long getTlsHandshakeP99Micros() { return micros(tlsHandshake.getValueAtPercentile(99)); }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  /**
+   * Clears the counters and histograms; the connection and in-flight gauges are kept.
+   */
+  @Override
+  public void reset() {
+    requests.reset();
+    keepAliveReuses.reset();
+    connections.reset();
+    bytesIn.reset();
+    bytesOut.reset();
+    for (int i = 0; i < STATUS_CODES; i++) statuses.set(i, 0);
+    routes.clear();
+    headerParse.reset();
+    handler.reset();
+    send.reset();
+    tlsHandshake.reset();
+    tlsResumedHandshakes.reset();
+    tlsFailedHandshakes.reset();
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server, as
+   * {@code box.star.net.http:type=HTTPServer,name=<name>}.
+   */
+  public synchronized ObjectName register(String name) throws JMException {
+    unregister();
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName objectName = new ObjectName("box.star.net.http:type=HTTPServer,name=" + ObjectName.quote(name));
+    server.registerMBean(this, objectName);
+    this.objectName = objectName;
+    return objectName;
+  }
+
+  public synchronized void unregister() throws JMException {
+    if (objectName == null) return;
+    ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    objectName = null;
+  }
+
+  /**
+   * Writes the metrics in the Prometheus text exposition format.
+   */
+  public void writeText(Appendable out) throws IOException {
+    counter(out, "http_requests_total", "Requests served.", getRequests());
+    gauge(out, "http_requests_in_flight", "Requests being served.", getRequestsInFlight());
+    counter(out, "http_connections_total", "Connections accepted.", getConnections());
+    gauge(out, "http_connections_open", "Connections open.", getOpenConnections());
+    counter(out, "http_keepalive_reuses_total", "Requests served on a reused connection.", getKeepAliveReuses());
+    counter(out, "http_received_bytes_total", "Bytes read from clients.", getBytesIn());
+    counter(out, "http_sent_bytes_total", "Bytes written to clients.", getBytesOut());
+    out.append("# HELP http_responses_total Responses by status.\n# TYPE http_responses_total counter\n");
+    for (Map.Entry<String, Long> entry : getStatusCounts().entrySet())
+      out.append("http_responses_total{status=\"").append(entry.getKey()).append("\"} ").append(Long.toString(entry.getValue())).append('\n');
+    out.append("# HELP http_route_requests_total Requests by route.\n# TYPE http_route_requests_total counter\n");
+    for (Map.Entry<String, Long> entry : getRouteCounts().entrySet())
+      out.append("http_route_requests_total{route=\"").append(escape(entry.getKey())).append("\"} ").append(Long.toString(entry.getValue())).append('\n');
+    summary(out, "http_header_parse_seconds", "Time to read and parse request heads.", headerParse);
+    summary(out, "http_handler_seconds", "Time spent in the request handler.", handler);
+    summary(out, "http_send_seconds", "Time to send responses.", send);
+    if (getTlsHandshakes() == 0 && getTlsFailedHandshakes() == 0) return;
+    counter(out, "http_tls_resumed_handshakes_total", "TLS handshakes that resumed a session.", getTlsResumedHandshakes());
+    counter(out, "http_tls_failed_handshakes_total", "TLS handshakes that failed.", getTlsFailedHandshakes());
+    summary(out, "http_tls_handshake_seconds", "Time to complete TLS handshakes.", tlsHandshake);
+  }
+
+  private static void counter(Appendable out, String name, String help, long value) throws IOException {
+    out.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" counter\n");
+    out.append(name).append(' ').append(Long.toString(value)).append('\n');
+  }
+
+  private static void gauge(Appendable out, String name, String help, long value) throws IOException {
+    out.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" gauge\n");
+    out.append(name).append(' ').append(Long.toString(value)).append('\n');
+  }
+
+  private static void summary(Appendable out, String name, String help, LatencyHistogram histogram) throws IOException {
+    out.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" summary\n");
+    for (String quantile : new String[]{"0.5", "0.9", "0.99", "0.999"}) {
+      double seconds = histogram.getValueAtPercentile(Double.parseDouble(quantile) * 100) / 1e9;
+      out.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(Double.toString(seconds)).append('\n');
+    }
+    out.append(name).append("_sum ").append(Double.toString(histogram.getSum() / 1e9)).append('\n');
+    out.append(name).append("_count ").append(Long.toString(histogram.getCount())).append('\n');
+  }
+
+  private static String escape(String label) {
+    return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+}
@@ -0,0 +1,57 @@
+package box.star.net.http.metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link ServerMetrics}; durations are in
+ * microseconds.
+ */
+public interface ServerMetricsMXBean {
+
+  long getRequests();
+
+  long getRequestsInFlight();
+
+  long getConnections();
+
+  long getOpenConnections();
+
+  long getKeepAliveReuses();
+
+  long getBytesIn();
+
+  long getBytesOut();
+
+  Map<String, Long> getStatusCounts();
+
+  Map<String, Long> getRouteCounts();
+
+  double getHeaderParseMeanMicros();
+
+  long getHeaderParseP99Micros();
+
+  double getHandlerMeanMicros();
+
+  long getHandlerP50Micros();
+
+  long getHandlerP99Micros();
+
+  long getHandlerMaxMicros();
+
+  double getSendMeanMicros();
+
+  long getSendP99Micros();
+
+  long getTlsHandshakes();
+
+  long getTlsResumedHandshakes();
+
+  long getTlsFailedHandshakes();
+
+  double getTlsHandshakeMeanMicros();
+
+  long getTlsHandshakeP99Micros();
+
+  void reset();
+
+}
@@ -0,0 +1,177 @@
+package box.star.net.http.request;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The body of one request, read from the connection stream.
+ * <p>
+ * The stream ends at the end of the body, as given by the Content-Length
+ * header or by the last chunk of a chunked body, so a handler can't read
+ * into the next request on a keep-alive connection. Closing it does not
+ * close the connection; the session reads past what the handler left with
+ * {@link #drain(long)}.
+ * </p>
+ */
+public class BodyInputStream extends InputStream {
+
+  private static final int MAX_CHUNK_LINE = 1024;
+
+  private final InputStream in;
+  private final boolean chunked;
+  private long remaining;
+  private long bytesRead;
+  private boolean finished;
+  private byte[] skipBuffer;
+
+  /**
+   * @param in     the connection stream, positioned at the start of the body
+   * @param length the length of the body
+   */
+  public BodyInputStream(InputStream in, long length) {
+    this.in = in;
+    this.chunked = false;
+    this.remaining = length;
+    this.finished = length <= 0;
+  }
+
+  /**
+   * A chunked body; the chunk framing and trailers are read, but not returned.
+   *
+   * @param in the connection stream, positioned at the start of the body
+   */
+  public BodyInputStream(InputStream in) {
+    this.in = in;
+    this.chunked = true;
+  }
+
+  public boolean isChunked() {
+    return chunked;
+  }
+
+  /**
+   * @return the number of body bytes read or skipped so far
+   */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * @return true if the whole body has been read
+   */
+  public boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * @return the number of body bytes left, or -1 if a chunked body is not finished
+   */
+  public long getRemaining() {
+    if (finished) return 0;
+    return chunked ? -1 : remaining;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int n = read(b, 0, 1);
+    return n == 1 ? (b[0] & 0xff) : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) return 0;
+    if (finished) return -1;
+    if (remaining == 0 && !nextChunk()) return -1;
+    int read = in.read(b, off, (int) Math.min(len, remaining));
+    if (read < 0) throw new EOFException("connection closed " + remaining + " bytes before the end of the request body");
+    remaining -= read;
+    bytesRead += read;
+    if (remaining == 0 && !chunked) finished = true;
+    return read;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (skipBuffer == null) skipBuffer = new byte[4096];
+    long skipped = 0;
+    while (skipped < n) {
+      int read = read(skipBuffer, 0, (int) Math.min(skipBuffer.length, n - skipped));
+      if (read < 0) break;
+      skipped += read;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    if (finished) return 0;
+    return (int) Math.min(in.available(), remaining);
+  }
+
+  /**
+   * Reads and discards the rest of the body, if it is no longer than the limit.
+   *
+   * @param limit the most bytes to discard
+   * @return true if the body was read to its end
+   */
+  public boolean drain(long limit) throws IOException {
+    if (finished) return true;
+    if (!chunked && remaining > limit) return false;
+    skip(limit);
+    return finished;
+  }
+
+  /**
+   * Does not close the connection.
+   */
+  @Override
+  public void close() {}
+
+  /**
+   * Reads the size line of the next chunk, or the trailers after the last one.
+   *
+   * @return false if the body is finished
+   */
+  private boolean nextChunk() throws IOException {
+    if (!chunked) return false;
+    if (bytesRead > 0) {
+      // the line break after the data of the previous chunk
+      if (readLine().length() != 0) throw new IOException("malformed chunked request body");
+    }
+    String line = readLine();
+    int extension = line.indexOf(';');
+    if (extension >= 0) line = line.substring(0, extension);
+    long size;
+    try {
+      size = Long.parseLong(line.trim(), 16);
+    }
+    catch (NumberFormatException e) {
+      throw new IOException("malformed chunk size: " + line);
+    }
+    if (size < 0) throw new IOException("malformed chunk size: " + line);
+    if (size == 0) {
+      while (readLine().length() != 0) {
+        // trailers are not kept
+      }
+      finished = true;
+      return false;
+    }
+    remaining = size;
+    return true;
+  }
+
+  private String readLine() throws IOException {
+    StringBuilder line = new StringBuilder();
+    while (true) {
+      int c = in.read();
+      if (c < 0) throw new EOFException("connection closed inside a chunked request body");
+      if (c == '\n') break;
+      if (c != '\r') line.append((char) c);
+      if (line.length() > MAX_CHUNK_LINE) throw new IOException("chunk line too long");
+    }
+    return line.toString();
+  }
+
+}
@@ -57,6 +57,24 @@ public enum Method {
   NOTIFY,
   SUBSCRIBE;
 
+  private static final Method[] VALUES = values();
+
+  /**
+   * Decodes a method name from the ASCII bytes of a request line.
+   *
+   * @return the method, or null if the name is not a known method.
+   */
+  public static Method lookup(byte[] buf, int offset, int length) {
+    for (Method method : VALUES) {
+      String name = method.name();
+      if (name.length() != length) continue;
+      int i = 0;
+      while (i < length && buf[offset + i] == name.charAt(i)) i++;
+      if (i == length) return method;
+    }
+    return null;
+  }
+
   public static Method lookup(String method) {
     if (method == null)
       return null;
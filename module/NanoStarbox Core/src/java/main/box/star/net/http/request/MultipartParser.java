@@ -0,0 +1,283 @@
+package box.star.net.http.request;
+
+import box.star.net.http.HTTPServer;
+import box.star.net.http.response.Status;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * Streaming parser for multipart/form-data request bodies.
+ * <p>
+ * The body is read once, through a fixed size buffer, and the part
+ * delimiters are found with a Boyer-Moore-Horspool search. The data of each
+ * part is passed to a {@link Handler} as it is read, so an upload of any
+ * size is never held in memory, or copied to disk more than once.
+ * </p>
+ */
+public class MultipartParser {
+
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Receives the parts of a multipart body, in the order they are read.
+   */
+  public interface Handler {
+
+    void startPart(Part part) throws IOException, HTTPServer.ResponseException;
+
+    /**
+     * The buffer belongs to the parser, and is only valid during the call.
+     */
+    void partData(Part part, byte[] buffer, int offset, int length) throws IOException, HTTPServer.ResponseException;
+
+    void endPart(Part part) throws IOException, HTTPServer.ResponseException;
+
+  }
+
+  /**
+   * The header fields of a part.
+   */
+  public static class Part {
+
+    private final Map<String, String> headers;
+    private final String name, fileName, contentType;
+
+    Part(Map<String, String> headers, String name, String fileName, String contentType) {
+      this.headers = headers;
+      this.name = name;
+      this.fileName = fileName;
+      this.contentType = contentType;
+    }
+
+    /**
+     * @return the header fields of the part, by lower case name
+     */
+    public Map<String, String> getHeaders() { return headers; }
+
+    /**
+     * @return the name of the form field, from the content disposition
+     */
+    public String getName() { return name; }
+
+    /**
+     * @return the name of the uploaded file, or null if the part is not a file
+     */
+    public String getFileName() { return fileName; }
+
+    /**
+     * @return the content type of the part, or null if it has none
+     */
+    public String getContentType() { return contentType; }
+
+  }
+
+  private final byte[] delimiter;
+  private final int[] skip = new int[256];
+  private final Charset charset;
+  private final int maxHeaderSize;
+  private final byte[] buffer;
+
+  private InputStream input;
+  private long remaining;
+  private int position, limit;
+
+  /**
+   * @param boundary      the boundary parameter of the content type
+   * @param charset       the encoding of the part headers
+   * @param maxHeaderSize the largest header block a part may have
+   */
+  public MultipartParser(String boundary, Charset charset, int maxHeaderSize) {
+    this.delimiter = ("\r\n--" + boundary).getBytes(charset);
+    this.charset = charset;
+    this.maxHeaderSize = maxHeaderSize;
+    this.buffer = new byte[Math.max(DEFAULT_BUFFER_SIZE, 2 * (delimiter.length + maxHeaderSize))];
+    int last = delimiter.length - 1;
+    for (int i = 0; i < skip.length; i++) skip[i] = delimiter.length;
+    for (int i = 0; i < last; i++) skip[delimiter[i] & 0xff] = last - i;
+  }
+
+  /**
+   * Reads a multipart body, passing its parts to the handler.
+   * <p>
+   * The body is read up to its length, including the epilogue after the
+   * closing delimiter, so the stream is left at the end of the request.
+   * </p>
+   *
+   * @param input   the request stream
+   * @param length  the length of the body, or -1 to read to the end of the stream
+   * @param handler the receiver of the parts
+   */
+  public void parse(InputStream input, long length, Handler handler) throws IOException, HTTPServer.ResponseException {
+    this.input = input;
+    this.remaining = length < 0 ? Long.MAX_VALUE : length;
+    // the first delimiter may start the body, without a line break before it
+    buffer[0] = '\r';
+    buffer[1] = '\n';
+    position = 0;
+    limit = 2;
+    try {
+      if (!next(null, handler))
+        throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Content type is multipart/form-data but contains less than two boundary strings.");
+      while (!closing()) {
+        Part part = readPart();
+        handler.startPart(part);
+        if (!next(part, handler))
+          throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: multipart/form-data body ends inside a part.");
+        handler.endPart(part);
+      }
+      drain();
+    }
+    finally {
+      this.input = null;
+    }
+  }
+
+  /**
+   * Reads past the next delimiter, passing the data before it to the handler
+   * if there is a part.
+   *
+   * @return false if the body ends first
+   */
+  private boolean next(Part part, Handler handler) throws IOException, HTTPServer.ResponseException {
+    while (true) {
+      int found = find();
+      if (found != -1) {
+        if (part != null && found > position) handler.partData(part, buffer, position, found - position);
+        position = found + delimiter.length;
+        return true;
+      }
+      // a delimiter may begin in the last bytes of the buffer
+      int safe = limit - delimiter.length + 1;
+      if (safe > position) {
+        if (part != null) handler.partData(part, buffer, position, safe - position);
+        position = safe;
+      }
+      if (!fill(delimiter.length)) return false;
+    }
+  }
+
+  /**
+   * @return the position of the next delimiter in the buffer, or -1
+   */
+  private int find() {
+    int last = delimiter.length - 1;
+    int i = position;
+    while (i + last < limit) {
+      int j = last;
+      while (buffer[i + j] == delimiter[j]) {
+        if (j == 0) return i;
+        j--;
+      }
+      i += skip[buffer[i + last] & 0xff];
+    }
+    return -1;
+  }
+
+  /**
+   * Makes at least {@code count} unread bytes available in the buffer.
+   *
+   * @return false if the body ends first
+   */
+  private boolean fill(int count) throws IOException {
+    if (limit - position >= count) return true;
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+    }
+    while (limit - position < count) {
+      if (remaining == 0) return false;
+      int read = input.read(buffer, limit, (int) Math.min(buffer.length - limit, remaining));
+      if (read == -1) {
+        remaining = 0;
+        return false;
+      }
+      limit += read;
+      remaining -= read;
+    }
+    return true;
+  }
+
+  /**
+   * Reads what follows a delimiter: "--" for the closing delimiter, or the
+   * end of the delimiter line.
+   */
+  private boolean closing() throws IOException, HTTPServer.ResponseException {
+    if (!fill(2))
+      throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: multipart/form-data body ends without a closing boundary.");
+    if (buffer[position] == '-' && buffer[position + 1] == '-') {
+      position += 2;
+      return true;
+    }
+    // skip the transport padding of the delimiter line
+    readLine();
+    return false;
+  }
+
+  /**
+   * @return the next header line, without its line break
+   */
+  private String readLine() throws IOException, HTTPServer.ResponseException {
+    int scanned = position;
+    while (true) {
+      for (int i = scanned; i < limit; i++) {
+        if (buffer[i] == '\n') {
+          int end = i > position && buffer[i - 1] == '\r' ? i - 1 : i;
+          String line = new String(buffer, position, end - position, charset);
+          position = i + 1;
+          return line;
+        }
+      }
+      if (limit - position > maxHeaderSize)
+        throw new HTTPServer.ResponseException(Status.INTERNAL_ERROR, "Multipart header size exceeds MAX_HEADER_SIZE.");
+      scanned = limit - position;
+      if (!fill(limit - position + 1))
+        throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: multipart/form-data body ends inside a part header.");
+      scanned += position;
+    }
+  }
+
+  private Part readPart() throws IOException, HTTPServer.ResponseException {
+    Map<String, String> headers = new HashMap<>();
+    String name = null, fileName = null, contentType = null;
+    int size = 0;
+    for (String line = readLine(); line.trim().length() > 0; line = readLine()) {
+      size += line.length();
+      if (size > maxHeaderSize)
+        throw new HTTPServer.ResponseException(Status.INTERNAL_ERROR, "Multipart header size exceeds MAX_HEADER_SIZE.");
+      int colon = line.indexOf(':');
+      if (colon > 0) headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+      Matcher matcher = HTTPServer.CONTENT_DISPOSITION_PATTERN.matcher(line);
+      if (matcher.matches()) {
+        matcher = HTTPServer.CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(matcher.group(2));
+        while (matcher.find()) {
+          String key = matcher.group(1);
+          if ("name".equalsIgnoreCase(key)) name = matcher.group(2);
+          else if ("filename".equalsIgnoreCase(key)) fileName = matcher.group(2);
+        }
+      }
+      matcher = HTTPServer.CONTENT_TYPE_PATTERN.matcher(line);
+      if (matcher.matches()) contentType = matcher.group(2).trim();
+    }
+    return new Part(headers, name, fileName, contentType);
+  }
+
+  /**
+   * Reads the epilogue of the body.
+   */
+  private void drain() throws IOException {
+    position = limit = 0;
+    while (remaining > 0 && remaining != Long.MAX_VALUE) {
+      int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (read == -1) break;
+      remaining -= read;
+    }
+  }
+
+}
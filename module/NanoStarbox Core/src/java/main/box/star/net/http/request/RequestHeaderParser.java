@@ -0,0 +1,211 @@
+package box.star.net.http.request;
+
+import box.star.net.http.HTTPServer;
+import box.star.net.http.response.Status;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Single pass parser for the request line and header fields of an HTTP
+ * request, working directly on the bytes received from the client.
+ * <p>
+ * Header names are lower-cased while they are scanned, and the common names
+ * are taken from a table of interned strings instead of being allocated for
+ * every request. A parser is meant to be reused for every request of a
+ * connection, and is not thread-safe.
+ * </p>
+ */
+public class RequestHeaderParser {
+
+  /**
+   * Header names that are resolved without allocating a new string.
+   */
+  public static final String[] COMMON_HEADER_NAMES = {
+      "accept", "accept-charset", "accept-encoding", "accept-language", "authorization",
+      "cache-control", "connection", "content-disposition", "content-encoding", "content-length",
+      "content-type", "cookie", "dnt", "expect", "forwarded", "host", "if-match",
+      "if-modified-since", "if-none-match", "if-range", "if-unmodified-since", "keep-alive",
+      "origin", "pragma", "range", "referer", "sec-fetch-dest", "sec-fetch-mode", "sec-fetch-site",
+      "sec-fetch-user", "sec-websocket-extensions", "sec-websocket-key", "sec-websocket-protocol",
+      "sec-websocket-version", "te", "transfer-encoding", "upgrade", "upgrade-insecure-requests",
+      "user-agent", "via", "x-forwarded-for", "x-forwarded-host", "x-forwarded-proto",
+      "x-real-ip", "x-requested-with"
+  };
+
+  private static final String HTTP_1_0 = "HTTP/1.0", HTTP_1_1 = "HTTP/1.1";
+  private static final int NAME_TABLE_SIZE = 256;
+  private static final String[] nameTable = new String[NAME_TABLE_SIZE];
+  private static final Charset DEFAULT_CHARSET = Charset.defaultCharset();
+
+  static {
+    for (String name : COMMON_HEADER_NAMES) {
+      int slot = name.hashCode() & (NAME_TABLE_SIZE - 1);
+      while (nameTable[slot] != null) slot = (slot + 1) & (NAME_TABLE_SIZE - 1);
+      nameTable[slot] = name;
+    }
+  }
+
+  private Method method;
+  private String methodName;
+  private String uri;
+  private String protocolVersion;
+
+  private static boolean isWhiteSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\f';
+  }
+
+  private static byte toLowerCase(byte b) {
+    return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+  }
+
+  private static String lookupName(byte[] buf, int start, int end, int hash) {
+    int length = end - start;
+    for (int slot = hash & (NAME_TABLE_SIZE - 1); nameTable[slot] != null; slot = (slot + 1) & (NAME_TABLE_SIZE - 1)) {
+      String name = nameTable[slot];
+      if (name.length() != length || name.hashCode() != hash) continue;
+      int i = 0;
+      while (i < length && toLowerCase(buf[start + i]) == name.charAt(i)) i++;
+      if (i == length) return name;
+    }
+    return null;
+  }
+
+  /**
+   * Decodes a span of the header, as US-ASCII when possible.
+   */
+  private static String text(byte[] buf, int start, int end, boolean ascii) {
+    return new String(buf, start, end - start, ascii ? StandardCharsets.ISO_8859_1 : DEFAULT_CHARSET);
+  }
+
+  private static int lineEnd(byte[] buf, int offset, int length) {
+    while (offset < length && buf[offset] != '\n' && buf[offset] != '\r') offset++;
+    return offset;
+  }
+
+  private static int nextLine(byte[] buf, int lineEnd, int length) {
+    if (lineEnd < length && buf[lineEnd] == '\r') lineEnd++;
+    if (lineEnd < length && buf[lineEnd] == '\n') lineEnd++;
+    return lineEnd;
+  }
+
+  /**
+   * Parses the request line and the header fields.
+   *
+   * @param buf     the bytes received from the client
+   * @param length  the number of header bytes in the buffer
+   * @param headers the map to load the lower-cased header names and trimmed values into
+   * @throws HTTPServer.ResponseException if the request line is malformed
+   */
+  public void parse(byte[] buf, int length, Map<String, String> headers) throws HTTPServer.ResponseException {
+    method = null;
+    methodName = null;
+    uri = null;
+    protocolVersion = null;
+
+    // request line: method, uri, and optional protocol version
+    int end = lineEnd(buf, 0, length);
+    int p = 0;
+    while (p < end && isWhiteSpace(buf[p])) p++;
+    if (p == end) {
+      throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+    }
+    int start = p;
+    while (p < end && !isWhiteSpace(buf[p])) p++;
+    method = Method.lookup(buf, start, p - start);
+    if (method == null) methodName = text(buf, start, p, false);
+
+    while (p < end && isWhiteSpace(buf[p])) p++;
+    if (p == end) {
+      throw new HTTPServer.ResponseException(Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+    }
+    start = p;
+    boolean ascii = true;
+    while (p < end && !isWhiteSpace(buf[p])) ascii &= buf[p++] >= 0;
+    uri = text(buf, start, p, ascii);
+
+    while (p < end && isWhiteSpace(buf[p])) p++;
+    if (p < end) {
+      start = p;
+      while (p < end && !isWhiteSpace(buf[p])) p++;
+      if (matches(buf, start, p, HTTP_1_1)) protocolVersion = HTTP_1_1;
+      else if (matches(buf, start, p, HTTP_1_0)) protocolVersion = HTTP_1_0;
+      else protocolVersion = text(buf, start, p, false);
+    } else {
+      protocolVersion = HTTP_1_1;
+      HTTPServer.LOG.fine("no protocol version specified, strange. Assuming HTTP/1.1.");
+    }
+
+    // header fields, until the first blank line
+    p = nextLine(buf, end, length);
+    while (p < length) {
+      end = lineEnd(buf, p, length);
+      int next = nextLine(buf, end, length);
+      int lineStart = p;
+      while (lineStart < end && buf[lineStart] <= ' ' && buf[lineStart] >= 0) lineStart++;
+      if (lineStart == end) break;
+      int colon = lineStart;
+      int hash = 0;
+      while (colon < end && buf[colon] != ':') colon++;
+      if (colon < end) {
+        int nameEnd = colon;
+        while (nameEnd > lineStart && buf[nameEnd - 1] <= ' ' && buf[nameEnd - 1] >= 0) nameEnd--;
+        ascii = true;
+        for (int i = lineStart; i < nameEnd; i++) {
+          hash = 31 * hash + toLowerCase(buf[i]);
+          ascii &= buf[i] >= 0;
+        }
+        String name = ascii ? lookupName(buf, lineStart, nameEnd, hash) : null;
+        if (name == null) name = lowerCaseText(buf, lineStart, nameEnd, ascii);
+        int valueStart = colon + 1, valueEnd = end;
+        while (valueStart < valueEnd && buf[valueStart] <= ' ' && buf[valueStart] >= 0) valueStart++;
+        while (valueEnd > valueStart && buf[valueEnd - 1] <= ' ' && buf[valueEnd - 1] >= 0) valueEnd--;
+        ascii = true;
+        for (int i = valueStart; i < valueEnd && ascii; i++) ascii = buf[i] >= 0;
+        headers.put(name, text(buf, valueStart, valueEnd, ascii));
+      }
+      p = next;
+    }
+  }
+
+  private static boolean matches(byte[] buf, int start, int end, String text) {
+    if (end - start != text.length()) return false;
+    for (int i = start; i < end; i++) if (buf[i] != text.charAt(i - start)) return false;
+    return true;
+  }
+
+  private static String lowerCaseText(byte[] buf, int start, int end, boolean ascii) {
+    if (!ascii) return text(buf, start, end, false).toLowerCase(Locale.US);
+    char[] chars = new char[end - start];
+    for (int i = start; i < end; i++) chars[i - start] = (char) toLowerCase(buf[i]);
+    return new String(chars);
+  }
+
+  /**
+   * @return the request method, or null if the method is unknown
+   */
+  public Method getMethod() {
+    return method;
+  }
+
+  /**
+   * @return the method name as sent by the client
+   */
+  public String getMethodName() {
+    return method != null ? method.name() : methodName;
+  }
+
+  /**
+   * @return the request target, including the query string, not yet percent-decoded
+   */
+  public String getUri() {
+    return uri;
+  }
+
+  public String getProtocolVersion() {
+    return protocolVersion;
+  }
+
+}
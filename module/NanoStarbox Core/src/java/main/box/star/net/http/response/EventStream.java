@@ -0,0 +1,115 @@
+package box.star.net.http.response;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A Server-Sent Events stream, the text/event-stream body of a
+ * {@link StreamingResponse}.
+ * <p>
+ * Each event is flushed as it is sent. The sends return false, like the
+ * writes of the {@link ResponseStream}, when the client is not keeping up;
+ * a broadcaster can skip such a client, or drop it. A client that goes away
+ * is only noticed on a send, so an idle stream should send a
+ * {@link #comment(String)} now and then.
+ * </p>
+ */
+public class EventStream implements Closeable {
+
+  public static final String MIME_EVENT_STREAM = "text/event-stream; charset=UTF-8";
+
+  /**
+   * Receives the event stream once the head of the response has been sent.
+   */
+  public interface Handler {
+    void open(EventStream events) throws IOException;
+  }
+
+  private final ResponseStream stream;
+
+  public EventStream(ResponseStream stream) {
+    this.stream = stream;
+  }
+
+  /**
+   * Create an event stream response; the events are not compressed, so that
+   * intermediaries pass each one on as it is sent.
+   */
+  public static StreamingResponse newResponse(final Handler handler) {
+    StreamingResponse response = Response.newStreamingResponse(Status.OK, MIME_EVENT_STREAM, new StreamingResponse.Producer() {
+      @Override
+      public void open(ResponseStream stream) throws IOException {
+        handler.open(new EventStream(stream));
+      }
+    });
+    response.setUseGzip(false);
+    response.addHeader("Cache-Control", "no-cache");
+    response.addHeader("X-Accel-Buffering", "no");
+    return response;
+  }
+
+  public ResponseStream getStream() {
+    return stream;
+  }
+
+  /**
+   * Sends an unnamed event.
+   */
+  public boolean send(String data) throws IOException {
+    return send(null, null, data);
+  }
+
+  /**
+   * Sends an event.
+   *
+   * @param event the event name, or null for a message event
+   * @param id    the event id, or null
+   * @param data  the data, which may span lines
+   */
+  public boolean send(String event, String id, String data) throws IOException {
+    StringBuilder text = new StringBuilder(data.length() + 32);
+    if (id != null) field(text, "id", id);
+    if (event != null) field(text, "event", event);
+    int start = 0, end;
+    while ((end = data.indexOf('\n', start)) >= 0) {
+      field(text, "data", data.substring(start, end > start && data.charAt(end - 1) == '\r' ? end - 1 : end));
+      start = end + 1;
+    }
+    field(text, "data", data.substring(start));
+    return sendText(text.append('\n'));
+  }
+
+  /**
+   * Sends a comment, which clients ignore; used to keep the stream alive.
+   */
+  public boolean comment(String text) throws IOException {
+    return sendText(new StringBuilder(text.length() + 4).append(": ").append(text).append("\n\n"));
+  }
+
+  /**
+   * Sets the delay before the client reconnects, after the stream is lost.
+   */
+  public boolean retry(long millis) throws IOException {
+    return sendText(new StringBuilder(24).append("retry: ").append(millis).append("\n\n"));
+  }
+
+  public boolean isOpen() {
+    return stream.isOpen();
+  }
+
+  @Override
+  public void close() {
+    stream.close();
+  }
+
+  private boolean sendText(CharSequence text) throws IOException {
+    boolean writable = stream.write(text.toString());
+    stream.flush();
+    return writable;
+  }
+
+  private static void field(StringBuilder text, String name, String value) {
+    text.append(name).append(": ").append(value).append('\n');
+  }
+
+}
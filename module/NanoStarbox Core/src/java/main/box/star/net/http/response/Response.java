@@ -38,12 +38,14 @@ import box.star.net.http.HTTPServer;
 import box.star.net.http.IHTTPSession;
 import box.star.net.http.content.ContentType;
 import box.star.net.http.request.Method;
+import box.star.net.http.sockets.ChannelOutputStream;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.logging.Level;
@@ -83,6 +85,11 @@ public class Response implements Closeable {
    * Data of the response, may be null.
    */
   private InputStream data;
+  /**
+   * File of a file backed response, sent from {@link #fileOffset}.
+   */
+  private File file;
+  private long fileOffset;
   private long contentLength;
   /**
    * The request method that spawned this response.
@@ -122,6 +129,20 @@ public class Response implements Closeable {
     this.cookieHeaders = new ArrayList(10);
   }
 
+  /**
+   * Creates a fixed length response for a region of a file.
+   */
+  protected Response(IStatus status, String mimeType, File file, long offset, long length) {
+    this.status = status;
+    this.mimeType = mimeType;
+    this.file = file;
+    this.fileOffset = offset;
+    this.contentLength = length;
+    this.chunkedTransfer = false;
+    this.keepAlive = true;
+    this.cookieHeaders = new ArrayList<String>(10);
+  }
+
   /**
    * Create a response with unknown length (using HTTP 1.1 chunking).
    */
@@ -129,6 +150,14 @@ public class Response implements Closeable {
     return new Response(status, mimeType, data, -1);
   }
 
+  /**
+   * Create a response whose body is written by the producer after the head
+   * has been sent, see {@link StreamingResponse}.
+   */
+  public static StreamingResponse newStreamingResponse(IStatus status, String mimeType, StreamingResponse.Producer producer) {
+    return new StreamingResponse(status, mimeType, producer);
+  }
+
   public static Response newFixedLengthResponse(IStatus status, String mimeType, byte[] data) {
     return newFixedLengthResponse(status, mimeType, new ByteArrayInputStream(data), data.length);
   }
@@ -144,7 +173,7 @@ public class Response implements Closeable {
    * Create a text response with known length.
    */
   public static Response newFixedLengthResponse(IStatus status, String mimeType, String txt) {
-    ContentType contentType = new ContentType(mimeType);
+    ContentType contentType = ContentType.valueOf(mimeType);
     if (txt == null) {
       return newFixedLengthResponse(status, mimeType, new ByteArrayInputStream(new byte[0]), 0);
     } else {
@@ -188,18 +217,31 @@ public class Response implements Closeable {
   }
 
   public static Response newFixedLengthResponse(Status status, String mimeType, byte[] message) {
-    Response response = newFixedLengthResponse(status, mimeType, message);
+    Response response = newFixedLengthResponse((IStatus) status, mimeType, message);
     response.addHeader("Accept-Ranges", "bytes");
     return response;
   }
 
   public static Response newFixedFileResponse(String mimeType, File file) throws FileNotFoundException {
+    if (!file.isFile()) throw new FileNotFoundException(file.getPath());
     Response res;
-    res = newFixedLengthResponse(Status.OK, mimeType, new FileInputStream(file), (int) file.length());
+    res = newFileResponse(Status.OK, mimeType, file, 0, file.length());
     res.addHeader("Accept-Ranges", "bytes");
     return res;
   }
 
+  /**
+   * Create a response for the given region of a file.
+   * <p>
+   * The file is sent with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+   * when the connection has a socket channel, and copied through a buffer
+   * otherwise, or when the body is compressed.
+   * </p>
+   */
+  public static Response newFileResponse(IStatus status, String mimeType, File file, long offset, long length) {
+    return new Response(status, mimeType, file, offset, length);
+  }
+
   public static Response redirect(String location) {
     Response redirection = newFixedLengthResponse(Status.REDIRECT, "text/html", "<html><body>Redirected: <a href=\"" + location + "\">" + location + "</a></body></html>");
     redirection.addHeader("Location", location);
@@ -295,9 +337,30 @@ public class Response implements Closeable {
   }
 
   public InputStream getData() {
+    if (this.data == null && this.file != null) {
+      try {
+        FileInputStream stream = new FileInputStream(this.file);
+        stream.getChannel().position(this.fileOffset);
+        this.data = stream;
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
     return this.data;
   }
 
+  /**
+   * @return the file of a file backed response, or null.
+   */
+  public File getFile() {
+    return this.file;
+  }
+
+  public long getFileOffset() {
+    return this.fileOffset;
+  }
+
   public void setData(InputStream data) {
     this.data = data;
   }
@@ -334,49 +397,29 @@ public class Response implements Closeable {
     this.keepAlive = useKeepAlive;
   }
 
+  public boolean isKeepAlive() {
+    return this.keepAlive;
+  }
+
   /**
    * Sends given response to the socket.
    */
   public void send(OutputStream outputStream) {
-    SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-    gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+    send(outputStream, new ResponseHeadEncoder());
+  }
 
+  /**
+   * Sends given response to the socket, encoding the head into the buffer of
+   * the connection. A small body is sent in the same write as the head.
+   */
+  public void send(OutputStream outputStream, ResponseHeadEncoder head) {
     try {
-      if (this.status == null) {
-        throw new Error("sendResponse(): Status can't be null.");
+      long pending = encodeHead(head);
+      boolean chunked = this.requestMethod != Method.HEAD && this.chunkedTransfer;
+      if (!chunked && !useGzipWhenAccepted() && this.data != null && pending > 0 && pending <= ResponseHeadEncoder.COALESCED_BODY_SIZE) {
+        pending -= head.appendBody(this.data, (int) pending);
       }
-      PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(outputStream, new ContentType(this.mimeType).getEncoding())), false);
-      pw.append("HTTP/1.1 ").append(this.status.getDescription()).append(" \r\n");
-      if (this.mimeType != null) {
-        printHeader(pw, "Content-Type", this.mimeType);
-      }
-      if (getHeader("date") == null) {
-        printHeader(pw, "Date", gmtFrmt.format(new Date()));
-      }
-      for (Entry<String, String> entry : this.header.entrySet()) {
-        printHeader(pw, entry.getKey(), entry.getValue());
-      }
-      for (String cookieHeader : this.cookieHeaders) {
-        printHeader(pw, "Set-Cookie", cookieHeader);
-      }
-      if (getHeader("connection") == null) {
-        printHeader(pw, "Connection", (this.keepAlive ? "keep-alive" : "close"));
-      }
-      if (getHeader("content-length") != null) {
-        setUseGzip(false);
-      }
-      if (useGzipWhenAccepted()) {
-        printHeader(pw, "Content-Encoding", "gzip");
-        setChunkedTransfer(true);
-      }
-      long pending = this.data != null ? this.contentLength : 0;
-      if (this.requestMethod != Method.HEAD && this.chunkedTransfer) {
-        printHeader(pw, "Transfer-Encoding", "chunked");
-      } else if (!useGzipWhenAccepted()) {
-        pending = sendContentLengthHeaderIfNotAlreadyPresent(pw, pending);
-      }
-      pw.append("\r\n");
-      pw.flush();
+      head.writeTo(outputStream);
       sendBodyWithCorrectTransferAndEncoding(outputStream, pending);
       outputStream.flush();
       HTTPServer.safeClose(this.data);
@@ -386,12 +429,63 @@ public class Response implements Closeable {
     }
   }
 
+  /**
+   * Encodes the status line and headers into the head encoder.
+   *
+   * @return the length of the body, if it is not chunked
+   */
+  protected long encodeHead(ResponseHeadEncoder head) throws IOException {
+    if (this.status == null) {
+      throw new Error("sendResponse(): Status can't be null.");
+    }
+    String encoding = ContentType.valueOf(this.mimeType).getEncoding();
+    Charset charset;
+    try {
+      charset = Charset.forName(encoding);
+    }
+    catch (IllegalArgumentException e) {
+      throw new UnsupportedEncodingException(encoding);
+    }
+    head.reset(charset).status(this.status);
+    if (this.mimeType != null) {
+      printHeader(head, "Content-Type", this.mimeType);
+    }
+    if (getHeader("date") == null) {
+      printHeader(head, "Date", ResponseHeadEncoder.getDate());
+    }
+    for (Entry<String, String> entry : this.header.entrySet()) {
+      printHeader(head, entry.getKey(), entry.getValue());
+    }
+    for (String cookieHeader : this.cookieHeaders) {
+      printHeader(head, "Set-Cookie", cookieHeader);
+    }
+    if (getHeader("connection") == null) {
+      printHeader(head, "Connection", (this.keepAlive ? "keep-alive" : "close"));
+    }
+    if (getHeader("content-length") != null) {
+      setUseGzip(false);
+    }
+    if (useGzipWhenAccepted()) {
+      printHeader(head, "Content-Encoding", "gzip");
+      setChunkedTransfer(true);
+    }
+    long pending = (this.data != null || this.file != null) ? this.contentLength : 0;
+    boolean chunked = this.requestMethod != Method.HEAD && this.chunkedTransfer;
+    if (chunked) {
+      printHeader(head, "Transfer-Encoding", "chunked");
+    } else if (!useGzipWhenAccepted()) {
+      pending = sendContentLengthHeaderIfNotAlreadyPresent(head, pending);
+    }
+    head.end();
+    return pending;
+  }
+
   @SuppressWarnings("static-method")
-  protected void printHeader(PrintWriter pw, String key, String value) {
-    pw.append(key).append(": ").append(value).append("\r\n");
+  protected void printHeader(ResponseHeadEncoder head, String key, String value) {
+    head.header(key, value);
   }
 
-  protected long sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, long defaultSize) {
+  protected long sendContentLengthHeaderIfNotAlreadyPresent(ResponseHeadEncoder head, long defaultSize) {
     String contentLengthString = getHeader("content-length");
     long size = defaultSize;
     if (contentLengthString != null) {
@@ -402,7 +496,7 @@ public class Response implements Closeable {
         HTTPServer.LOG.severe("content-length was no number " + contentLengthString);
       }
     } else {
-      pw.print("Content-Length: " + size + "\r\n");
+      head.header("Content-Length", size);
     }
     return size;
   }
@@ -436,14 +530,36 @@ public class Response implements Closeable {
         }
       }
       if (gzipOutputStream != null) {
-        sendBody(gzipOutputStream, -1);
+        sendBody(gzipOutputStream, this.file != null ? this.contentLength : -1);
         gzipOutputStream.finish();
       }
+    } else if (this.file != null && this.data == null) {
+      sendFile(outputStream, pending);
     } else {
       sendBody(outputStream, pending);
     }
   }
 
+  /**
+   * Sends the file region, without copying it through the heap when the
+   * OutputStream is a socket channel.
+   */
+  private void sendFile(OutputStream outputStream, long pending) throws IOException {
+    FileChannel fileChannel = new FileInputStream(this.file).getChannel();
+    try {
+      if (outputStream instanceof ChannelOutputStream) {
+        ((ChannelOutputStream) outputStream).transferFrom(fileChannel, this.fileOffset, pending);
+      } else {
+        fileChannel.position(this.fileOffset);
+        this.data = Channels.newInputStream(fileChannel);
+        sendBody(outputStream, pending);
+      }
+    }
+    finally {
+      fileChannel.close();
+    }
+  }
+
   /**
    * Sends the body to the specified OutputStream. The pending parameter
    * limits the maximum amounts of bytes sent unless it is -1, in which case
@@ -460,7 +576,7 @@ public class Response implements Closeable {
     boolean sendEverything = pending == -1;
     while (pending > 0 || sendEverything) {
       long bytesToRead = sendEverything ? BUFFER_SIZE : Math.min(pending, BUFFER_SIZE);
-      int read = this.data.read(buff, 0, (int) bytesToRead);
+      int read = getData().read(buff, 0, (int) bytesToRead);
       if (read <= 0) {
         break;
       }
@@ -491,11 +607,59 @@ public class Response implements Closeable {
   // Else decide whether or not to use Gzip.
   public boolean useGzipWhenAccepted() {
     if (gzipUsage == GzipUsage.DEFAULT)
-      return getMimeType() != null && (getMimeType().toLowerCase().contains("text/") || getMimeType().toLowerCase().contains("/json"));
+      return isCompressible(getMimeType());
     else
       return gzipUsage == GzipUsage.ALWAYS;
   }
 
+  /**
+   * @return true if responses of this mime type are gzipped by default.
+   */
+  public static boolean isCompressible(String mimeType) {
+    if (mimeType == null) return false;
+    String type = mimeType.toLowerCase();
+    return type.contains("text/") || type.contains("/json");
+  }
+
+  /**
+   * Tests an Accept-Encoding header for an encoding, honouring {@code q=0}.
+   * <p>
+   * An entry naming the encoding takes precedence over {@code *}; an encoding
+   * the header does not mention is refused, except for {@code identity}.
+   * </p>
+   */
+  public static boolean acceptsEncoding(String acceptEncoding, String encoding) {
+    boolean identity = encoding.equalsIgnoreCase("identity");
+    if (acceptEncoding == null) return identity;
+    double wildcard = -1;
+    for (String item : acceptEncoding.split(",")) {
+      int parameters = item.indexOf(';');
+      String name = (parameters < 0 ? item : item.substring(0, parameters)).trim();
+      if (name.equalsIgnoreCase(encoding)) return quality(item, parameters) > 0;
+      if (name.equals("*")) wildcard = quality(item, parameters);
+    }
+    if (wildcard >= 0) return wildcard > 0;
+    return identity;
+  }
+
+  /**
+   * @return the q value of an Accept-Encoding entry, 1 if it has none, 0 if it is malformed
+   */
+  private static double quality(String item, int parameters) {
+    if (parameters < 0) return 1;
+    for (String parameter : item.substring(parameters + 1).split(";")) {
+      parameter = parameter.trim();
+      if (!parameter.regionMatches(true, 0, "q=", 0, 2)) continue;
+      try {
+        return Double.parseDouble(parameter.substring(2).trim());
+      }
+      catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+    return 1;
+  }
+
   private enum GzipUsage {
     DEFAULT,
     ALWAYS,
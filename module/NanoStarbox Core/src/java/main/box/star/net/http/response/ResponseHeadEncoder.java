@@ -0,0 +1,152 @@
+package box.star.net.http.response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes the status line and header fields of a response as bytes, into a
+ * buffer that is reused for every response of a connection.
+ * <p>
+ * Text is copied into the buffer a character at a time while it is ASCII;
+ * only text with other characters goes through the charset of the response.
+ * The status lines of {@link Status} and the formatted Date of the current
+ * second are encoded once and shared. A small body can be added behind the
+ * head, so that the whole response is sent with a single write. An encoder
+ * is not thread-safe.
+ * </p>
+ */
+public class ResponseHeadEncoder {
+
+  /**
+   * The largest body that is copied behind the head.
+   */
+  public static final int COALESCED_BODY_SIZE = 8 * 1024;
+
+  private static final byte[] CRLF = {'\r', '\n'}, SEPARATOR = {':', ' '};
+  private static final byte[][] STATUS_LINES = new byte[Status.values().length][];
+  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+  private static volatile CachedDate cachedDate = new CachedDate(-1, null);
+
+  static {
+    for (Status status : Status.values())
+      STATUS_LINES[status.ordinal()] = ("HTTP/1.1 " + status.getDescription() + " \r\n").getBytes(StandardCharsets.US_ASCII);
+    DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
+  }
+
+  private byte[] buffer = new byte[1024];
+  private int size;
+  private Charset charset = StandardCharsets.UTF_8;
+
+  private static class CachedDate {
+    final long second;
+    final String text;
+
+    CachedDate(long second, String text) {
+      this.second = second;
+      this.text = text;
+    }
+  }
+
+  /**
+   * @return the HTTP date of the current second
+   */
+  public static String getDate() {
+    long second = System.currentTimeMillis() / 1000;
+    CachedDate date = cachedDate;
+    if (date.second != second) {
+      String text;
+      synchronized (DATE_FORMAT) {
+        text = DATE_FORMAT.format(new Date(second * 1000));
+      }
+      cachedDate = date = new CachedDate(second, text);
+    }
+    return date.text;
+  }
+
+  /**
+   * Starts a new response head.
+   *
+   * @param charset the charset of text that is not ASCII
+   */
+  public ResponseHeadEncoder reset(Charset charset) {
+    this.charset = charset;
+    size = 0;
+    return this;
+  }
+
+  public ResponseHeadEncoder status(IStatus status) {
+    if (status instanceof Status) return append(STATUS_LINES[((Status) status).ordinal()]);
+    return append("HTTP/1.1 ").append(status.getDescription()).append(" \r\n");
+  }
+
+  public ResponseHeadEncoder header(String name, String value) {
+    return append(name).append(SEPARATOR).append(value).append(CRLF);
+  }
+
+  public ResponseHeadEncoder header(String name, long value) {
+    return append(name).append(SEPARATOR).append(Long.toString(value)).append(CRLF);
+  }
+
+  /**
+   * Ends the header fields.
+   */
+  public ResponseHeadEncoder end() {
+    return append(CRLF);
+  }
+
+  /**
+   * Copies up to {@code count} bytes of a body behind the head.
+   *
+   * @return the number of bytes copied
+   */
+  public int appendBody(InputStream data, int count) throws IOException {
+    ensure(count);
+    int copied = 0;
+    while (copied < count) {
+      int read = data.read(buffer, size, count - copied);
+      if (read <= 0) break;
+      size += read;
+      copied += read;
+    }
+    return copied;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void writeTo(OutputStream outputStream) throws IOException {
+    outputStream.write(buffer, 0, size);
+  }
+
+  private ResponseHeadEncoder append(byte[] bytes) {
+    ensure(bytes.length);
+    System.arraycopy(bytes, 0, buffer, size, bytes.length);
+    size += bytes.length;
+    return this;
+  }
+
+  private ResponseHeadEncoder append(String text) {
+    int length = text.length();
+    ensure(length);
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c >= 0x80) return append(text.substring(i).getBytes(charset));
+      buffer[size++] = (byte) c;
+    }
+    return this;
+  }
+
+  private void ensure(int count) {
+    if (size + count > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + count));
+  }
+
+}
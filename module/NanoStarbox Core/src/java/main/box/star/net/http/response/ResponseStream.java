@@ -0,0 +1,85 @@
+package box.star.net.http.response;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The body of a {@link StreamingResponse}, written by the handler.
+ * <p>
+ * Writes never wait for a slow client on a non-blocking connection: the data
+ * is queued, and a write returns false once the queue holds more than the
+ * high water mark of the response. A producer that respects this stops
+ * writing until {@link Listener#writable(ResponseStream)} is called. On a
+ * blocking connection, writes return when the data has been sent.
+ * </p>
+ * <p>
+ * The stream is safe for use by several threads. Closing it ends the
+ * response, and the connection goes on to the next request.
+ * </p>
+ */
+public interface ResponseStream extends Closeable, Flushable {
+
+  /**
+   * Notified of changes of the stream, on the thread that caused them,
+   * which may be the write selector thread; must not block.
+   */
+  interface Listener {
+    /**
+     * The queue went below the high water mark after a write returned false.
+     */
+    void writable(ResponseStream stream);
+
+    /**
+     * The response has ended.
+     *
+     * @param error null if the stream was closed, or the error that ended it
+     */
+    void closed(ResponseStream stream, IOException error);
+  }
+
+  /**
+   * @return false if the queue is over the high water mark
+   * @throws IOException if the stream has ended
+   */
+  boolean write(byte[] b, int off, int len) throws IOException;
+
+  boolean write(byte[] b) throws IOException;
+
+  /**
+   * Writes text in the charset of the response.
+   */
+  boolean write(String text) throws IOException;
+
+  /**
+   * Sends what has been written, including data held by the compressor.
+   */
+  @Override
+  void flush() throws IOException;
+
+  /**
+   * Ends the response once the data that has been written is sent.
+   */
+  @Override
+  void close();
+
+  /**
+   * @return true if a write would not go over the high water mark
+   */
+  boolean isWritable();
+
+  /**
+   * @return true until the stream is closed, or fails
+   */
+  boolean isOpen();
+
+  void setListener(Listener listener);
+
+  /**
+   * @return a blocking view of the stream, for producers that write from
+   * their own thread; its writes wait while the queue is over the high water mark
+   */
+  OutputStream getOutputStream();
+
+}
@@ -0,0 +1,454 @@
+package box.star.net.http.response;
+
+import box.star.net.http.HTTPServer;
+import box.star.net.http.content.ContentType;
+import box.star.net.http.request.Method;
+import box.star.net.http.sockets.ChannelOutputStream;
+import box.star.net.http.sockets.WriteSelector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A chunked response whose body is pushed by the handler after the head has
+ * been sent, through a {@link ResponseStream}.
+ * <p>
+ * The producer gets the stream when the head is out, and may keep it and
+ * write to it later from any thread, until it closes the stream. The body is
+ * framed by a {@link ChunkedOutputStream}, and gzipped with a sync flush on
+ * each {@link ResponseStream#flush()} when the response is compressed.
+ * </p>
+ * <p>
+ * On a selector connection, the worker thread is released as soon as the
+ * head is sent; data the socket does not take at once is queued and written
+ * by the {@link WriteSelector}, so an open stream holds no thread. On a
+ * blocking connection, the worker waits until the response has ended.
+ * </p>
+ */
+public class StreamingResponse extends Response {
+
+  /**
+   * The queued bytes above which writes return false, by default.
+   */
+  public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+
+  /**
+   * Writes the body of a streaming response.
+   */
+  public interface Producer {
+    /**
+     * Called once the head has been sent, on the worker thread; it must not
+     * block on a selector connection, since that would hold the worker. It is
+     * not called for a HEAD request.
+     */
+    void open(ResponseStream stream) throws IOException;
+  }
+
+  private final Producer producer;
+  private final List<Runnable> endActions = new ArrayList<Runnable>(1);
+  private int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+  private Stream stream;
+  private boolean ended, failed;
+
+  protected StreamingResponse(IStatus status, String mimeType, Producer producer) {
+    super(status, mimeType, null, -1);
+    this.producer = producer;
+    setChunkedTransfer(true);
+  }
+
+  public StreamingResponse setHighWaterMark(int highWaterMark) {
+    this.highWaterMark = highWaterMark;
+    return this;
+  }
+
+  public int getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  /**
+   * @return true if the body is still being written after {@link #send(OutputStream, ResponseHeadEncoder)}
+   * returned; the connection belongs to the stream until it ends
+   */
+  public synchronized boolean isOpen() {
+    return stream != null && !ended;
+  }
+
+  @Override
+  public boolean isCloseConnection() {
+    synchronized (this) {
+      if (failed) return true;
+    }
+    return super.isCloseConnection();
+  }
+
+  /**
+   * Runs the action when the response has ended, or now if it has.
+   */
+  public void whenEnded(Runnable action) {
+    synchronized (this) {
+      if (stream != null && !ended) {
+        endActions.add(action);
+        return;
+      }
+    }
+    action.run();
+  }
+
+  @Override
+  public void send(OutputStream outputStream, ResponseHeadEncoder head) {
+    Stream stream;
+    try {
+      encodeHead(head);
+      head.writeTo(outputStream);
+      outputStream.flush();
+      if (getRequestMethod() == Method.HEAD) return;
+      stream = new Stream(outputStream, Charset.forName(ContentType.valueOf(getMimeType()).getEncoding()), useGzipWhenAccepted());
+    }
+    catch (IOException e) {
+      HTTPServer.LOG.log(Level.SEVERE, "Could not send response to the client", e);
+      synchronized (this) {
+        failed = true;
+      }
+      return;
+    }
+    synchronized (this) {
+      this.stream = stream;
+    }
+    try {
+      producer.open(stream);
+    }
+    catch (Exception e) {
+      HTTPServer.LOG.log(Level.SEVERE, "Streaming response producer failed", e);
+      stream.failed(e instanceof IOException ? (IOException) e : new IOException(e));
+    }
+    if (stream.channel == null) awaitEnd();
+  }
+
+  /**
+   * Waits until the response has ended, after the stream listener and before the end actions.
+   */
+  private synchronized void awaitEnd() {
+    boolean interrupted = false;
+    while (!ended) {
+      try {
+        wait();
+      }
+      catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private void end(IOException error) {
+    List<Runnable> actions;
+    synchronized (this) {
+      ended = true;
+      if (error != null) failed = true;
+      actions = new ArrayList<Runnable>(endActions);
+      endActions.clear();
+      notifyAll();
+    }
+    for (Runnable action : actions) {
+      try {
+        action.run();
+      }
+      catch (RuntimeException e) {
+        HTTPServer.LOG.log(Level.SEVERE, "Streaming response end action failed", e);
+      }
+    }
+  }
+
+  /**
+   * Collects the framed body until it is handed to the connection.
+   */
+  private static final class Buffer extends ByteArrayOutputStream {
+    Buffer() {
+      super(512);
+    }
+
+    ByteBuffer take() {
+      ByteBuffer bytes = ByteBuffer.wrap(toByteArray());
+      reset();
+      return bytes;
+    }
+  }
+
+  private final class Stream implements ResponseStream, WriteSelector.Task {
+
+    private final OutputStream connection;
+    /**
+     * The connection, when it is a non-blocking channel; null for blocking connections.
+     */
+    private final ChannelOutputStream channel;
+    private final Charset charset;
+    private final Buffer buffer = new Buffer();
+    private final ChunkedOutputStream chunked = new ChunkedOutputStream(buffer);
+    private final GZIPOutputStream gzip;
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+    /**
+     * Read without the lock, which a blocking write holds while it waits for the client.
+     */
+    private volatile long queued;
+    private volatile boolean closing;
+    private boolean closed, blocked, registered;
+    private IOException failure;
+    private Listener listener;
+
+    Stream(OutputStream connection, Charset charset, boolean compressed) throws IOException {
+      this.connection = connection;
+      this.channel = connection instanceof ChannelOutputStream && ((ChannelOutputStream) connection).isNonBlocking() ? (ChannelOutputStream) connection : null;
+      this.charset = charset;
+      this.gzip = compressed ? new GZIPOutputStream(chunked, 512, true) : null;
+    }
+
+    @Override
+    public boolean write(byte[] b, int off, int len) throws IOException {
+      boolean ended = false;
+      synchronized (this) {
+        if (closing) throw new IOException("response stream is closed", failure);
+        try {
+          if (gzip != null) gzip.write(b, off, len);
+          else chunked.write(b, off, len);
+          push();
+        }
+        catch (IOException e) {
+          ended = markFailed(e);
+        }
+        if (!ended) {
+          if (queued <= highWaterMark) return true;
+          blocked = true;
+          return false;
+        }
+      }
+      end(failure);
+      throw new IOException("response stream is closed", failure);
+    }
+
+    @Override
+    public boolean write(byte[] b) throws IOException {
+      return write(b, 0, b.length);
+    }
+
+    @Override
+    public boolean write(String text) throws IOException {
+      return write(text.getBytes(charset));
+    }
+
+    @Override
+    public void flush() throws IOException {
+      boolean ended = false;
+      synchronized (this) {
+        if (closing || gzip == null) return;
+        try {
+          gzip.flush();
+          push();
+        }
+        catch (IOException e) {
+          ended = markFailed(e);
+        }
+      }
+      if (ended) {
+        end(failure);
+        throw new IOException("response stream is closed", failure);
+      }
+    }
+
+    @Override
+    public void close() {
+      boolean ended;
+      synchronized (this) {
+        if (closing) return;
+        closing = true;
+        try {
+          if (gzip != null) gzip.finish();
+          chunked.finish();
+          push();
+          ended = finished();
+        }
+        catch (IOException e) {
+          ended = markFailed(e);
+        }
+      }
+      if (ended) end(failure);
+    }
+
+    @Override
+    public boolean isWritable() {
+      return !closing && queued <= highWaterMark;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return !closing;
+    }
+
+    @Override
+    public synchronized void setListener(Listener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          if (!Stream.this.write(b, off, len)) awaitWritable();
+        }
+
+        @Override
+        public void flush() throws IOException {
+          Stream.this.flush();
+        }
+
+        @Override
+        public void close() {
+          Stream.this.close();
+        }
+      };
+    }
+
+    /**
+     * Hands the framed bytes to the connection.
+     */
+    private void push() throws IOException {
+      if (buffer.size() == 0) return;
+      if (channel == null) {
+        buffer.writeTo(connection);
+        connection.flush();
+        buffer.reset();
+        return;
+      }
+      ByteBuffer bytes = buffer.take();
+      queue.add(bytes);
+      queued += bytes.remaining();
+      if (!registered) writeQueued();
+    }
+
+    /**
+     * Writes what the channel takes now, and leaves the rest to the write selector.
+     *
+     * @return true if the queue is empty
+     */
+    private boolean writeQueued() throws IOException {
+      ByteBuffer bytes;
+      while ((bytes = queue.peek()) != null) {
+        queued -= channel.writeAvailable(bytes);
+        if (bytes.hasRemaining()) {
+          if (!registered) {
+            registered = true;
+            WriteSelector.getInstance().register(channel.getChannel(), this);
+          }
+          return false;
+        }
+        queue.poll();
+      }
+      registered = false;
+      return true;
+    }
+
+    @Override
+    public boolean writable() throws IOException {
+      Listener listener = null;
+      boolean drained, ended = false;
+      synchronized (this) {
+        if (closed) return true;
+        try {
+          drained = writeQueued();
+        }
+        catch (IOException e) {
+          registered = false;
+          ended = markFailed(e);
+          drained = true;
+        }
+        if (!ended) {
+          if (blocked && queued <= highWaterMark) {
+            blocked = false;
+            listener = this.listener;
+            notifyAll();
+          }
+          if (drained && closing) ended = finished();
+        }
+      }
+      if (listener != null) listener.writable(this);
+      if (ended) end(failure);
+      return drained;
+    }
+
+    @Override
+    public void failed(IOException error) {
+      boolean ended;
+      synchronized (this) {
+        registered = false;
+        ended = markFailed(error);
+      }
+      if (ended) end(failure);
+    }
+
+    /**
+     * @return true if the stream ends now
+     */
+    private boolean markFailed(IOException error) {
+      if (closed) return false;
+      failure = error;
+      closing = closed = true;
+      queue.clear();
+      queued = 0;
+      notifyAll();
+      return true;
+    }
+
+    /**
+     * @return true if the stream ends now
+     */
+    private boolean finished() {
+      if (closed || !queue.isEmpty()) return false;
+      closed = true;
+      notifyAll();
+      return true;
+    }
+
+    private void end(IOException error) {
+      Listener listener;
+      synchronized (this) {
+        listener = this.listener;
+      }
+      if (listener != null) {
+        try {
+          listener.closed(this, error);
+        }
+        catch (RuntimeException e) {
+          HTTPServer.LOG.log(Level.SEVERE, "Response stream listener failed", e);
+        }
+      }
+      StreamingResponse.this.end(error);
+    }
+
+    private synchronized void awaitWritable() throws IOException {
+      try {
+        while (!closed && queued > highWaterMark) wait();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      if (failure != null) throw new IOException("response stream is closed", failure);
+    }
+
+  }
+
+}
@@ -0,0 +1,98 @@
+package box.star.net.http.response;
+
+import box.star.net.http.HTTPServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+
+/**
+ * A 101 Switching Protocols response, after which the connection no longer
+ * speaks HTTP and belongs to the response.
+ * <p>
+ * Once the head is sent, the server {@link #open(Connection) opens} the
+ * response with the connection, and then hands it what the client sends
+ * through {@link #receive(InputStream)}. On a selector connection, receive
+ * is only called when data has arrived, so an idle upgraded connection holds
+ * no thread; on a blocking connection, a worker keeps reading.
+ * </p>
+ */
+public abstract class UpgradeResponse extends Response {
+
+  /**
+   * The upgraded connection, as given to the response by the server.
+   */
+  public interface Connection {
+    OutputStream getOutputStream();
+
+    /**
+     * @return true if the output stream is a non-blocking channel, see
+     * {@link box.star.net.http.sockets.ChannelOutputStream#isNonBlocking()};
+     * then receive must not read more than is available
+     */
+    boolean isNonBlocking();
+
+    /**
+     * Closes the connection; {@link #closed()} is called.
+     */
+    void close();
+  }
+
+  protected UpgradeResponse(String protocol) {
+    super(Status.SWITCH_PROTOCOL, null, null, 0);
+    addHeader("Upgrade", protocol);
+    addHeader("Connection", "Upgrade");
+    setUseGzip(false);
+  }
+
+  @Override
+  public void send(OutputStream outputStream, ResponseHeadEncoder head) {
+    try {
+      encodeHead(head);
+      head.writeTo(outputStream);
+      outputStream.flush();
+    }
+    catch (IOException e) {
+      HTTPServer.LOG.log(Level.SEVERE, "Could not send response to the client", e);
+      closeConnection(true);
+    }
+  }
+
+  /**
+   * A 1xx response has no body, nor a Content-Length.
+   */
+  @Override
+  protected long sendContentLengthHeaderIfNotAlreadyPresent(ResponseHeadEncoder head, long defaultSize) {
+    return 0;
+  }
+
+  /**
+   * Called by the server once the head has been sent, on the worker thread.
+   */
+  public abstract void open(Connection connection) throws IOException;
+
+  /**
+   * Called by the server with the input of the connection, when data has
+   * arrived on a selector connection.
+   *
+   * @return false if the connection should be closed
+   */
+  public abstract boolean receive(InputStream inputStream) throws IOException;
+
+  /**
+   * @return how long the connection may receive nothing before the server
+   * closes it, in milliseconds, or 0 for no limit; asked again as the
+   * connection goes on, so the protocol can change it
+   */
+  public int getTimeout() {
+    return 0;
+  }
+
+  /**
+   * Called by the server once the connection is closed, for whatever
+   * reason; may be called more than once.
+   */
+  public abstract void closed();
+
+}
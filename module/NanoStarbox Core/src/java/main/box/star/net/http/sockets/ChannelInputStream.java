@@ -0,0 +1,108 @@
+package box.star.net.http.sockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * InputStream over a non-blocking {@link SocketChannel}.
+ * <p>
+ * Bytes collected by a selector through {@link #fill()} are served first, then
+ * reads block on the channel until data arrives or the read timeout expires.
+ * </p>
+ */
+public class ChannelInputStream extends InputStream {
+
+  private final SocketChannel channel;
+  private final ByteBuffer pending;
+  private final int timeout;
+  private int scanned;
+
+  public ChannelInputStream(SocketChannel channel, int bufferSize, int timeout) {
+    this.channel = channel;
+    this.timeout = timeout;
+    this.pending = ByteBuffer.allocate(bufferSize);
+    this.pending.flip();
+  }
+
+  public SocketChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Reads whatever the channel has available into the pending buffer without
+   * blocking. Only the selector thread may call this, and only while no worker
+   * owns the connection.
+   *
+   * @return the number of bytes read, or -1 at the end of the stream
+   */
+  public int fill() throws IOException {
+    pending.compact();
+    try {
+      return channel.read(pending);
+    }
+    finally {
+      pending.flip();
+    }
+  }
+
+  /**
+   * @return true if the pending buffer can't take any more bytes
+   */
+  public boolean isFull() {
+    return pending.position() == 0 && pending.limit() == pending.capacity();
+  }
+
+  /**
+   * @return true if the pending buffer holds a complete request header
+   */
+  public boolean hasRequestHeader() {
+    int start = pending.position(), end = pending.limit();
+    for (int i = Math.max(start, start + scanned - 3); i + 1 < end; i++) {
+      byte b = pending.get(i);
+      if (b != '\n') continue;
+      if (pending.get(i + 1) == '\n') return true;
+      if (i + 2 < end && pending.get(i + 1) == '\r' && pending.get(i + 2) == '\n') return true;
+    }
+    scanned = end - start;
+    return false;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int n = read(b, 0, 1);
+    return n == 1 ? (b[0] & 0xff) : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) return 0;
+    if (pending.hasRemaining()) {
+      int n = Math.min(len, pending.remaining());
+      pending.get(b, off, n);
+      scanned = 0;
+      return n;
+    }
+    ByteBuffer target = ByteBuffer.wrap(b, off, len);
+    int n = channel.read(target);
+    while (n == 0) {
+      ChannelSelectors.await(channel, SelectionKey.OP_READ, timeout);
+      n = channel.read(target);
+    }
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return pending.remaining();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
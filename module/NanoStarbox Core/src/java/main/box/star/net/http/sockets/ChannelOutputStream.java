@@ -0,0 +1,98 @@
+package box.star.net.http.sockets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * OutputStream over a non-blocking {@link SocketChannel}, which waits for the
+ * channel to drain when the socket send buffer is full.
+ */
+public class ChannelOutputStream extends OutputStream {
+
+  private final SocketChannel channel;
+  private final int timeout;
+  private long written;
+
+  public ChannelOutputStream(SocketChannel channel, int timeout) {
+    this.channel = channel;
+    this.timeout = timeout;
+  }
+
+  public SocketChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * @return the number of bytes written and transferred so far
+   */
+  public long getBytesWritten() {
+    return written;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    write(ByteBuffer.wrap(b, off, len));
+  }
+
+  /**
+   * Writes all remaining bytes of the buffer.
+   */
+  public void write(ByteBuffer buffer) throws IOException {
+    written += buffer.remaining();
+    while (buffer.hasRemaining()) {
+      if (channel.write(buffer) == 0)
+        ChannelSelectors.await(channel, SelectionKey.OP_WRITE, timeout);
+    }
+  }
+
+  /**
+   * Writes as much of the buffer as the channel takes without waiting.
+   *
+   * @return the number of bytes written
+   */
+  public int writeAvailable(ByteBuffer buffer) throws IOException {
+    int n = channel.write(buffer);
+    written += n;
+    return n;
+  }
+
+  /**
+   * @return true if writes to the channel never wait, see {@link #writeAvailable(ByteBuffer)}
+   */
+  public boolean isNonBlocking() {
+    return !channel.isBlocking();
+  }
+
+  /**
+   * Transfers a region of a file to the channel, using the operating system's
+   * zero-copy transfer where it is available.
+   *
+   * @return the number of bytes transferred, less than count if the file ends first
+   */
+  public long transferFrom(FileChannel file, long position, long count) throws IOException {
+    long sent = 0;
+    while (sent < count) {
+      long n = file.transferTo(position + sent, count - sent, channel);
+      if (n > 0) sent += n;
+      else if (position + sent >= file.size()) break;
+      else ChannelSelectors.await(channel, SelectionKey.OP_WRITE, timeout);
+    }
+    written += sent;
+    return sent;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
@@ -0,0 +1,60 @@
+package box.star.net.http.sockets;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Blocking support for non-blocking channels.
+ * <p>
+ * A channel that is registered with a service selector can't be switched back
+ * to blocking mode, so worker threads wait for readiness on a temporary
+ * selector taken from a shared pool instead.
+ * </p>
+ */
+public final class ChannelSelectors {
+
+  private static final ConcurrentLinkedQueue<Selector> pool = new ConcurrentLinkedQueue<>();
+
+  private ChannelSelectors() {}
+
+  /**
+   * Waits until the channel is ready for the given operation.
+   *
+   * @param channel   the non-blocking channel
+   * @param operation one of the {@link SelectionKey} operation bits
+   * @param timeout   the maximum wait in milliseconds, zero waits forever
+   * @throws SocketTimeoutException if the channel did not become ready in time
+   * @throws InterruptedIOException if the waiting thread was interrupted
+   */
+  public static void await(SelectableChannel channel, int operation, int timeout) throws IOException {
+    Selector selector = pool.poll();
+    if (selector == null) selector = Selector.open();
+    SelectionKey key = null;
+    try {
+      key = channel.register(selector, operation);
+      long deadline = System.currentTimeMillis() + timeout;
+      // select also returns on a wakeup or spuriously, only the deadline is a timeout
+      while (selector.select(timeout > 0 ? Math.max(1, deadline - System.currentTimeMillis()) : 0) == 0) {
+        if (Thread.currentThread().isInterrupted())
+          throw new InterruptedIOException("interrupted while waiting for the channel");
+        if (timeout > 0 && System.currentTimeMillis() >= deadline)
+          throw new SocketTimeoutException("channel was not ready within " + timeout + "ms");
+      }
+    }
+    finally {
+      if (key != null) {
+        key.cancel();
+        // flush the cancelled key, so the selector can be reused
+        selector.selectNow();
+      }
+      selector.selectedKeys().clear();
+      if (selector.isOpen()) pool.offer(selector);
+    }
+  }
+
+}
@@ -0,0 +1,23 @@
+package box.star.net.http.sockets;
+
+import box.star.net.http.util.IFactoryThrowing;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Creates a ServerSocket backed by a {@link ServerSocketChannel}.
+ * <p>
+ * The selector based services require a server socket that has a channel,
+ * which the plain {@link DefaultServerSocketFactory} socket does not provide.
+ * </p>
+ */
+public class ChannelServerSocketFactory implements IFactoryThrowing<ServerSocket, IOException> {
+
+  @Override
+  public ServerSocket create() throws IOException {
+    return ServerSocketChannel.open().socket();
+  }
+
+}
@@ -49,14 +49,33 @@ public class SecureServerSocketFactory implements IFactoryThrowing<ServerSocket,
 
   private String[] sslProtocols;
 
+  private TLSConfiguration configuration;
+
   public SecureServerSocketFactory(SSLServerSocketFactory sslServerSocketFactory, String[] sslProtocols) {
     this.sslServerSocketFactory = sslServerSocketFactory;
     this.sslProtocols = sslProtocols;
   }
 
+  /**
+   * Creates the sockets from the kept context of the configuration, so that
+   * sessions can be resumed across server sockets.
+   */
+  public SecureServerSocketFactory(TLSConfiguration configuration) {
+    this.configuration = configuration;
+  }
+
+  public TLSConfiguration getConfiguration() {
+    return configuration;
+  }
+
   @Override
   public ServerSocket create() throws IOException {
     SSLServerSocket ss = null;
+    if (this.configuration != null) {
+      ss = (SSLServerSocket) this.configuration.getSSLContext().getServerSocketFactory().createServerSocket();
+      this.configuration.configure(ss);
+      return ss;
+    }
     ss = (SSLServerSocket) this.sslServerSocketFactory.createServerSocket();
     if (this.sslProtocols != null) {
       ss.setEnabledProtocols(this.sslProtocols);
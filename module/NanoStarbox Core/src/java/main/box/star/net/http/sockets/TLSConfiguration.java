@@ -0,0 +1,526 @@
+package box.star.net.http.sockets;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The TLS settings of a secure server, and the {@link SSLContext} made from
+ * them.
+ * <p>
+ * The context is made once and kept, so its session cache outlives server
+ * sockets and restarts, and clients that come back resume their sessions
+ * with an abbreviated handshake instead of a full key exchange. The size and
+ * lifetime of the cache are set here.
+ * </p>
+ * <p>
+ * The key store of a file configuration is read again when the file
+ * changes, checked once per reload interval on a background thread, so
+ * handshakes never wait for the file; the new certificate is used from the
+ * next full handshake on, without a restart, and resumed sessions are kept.
+ * A handshake that is under way when the key store is read again finishes
+ * with the certificate and key of the key store it started with.
+ * </p>
+ * <p>
+ * Protocols default to TLS 1.3 and 1.2, cipher suites to those the JVM
+ * enables, with the server's order preferred.
+ * </p>
+ */
+public class TLSConfiguration {
+
+  private static final Logger LOG = Logger.getLogger(TLSConfiguration.class.getName());
+
+  /**
+   * Checks the key store files of all configurations for changes.
+   */
+  private static final ScheduledExecutorService reloadChecks = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread t = new Thread(runnable);
+      t.setDaemon(true);
+      t.setName("TLS Key Store Reload Check");
+      return t;
+    }
+  });
+
+  public static final String[] DEFAULT_PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+  public static final int DEFAULT_SESSION_CACHE_SIZE = 20480;
+  /**
+   * In seconds.
+   */
+  public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+  /**
+   * In milliseconds.
+   */
+  public static final int DEFAULT_HANDSHAKE_TIMEOUT = 10000, DEFAULT_RELOAD_INTERVAL = 60000;
+
+  /**
+   * The system property of the JDK (13 and later) that enables stateless
+   * session tickets on the server.
+   */
+  public static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+  private final File keyStoreFile;
+  private final char[] password;
+  private final ReloadingKeyManager keyManager = new ReloadingKeyManager();
+  private KeyStore keyStore;
+  private String keyStoreType = KeyStore.getDefaultType();
+  private String[] protocols = DEFAULT_PROTOCOLS;
+  private String[] cipherSuites;
+  private String[] applicationProtocols = {"http/1.1"};
+  private int sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+  private int sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+  private int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+  private int reloadInterval = DEFAULT_RELOAD_INTERVAL;
+  private volatile long keyStoreModified;
+  private ScheduledFuture<?> reloadCheck;
+  private SSLContext context;
+
+  /**
+   * A configuration whose key store, which is also the trust store, is read
+   * from a file, and read again when the file changes.
+   */
+  public TLSConfiguration(File keyStoreFile, char[] password) {
+    this.keyStoreFile = keyStoreFile;
+    this.password = password;
+  }
+
+  /**
+   * A configuration with a loaded key store, which is also the trust store.
+   */
+  public TLSConfiguration(KeyStore keyStore, char[] password) {
+    this.keyStoreFile = null;
+    this.keyStore = keyStore;
+    this.password = password;
+  }
+
+  public File getKeyStoreFile() {
+    return keyStoreFile;
+  }
+
+  public String getKeyStoreType() {
+    return keyStoreType;
+  }
+
+  public TLSConfiguration setKeyStoreType(String keyStoreType) {
+    this.keyStoreType = keyStoreType;
+    return this;
+  }
+
+  public String[] getProtocols() {
+    return protocols;
+  }
+
+  /**
+   * Sets the enabled protocols; those the JVM does not support are left out.
+   */
+  public TLSConfiguration setProtocols(String... protocols) {
+    this.protocols = protocols;
+    return this;
+  }
+
+  public String[] getCipherSuites() {
+    return cipherSuites;
+  }
+
+  /**
+   * Sets the enabled cipher suites in the order of preference, or null for
+   * the defaults of the JVM; those the JVM does not support are left out.
+   */
+  public TLSConfiguration setCipherSuites(String... cipherSuites) {
+    this.cipherSuites = cipherSuites;
+    return this;
+  }
+
+  public String[] getApplicationProtocols() {
+    return applicationProtocols;
+  }
+
+  /**
+   * Sets the protocols offered through ALPN, by default http/1.1 alone, so
+   * that clients which would prefer HTTP/2 settle on HTTP/1.1; ignored on
+   * JVMs without ALPN.
+   */
+  public TLSConfiguration setApplicationProtocols(String... applicationProtocols) {
+    this.applicationProtocols = applicationProtocols;
+    return this;
+  }
+
+  public int getSessionCacheSize() {
+    return sessionCacheSize;
+  }
+
+  /**
+   * Sets the most sessions that are kept for resumption, 0 for no limit.
+   */
+  public synchronized TLSConfiguration setSessionCacheSize(int sessionCacheSize) {
+    this.sessionCacheSize = sessionCacheSize;
+    if (context != null) context.getServerSessionContext().setSessionCacheSize(sessionCacheSize);
+    return this;
+  }
+
+  public int getSessionTimeout() {
+    return sessionTimeout;
+  }
+
+  /**
+   * Sets how long a session can be resumed, in seconds.
+   */
+  public synchronized TLSConfiguration setSessionTimeout(int sessionTimeout) {
+    this.sessionTimeout = sessionTimeout;
+    if (context != null) context.getServerSessionContext().setSessionTimeout(sessionTimeout);
+    return this;
+  }
+
+  /**
+   * Enables or disables stateless session tickets, with which a client
+   * resumes its session without the server keeping it in its cache.
+   * <p>
+   * The JDK reads this setting once, when TLS is first used, for the whole
+   * JVM; it is not available before JDK 13, where the cache alone resumes
+   * sessions. This sets {@link #SESSION_TICKETS_PROPERTY}, and has to be
+   * called before any TLS connection is made.
+   * </p>
+   */
+  public TLSConfiguration setSessionTickets(boolean sessionTickets) {
+    System.setProperty(SESSION_TICKETS_PROPERTY, Boolean.toString(sessionTickets));
+    return this;
+  }
+
+  public int getHandshakeTimeout() {
+    return handshakeTimeout;
+  }
+
+  /**
+   * Sets how long a client has to complete the handshake, in milliseconds.
+   */
+  public TLSConfiguration setHandshakeTimeout(int handshakeTimeout) {
+    this.handshakeTimeout = handshakeTimeout;
+    return this;
+  }
+
+  public int getReloadInterval() {
+    return reloadInterval;
+  }
+
+  /**
+   * Sets how often the key store file is checked for changes, in
+   * milliseconds, or 0 to read it only on {@link #reload()}.
+   */
+  public synchronized TLSConfiguration setReloadInterval(int reloadInterval) {
+    this.reloadInterval = reloadInterval;
+    if (context != null) scheduleReloadCheck();
+    return this;
+  }
+
+  /**
+   * @return the context, made on first use and kept
+   */
+  public synchronized SSLContext getSSLContext() throws IOException {
+    if (context != null) return context;
+    try {
+      if (keyStoreFile != null) {
+        keyStoreModified = keyStoreFile.lastModified();
+        keyStore = loadKeyStore();
+      }
+      keyManager.install(createKeyManager(keyStore));
+      TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      trustManagerFactory.init(keyStore);
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(new KeyManager[]{keyManager}, trustManagerFactory.getTrustManagers(), null);
+      SSLSessionContext sessions = context.getServerSessionContext();
+      sessions.setSessionCacheSize(sessionCacheSize);
+      sessions.setSessionTimeout(sessionTimeout);
+      this.context = context;
+      scheduleReloadCheck();
+      return context;
+    }
+    catch (GeneralSecurityException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Reads the key store file again; the connections that are made from now
+   * on use its key.
+   */
+  public void reload() throws IOException {
+    if (keyStoreFile == null) throw new IOException("the key store was not read from a file");
+    long modified = keyStoreFile.lastModified();
+    try {
+      X509ExtendedKeyManager delegate = createKeyManager(loadKeyStore());
+      synchronized (this) {
+        keyManager.install(delegate);
+        keyStoreModified = modified;
+      }
+    }
+    catch (GeneralSecurityException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    LOG.log(Level.INFO, "Reloaded key store " + keyStoreFile);
+  }
+
+  /**
+   * Reloads the key store file if it has changed since it was read.
+   *
+   * @return true if it was reloaded
+   */
+  public boolean reloadIfModified() throws IOException {
+    if (keyStoreFile == null || keyStoreFile.lastModified() == keyStoreModified) return false;
+    reload();
+    return true;
+  }
+
+  /**
+   * @return the number of times the key store was installed in the context
+   */
+  int getGeneration() {
+    return keyManager.current.number;
+  }
+
+  X509ExtendedKeyManager getKeyManager() {
+    return keyManager;
+  }
+
+  /**
+   * Sets the protocols, cipher suites and ALPN protocols of a server socket.
+   */
+  public void configure(SSLServerSocket socket) {
+    SSLParameters parameters = socket.getSSLParameters();
+    parameters.setProtocols(supported(protocols, socket.getSupportedProtocols()));
+    if (cipherSuites != null) parameters.setCipherSuites(supported(cipherSuites, socket.getSupportedCipherSuites()));
+    parameters.setUseCipherSuitesOrder(true);
+    parameters.setNeedClientAuth(false);
+    parameters.setWantClientAuth(false);
+    if (applicationProtocols != null) setApplicationProtocols(parameters, applicationProtocols);
+    socket.setSSLParameters(parameters);
+    socket.setUseClientMode(false);
+  }
+
+  private static String[] supported(String[] wanted, String[] supported) {
+    List<String> available = Arrays.asList(supported);
+    List<String> enabled = new ArrayList<String>(wanted.length);
+    for (String name : wanted) if (available.contains(name)) enabled.add(name);
+    if (enabled.isEmpty()) throw new IllegalArgumentException("none of " + Arrays.toString(wanted) + " is supported");
+    return enabled.toArray(new String[0]);
+  }
+
+  /**
+   * ALPN came with JDK 9, and 8u251; it is set through reflection so that
+   * older JVMs run without it.
+   */
+  private static void setApplicationProtocols(SSLParameters parameters, String[] applicationProtocols) {
+    try {
+      Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+      method.invoke(parameters, (Object) applicationProtocols);
+    }
+    catch (ReflectiveOperationException e) {
+      LOG.log(Level.FINE, "ALPN is not available", e);
+    }
+  }
+
+  private KeyStore loadKeyStore() throws IOException, GeneralSecurityException {
+    KeyStore keyStore = KeyStore.getInstance(keyStoreType);
+    InputStream stream = new FileInputStream(keyStoreFile);
+    try {
+      keyStore.load(stream, password);
+    }
+    finally {
+      stream.close();
+    }
+    return keyStore;
+  }
+
+  private X509ExtendedKeyManager createKeyManager(KeyStore keyStore) throws GeneralSecurityException {
+    KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(keyStore, password);
+    for (KeyManager manager : keyManagerFactory.getKeyManagers()) {
+      if (manager instanceof X509ExtendedKeyManager) return (X509ExtendedKeyManager) manager;
+    }
+    throw new GeneralSecurityException("the key store has no X.509 key manager");
+  }
+
+  /**
+   * Schedules the check of the key store file for the reload interval, in
+   * place of any earlier one; the check ends when the configuration is no
+   * longer used.
+   */
+  private synchronized void scheduleReloadCheck() {
+    if (reloadCheck != null) reloadCheck.cancel(false);
+    reloadCheck = null;
+    if (keyStoreFile == null || reloadInterval <= 0) return;
+    reloadCheck = reloadChecks.scheduleWithFixedDelay(new ReloadCheck(this), reloadInterval, reloadInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Reloads the key store of a configuration when it has changed; static, so
+   * that it does not keep the configuration.
+   */
+  private static final class ReloadCheck implements Runnable {
+
+    private final WeakReference<TLSConfiguration> configuration;
+
+    ReloadCheck(TLSConfiguration configuration) {
+      this.configuration = new WeakReference<TLSConfiguration>(configuration);
+    }
+
+    @Override
+    public void run() {
+      TLSConfiguration tls = configuration.get();
+      // an exception ends the schedule
+      if (tls == null) throw new IllegalStateException("the configuration is gone");
+      try {
+        tls.reloadIfModified();
+      }
+      catch (IOException | RuntimeException e) {
+        LOG.log(Level.SEVERE, "Could not reload key store " + tls.keyStoreFile + ", the old key is kept", e);
+      }
+    }
+
+  }
+
+  /**
+   * The key manager of one reading of the key store.
+   */
+  private static final class Generation {
+    final int number;
+    final X509ExtendedKeyManager keyManager;
+
+    Generation(int number, X509ExtendedKeyManager keyManager) {
+      this.number = number;
+      this.keyManager = keyManager;
+    }
+  }
+
+  /**
+   * The key manager of the context, which hands over to the key manager of
+   * the key store last read.
+   * <p>
+   * The aliases it returns are tagged with the generation of the key store
+   * they were chosen from, as in {@code "2/localhost"}, so that the
+   * certificate chain and key of a handshake come from the same key store,
+   * even when it is read again between the calls. The generation before the
+   * current one is kept for the handshakes that are under way.
+   * </p>
+   */
+  private static final class ReloadingKeyManager extends X509ExtendedKeyManager {
+
+    private static final Generation NONE = new Generation(0, null);
+
+    volatile Generation current = NONE;
+    private volatile Generation previous = NONE;
+
+    synchronized void install(X509ExtendedKeyManager keyManager) {
+      previous = current;
+      current = new Generation(current.number + 1, keyManager);
+    }
+
+    private static String tag(Generation generation, String alias) {
+      return alias == null ? null : generation.number + "/" + alias;
+    }
+
+    private static String[] tag(Generation generation, String[] aliases) {
+      if (aliases == null) return null;
+      String[] tagged = new String[aliases.length];
+      for (int i = 0; i < aliases.length; i++) tagged[i] = tag(generation, aliases[i]);
+      return tagged;
+    }
+
+    /**
+     * @return the generation of a tagged alias, or null if it is gone
+     */
+    private Generation generation(String alias) {
+      int slash = alias == null ? -1 : alias.indexOf('/');
+      if (slash <= 0) return null;
+      int number;
+      try {
+        number = Integer.parseInt(alias.substring(0, slash));
+      }
+      catch (NumberFormatException e) {
+        return null;
+      }
+      Generation current = this.current, previous = this.previous;
+      if (current.number == number) return current;
+      if (previous.number == number) return previous;
+      return null;
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+      Generation generation = current;
+      return tag(generation, generation.keyManager.chooseServerAlias(keyType, issuers, socket));
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+      Generation generation = current;
+      return tag(generation, generation.keyManager.chooseEngineServerAlias(keyType, issuers, engine));
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+      Generation generation = current;
+      return tag(generation, generation.keyManager.getServerAliases(keyType, issuers));
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+      Generation generation = current;
+      return tag(generation, generation.keyManager.getClientAliases(keyType, issuers));
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+      Generation generation = current;
+      return tag(generation, generation.keyManager.chooseClientAlias(keyType, issuers, socket));
+    }
+
+    @Override
+    public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+      Generation generation = current;
+      return tag(generation, generation.keyManager.chooseEngineClientAlias(keyType, issuers, engine));
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+      Generation generation = generation(alias);
+      return generation == null ? null : generation.keyManager.getCertificateChain(alias.substring(alias.indexOf('/') + 1));
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+      Generation generation = generation(alias);
+      return generation == null ? null : generation.keyManager.getPrivateKey(alias.substring(alias.indexOf('/') + 1));
+    }
+
+  }
+
+}
@@ -0,0 +1,132 @@
+package box.star.net.http.sockets;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finishes writes to non-blocking channels that could not take all of their
+ * data at once.
+ * <p>
+ * A writer that is left with bytes the socket would not accept registers a
+ * {@link Task}, and the shared selector thread calls it each time the channel
+ * can take more, until it has nothing left to write. Thousands of slow
+ * connections are written this way by the one thread.
+ * </p>
+ */
+public final class WriteSelector implements Runnable {
+
+  private static final Logger LOG = Logger.getLogger(WriteSelector.class.getName());
+
+  private static WriteSelector instance;
+
+  /**
+   * The writer of a channel.
+   * <p>
+   * Tasks are called on the selector thread and must not block.
+   * </p>
+   */
+  public interface Task {
+    /**
+     * Writes what the channel can take now.
+     *
+     * @return true if nothing is left to write
+     */
+    boolean writable() throws IOException;
+
+    /**
+     * The channel failed or was closed while data was left to write.
+     */
+    void failed(IOException error);
+  }
+
+  private static final class Registration {
+    final SocketChannel channel;
+    final Task task;
+
+    Registration(SocketChannel channel, Task task) {
+      this.channel = channel;
+      this.task = task;
+    }
+  }
+
+  private final ConcurrentLinkedQueue<Registration> registrations = new ConcurrentLinkedQueue<>();
+  private final Selector selector;
+
+  private WriteSelector() throws IOException {
+    this.selector = Selector.open();
+  }
+
+  /**
+   * @return the shared write selector, started on first use
+   */
+  public static synchronized WriteSelector getInstance() throws IOException {
+    if (instance == null) {
+      instance = new WriteSelector();
+      Thread thread = new Thread(instance, "NanoHttpd Write Selector");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    return instance;
+  }
+
+  /**
+   * Calls the task when the channel can be written, and again after each call
+   * that leaves data unwritten.
+   */
+  public void register(SocketChannel channel, Task task) {
+    registrations.offer(new Registration(channel, task));
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    while (selector.isOpen()) {
+      try {
+        selector.select();
+        Registration registration;
+        while ((registration = registrations.poll()) != null) {
+          try {
+            SelectionKey key = registration.channel.keyFor(selector);
+            if (key == null) registration.channel.register(selector, SelectionKey.OP_WRITE, registration.task);
+            else {
+              key.attach(registration.task);
+              key.interestOps(SelectionKey.OP_WRITE);
+            }
+          }
+          catch (IOException | CancelledKeyException e) {
+            registration.task.failed(e instanceof IOException ? (IOException) e : new IOException("channel closed", e));
+          }
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          Task task = (Task) key.attachment();
+          try {
+            if (task.writable()) key.interestOps(0);
+          }
+          catch (IOException | CancelledKeyException e) {
+            key.cancel();
+            task.failed(e instanceof IOException ? (IOException) e : new IOException("channel closed", e));
+          }
+          catch (RuntimeException e) {
+            key.cancel();
+            LOG.log(Level.SEVERE, "Write task failed", e);
+          }
+        }
+      }
+      catch (IOException e) {
+        LOG.log(Level.SEVERE, "Write selector failed", e);
+        return;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,111 @@
+package box.star.net.http.threading;
+
+import box.star.net.http.HTTPClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pooled threading strategy for HTTPServer.
+ * <p>
+ * Clients are executed on at most {@code maxWorkers} daemon threads. Clients
+ * that arrive while every worker is busy wait in a bounded queue, and once
+ * the queue is full, new clients are refused with a
+ * {@code 503 Service Unavailable} response instead of spawning more threads.
+ * </p>
+ */
+public class BoundedAsyncRunner implements IAsyncRunner {
+
+  private static final long WORKER_KEEP_ALIVE = 60;
+
+  private final Set<HTTPClient> running = Collections.newSetFromMap(new ConcurrentHashMap<HTTPClient, Boolean>());
+  private final AtomicLong threadCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final ThreadPoolExecutor workers;
+
+  /**
+   * @param maxWorkers the maximum number of worker threads
+   * @param queueSize  the maximum number of clients waiting for a worker, zero
+   *                   refuses clients as soon as all workers are busy
+   */
+  public BoundedAsyncRunner(int maxWorkers, int queueSize) {
+    BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<Runnable>(queueSize) : new SynchronousQueue<Runnable>();
+    this.workers = new ThreadPoolExecutor(maxWorkers, maxWorkers, WORKER_KEEP_ALIVE, TimeUnit.SECONDS, queue, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread t = new Thread(runnable);
+        t.setDaemon(true);
+        t.setName("NanoHttpd Request Processor (#" + threadCount.incrementAndGet() + ")");
+        return t;
+      }
+    });
+    this.workers.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return the clients that are currently running or waiting for a worker.
+   */
+  public Set<HTTPClient> getRunning() {
+    return running;
+  }
+
+  /**
+   * @return the number of clients refused since this runner was created.
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * @return the number of clients waiting for a worker.
+   */
+  public int getQueueLength() {
+    return workers.getQueue().size();
+  }
+
+  @Override
+  public void closeAll() {
+    // copy of the set for concurrency
+    for (HTTPClient client : new ArrayList<HTTPClient>(this.running)) {
+      client.close();
+    }
+  }
+
+  /**
+   * Closes all clients and stops the workers; clients executed afterwards are
+   * refused.
+   */
+  public void shutdown() {
+    this.workers.shutdownNow();
+    closeAll();
+  }
+
+  /**
+   * @return true once {@link #shutdown()} was called and every worker has ended.
+   */
+  public boolean isTerminated() {
+    return workers.isTerminated();
+  }
+
+  @Override
+  public void closed(HTTPClient client) {
+    this.running.remove(client);
+  }
+
+  @Override
+  public void exec(HTTPClient client) {
+    this.running.add(client);
+    try {
+      this.workers.execute(client);
+    }
+    catch (RejectedExecutionException e) {
+      this.running.remove(client);
+      this.rejectedCount.incrementAndGet();
+      client.reject();
+    }
+  }
+
+}
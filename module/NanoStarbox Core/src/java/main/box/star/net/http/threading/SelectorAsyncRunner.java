@@ -0,0 +1,109 @@
+package box.star.net.http.threading;
+
+import box.star.net.http.HTTPClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threading strategy for the {@link box.star.net.http.SelectorHTTPService}.
+ * <p>
+ * Requests are executed on a fixed number of daemon worker threads. A
+ * connection is executed once for every request that arrives on it, and is
+ * tracked until it is finally closed. Requests that arrive while every worker
+ * is busy wait in a queue; once a bounded queue is full, the request is
+ * refused with a {@code 503 Service Unavailable} response and its connection
+ * is closed.
+ * </p>
+ */
+public class SelectorAsyncRunner implements IAsyncRunner {
+
+  private final Set<HTTPClient> connections = Collections.newSetFromMap(new ConcurrentHashMap<HTTPClient, Boolean>());
+  private final AtomicLong threadCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final ThreadPoolExecutor workers;
+
+  public SelectorAsyncRunner() {
+    this(Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+  /**
+   * @param workerCount the number of worker threads, with an unbounded queue
+   */
+  public SelectorAsyncRunner(int workerCount) {
+    this(workerCount, new LinkedBlockingQueue<Runnable>());
+  }
+
+  /**
+   * @param workerCount the number of worker threads
+   * @param queueSize   the maximum number of requests waiting for a worker, zero
+   *                    refuses requests as soon as all workers are busy
+   */
+  public SelectorAsyncRunner(int workerCount, int queueSize) {
+    this(workerCount, queueSize > 0 ? new ArrayBlockingQueue<Runnable>(queueSize) : new SynchronousQueue<Runnable>());
+  }
+
+  private SelectorAsyncRunner(int workerCount, BlockingQueue<Runnable> queue) {
+    this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread t = new Thread(runnable);
+        t.setDaemon(true);
+        t.setName("NanoHttpd Request Processor (#" + threadCount.incrementAndGet() + ")");
+        return t;
+      }
+    });
+  }
+
+  /**
+   * @return the connections that are currently open.
+   */
+  public Set<HTTPClient> getConnections() {
+    return connections;
+  }
+
+  /**
+   * @return the number of requests refused since this runner was created.
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * @return the number of requests waiting for a worker.
+   */
+  public int getQueueLength() {
+    return workers.getQueue().size();
+  }
+
+  @Override
+  public void closeAll() {
+    // copy of the set for concurrency
+    for (HTTPClient client : new ArrayList<HTTPClient>(this.connections)) {
+      client.close();
+    }
+    this.connections.clear();
+  }
+
+  @Override
+  public void closed(HTTPClient client) {
+    this.connections.remove(client);
+  }
+
+  @Override
+  public void exec(HTTPClient client) {
+    this.connections.add(client);
+    try {
+      this.workers.execute(client);
+    }
+    catch (RejectedExecutionException e) {
+      this.connections.remove(client);
+      this.rejectedCount.incrementAndGet();
+      client.reject();
+    }
+  }
+
+}
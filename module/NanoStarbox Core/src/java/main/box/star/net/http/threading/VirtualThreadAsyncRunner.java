@@ -0,0 +1,60 @@
+package box.star.net.http.threading;
+
+import box.star.net.http.HTTPClient;
+
+import java.lang.reflect.Method;
+
+/**
+ * Threading strategy that runs every client on a virtual thread.
+ * <p>
+ * Virtual threads are looked up at runtime, so this class loads on any JVM.
+ * When the JVM does not support them, it behaves like the
+ * {@link DefaultAsyncRunner}.
+ * </p>
+ */
+public class VirtualThreadAsyncRunner extends DefaultAsyncRunner {
+
+  private static final Method ofVirtual, builderName, builderUnstarted;
+
+  static {
+    Method of = null, name = null, unstarted = null;
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      of = Thread.class.getMethod("ofVirtual");
+      name = builder.getMethod("name", String.class);
+      unstarted = builder.getMethod("unstarted", Runnable.class);
+      // preview builds expose the api, but refuse to use it
+      unstarted.invoke(of.invoke(null), new Runnable() {
+        @Override
+        public void run() {}
+      });
+    }
+    catch (Throwable unsupported) {
+      of = null;
+    }
+    ofVirtual = of;
+    builderName = name;
+    builderUnstarted = unstarted;
+  }
+
+  /**
+   * @return true if the JVM can create virtual threads
+   */
+  public static boolean isSupported() {
+    return ofVirtual != null;
+  }
+
+  @Override
+  protected Thread createThread(HTTPClient client) {
+    if (!isSupported()) return super.createThread(client);
+    try {
+      Object builder = ofVirtual.invoke(null);
+      builder = builderName.invoke(builder, "NanoHttpd Request Processor (#" + this.requestCount + ")");
+      return (Thread) builderUnstarted.invoke(builder, client);
+    }
+    catch (Exception e) {
+      throw new IllegalStateException("failed to create a virtual thread", e);
+    }
+  }
+
+}
@@ -0,0 +1,121 @@
+package box.star.net.http.websocket;
+
+import java.io.IOException;
+
+/**
+ * Parses the frames of a connection from the bytes as they arrive, in pieces
+ * of any size, and unmasks their payloads.
+ * <p>
+ * The checks that need only the frame are made here: client frames must be
+ * masked, control frames must be short and whole, reserved bits and opcodes
+ * must not be used, and no frame may be longer than the message size limit.
+ * </p>
+ */
+final class FrameReader {
+
+  static final int CONTINUATION = 0x0, TEXT = 0x1, BINARY = 0x2, CLOSE = 0x8, PING = 0x9, PONG = 0xA;
+
+  /**
+   * Receives each frame once its payload is complete.
+   */
+  interface Frames {
+    void frame(boolean fin, boolean compressed, int opcode, byte[] payload) throws IOException;
+  }
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private final Frames frames;
+  private final byte[] header = new byte[14];
+  private int headerLength, headerSize = 2;
+  private byte[] payload;
+  private int payloadLength;
+  private boolean allowCompressed;
+  private long maxPayload = Long.MAX_VALUE;
+
+  FrameReader(Frames frames) {
+    this.frames = frames;
+  }
+
+  /**
+   * Allows the first reserved bit, which marks compressed messages once
+   * permessage-deflate is in use.
+   */
+  void setAllowCompressed(boolean allowCompressed) {
+    this.allowCompressed = allowCompressed;
+  }
+
+  void setMaxPayload(long maxPayload) {
+    this.maxPayload = maxPayload;
+  }
+
+  void read(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (payload == null) {
+        int n = Math.min(len, headerSize - headerLength);
+        System.arraycopy(b, off, header, headerLength, n);
+        headerLength += n;
+        off += n;
+        len -= n;
+        if (headerLength == headerSize && parseHeader() && payload.length == 0) emit();
+        continue;
+      }
+      int n = Math.min(len, payload.length - payloadLength);
+      System.arraycopy(b, off, payload, payloadLength, n);
+      payloadLength += n;
+      off += n;
+      len -= n;
+      if (payloadLength == payload.length) emit();
+    }
+  }
+
+  /**
+   * @return true if the header is complete, and the payload has been allocated
+   */
+  private boolean parseHeader() throws WebSocketException {
+    int size = 2;
+    int length = header[1] & 0x7F;
+    if (length == 126) size += 2;
+    else if (length == 127) size += 8;
+    if ((header[1] & 0x80) != 0) size += 4;
+    if (headerLength < size) {
+      headerSize = size;
+      return false;
+    }
+    int opcode = header[0] & 0x0F;
+    boolean fin = (header[0] & 0x80) != 0;
+    if ((header[1] & 0x80) == 0) throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "client frames must be masked");
+    if ((header[0] & 0x30) != 0) throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "reserved bits are set");
+    if ((header[0] & 0x40) != 0 && !allowCompressed) throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "compression was not negotiated");
+    if (opcode > BINARY && opcode < CLOSE || opcode > PONG) throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "reserved opcode " + opcode);
+    long payloadSize = length;
+    if (length == 126) payloadSize = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+    else if (length == 127) {
+      payloadSize = 0;
+      for (int i = 2; i < 10; i++) payloadSize = (payloadSize << 8) | (header[i] & 0xFF);
+      if (payloadSize < 0) throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "invalid frame length");
+    }
+    if (opcode >= CLOSE) {
+      if (!fin) throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "fragmented control frame");
+      if ((header[0] & 0x40) != 0) throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "compressed control frame");
+      if (payloadSize > 125) throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "control frame too long");
+    } else if (payloadSize > maxPayload) {
+      throw new WebSocketException(WebSocket.MESSAGE_TOO_BIG, "message too big");
+    }
+    payload = payloadSize == 0 ? EMPTY : new byte[(int) payloadSize];
+    payloadLength = 0;
+    return true;
+  }
+
+  private void emit() throws IOException {
+    byte[] payload = this.payload;
+    int maskOffset = headerSize - 4;
+    for (int i = 0; i < payload.length; i++) payload[i] ^= header[maskOffset + (i & 3)];
+    boolean fin = (header[0] & 0x80) != 0, compressed = (header[0] & 0x40) != 0;
+    int opcode = header[0] & 0x0F;
+    this.payload = null;
+    headerLength = 0;
+    headerSize = 2;
+    frames.frame(fin, compressed, opcode, payload);
+  }
+
+}
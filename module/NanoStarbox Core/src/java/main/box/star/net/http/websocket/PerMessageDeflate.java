@@ -0,0 +1,139 @@
+package box.star.net.http.websocket;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The permessage-deflate extension of RFC 7692: message payloads are raw
+ * deflate data, sync flushed, without the final empty block.
+ * <p>
+ * The zip library always compresses with the full window, so offers that
+ * limit the window of the server are declined; the inflater takes any
+ * window, so the client may use a smaller one.
+ * </p>
+ */
+final class PerMessageDeflate {
+
+  static final String EXTENSION = "permessage-deflate";
+
+  private static final byte[] TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+  private final boolean serverNoContextTakeover, clientNoContextTakeover;
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private final Inflater inflater = new Inflater(true);
+  private boolean ended;
+
+  private PerMessageDeflate(boolean serverNoContextTakeover, boolean clientNoContextTakeover) {
+    this.serverNoContextTakeover = serverNoContextTakeover;
+    this.clientNoContextTakeover = clientNoContextTakeover;
+  }
+
+  /**
+   * Accepts the first permessage-deflate offer of a Sec-WebSocket-Extensions
+   * header that this implementation can honor.
+   *
+   * @return null if there is none
+   */
+  static PerMessageDeflate negotiate(String extensions) {
+    if (extensions == null) return null;
+    for (String offer : extensions.split(",")) {
+      String[] parameters = offer.split(";");
+      if (!parameters[0].trim().equalsIgnoreCase(EXTENSION)) continue;
+      boolean serverNoContextTakeover = false, clientNoContextTakeover = false, clientMaxWindowBits = false, valid = true;
+      for (int i = 1; i < parameters.length && valid; i++) {
+        String parameter = parameters[i].trim();
+        String value = null;
+        int equals = parameter.indexOf('=');
+        if (equals >= 0) {
+          value = parameter.substring(equals + 1).trim();
+          if (value.length() > 1 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"')
+            value = value.substring(1, value.length() - 1);
+          parameter = parameter.substring(0, equals).trim();
+        }
+        if (parameter.equalsIgnoreCase("server_no_context_takeover") && value == null && !serverNoContextTakeover)
+          serverNoContextTakeover = true;
+        else if (parameter.equalsIgnoreCase("client_no_context_takeover") && value == null && !clientNoContextTakeover)
+          clientNoContextTakeover = true;
+        else if (parameter.equalsIgnoreCase("server_max_window_bits"))
+          valid = "15".equals(value);
+        else if (parameter.equalsIgnoreCase("client_max_window_bits") && !clientMaxWindowBits) {
+          clientMaxWindowBits = true;
+          valid = value == null || value.matches("[89]|1[0-5]");
+        } else valid = false;
+      }
+      if (valid) return new PerMessageDeflate(serverNoContextTakeover, clientNoContextTakeover);
+    }
+    return null;
+  }
+
+  /**
+   * @return the accepted offer, for the Sec-WebSocket-Extensions header of the response
+   */
+  String getResponseHeader() {
+    StringBuilder header = new StringBuilder(EXTENSION);
+    if (serverNoContextTakeover) header.append("; server_no_context_takeover");
+    if (clientNoContextTakeover) header.append("; client_no_context_takeover");
+    return header.toString();
+  }
+
+  synchronized byte[] compress(byte[] data, int off, int len) throws IOException {
+    if (ended) throw new IOException("WebSocket is closed");
+    deflater.setInput(data, off, len);
+    byte[] output = new byte[Math.max(64, len / 2 + 16)];
+    int size = 0, n;
+    do {
+      if (size == output.length) output = Arrays.copyOf(output, output.length * 2);
+      n = deflater.deflate(output, size, output.length - size, Deflater.SYNC_FLUSH);
+      size += n;
+    } while (size == output.length);
+    if (serverNoContextTakeover) deflater.reset();
+    // the sync flush ends with an empty stored block, which is left out
+    if (size >= 4 && output[size - 4] == 0 && output[size - 3] == 0 && output[size - 2] == (byte) 0xFF && output[size - 1] == (byte) 0xFF)
+      size -= 4;
+    return Arrays.copyOf(output, size);
+  }
+
+  /**
+   * @param limit the most bytes the message may inflate to
+   */
+  synchronized byte[] decompress(byte[] data, long limit) throws IOException {
+    if (ended) throw new IOException("WebSocket is closed");
+    byte[] input = Arrays.copyOf(data, data.length + TAIL.length);
+    System.arraycopy(TAIL, 0, input, data.length, TAIL.length);
+    inflater.setInput(input);
+    byte[] output = new byte[(int) Math.min(limit + 1, Math.max(64, data.length * 4L))];
+    int size = 0;
+    try {
+      while (true) {
+        if (size == output.length) output = Arrays.copyOf(output, (int) Math.min(limit + 1, output.length * 2L));
+        int n = inflater.inflate(output, size, output.length - size);
+        size += n;
+        if (size > limit) throw new WebSocketException(WebSocket.MESSAGE_TOO_BIG, "message too big");
+        if (inflater.finished()) {
+          inflater.reset();
+          break;
+        }
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+      }
+    }
+    catch (DataFormatException e) {
+      throw new WebSocketException(WebSocket.INVALID_PAYLOAD, "invalid compressed data");
+    }
+    if (clientNoContextTakeover) inflater.reset();
+    return size == output.length ? output : Arrays.copyOf(output, size);
+  }
+
+  /**
+   * Frees the native memory of the compressors.
+   */
+  synchronized void end() {
+    if (ended) return;
+    ended = true;
+    deflater.end();
+    inflater.end();
+  }
+
+}
@@ -0,0 +1,652 @@
+package box.star.net.http.websocket;
+
+import box.star.net.http.HTTPServer;
+import box.star.net.http.IHTTPSession;
+import box.star.net.http.request.Method;
+import box.star.net.http.response.Response;
+import box.star.net.http.response.Status;
+import box.star.net.http.response.UpgradeResponse;
+import box.star.net.http.sockets.ChannelOutputStream;
+import box.star.net.http.sockets.WriteSelector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * A WebSocket connection (RFC 6455), made by answering an upgrade request
+ * with {@link #upgrade(IHTTPSession, WebSocketHandler, String...)}.
+ * <p>
+ * The socket takes over the connection after the 101 response. On a
+ * selector connection it holds no thread while idle: frames are parsed as
+ * they arrive, on the worker the data was handed to, and sends that the
+ * socket does not take at once are queued and finished by the
+ * {@link WriteSelector}. On a blocking connection a worker keeps reading for
+ * the socket until it is closed.
+ * </p>
+ * <p>
+ * Fragmented messages are reassembled, pings are answered, and the close
+ * handshake is completed for the handler. Messages are compressed with
+ * permessage-deflate when the client offers it.
+ * </p>
+ * <p>
+ * Sending is safe from any thread.
+ * </p>
+ */
+public class WebSocket {
+
+  public static final int NORMAL_CLOSURE = 1000, GOING_AWAY = 1001, PROTOCOL_ERROR = 1002,
+      UNSUPPORTED_DATA = 1003, NO_STATUS = 1005, ABNORMAL_CLOSURE = 1006, INVALID_PAYLOAD = 1007,
+      POLICY_VIOLATION = 1008, MESSAGE_TOO_BIG = 1009, INTERNAL_ERROR = 1011;
+
+  public static final int DEFAULT_MAX_MESSAGE_SIZE = 4 * 1024 * 1024;
+  public static final int DEFAULT_MAX_BUFFERED_AMOUNT = 16 * 1024 * 1024;
+
+  /**
+   * How long the client has to answer a close frame, in milliseconds.
+   */
+  public static final int CLOSE_TIMEOUT = 5000;
+
+  /**
+   * Messages shorter than this are not worth compressing.
+   */
+  static final int COMPRESSION_THRESHOLD = 64;
+
+  private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+  private static final int OPEN = 0, CLOSING = 1, CLOSED = 2;
+
+  private final WebSocketHandler handler;
+  private final IHTTPSession session;
+  private final String protocol;
+  private final PerMessageDeflate deflate;
+  private final FrameReader reader;
+  private final Output output = new Output();
+  private UpgradeResponse.Connection connection;
+  private volatile int maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+  private volatile int maxBufferedAmount = DEFAULT_MAX_BUFFERED_AMOUNT;
+  private volatile int timeout;
+  private volatile int state = OPEN;
+  private boolean failed, notified;
+  private int closeCode = ABNORMAL_CLOSURE;
+  private String closeReason = "";
+
+  // the message being received, touched only by the reading thread
+  private int messageOpcode;
+  private boolean messageCompressed;
+  private ByteArrayOutputStream message;
+  private byte[] readBuffer;
+
+  private WebSocket(IHTTPSession session, WebSocketHandler handler, String protocol, PerMessageDeflate deflate) {
+    this.session = session;
+    this.handler = handler;
+    this.protocol = protocol;
+    this.deflate = deflate;
+    this.reader = new FrameReader(new FrameReader.Frames() {
+      @Override
+      public void frame(boolean fin, boolean compressed, int opcode, byte[] payload) throws IOException {
+        WebSocket.this.frame(fin, compressed, opcode, payload);
+      }
+    });
+    this.reader.setAllowCompressed(deflate != null);
+  }
+
+  /**
+   * Answers a WebSocket upgrade request.
+   * <p>
+   * The handshake is checked, and the response is a 101 that opens the socket
+   * once it is sent, or an error response. The origin of the request is not
+   * checked; a handler that needs to, looks at the Origin header first.
+   * </p>
+   *
+   * @param protocols the subprotocols the server speaks, in order of
+   *                  preference; the first the client asks for is chosen
+   */
+  public static Response upgrade(IHTTPSession session, WebSocketHandler handler, String... protocols) {
+    Map<String, String> headers = session.getHeaders();
+    if (session.getMethod() != Method.GET) {
+      Response response = Response.newFixedLengthResponse(Status.METHOD_NOT_ALLOWED, HTTPServer.MIME_PLAINTEXT, "WebSocket requests must use GET");
+      response.addHeader("Allow", "GET");
+      return response;
+    }
+    if (!hasToken(headers.get("upgrade"), "websocket") || !hasToken(headers.get("connection"), "upgrade")) {
+      Response response = Response.newFixedLengthResponse(Status.UPGRADE_REQUIRED, HTTPServer.MIME_PLAINTEXT, "WebSocket upgrade required");
+      response.addHeader("Upgrade", "websocket");
+      return response;
+    }
+    if (!"13".equals(trim(headers.get("sec-websocket-version")))) {
+      Response response = Response.newFixedLengthResponse(Status.UPGRADE_REQUIRED, HTTPServer.MIME_PLAINTEXT, "Unsupported WebSocket version");
+      response.addHeader("Sec-WebSocket-Version", "13");
+      return response;
+    }
+    String key = trim(headers.get("sec-websocket-key"));
+    if (!isValidKey(key)) {
+      return Response.newFixedLengthResponse(Status.BAD_REQUEST, HTTPServer.MIME_PLAINTEXT, "Invalid Sec-WebSocket-Key");
+    }
+    String protocol = selectProtocol(headers.get("sec-websocket-protocol"), protocols);
+    PerMessageDeflate deflate = PerMessageDeflate.negotiate(headers.get("sec-websocket-extensions"));
+    WebSocket socket = new WebSocket(session, handler, protocol, deflate);
+    UpgradeResponse response = socket.new Handshake();
+    response.addHeader("Sec-WebSocket-Accept", acceptKey(key));
+    if (protocol != null) response.addHeader("Sec-WebSocket-Protocol", protocol);
+    if (deflate != null) response.addHeader("Sec-WebSocket-Extensions", deflate.getResponseHeader());
+    return response;
+  }
+
+  /**
+   * @return true if the request asks for a WebSocket upgrade
+   */
+  public static boolean isUpgradeRequest(IHTTPSession session) {
+    Map<String, String> headers = session.getHeaders();
+    return hasToken(headers.get("upgrade"), "websocket") && hasToken(headers.get("connection"), "upgrade");
+  }
+
+  /**
+   * @return the Sec-WebSocket-Accept value for a key
+   */
+  static String acceptKey(String key) {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+      return Base64.getEncoder().encodeToString(digest);
+    }
+    catch (NoSuchAlgorithmException e) {
+      // every Java platform has SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static boolean isValidKey(String key) {
+    if (key == null) return false;
+    try {
+      return Base64.getDecoder().decode(key).length == 16;
+    }
+    catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private static String selectProtocol(String requested, String[] protocols) {
+    if (requested == null || protocols == null) return null;
+    for (String protocol : protocols) {
+      for (String offer : requested.split(",")) {
+        if (offer.trim().equals(protocol)) return protocol;
+      }
+    }
+    return null;
+  }
+
+  private static boolean hasToken(String header, String token) {
+    if (header == null) return false;
+    for (String value : header.split(",")) {
+      if (value.trim().equalsIgnoreCase(token)) return true;
+    }
+    return false;
+  }
+
+  private static String trim(String value) {
+    return value == null ? null : value.trim();
+  }
+
+  /**
+   * @return the session of the upgrade request, for its headers, cookies and address
+   */
+  public IHTTPSession getSession() {
+    return session;
+  }
+
+  /**
+   * @return the chosen subprotocol, or null
+   */
+  public String getProtocol() {
+    return protocol;
+  }
+
+  public boolean isCompressed() {
+    return deflate != null;
+  }
+
+  /**
+   * @return true until a close frame has been sent, or the connection is lost
+   */
+  public boolean isOpen() {
+    return state == OPEN;
+  }
+
+  public int getMaxMessageSize() {
+    return maxMessageSize;
+  }
+
+  /**
+   * Sets the size above which a received message fails the connection with
+   * {@link #MESSAGE_TOO_BIG}; compressed messages count their inflated size.
+   */
+  public void setMaxMessageSize(int maxMessageSize) {
+    this.maxMessageSize = maxMessageSize;
+    reader.setMaxPayload(maxMessageSize);
+  }
+
+  public int getMaxBufferedAmount() {
+    return maxBufferedAmount;
+  }
+
+  /**
+   * Sets how many bytes may wait for a client that does not read before the
+   * connection is dropped.
+   */
+  public void setMaxBufferedAmount(int maxBufferedAmount) {
+    this.maxBufferedAmount = maxBufferedAmount;
+  }
+
+  /**
+   * @return the bytes sent that the client has not taken yet
+   */
+  public long getBufferedAmount() {
+    return output.queued;
+  }
+
+  public int getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * Sets how long the connection may receive nothing before it is closed, in
+   * milliseconds, or 0 for no limit; a client that is expected to stay quiet
+   * can be kept in check with {@link #ping(byte[])}.
+   */
+  public void setTimeout(int timeout) {
+    this.timeout = timeout;
+  }
+
+  public void send(String text) throws IOException {
+    sendMessage(FrameReader.TEXT, text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public void send(byte[] data) throws IOException {
+    sendMessage(FrameReader.BINARY, data);
+  }
+
+  /**
+   * Sends a ping, which the client answers with a pong.
+   *
+   * @param data at most 125 bytes, or null
+   */
+  public void ping(byte[] data) throws IOException {
+    byte[] payload = data == null ? new byte[0] : data;
+    if (payload.length > 125) throw new IllegalArgumentException("ping data is longer than 125 bytes");
+    sendFrame(FrameReader.PING, false, payload, true);
+  }
+
+  /**
+   * Starts the close handshake; the connection is closed when the client
+   * answers, and {@link WebSocketHandler#onClose(WebSocket, int, String)} is
+   * called then.
+   */
+  public void close() {
+    close(NORMAL_CLOSURE, "");
+  }
+
+  public void close(int code, String reason) {
+    sendClose(code, reason);
+  }
+
+  private void sendMessage(int opcode, byte[] data) throws IOException {
+    boolean compressed = deflate != null && data.length >= COMPRESSION_THRESHOLD;
+    // the client inflates in the order the messages were compressed
+    synchronized (output) {
+      sendFrame(opcode, compressed, compressed ? deflate.compress(data, 0, data.length) : data, true);
+    }
+  }
+
+  private void sendFrame(int opcode, boolean compressed, byte[] payload, boolean whileOpen) throws IOException {
+    if (whileOpen && state != OPEN) throw new IOException("WebSocket is closed");
+    int length = payload.length;
+    int headerSize = length < 126 ? 2 : length < 65536 ? 4 : 10;
+    byte[] frame = new byte[headerSize + length];
+    frame[0] = (byte) (0x80 | (compressed ? 0x40 : 0) | opcode);
+    if (length < 126) {
+      frame[1] = (byte) length;
+    } else if (length < 65536) {
+      frame[1] = 126;
+      frame[2] = (byte) (length >>> 8);
+      frame[3] = (byte) length;
+    } else {
+      frame[1] = 127;
+      for (int i = 0; i < 8; i++) frame[9 - i] = (byte) ((long) length >>> (8 * i));
+    }
+    System.arraycopy(payload, 0, frame, headerSize, length);
+    output.write(frame);
+  }
+
+  /**
+   * Sends a close frame once; the connection is closed when the client
+   * answers, or at once if the client's close frame has been received.
+   */
+  private void sendClose(int code, String reason) {
+    byte[] payload;
+    if (code == NO_STATUS) payload = new byte[0];
+    else {
+      byte[] text = reason == null ? new byte[0] : reason.getBytes(StandardCharsets.UTF_8);
+      payload = new byte[2 + Math.min(text.length, 123)];
+      payload[0] = (byte) (code >>> 8);
+      payload[1] = (byte) code;
+      System.arraycopy(text, 0, payload, 2, payload.length - 2);
+    }
+    synchronized (this) {
+      if (state != OPEN) return;
+      state = CLOSING;
+    }
+    try {
+      sendFrame(FrameReader.CLOSE, false, payload, false);
+    }
+    catch (IOException e) {
+      HTTPServer.LOG.log(Level.FINE, "Could not send the close frame", e);
+      connection.close();
+    }
+  }
+
+  /**
+   * Fails the connection after a protocol error: a close frame with the code
+   * is sent, and the connection is closed once it is out; what the client
+   * sends after is ignored.
+   */
+  private void fail(int code, String reason) {
+    synchronized (this) {
+      failed = true;
+    }
+    sendClose(code, reason);
+    output.closeWhenSent();
+  }
+
+  private void frame(boolean fin, boolean compressed, int opcode, byte[] payload) throws IOException {
+    switch (opcode) {
+      case FrameReader.PING:
+        if (state == OPEN) sendFrame(FrameReader.PONG, false, payload, false);
+        return;
+      case FrameReader.PONG:
+        return;
+      case FrameReader.CLOSE:
+        closeReceived(payload);
+        return;
+      case FrameReader.CONTINUATION:
+        if (messageOpcode == 0) throw new WebSocketException(PROTOCOL_ERROR, "continuation without a message");
+        if (compressed) throw new WebSocketException(PROTOCOL_ERROR, "compressed continuation frame");
+        break;
+      default:
+        if (messageOpcode != 0) throw new WebSocketException(PROTOCOL_ERROR, "message started before the last one ended");
+        if (fin) {
+          // most messages fit in one frame, which needs no reassembly
+          message(opcode, compressed, payload);
+          return;
+        }
+        messageOpcode = opcode;
+        messageCompressed = compressed;
+        message = new ByteArrayOutputStream(Math.max(payload.length * 2, 256));
+    }
+    if (message.size() + (long) payload.length > maxMessageSize) throw new WebSocketException(MESSAGE_TOO_BIG, "message too big");
+    message.write(payload, 0, payload.length);
+    if (!fin) return;
+    int messageOpcode = this.messageOpcode;
+    byte[] data = message.toByteArray();
+    this.messageOpcode = 0;
+    this.message = null;
+    message(messageOpcode, messageCompressed, data);
+  }
+
+  private void message(int opcode, boolean compressed, byte[] data) throws IOException {
+    if (state != OPEN) return;
+    if (compressed) data = deflate.decompress(data, maxMessageSize);
+    try {
+      if (opcode == FrameReader.TEXT) handler.onText(this, decodeText(data));
+      else handler.onBinary(this, data);
+    }
+    catch (WebSocketException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      handlerFailed(e);
+    }
+  }
+
+  private void closeReceived(byte[] payload) throws IOException {
+    int code = NO_STATUS;
+    String reason = "";
+    if (payload.length == 1) throw new WebSocketException(PROTOCOL_ERROR, "invalid close frame");
+    if (payload.length >= 2) {
+      code = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+      if (!isValidCloseCode(code)) throw new WebSocketException(PROTOCOL_ERROR, "invalid close code " + code);
+      reason = decodeText(payload, 2, payload.length - 2);
+    }
+    synchronized (this) {
+      closeCode = code;
+      closeReason = reason;
+    }
+    // the client has nothing more to send; the server closes the connection
+    // once its own close frame is out
+    sendClose(code, "");
+    output.closeWhenSent();
+  }
+
+  private static boolean isValidCloseCode(int code) {
+    return code >= 1000 && code <= 1003 || code >= 1007 && code <= 1014 || code >= 3000 && code <= 4999;
+  }
+
+  private static String decodeText(byte[] data) throws WebSocketException {
+    return decodeText(data, 0, data.length);
+  }
+
+  private static String decodeText(byte[] data, int off, int len) throws WebSocketException {
+    try {
+      return StandardCharsets.UTF_8.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPORT)
+          .onUnmappableCharacter(CodingErrorAction.REPORT)
+          .decode(ByteBuffer.wrap(data, off, len)).toString();
+    }
+    catch (CharacterCodingException e) {
+      throw new WebSocketException(INVALID_PAYLOAD, "invalid UTF-8 text");
+    }
+  }
+
+  private void handlerFailed(Exception e) {
+    HTTPServer.LOG.log(Level.SEVERE, "WebSocket handler failed", e);
+    fail(INTERNAL_ERROR, "");
+  }
+
+  private void open(UpgradeResponse.Connection connection) {
+    this.connection = connection;
+    output.open(connection);
+    reader.setMaxPayload(maxMessageSize);
+    try {
+      handler.onOpen(this);
+    }
+    catch (Exception e) {
+      handlerFailed(e);
+    }
+  }
+
+  private boolean receive(InputStream inputStream) throws IOException {
+    if (readBuffer == null) readBuffer = new byte[8192];
+    do {
+      int available = inputStream.available();
+      if (connection.isNonBlocking() && available == 0) break;
+      int n = inputStream.read(readBuffer, 0, connection.isNonBlocking() ? Math.min(available, readBuffer.length) : readBuffer.length);
+      if (n < 0) return false;
+      synchronized (this) {
+        if (failed || state == CLOSED) continue;
+      }
+      try {
+        reader.read(readBuffer, 0, n);
+      }
+      catch (WebSocketException e) {
+        HTTPServer.LOG.log(Level.FINE, "WebSocket protocol error", e);
+        fail(e.getCode(), e.getMessage());
+      }
+    } while (inputStream.available() > 0);
+    return state != CLOSED;
+  }
+
+  private void closed() {
+    int code;
+    String reason;
+    synchronized (this) {
+      state = CLOSED;
+      if (notified) return;
+      notified = true;
+      code = closeCode;
+      reason = closeReason;
+    }
+    output.discard();
+    if (deflate != null) deflate.end();
+    try {
+      handler.onClose(this, code, reason);
+    }
+    catch (RuntimeException e) {
+      HTTPServer.LOG.log(Level.SEVERE, "WebSocket handler failed", e);
+    }
+  }
+
+  /**
+   * The 101 response, which hands the connection to the socket.
+   */
+  private final class Handshake extends UpgradeResponse {
+
+    Handshake() {
+      super("websocket");
+    }
+
+    @Override
+    public void open(Connection connection) {
+      WebSocket.this.open(connection);
+    }
+
+    @Override
+    public boolean receive(InputStream inputStream) throws IOException {
+      return WebSocket.this.receive(inputStream);
+    }
+
+    @Override
+    public int getTimeout() {
+      int timeout = WebSocket.this.timeout;
+      if (state == OPEN) return timeout;
+      return timeout > 0 ? Math.min(timeout, CLOSE_TIMEOUT) : CLOSE_TIMEOUT;
+    }
+
+    @Override
+    public void closed() {
+      WebSocket.this.closed();
+    }
+
+  }
+
+  /**
+   * Writes the frames: at once on a blocking connection, or through a queue
+   * drained by the write selector on a non-blocking one.
+   */
+  private final class Output implements WriteSelector.Task {
+
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+    private OutputStream stream;
+    private ChannelOutputStream channel;
+    private volatile long queued;
+    private boolean registered, closeWhenSent, discarded;
+
+    synchronized void open(UpgradeResponse.Connection connection) {
+      this.stream = connection.getOutputStream();
+      if (connection.isNonBlocking()) this.channel = (ChannelOutputStream) stream;
+    }
+
+    void write(byte[] frame) throws IOException {
+      boolean drop;
+      try {
+        synchronized (this) {
+          if (discarded) throw new IOException("WebSocket is closed");
+          if (channel == null) {
+            stream.write(frame);
+            stream.flush();
+            return;
+          }
+          queue.add(ByteBuffer.wrap(frame));
+          queued += frame.length;
+          if (!registered) writeQueued();
+          drop = queued > maxBufferedAmount;
+        }
+      }
+      catch (IOException e) {
+        if (!discarded) connection.close();
+        throw e;
+      }
+      if (drop) {
+        HTTPServer.LOG.log(Level.FINE, "WebSocket client is not reading, dropping the connection");
+        connection.close();
+      }
+    }
+
+    /**
+     * Closes the connection once the queued frames have been sent.
+     */
+    void closeWhenSent() {
+      synchronized (this) {
+        closeWhenSent = true;
+        if (registered) return;
+      }
+      connection.close();
+    }
+
+    synchronized void discard() {
+      discarded = true;
+      queue.clear();
+      queued = 0;
+    }
+
+    private void writeQueued() throws IOException {
+      ByteBuffer bytes;
+      while ((bytes = queue.peek()) != null) {
+        queued -= channel.writeAvailable(bytes);
+        if (bytes.hasRemaining()) {
+          if (!registered) {
+            registered = true;
+            WriteSelector.getInstance().register(channel.getChannel(), this);
+          }
+          return;
+        }
+        queue.poll();
+      }
+      registered = false;
+    }
+
+    @Override
+    public boolean writable() throws IOException {
+      boolean close;
+      synchronized (this) {
+        if (discarded) return true;
+        writeQueued();
+        if (registered) return false;
+        close = closeWhenSent;
+      }
+      if (close) connection.close();
+      return true;
+    }
+
+    @Override
+    public void failed(IOException error) {
+      synchronized (this) {
+        registered = false;
+      }
+      HTTPServer.LOG.log(Level.FINE, "WebSocket connection failed", error);
+      connection.close();
+    }
+
+  }
+
+}
@@ -0,0 +1,24 @@
+package box.star.net.http.websocket;
+
+import java.io.IOException;
+
+/**
+ * A violation of the protocol by the client, which fails the connection with
+ * the close code of the exception.
+ */
+public class WebSocketException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int code;
+
+  public WebSocketException(int code, String message) {
+    super(message);
+    this.code = code;
+  }
+
+  public int getCode() {
+    return code;
+  }
+
+}
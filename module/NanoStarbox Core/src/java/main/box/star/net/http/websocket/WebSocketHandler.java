@@ -0,0 +1,34 @@
+package box.star.net.http.websocket;
+
+import java.io.IOException;
+
+/**
+ * Receives the events of a {@link WebSocket}.
+ * <p>
+ * Messages are delivered one at a time, on the thread that read them; on a
+ * selector connection that is a worker, which must not be held, so a handler
+ * with slow work hands it to its own threads. An exception thrown by the
+ * handler closes the socket with {@link WebSocket#INTERNAL_ERROR}.
+ * </p>
+ */
+public interface WebSocketHandler {
+
+  /**
+   * The handshake is done, and the socket can send.
+   */
+  void onOpen(WebSocket socket) throws IOException;
+
+  void onText(WebSocket socket, String text) throws IOException;
+
+  void onBinary(WebSocket socket, byte[] data) throws IOException;
+
+  /**
+   * The connection is closed; called once, on any thread.
+   *
+   * @param code   the code of the close frame the client sent, or
+   *               {@link WebSocket#ABNORMAL_CLOSURE} if the connection ended without one
+   * @param reason the reason the client gave, or an empty string
+   */
+  void onClose(WebSocket socket, int code, String reason);
+
+}
@@ -0,0 +1,216 @@
+package box.star.net.tools;
+
+import box.star.net.http.response.Response;
+import box.star.net.http.response.Status;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>Compressed representations of static file content.</p>
+ * <br>
+ * <p>A file result is served from a sibling {@code .br} or {@code .gz} file
+ * when the client accepts that encoding and the sibling is not older than the
+ * file. Otherwise compressible files are gzipped once and kept in memory,
+ * keyed on path, modification time and length, so that a changed file is
+ * compressed again. The cache holds at most {@link #getCapacity()} bytes of
+ * compressed data and evicts the least recently used entries.</p>
+ * <br>
+ */
+public class CompressedContentCache {
+
+  public static final long DEFAULT_CAPACITY = 16 * 1024 * 1024;
+  public static final long DEFAULT_MAX_ENTRY_SIZE = 1024 * 1024;
+
+  private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<Key, byte[]>(64, 0.75f, true);
+  private long capacity, maxEntrySize, size;
+  private long hits, misses, evictions;
+  private volatile boolean siblingFiles = true;
+
+  public CompressedContentCache() {
+    this(DEFAULT_CAPACITY, DEFAULT_MAX_ENTRY_SIZE);
+  }
+
+  /**
+   * @param capacity     the maximum number of compressed bytes held
+   * @param maxEntrySize files larger than this are compressed per request instead
+   */
+  public CompressedContentCache(long capacity, long maxEntrySize) {
+    this.capacity = capacity;
+    this.maxEntrySize = maxEntrySize;
+  }
+
+  /**
+   * Creates a compressed response for the result, if it is a file that can be
+   * served compressed, or a deflated entry of a {@link ZipSiteProvider}.
+   *
+   * @return the response, or null if the result should be sent as it is
+   */
+  public Response getResponse(ServerResult result) {
+    if (!result.isOkay() || result.session == null) return null;
+    String acceptEncoding = (String) result.session.getHeaders().get("accept-encoding");
+    if (result.data instanceof ZipSiteProvider.EntryStream) {
+      ZipSiteProvider.EntryStream entry = result.get();
+      if (!entry.isDeflated() || !Response.acceptsEncoding(acceptEncoding, "gzip")) return null;
+      return entry.createGzipResponse(result.mimeType);
+    }
+    if (!result.isFile()) return null;
+    File file = result.get();
+    if (siblingFiles) {
+      if (Response.acceptsEncoding(acceptEncoding, "br")) {
+        Response response = siblingResponse(result, file, ".br", "br");
+        if (response != null) return response;
+      }
+      if (Response.acceptsEncoding(acceptEncoding, "gzip")) {
+        Response response = siblingResponse(result, file, ".gz", "gzip");
+        if (response != null) return response;
+      }
+    }
+    if (!Response.isCompressible(result.mimeType) || result.length > getMaxEntrySize()) return null;
+    if (!Response.acceptsEncoding(acceptEncoding, "gzip")) {
+      Response response = ContentCache.newHeldResponse(Status.OK, result.mimeType, file, 0, result.length);
+      if (response == null) response = Response.newFileResponse(Status.OK, result.mimeType, file, 0, result.length);
+      response.setUseGzip(false);
+      response.addHeader("Vary", "Accept-Encoding");
+      return response;
+    }
+    byte[] compressed = get(file, result.lastModified, result.length);
+    if (compressed == null) return null;
+    Response response = Response.newFixedLengthResponse(Status.OK, result.mimeType, new ByteArrayInputStream(compressed), compressed.length);
+    response.setUseGzip(false);
+    response.addHeader("Content-Encoding", "gzip");
+    response.addHeader("Vary", "Accept-Encoding");
+    return response;
+  }
+
+  private Response siblingResponse(ServerResult result, File file, String extension, String encoding) {
+    File sibling = new File(file.getPath() + extension);
+    if (!sibling.isFile() || sibling.lastModified() < file.lastModified()) return null;
+    Response response = Response.newFileResponse(Status.OK, result.mimeType, sibling, 0, sibling.length());
+    response.setUseGzip(false);
+    response.addHeader("Content-Encoding", encoding);
+    response.addHeader("Vary", "Accept-Encoding");
+    return response;
+  }
+
+  /**
+   * Gets the gzip representation of the file, compressing it if it is not
+   * cached for this modification time and length.
+   *
+   * @return the compressed bytes, or null if the file cannot be read
+   */
+  public byte[] get(File file, long lastModified, long length) {
+    Key key = new Key(file.getPath(), lastModified, length);
+    synchronized (this) {
+      byte[] compressed = entries.get(key);
+      if (compressed != null) {
+        hits++;
+        return compressed;
+      }
+      misses++;
+    }
+    byte[] compressed;
+    try {
+      compressed = compress(file, length);
+    }
+    catch (IOException e) {
+      return null;
+    }
+    put(key, compressed);
+    return compressed;
+  }
+
+  private static byte[] compress(File file, long length) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) Math.max(512, length / 4));
+    InputStream in = new FileInputStream(file);
+    try {
+      GZIPOutputStream gzip = new GZIPOutputStream(buffer);
+      byte[] chunk = new byte[16 * 1024];
+      int read;
+      while ((read = in.read(chunk)) > 0) gzip.write(chunk, 0, read);
+      gzip.finish();
+    }
+    finally {
+      in.close();
+    }
+    return buffer.toByteArray();
+  }
+
+  private synchronized void put(Key key, byte[] compressed) {
+    if (compressed.length > capacity) return;
+    byte[] previous = entries.put(key, compressed);
+    if (previous != null) size -= previous.length;
+    size += compressed.length;
+    Iterator<Map.Entry<Key, byte[]>> eldest = entries.entrySet().iterator();
+    while (size > capacity && eldest.hasNext()) {
+      Map.Entry<Key, byte[]> entry = eldest.next();
+      if (entry.getKey().equals(key)) continue;
+      size -= entry.getValue().length;
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    size = 0;
+  }
+
+  public synchronized long getCapacity() { return capacity; }
+
+  public synchronized void setCapacity(long capacity) {
+    this.capacity = capacity;
+    Iterator<byte[]> eldest = entries.values().iterator();
+    while (size > capacity && eldest.hasNext()) {
+      size -= eldest.next().length;
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+  public synchronized long getMaxEntrySize() { return maxEntrySize; }
+
+  public synchronized void setMaxEntrySize(long maxEntrySize) { this.maxEntrySize = maxEntrySize; }
+
+  /**
+   * Enables serving of {@code .br} and {@code .gz} sibling files, which is on by default.
+   */
+  public void setSiblingFiles(boolean siblingFiles) { this.siblingFiles = siblingFiles; }
+
+  public synchronized long getSize() { return size; }
+
+  public synchronized int getCount() { return entries.size(); }
+
+  public synchronized long getHits() { return hits; }
+
+  public synchronized long getMisses() { return misses; }
+
+  public synchronized long getEvictions() { return evictions; }
+
+  private static class Key {
+    private final String path;
+    private final long lastModified, length;
+
+    Key(String path, long lastModified, long length) {
+      this.path = path;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+      Key key = (Key) o;
+      return lastModified == key.lastModified && length == key.length && path.equals(key.path);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * path.hashCode() + (int) (lastModified ^ (lastModified >>> 32))) + (int) (length ^ (length >>> 32));
+    }
+  }
+
+}
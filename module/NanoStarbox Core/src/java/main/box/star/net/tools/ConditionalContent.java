@@ -0,0 +1,406 @@
+package box.star.net.tools;
+
+import box.star.io.ByteBufferInputStream;
+import box.star.net.http.request.Method;
+import box.star.net.http.response.Response;
+import box.star.net.http.response.Status;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Conditional and range requests for server content.</p>
+ * <br>
+ * <p>Validators are derived from the result of a request without reading its
+ * data: an {@code ETag} from the modification time and length of files, zip
+ * entries and streams of a known length, or from a checksum of a generated
+ * byte array, and a {@code Last-Modified} date when the modification time
+ * is known.
+ * {@link #getResponse(ServerResult)} answers {@code If-None-Match} and
+ * {@code If-Modified-Since} with 304, {@code If-Match} and
+ * {@code If-Unmodified-Since} with 412, and {@code Range} with single or
+ * multipart 206 responses, before the content is opened.
+ * {@link #addValidators(ServerResult, Response)} labels full responses.</p>
+ * <br>
+ * <p>A compressed representation gets the tag of its content with the
+ * encoding appended, as in {@code "5f3a-1c2-gzip"}; tags of either form
+ * match the content for {@code If-None-Match}. Range responses are always
+ * sent unencoded.</p>
+ * <br>
+ * <p>Results made by mime type drivers, and strings, have no validators and
+ * are always sent in full.</p>
+ * <br>
+ */
+public class ConditionalContent {
+
+  public static final int DEFAULT_MAX_RANGES = 16;
+
+  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+
+  static {
+    DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
+  }
+
+  private volatile int maxRanges = DEFAULT_MAX_RANGES;
+
+  public int getMaxRanges() { return maxRanges; }
+
+  /**
+   * Sets the number of ranges that a request may ask for; requests for more
+   * ranges are answered with the whole content.
+   */
+  public void setMaxRanges(int maxRanges) { this.maxRanges = maxRanges; }
+
+  /**
+   * @return the entity tag of the result's content, or null if the result has none
+   */
+  public static String getEntityTag(ServerResult result) {
+    if (!result.isOkay()) return null;
+    Object data = result.data;
+    if (data instanceof byte[]) {
+      byte[] bytes = (byte[]) data;
+      if (result.isServerGenerated()) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return "\"" + Long.toHexString(crc.getValue()) + "-" + Long.toHexString(bytes.length) + "\"";
+      }
+      return "\"" + Long.toHexString(result.lastModified) + "-" + Long.toHexString(bytes.length) + "\"";
+    }
+    if (result.isServerGenerated() || result.lastModified <= 0) return null;
+    if (data instanceof File)
+      return "\"" + Long.toHexString(result.lastModified) + "-" + Long.toHexString(((File) data).length()) + "\"";
+    if (data instanceof BufferedInputStream && result.length > 0)
+      return "\"" + Long.toHexString(result.lastModified) + "-" + Long.toHexString(result.length) + "\"";
+    return null;
+  }
+
+  public static String formatDate(long time) {
+    synchronized (DATE_FORMAT) {
+      return DATE_FORMAT.format(new Date(time));
+    }
+  }
+
+  /**
+   * @return the time of an HTTP date, or -1 if it is not a date
+   */
+  public static long parseDate(String date) {
+    try {
+      synchronized (DATE_FORMAT) {
+        return DATE_FORMAT.parse(date).getTime();
+      }
+    }
+    catch (ParseException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Answers the conditions and the range of a request.
+   *
+   * @return a 304, 206, 412 or 416 response, or null if the content should be sent in full
+   */
+  public Response getResponse(ServerResult result) {
+    if (result.session == null) return null;
+    Method method = result.session.getMethod();
+    if (method != Method.GET && method != Method.HEAD) return null;
+    String tag = getEntityTag(result);
+    if (tag == null) return null;
+    Map<String, String> headers = result.session.getHeaders();
+    long length = getLength(result);
+    long modified = lastModified(result);
+
+    String ifMatch = headers.get("if-match");
+    if (ifMatch != null) {
+      if (!matches(ifMatch, tag, true)) return precondition(result, Status.PRECONDITION_FAILED, tag);
+    } else if (modified > 0 && headers.get("if-unmodified-since") != null) {
+      long since = parseDate(headers.get("if-unmodified-since"));
+      if (since >= 0 && modified > since) return precondition(result, Status.PRECONDITION_FAILED, tag);
+    }
+
+    String ifNoneMatch = headers.get("if-none-match");
+    if (ifNoneMatch != null) {
+      if (matches(ifNoneMatch, tag, false)) return precondition(result, Status.NOT_MODIFIED, tag);
+    } else if (modified > 0 && headers.get("if-modified-since") != null) {
+      long since = parseDate(headers.get("if-modified-since"));
+      if (since >= 0 && modified <= since) return precondition(result, Status.NOT_MODIFIED, tag);
+    }
+
+    String range = headers.get("range");
+    if (range == null || method != Method.GET) return null;
+    String ifRange = headers.get("if-range");
+    if (ifRange != null) {
+      ifRange = ifRange.trim();
+      boolean current = ifRange.startsWith("\"") ? ifRange.equals(tag)
+          : modified > 0 && parseDate(ifRange) == modified;
+      if (!current) return null;
+    }
+    long[] ranges = parseRanges(range, length);
+    if (ranges == null) return null;
+    if (ranges.length == 0) {
+      close(result);
+      Response response = Response.newFixedLengthResponse(Status.RANGE_NOT_SATISFIABLE, null, new ByteArrayInputStream(new byte[0]), 0);
+      response.addHeader("Content-Range", "bytes */" + length);
+      return response;
+    }
+    if (result.data instanceof BufferedInputStream && !ascending(ranges)) return null;
+    Response response = ranges.length == 2 ? singleRange(result, ranges[0], ranges[1], length)
+        : multipleRanges(result, ranges, length);
+    response.setUseGzip(false);
+    response.addHeader("Accept-Ranges", "bytes");
+    addValidator(result, response, tag);
+    return response;
+  }
+
+  /**
+   * Adds the validators of the result to the response of its full content.
+   */
+  public void addValidators(ServerResult result, Response response) {
+    if (result.session == null || response.getStatus() != Status.OK) return;
+    String tag = getEntityTag(result);
+    if (tag == null) return;
+    String encoding = response.getHeader("content-encoding");
+    if (encoding == null && response.useGzipWhenAccepted()
+        && Response.acceptsEncoding((String) result.session.getHeaders().get("accept-encoding"), "gzip"))
+      encoding = "gzip";
+    if (encoding != null) tag = tag.substring(0, tag.length() - 1) + "-" + encoding.trim() + "\"";
+    else response.addHeader("Accept-Ranges", "bytes");
+    addValidator(result, response, tag);
+  }
+
+  private static void addValidator(ServerResult result, Response response, String tag) {
+    response.addHeader("ETag", tag);
+    if (lastModified(result) > 0) response.addHeader("Last-Modified", formatDate(result.lastModified));
+  }
+
+  /**
+   * @return the modification time of the content to the second, as it is
+   * sent, or -1 if the content has none
+   */
+  private static long lastModified(ServerResult result) {
+    if (result.isServerGenerated() || result.lastModified <= 0) return -1;
+    return result.lastModified / 1000 * 1000;
+  }
+
+  private static long getLength(ServerResult result) {
+    if (result.data instanceof byte[]) return ((byte[]) result.data).length;
+    if (result.data instanceof File) return ((File) result.data).length();
+    return result.length;
+  }
+
+  /**
+   * Tests a list of entity tags for the tag of the content; a weak comparison
+   * also matches weak tags, and the tags of encoded representations.
+   */
+  private static boolean matches(String header, String tag, boolean strong) {
+    if (header.trim().equals("*")) return true;
+    for (String item : header.split(",")) {
+      String candidate = item.trim();
+      if (candidate.startsWith("W/")) {
+        if (strong) continue;
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals(tag)) return true;
+      if (!strong && candidate.length() > tag.length() && candidate.endsWith("\"")
+          && candidate.startsWith(tag.substring(0, tag.length() - 1) + "-")) return true;
+    }
+    return false;
+  }
+
+  private Response precondition(ServerResult result, Status status, String tag) {
+    close(result);
+    Response response = Response.newFixedLengthResponse(status, null, new ByteArrayInputStream(new byte[0]), 0);
+    if (status == Status.NOT_MODIFIED) addValidator(result, response, tag);
+    return response;
+  }
+
+  /**
+   * Parses a byte range header into pairs of first and last positions.
+   *
+   * @return the satisfiable ranges, an empty array if there are none, or null
+   * if the header should be ignored
+   */
+  long[] parseRanges(String header, long length) {
+    header = header.trim();
+    if (!header.startsWith("bytes=")) return null;
+    String[] specs = header.substring(6).split(",");
+    if (specs.length > maxRanges) return null;
+    long[] ranges = new long[specs.length * 2];
+    int count = 0;
+    try {
+      for (String spec : specs) {
+        spec = spec.trim();
+        int minus = spec.indexOf('-');
+        if (minus == -1) return null;
+        long first, last;
+        if (minus == 0) {
+          long suffix = Long.parseLong(spec.substring(1).trim());
+          if (suffix < 0) return null;
+          if (suffix == 0) continue;
+          first = Math.max(0, length - suffix);
+          last = length - 1;
+        } else {
+          first = Long.parseLong(spec.substring(0, minus).trim());
+          String end = spec.substring(minus + 1).trim();
+          last = end.isEmpty() ? length - 1 : Math.min(Long.parseLong(end), length - 1);
+          if (first < 0 || (!end.isEmpty() && Long.parseLong(end) < first)) return null;
+        }
+        if (first >= length) continue;
+        ranges[count++] = first;
+        ranges[count++] = last;
+      }
+    }
+    catch (NumberFormatException e) {
+      return null;
+    }
+    return Arrays.copyOf(ranges, count);
+  }
+
+  private static boolean ascending(long[] ranges) {
+    for (int i = 2; i < ranges.length; i += 2) if (ranges[i] <= ranges[i - 1]) return false;
+    return true;
+  }
+
+  private static Response singleRange(ServerResult result, long first, long last, long length) {
+    long count = last - first + 1;
+    Response response;
+    if (result.data instanceof File) {
+      response = ContentCache.newHeldResponse(Status.PARTIAL_CONTENT, result.mimeType, (File) result.data, first, count);
+      if (response == null) response = Response.newFileResponse(Status.PARTIAL_CONTENT, result.mimeType, (File) result.data, first, count);
+    } else {
+      response = Response.newFixedLengthResponse(Status.PARTIAL_CONTENT, result.mimeType, open(result, first, count, null), count);
+    }
+    response.addHeader("Content-Range", "bytes " + first + "-" + last + "/" + length);
+    return response;
+  }
+
+  private static Response multipleRanges(final ServerResult result, final long[] ranges, long length) {
+    String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+    final List<byte[]> heads = new ArrayList<>();
+    long total = 0;
+    for (int i = 0; i < ranges.length; i += 2) {
+      String head = (i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n" +
+          (result.mimeType == null ? "" : "Content-Type: " + result.mimeType + "\r\n") +
+          "Content-Range: bytes " + ranges[i] + "-" + ranges[i + 1] + "/" + length + "\r\n\r\n";
+      byte[] bytes = head.getBytes(StandardCharsets.ISO_8859_1);
+      heads.add(bytes);
+      total += bytes.length + ranges[i + 1] - ranges[i] + 1;
+    }
+    final byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    total += tail.length;
+    final long[] position = {0};
+    // the parts are opened as they are reached
+    Enumeration<InputStream> parts = new Enumeration<InputStream>() {
+      int part;
+
+      @Override
+      public boolean hasMoreElements() {
+        return part <= ranges.length;
+      }
+
+      @Override
+      public InputStream nextElement() {
+        int i = part++;
+        if (i == ranges.length) {
+          if (position[0] > 0) close(result);
+          return new ByteArrayInputStream(tail);
+        }
+        if (i % 2 == 0) return new ByteArrayInputStream(heads.get(i / 2));
+        long first = ranges[i - 1], count = ranges[i] - first + 1;
+        return open(result, first, count, position);
+      }
+    };
+    return Response.newFixedLengthResponse(Status.PARTIAL_CONTENT, "multipart/byteranges; boundary=" + boundary,
+        new SequenceInputStream(parts), total);
+  }
+
+  /**
+   * Opens a region of the content. A stream is shared by the regions of a
+   * request, which are read in order; {@code position} tracks how much of it
+   * has been read.
+   */
+  private static InputStream open(ServerResult result, long first, long count, long[] position) {
+    Object data = result.data;
+    if (data instanceof byte[]) return new ByteArrayInputStream((byte[]) data, (int) first, (int) count);
+    try {
+      ByteBuffer body = data instanceof ContentCache.CachedFile ? ((ContentCache.CachedFile) data).getBody() : null;
+      if (body != null) {
+        body.position((int) first).limit((int) (first + count));
+        return new ByteBufferInputStream(body);
+      }
+      if (data instanceof File) {
+        FileInputStream file = new FileInputStream((File) data);
+        file.getChannel().position(first);
+        return new Region(file, count, true);
+      }
+      InputStream stream = (InputStream) data;
+      long skip = first - (position == null ? 0 : position[0]);
+      while (skip > 0) {
+        long skipped = stream.skip(skip);
+        if (skipped <= 0) {
+          if (stream.read() == -1) break;
+          skipped = 1;
+        }
+        skip -= skipped;
+      }
+      if (position != null) position[0] = first + count;
+      return new Region(stream, count, position == null);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void close(ServerResult result) {
+    if (result.data instanceof Closeable) {
+      try { ((Closeable) result.data).close(); }
+      catch (IOException ignored) {}
+    }
+  }
+
+  /**
+   * Reads at most a count of bytes of a stream.
+   */
+  private static class Region extends FilterInputStream {
+    private long remaining;
+    private final boolean owner;
+
+    Region(InputStream in, long count, boolean owner) {
+      super(in);
+      this.remaining = count;
+      this.owner = owner;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) return -1;
+      int b = in.read();
+      if (b != -1) remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) return -1;
+      int read = in.read(b, off, (int) Math.min(len, remaining));
+      if (read > 0) remaining -= read;
+      return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (owner) in.close();
+    }
+  }
+
+}
@@ -0,0 +1,417 @@
+package box.star.net.tools;
+
+import box.star.io.ByteBufferInputStream;
+import box.star.net.http.IHTTPSession;
+import box.star.net.http.response.IStatus;
+import box.star.net.http.response.Response;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Hot file content of {@link FileContentProvider}s, held in memory.</p>
+ * <br>
+ * <p>The stat of a requested file, and the index file of a requested
+ * directory, are resolved once and trusted for {@link #getTimeToLive()}
+ * milliseconds, so that a hit does not touch the file system. A file is
+ * checked again when its time is up, and dropped if its length or
+ * modification time has changed. With {@link #setWatching(boolean)}, a
+ * {@link WatchService} also drops entries as soon as their directories
+ * change.</p>
+ * <br>
+ * <p>Files of at most {@link #getMaxEntrySize()} bytes are read into
+ * immutable buffers, on the heap or off it with
+ * {@link #setDirectBuffers(boolean)}, when they are requested a second time
+ * within their time to live; a file that is requested once is not held. The
+ * buffers hold at most {@link #getCapacity()} bytes, and are evicted by a
+ * clock sweep that gives recently served files a second chance, so a hit
+ * takes no lock.</p>
+ * <br>
+ * <p>The content of a hit is a {@link CachedFile}, which is a {@link File}
+ * that answers its stat from the cache, and is sent from its buffer by
+ * {@link #newHeldResponse(IStatus, String, File, long, long)}.</p>
+ * <br>
+ */
+public class ContentCache {
+
+  public static final long DEFAULT_CAPACITY = 32 * 1024 * 1024;
+  public static final long DEFAULT_MAX_ENTRY_SIZE = 256 * 1024;
+  public static final long DEFAULT_TIME_TO_LIVE = 1000;
+  public static final int DEFAULT_MAX_ENTRIES = 16 * 1024;
+
+  private final ConcurrentHashMap<String, CachedFile> files = new ConcurrentHashMap<>();
+  private final ArrayDeque<CachedFile> clock = new ArrayDeque<>();
+  private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), heldHits = new AtomicLong();
+  private long capacity, size;
+  private volatile long maxEntrySize;
+  private long loads, evictions;
+  private volatile long timeToLive = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIME_TO_LIVE);
+  private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+  private volatile boolean directBuffers;
+  private volatile Watcher watcher;
+
+  public ContentCache() {
+    this(DEFAULT_CAPACITY, DEFAULT_MAX_ENTRY_SIZE);
+  }
+
+  /**
+   * @param capacity     the maximum number of bytes held in memory
+   * @param maxEntrySize files larger than this are always read from disk
+   */
+  public ContentCache(long capacity, long maxEntrySize) {
+    this.capacity = capacity;
+    this.maxEntrySize = maxEntrySize;
+  }
+
+  /**
+   * A file as it was when the cache last checked it.
+   */
+  public static class CachedFile extends File {
+
+    private static final long serialVersionUID = 5230468130925571407L;
+    private final boolean found;
+    private final long length, lastModified;
+    private final String mimeType;
+    private volatile long checked;
+    private volatile ByteBuffer body;
+    private volatile boolean referenced;
+    private volatile int requests;
+
+    CachedFile(String path, boolean found, long length, long lastModified, String mimeType, long checked) {
+      super(path);
+      this.found = found;
+      this.length = length;
+      this.lastModified = lastModified;
+      this.mimeType = mimeType;
+      this.checked = checked;
+    }
+
+    @Override
+    public boolean exists() { return found; }
+
+    @Override
+    public boolean isFile() { return found; }
+
+    @Override
+    public boolean isDirectory() { return false; }
+
+    @Override
+    public long length() { return length; }
+
+    @Override
+    public long lastModified() { return lastModified; }
+
+    /**
+     * @return the content of the file, or null if it is not held in memory
+     */
+    public ByteBuffer getBody() {
+      ByteBuffer body = this.body;
+      return body == null ? null : body.duplicate();
+    }
+
+    boolean isCurrent(CachedFile file) {
+      return found == file.found && length == file.length && lastModified == file.lastModified && getPath().equals(file.getPath());
+    }
+
+  }
+
+  /**
+   * Creates the content of a file for a request.
+   *
+   * @param mimeType the mime type of the requested path
+   * @param file     the requested file or directory
+   */
+  public ServerContent getContent(IHTTPSession session, String mimeType, File file) {
+    String key = file.getPath();
+    long now = System.nanoTime();
+    CachedFile cached = files.get(key);
+    if (cached != null && now - cached.checked < timeToLive) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      CachedFile current = stat(session, file, now);
+      if (cached != null && cached.isCurrent(current)) {
+        cached.checked = now;
+      } else {
+        if (cached != null) release(cached);
+        if (files.size() >= maxEntries) clear();
+        files.put(key, current);
+        Watcher watcher = this.watcher;
+        if (watcher != null) watcher.register(file, current);
+        cached = current;
+      }
+    }
+    if (cached.body != null) {
+      cached.referenced = true;
+      heldHits.incrementAndGet();
+    } else if (cached.found && cached.length <= maxEntrySize && ++cached.requests > 1) {
+      load(key, cached);
+    }
+    return new ServerContent(session, cached.mimeType == null ? mimeType : cached.mimeType, cached);
+  }
+
+  /**
+   * Resolves a file the way {@link ServerContent} does, with the index files
+   * of the server for a directory.
+   */
+  private static CachedFile stat(IHTTPSession session, File file, long now) {
+    if (file.isDirectory()) {
+      for (String index : session.getServer().getIndexFileList()) {
+        File test = new File(file, index);
+        if (test.exists())
+          return new CachedFile(test.getPath(), true, test.length(), test.lastModified(), session.getServer().getMimeTypeForPath(index), now);
+      }
+      return new CachedFile(file.getPath(), false, 0, 0, null, now);
+    }
+    long lastModified = file.lastModified();
+    if (lastModified == 0 && !file.exists()) return new CachedFile(file.getPath(), false, 0, 0, null, now);
+    return new CachedFile(file.getPath(), true, file.length(), lastModified, null, now);
+  }
+
+  /**
+   * Reads a file into memory, if it has not changed since it was checked.
+   */
+  private void load(String key, CachedFile file) {
+    synchronized (file) {
+      if (file.body != null) return;
+      ByteBuffer body = directBuffers ? ByteBuffer.allocateDirect((int) file.length) : ByteBuffer.allocate((int) file.length);
+      try {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+          if (channel.size() != file.length) return;
+          while (body.hasRemaining() && channel.read(body) != -1) ;
+        }
+        finally {
+          channel.close();
+        }
+        if (body.hasRemaining() || new File(file.getPath()).lastModified() != file.lastModified) return;
+      }
+      catch (IOException e) {
+        return;
+      }
+      body.flip();
+      synchronized (this) {
+        if (files.get(key) != file || file.length > capacity) return;
+        file.body = body.asReadOnlyBuffer();
+        file.referenced = true;
+        size += file.length;
+        clock.add(file);
+        loads++;
+        evict();
+      }
+    }
+  }
+
+  /**
+   * Drops buffers until the held size is within capacity, sparing those that
+   * were served since the sweep last passed them once.
+   */
+  private void evict() {
+    int chances = clock.size();
+    while (size > capacity && !clock.isEmpty()) {
+      CachedFile file = clock.poll();
+      if (file.referenced && chances-- > 0) {
+        file.referenced = false;
+        clock.add(file);
+        continue;
+      }
+      file.body = null;
+      size -= file.length;
+      evictions++;
+    }
+  }
+
+  private synchronized void release(CachedFile file) {
+    if (file.body == null) return;
+    file.body = null;
+    size -= file.length;
+    clock.remove(file);
+  }
+
+  /**
+   * Drops the entry of a path, and the entries below it.
+   */
+  public void invalidate(String path) {
+    String below = path.endsWith(File.separator) ? path : path + File.separator;
+    Iterator<Map.Entry<String, CachedFile>> entries = files.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<String, CachedFile> entry = entries.next();
+      String key = entry.getKey();
+      if (key.equals(path) || key.startsWith(below) || entry.getValue().getPath().equals(path)) {
+        entries.remove();
+        release(entry.getValue());
+      }
+    }
+  }
+
+  private void remove(String key) {
+    CachedFile file = files.remove(key);
+    if (file != null) release(file);
+  }
+
+  public synchronized void clear() {
+    files.clear();
+    for (CachedFile file : clock) file.body = null;
+    clock.clear();
+    size = 0;
+  }
+
+  /**
+   * Creates a response for a region of a file that is held in memory.
+   *
+   * @return the response, or null if the file is not held
+   */
+  public static Response newHeldResponse(IStatus status, String mimeType, File file, long offset, long length) {
+    if (!(file instanceof CachedFile)) return null;
+    ByteBuffer body = ((CachedFile) file).getBody();
+    if (body == null) return null;
+    body.position((int) offset).limit((int) (offset + length));
+    return Response.newFixedLengthResponse(status, mimeType, new ByteBufferInputStream(body), length);
+  }
+
+  /**
+   * Watches the directories of cached files, and drops their entries as soon
+   * as the directories change. The time to live still applies, for changes
+   * that are not reported.
+   */
+  public synchronized void setWatching(boolean watching) throws IOException {
+    if (watching == (watcher != null)) return;
+    if (watching) {
+      watcher = new Watcher(FileSystems.getDefault().newWatchService());
+      watcher.start();
+      for (Map.Entry<String, CachedFile> entry : files.entrySet())
+        watcher.register(new File(entry.getKey()), entry.getValue());
+    } else {
+      watcher.close();
+      watcher = null;
+    }
+  }
+
+  public boolean isWatching() { return watcher != null; }
+
+  private class Watcher extends Thread {
+    private final WatchService service;
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+
+    Watcher(WatchService service) {
+      super("ContentCache Watcher");
+      this.service = service;
+      setDaemon(true);
+    }
+
+    void register(File requested, CachedFile file) {
+      register(file.getParentFile());
+      // a directory, which may get an index file
+      if (!file.found || !requested.getPath().equals(file.getPath())) register(requested);
+    }
+
+    private void register(File directory) {
+      if (directory == null) return;
+      Path path = directory.toPath();
+      if (directories.contains(path)) return;
+      try {
+        path.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        directories.add(path);
+      }
+      catch (IOException | ClosedWatchServiceException ignored) {}
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          WatchKey key = service.take();
+          Path directory = (Path) key.watchable();
+          for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) clear();
+            else {
+              invalidate(directory.resolve((Path) event.context()).toString());
+              // the index file of the directory may have changed
+              remove(directory.toString());
+            }
+          }
+          if (!key.reset()) directories.remove(directory);
+        }
+      }
+      catch (InterruptedException | ClosedWatchServiceException ignored) {}
+    }
+
+    void close() throws IOException {
+      service.close();
+    }
+  }
+
+  public synchronized long getCapacity() { return capacity; }
+
+  public synchronized void setCapacity(long capacity) {
+    this.capacity = capacity;
+    evict();
+  }
+
+  public long getMaxEntrySize() { return maxEntrySize; }
+
+  public void setMaxEntrySize(long maxEntrySize) { this.maxEntrySize = Math.min(maxEntrySize, Integer.MAX_VALUE); }
+
+  public long getTimeToLive() { return TimeUnit.NANOSECONDS.toMillis(timeToLive); }
+
+  /**
+   * Sets how long the stat of a file is trusted, in milliseconds; 0 checks
+   * every request.
+   */
+  public void setTimeToLive(long timeToLive) { this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLive); }
+
+  public int getMaxEntries() { return maxEntries; }
+
+  /**
+   * Sets the number of paths to remember; the entries are dropped when there are more.
+   */
+  public void setMaxEntries(int maxEntries) { this.maxEntries = maxEntries; }
+
+  /**
+   * Holds file content in direct buffers, outside of the heap.
+   */
+  public void setDirectBuffers(boolean directBuffers) { this.directBuffers = directBuffers; }
+
+  public boolean isDirectBuffers() { return directBuffers; }
+
+  /**
+   * @return the number of bytes held in memory
+   */
+  public synchronized long getSize() { return size; }
+
+  public synchronized int getHeldCount() { return clock.size(); }
+
+  public int getCount() { return files.size(); }
+
+  /**
+   * @return the number of requests answered without checking the file system
+   */
+  public long getHits() { return hits.get(); }
+
+  public long getMisses() { return misses.get(); }
+
+  /**
+   * @return the number of requests sent from memory
+   */
+  public long getHeldHits() { return heldHits.get(); }
+
+  public double getHitRatio() {
+    long hits = getHits(), total = hits + getMisses();
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  public synchronized long getLoads() { return loads; }
+
+  public synchronized long getEvictions() { return evictions; }
+
+}
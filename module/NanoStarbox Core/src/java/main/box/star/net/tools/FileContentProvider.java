@@ -7,6 +7,7 @@ import java.io.File;
 public class FileContentProvider extends ContentProvider implements NativeContentProvider {
 
   protected File root;
+  private volatile ContentCache contentCache;
 
   public FileContentProvider(String baseUri, File root) {
     super(baseUri);
@@ -16,9 +17,21 @@ public class FileContentProvider extends ContentProvider implements NativeConten
   @Override
   public ServerContent getContent(IHTTPSession session) {
     String uri = session.getUri();
+    ContentCache cache = contentCache;
+    if (cache != null) return cache.getContent(session, getUriMimeType(uri), getFile(uri));
     return new ServerContent(session, getUriMimeType(uri), getFile(uri));
   }
 
+  /**
+   * Serves the files of this provider through a cache, or directly from the
+   * file system if the cache is null.
+   */
+  public void setContentCache(ContentCache contentCache) {
+    this.contentCache = contentCache;
+  }
+
+  public ContentCache getContentCache() { return contentCache; }
+
   public File getFile(String uri) {
     return new File(root, uri.substring(1));
   }
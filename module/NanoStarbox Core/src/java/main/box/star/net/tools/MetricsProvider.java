@@ -0,0 +1,42 @@
+package box.star.net.tools;
+
+import box.star.net.http.IHTTPSession;
+import box.star.net.http.metrics.ServerMetrics;
+
+import java.io.IOException;
+
+/**
+ * <p>Serves {@link ServerMetrics} in the Prometheus text format.</p>
+ * <br>
+ * <p>Mount it on a {@link box.star.net.WebService} to expose its own numbers:</p>
+ * <pre>
+ *   webService.mount(new MetricsProvider("/metrics", webService.metrics));
+ * </pre>
+ * <br>
+ */
+public class MetricsProvider extends ContentProvider {
+
+  public static final String MIME_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final ServerMetrics metrics;
+
+  public MetricsProvider(String baseUri, ServerMetrics metrics) {
+    super(baseUri);
+    this.metrics = metrics;
+  }
+
+  @Override
+  public ServerContent getContent(IHTTPSession session) {
+    if (!session.getUri().equals(getBaseUri())) return null;
+    StringBuilder text = new StringBuilder(4096);
+    try {
+      metrics.writeText(text);
+    }
+    catch (IOException e) {
+      // a string builder does not throw
+      throw new RuntimeException(e);
+    }
+    return new ServerContent(session, MIME_TYPE, text.toString());
+  }
+
+}
@@ -0,0 +1,171 @@
+package box.star.net.tools;
+
+import box.star.net.http.IHTTPSession;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>Routes request URIs to the {@link ContentProvider}s mounted on their base URIs.</p>
+ * <br>
+ * <p>The base URIs are kept in a character trie. A URI is resolved by walking the trie
+ * once to the deepest node on its path, and then back up through the parent nodes,
+ * trying the providers mounted on the URI itself, on every parent path of the URI,
+ * from the longest to the shortest, and finally on "/".</p>
+ * <br>
+ * <p>Providers mounted on the same base URI are tried in their mount order. A table is
+ * immutable; it is rebuilt when the mounts change.</p>
+ * <br>
+ */
+public class MountTable {
+
+  private static final ContentProvider[] NO_PROVIDERS = new ContentProvider[0];
+
+  private final Node root = new Node(null, 0);
+  private final Node slash;
+
+  public MountTable(List<ContentProvider> providers) {
+    for (ContentProvider provider : providers) {
+      String baseUri = provider.getBaseUri();
+      Node node = root;
+      for (int i = 0; i < baseUri.length(); i++) node = node.child(baseUri.charAt(i), true);
+      node.add(provider);
+    }
+    slash = root.child('/', false);
+  }
+
+  /**
+   * @return the deepest node on the path of the uri
+   */
+  private Node deepest(String uri) {
+    Node node = root;
+    for (int i = 0, length = uri.length(); i < length; i++) {
+      Node child = node.child(uri.charAt(i), false);
+      if (child == null) break;
+      node = child;
+    }
+    return node;
+  }
+
+  /**
+   * A node is a parent path of the uri if the uri continues with a '/' after it;
+   * the root path "/" is handled separately.
+   */
+  private static boolean isParent(String uri, int depth) {
+    if (depth == 0 || depth >= uri.length() || uri.charAt(depth) != '/') return false;
+    return depth > 1 || uri.charAt(0) != '/';
+  }
+
+  /**
+   * <p>Gets the content of the providers mounted on the uri, or its parent paths.</p>
+   * <br>
+   * <p>A provider mounted on the uri itself answers for the uri, even with null
+   * content; parent path providers are tried until one has content.</p>
+   * <br>
+   *
+   * @return the content, or null if no provider has content for the uri
+   */
+  public ServerContent getContent(IHTTPSession session) {
+    String uri = session.getUri();
+    Node node = deepest(uri);
+    if (node.depth == uri.length() && node.providers.length > 0) return node.providers[0].getContent(session);
+    for (; node != null; node = node.parent) {
+      if (!isParent(uri, node.depth)) continue;
+      for (ContentProvider provider : node.providers) {
+        ServerContent content = provider.getContent(session);
+        if (content != null) return content;
+      }
+    }
+    if (slash != null && !uri.equals("/")) {
+      for (ContentProvider provider : slash.providers) {
+        ServerContent content = provider.getContent(session);
+        if (content != null) return content;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * <p>Gets the base URI of the first mount that is tried for the uri.</p>
+   *
+   * @return the base URI, or null if no provider is mounted on the uri or its parent paths
+   */
+  public String getRoute(String uri) {
+    Node node = deepest(uri);
+    if (node.depth == uri.length() && node.providers.length > 0) return node.providers[0].getBaseUri();
+    for (; node != null; node = node.parent) {
+      if (node.providers.length > 0 && isParent(uri, node.depth)) return node.providers[0].getBaseUri();
+    }
+    if (slash != null && slash.providers.length > 0) return slash.providers[0].getBaseUri();
+    return null;
+  }
+
+  /**
+   * <p>Gets an existing file of the {@link NativeContentProvider}s mounted on the uri,
+   * or its parent paths.</p>
+   *
+   * @return the file, or null
+   */
+  public File getFile(String uri) {
+    Node node = deepest(uri);
+    if (node.depth == uri.length()) {
+      File file = getFile(node, uri);
+      if (file != null) return file;
+    }
+    for (; node != null; node = node.parent) {
+      if (!isParent(uri, node.depth)) continue;
+      File file = getFile(node, uri);
+      if (file != null) return file;
+    }
+    if (slash != null && !uri.equals("/")) return getFile(slash, uri);
+    return null;
+  }
+
+  private static File getFile(Node node, String uri) {
+    for (ContentProvider provider : node.providers) {
+      if (!(provider instanceof NativeContentProvider)) continue;
+      File file = ((NativeContentProvider) provider).getFile(uri);
+      if (file != null && file.exists()) return file;
+    }
+    return null;
+  }
+
+  private static class Node {
+    final Node parent;
+    final int depth;
+    char[] keys = new char[0];
+    Node[] children = new Node[0];
+    ContentProvider[] providers = NO_PROVIDERS;
+
+    Node(Node parent, int depth) {
+      this.parent = parent;
+      this.depth = depth;
+    }
+
+    Node child(char key, boolean create) {
+      int i = Arrays.binarySearch(keys, key);
+      if (i >= 0) return children[i];
+      if (!create) return null;
+      i = -(i + 1);
+      Node child = new Node(this, depth + 1);
+      char[] k = new char[keys.length + 1];
+      Node[] c = new Node[children.length + 1];
+      System.arraycopy(keys, 0, k, 0, i);
+      System.arraycopy(children, 0, c, 0, i);
+      k[i] = key;
+      c[i] = child;
+      System.arraycopy(keys, i, k, i + 1, keys.length - i);
+      System.arraycopy(children, i, c, i + 1, children.length - i);
+      keys = k;
+      children = c;
+      return child;
+    }
+
+    void add(ContentProvider provider) {
+      providers = Arrays.copyOf(providers, providers.length + 1);
+      providers[providers.length - 1] = provider;
+    }
+  }
+
+}
@@ -18,6 +18,7 @@ public class ServerResult extends ServerContent {
     this.mimeType = content.mimeType;
     this.length = content.length;
     this.lastModified = content.lastModified;
+    if (content.isServerGenerated()) AsGenerated();
     if (content.status == null) {
       if (content.data != null) status = Status.OK;
       else status = Status.NO_CONTENT;
@@ -53,6 +54,11 @@ public class ServerResult extends ServerContent {
     } else if (data instanceof byte[]) {
       return Response.newFixedLengthResponse(status, mimeType, (byte[]) data);
     } else if (data instanceof File) {
+      Response held = ContentCache.newHeldResponse(status, mimeType, (File) data, 0, ((File) data).length());
+      if (held != null) {
+        held.addHeader("Accept-Ranges", "bytes");
+        return held;
+      }
       try {
         return Response.newFixedFileResponse(mimeType, (File) data);
       }
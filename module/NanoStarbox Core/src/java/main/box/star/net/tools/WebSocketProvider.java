@@ -0,0 +1,35 @@
+package box.star.net.tools;
+
+import box.star.net.http.IHTTPSession;
+import box.star.net.http.websocket.WebSocket;
+import box.star.net.http.websocket.WebSocketHandler;
+
+/**
+ * <p>Answers WebSocket upgrade requests for one path with a handler.</p>
+ * <br>
+ * <pre>
+ *   webService.mount(new WebSocketProvider("/chat", chatHandler, "chat.v1"));
+ * </pre>
+ * <br>
+ * <p>Other requests for the path get the error response of
+ * {@link WebSocket#upgrade(IHTTPSession, WebSocketHandler, String...)}.</p>
+ * <br>
+ */
+public class WebSocketProvider extends ContentProvider {
+
+  private final WebSocketHandler handler;
+  private final String[] protocols;
+
+  public WebSocketProvider(String baseUri, WebSocketHandler handler, String... protocols) {
+    super(baseUri);
+    this.handler = handler;
+    this.protocols = protocols;
+  }
+
+  @Override
+  public ServerContent getContent(IHTTPSession session) {
+    if (!session.getUri().equals(getBaseUri())) return null;
+    return new ServerContent(WebSocket.upgrade(session, handler, protocols));
+  }
+
+}
@@ -1,82 +1,425 @@
 package box.star.net.tools;
 
+import box.star.io.ByteBufferInputStream;
 import box.star.net.http.IHTTPSession;
+import box.star.net.http.response.Response;
+import box.star.net.http.response.Status;
 
-import java.io.Closeable;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Map;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /**
  * Load the zip archive at the given virtual directory.
+ * <p>
+ * The archive is memory mapped and its central directory is read into an
+ * immutable index, which is replaced as a whole when the archive changes, so
+ * requests never see a half loaded archive. Stored entries are read straight
+ * from the mapped archive. Deflated entries are inflated into a bounded cache
+ * of recently used entries, and are sent to clients that accept gzip without
+ * being inflated at all (see {@link CompressedContentCache}).
+ * </p>
+ * <p>
+ * An archive that is rewritten in place changes underneath its mapping, and
+ * reading a truncated mapping faults. The size and modification time of the
+ * archive are checked when an entry is opened, and the read of an archive
+ * that has changed fails with an {@link IOException}; the next request loads
+ * the new archive. An archive that is truncated while an entry is being sent
+ * can still fault the sending thread, so archives should be replaced by
+ * renaming a new file over them, which leaves the old mapping intact.
+ * </p>
  */
 public class ZipSiteProvider extends ContentProvider implements Closeable {
 
-  public Map<String, ZipEntry> vfs;
-  protected ZipFile zipFile;
+  public static final long DEFAULT_CACHE_CAPACITY = 8 * 1024 * 1024;
+  public static final int DEFAULT_MAX_CACHED_ENTRY_SIZE = 512 * 1024;
+
+  private static final int LOCAL_HEADER = 0x04034b50, CENTRAL_HEADER = 0x02014b50, END_HEADER = 0x06054b50;
+
+  /**
+   * A read only view of the entries of the current archive.
+   */
+  public volatile Map<String, ZipEntry> vfs;
   protected File file;
-  protected long zipTime;
+  protected volatile long zipTime;
+  private volatile Index index;
+
+  private final LinkedHashMap<Entry, byte[]> inflated = new LinkedHashMap<Entry, byte[]>(64, 0.75f, true);
+  private long cacheCapacity = DEFAULT_CACHE_CAPACITY, cacheSize;
+  private int maxCachedEntrySize = DEFAULT_MAX_CACHED_ENTRY_SIZE;
 
   public ZipSiteProvider(String baseUri, File zipFile) {
     super(baseUri);
     this.file = zipFile;
   }
 
-  private void loadZipEntries() {
+  /**
+   * Sets the number of inflated bytes that are kept in memory, and the size of
+   * the largest entry that is kept; larger entries are inflated as they are sent.
+   */
+  public synchronized void setInflatedCache(long capacity, int maxEntrySize) {
+    this.cacheCapacity = capacity;
+    this.maxCachedEntrySize = maxEntrySize;
+    evict();
+  }
+
+  /**
+   * Gets the index of the archive, loading it if the archive has been modified.
+   *
+   * @return the index, or null if there is no archive
+   */
+  private Index getIndex() {
+    Index current = index;
+    if (!file.exists()) return current;
+    long modified = file.lastModified(), length = file.length();
+    if (current != null && current.zipTime >= modified && current.length == length) return current;
+    synchronized (this) {
+      current = index;
+      if (current == null || current.zipTime < modified || current.length != length) {
+        try {
+          current = loadIndex(modified);
+        }
+        catch (IOException e) {
+          // the archive may still be being written, keep serving the last one
+          if (current != null) return current;
+          throw new RuntimeException(e);
+        }
+        inflated.clear();
+        cacheSize = 0;
+        index = current;
+        vfs = current.vfs;
+        zipTime = current.zipTime;
+      }
+      return current;
+    }
+  }
+
+  private Index loadIndex(long modified) throws IOException {
+    ByteBuffer archive;
+    long length;
+    RandomAccessFile access = new RandomAccessFile(file, "r");
     try {
-      this.zipFile = new ZipFile(file);
-      this.zipTime = file.lastModified();
+      FileChannel channel = access.getChannel();
+      length = channel.size();
+      if (length > Integer.MAX_VALUE) throw new IOException("zip archive is too large to map: " + file);
+      archive = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
     }
-    catch (IOException e) {
-      throw new RuntimeException(e);
+    finally {
+      access.close();
     }
+    archive.order(ByteOrder.LITTLE_ENDIAN);
+    if (file.length() != length || file.lastModified() != modified) throw new IOException("zip archive changed while it was loaded: " + file);
+
+    int end = archive.limit() - 22;
+    int stop = Math.max(0, end - 0xffff);
+    while (end >= stop && archive.getInt(end) != END_HEADER) end--;
+    if (end < stop) throw new IOException("not a zip archive: " + file);
+    int count = archive.getShort(end + 10) & 0xffff;
+    int position = archive.getInt(end + 16);
+    if (count == 0xffff || position == -1) throw new IOException("zip64 archives are not supported: " + file);
+
     String virtualDirectory = getBaseUri();
-    if (virtualDirectory == "/") virtualDirectory = "";
-    Enumeration<? extends ZipEntry> entries = this.zipFile.entries();
-    vfs = new Hashtable<>();
-    while (entries.hasMoreElements()) {
-      ZipEntry entry = entries.nextElement();
-      vfs.put(virtualDirectory + "/" + entry.getName(), entry);
-      String eName = entry.getName();
-      if (eName.matches("^([^\0]*(index)\\.[^\0]+)$")) {
-        vfs.put(virtualDirectory + "/" + eName.substring(0, Math.max(0, eName.lastIndexOf("/"))), entry);
+    if (virtualDirectory.equals("/")) virtualDirectory = "";
+    Map<String, Entry> entries = new HashMap<>(count * 2);
+    Map<String, ZipEntry> vfs = new HashMap<>(count * 2);
+    for (int i = 0; i < count; i++) {
+      if (archive.getInt(position) != CENTRAL_HEADER) throw new IOException("bad zip central directory: " + file);
+      int nameLength = archive.getShort(position + 28) & 0xffff;
+      int extraLength = archive.getShort(position + 30) & 0xffff;
+      int commentLength = archive.getShort(position + 32) & 0xffff;
+      byte[] nameBytes = new byte[nameLength];
+      ByteBuffer name = archive.duplicate();
+      name.position(position + 46);
+      name.get(nameBytes);
+      Entry entry = new Entry(
+          new String(nameBytes, StandardCharsets.UTF_8),
+          archive.getShort(position + 10) & 0xffff,
+          archive.getInt(position + 16) & 0xffffffffL,
+          archive.getInt(position + 20) & 0xffffffffL,
+          archive.getInt(position + 24) & 0xffffffffL,
+          archive.getInt(position + 42));
+      entries.put(virtualDirectory + "/" + entry.name, entry);
+      ZipEntry zipEntry = new ZipEntry(entry.name);
+      zipEntry.setMethod(entry.method == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED);
+      zipEntry.setSize(entry.size);
+      zipEntry.setCompressedSize(entry.compressedSize);
+      zipEntry.setCrc(entry.crc);
+      vfs.put(virtualDirectory + "/" + entry.name, zipEntry);
+      int indexName = entry.name.indexOf("index.");
+      if (indexName != -1 && indexName + 6 < entry.name.length()) {
+        String directory = virtualDirectory + "/" + entry.name.substring(0, Math.max(0, entry.name.lastIndexOf("/")));
+        entries.put(directory, entry);
+        vfs.put(directory, zipEntry);
       }
+      position += 46 + nameLength + extraLength + commentLength;
     }
+    return new Index(modified, length, archive, entries, Collections.unmodifiableMap(vfs));
   }
 
   @Override
   public ServerContent getContent(IHTTPSession session) {
     String target = session.getUri();
     if (target.equals(getBaseUri()) && !target.endsWith("/")) return redirect(target + "/");
-    if (file.exists()) {
-      if (zipTime < file.lastModified()) loadZipEntries();
-    } else if (zipFile == null) return notFound(target);
-    try {
-      if (vfs.containsKey(target)) {
-        ZipEntry content = vfs.get(target);
-        if (content.isDirectory() && !target.endsWith("/")) return redirect(target + "/");
-        if (content.isDirectory()) return notFound(target);
-        InputStream inputStream = this.zipFile.getInputStream(content);
-        return new ServerContent(session, getUriMimeType(content.getName()), inputStream, content.getSize(), zipTime);
-      }
-      return notFound(target);
-    }
-    catch (Exception e) {
-      throw new RuntimeException(target, e);
+    Index index = getIndex();
+    if (index == null) return notFound(target);
+    Entry entry = index.entries.get(target);
+    if (entry == null) return notFound(target);
+    if (entry.isDirectory() && !target.endsWith("/")) return redirect(target + "/");
+    if (entry.isDirectory()) return notFound(target);
+    if (entry.method != ZipEntry.STORED && entry.method != ZipEntry.DEFLATED)
+      throw new RuntimeException(target, new IOException("unsupported zip compression method: " + entry.method));
+    return new ServerContent(session, getUriMimeType(entry.name), new EntryStream(index, entry), entry.size, index.zipTime);
+  }
+
+  private synchronized byte[] getInflated(Entry entry) {
+    return inflated.get(entry);
+  }
+
+  private synchronized void putInflated(Index index, Entry entry, byte[] data) {
+    if (index != this.index || data.length > maxCachedEntrySize) return;
+    if (inflated.put(entry, data) == null) cacheSize += data.length;
+    evict();
+  }
+
+  private void evict() {
+    Iterator<byte[]> eldest = inflated.values().iterator();
+    while (cacheSize > cacheCapacity && eldest.hasNext()) {
+      cacheSize -= eldest.next().length;
+      eldest.remove();
     }
   }
 
   @Override
-  public void close() throws IOException {
-    zipFile.close();
-    zipFile = null;
+  public synchronized void close() throws IOException {
+    index = null;
     vfs = null;
     zipTime = 0;
+    inflated.clear();
+    cacheSize = 0;
+  }
+
+  /**
+   * <p>The data of an entry, which is read from the archive when it is first read.</p>
+   * <br>
+   * <p>A deflated entry can instead be sent as gzip, using the compressed data
+   * of the archive; see {@link #createGzipResponse(String)}.</p>
+   */
+  public class EntryStream extends BufferedInputStream {
+
+    private final Index index;
+    private final Entry entry;
+
+    EntryStream(final Index index, final Entry entry) {
+      super(new InputStream() {
+        private InputStream source;
+
+        private InputStream source() throws IOException {
+          if (source == null) source = open(index, entry);
+          return source;
+        }
+
+        @Override
+        public int read() throws IOException {
+          return source().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          return source().read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+          if (source != null) source.close();
+        }
+      });
+      this.index = index;
+      this.entry = entry;
+    }
+
+    public boolean isDeflated() {
+      return entry.method == ZipEntry.DEFLATED;
+    }
+
+    /**
+     * Creates a gzip encoded response of a deflated entry, by framing its
+     * compressed data with a gzip header and a trailer holding the entry's CRC
+     * and size.
+     */
+    public Response createGzipResponse(String mimeType) {
+      if (!isDeflated()) throw new IllegalStateException("entry is not deflated: " + entry.name);
+      byte[] header = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+      ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      trailer.putInt((int) entry.crc).putInt((int) entry.size).flip();
+      InputStream body = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+          new ByteArrayInputStream(header),
+          new ArchiveInputStream(index, entry),
+          new ByteBufferInputStream(trailer))));
+      Response response = Response.newFixedLengthResponse(Status.OK, mimeType, body, header.length + entry.compressedSize + 8);
+      response.setUseGzip(false);
+      response.addHeader("Content-Encoding", "gzip");
+      response.addHeader("Vary", "Accept-Encoding");
+      return response;
+    }
+  }
+
+  /**
+   * Fails if the archive is no longer the one that was mapped for the index.
+   */
+  private void check(Index index) throws IOException {
+    if (file.length() != index.length || file.lastModified() != index.zipTime)
+      throw new IOException("zip archive changed while it was read: " + file);
+  }
+
+  /**
+   * @return the compressed data of the entry, as a slice of the mapped archive,
+   * which the caller has checked
+   */
+  private ByteBuffer data(Index index, Entry entry) throws IOException {
+    int offset = entry.dataOffset;
+    if (offset < 0) {
+      int header = (int) entry.localHeader;
+      try {
+        if (index.archive.getInt(header) != LOCAL_HEADER) throw new IOException("bad zip local header: " + entry.name);
+        offset = header + 30 + (index.archive.getShort(header + 26) & 0xffff) + (index.archive.getShort(header + 28) & 0xffff);
+      }
+      catch (InternalError e) {
+        throw new IOException("zip archive changed while it was read: " + file, e);
+      }
+      entry.dataOffset = offset;
+    }
+    ByteBuffer data = index.archive.duplicate();
+    data.position(offset);
+    data.limit(offset + (int) entry.compressedSize);
+    return data.slice();
+  }
+
+  private InputStream open(Index index, Entry entry) throws IOException {
+    if (entry.method == ZipEntry.STORED) return new ArchiveInputStream(index, entry);
+    byte[] cached = getInflated(entry);
+    if (cached != null) return new ByteArrayInputStream(cached);
+    InflaterInputStream stream = new InflaterInputStream(new ArchiveInputStream(index, entry), new Inflater(true), 8192) {
+      @Override
+      public void close() throws IOException {
+        inf.end();
+        super.close();
+      }
+    };
+    if (entry.size > maxCachedEntrySize) return stream;
+    byte[] data = new byte[(int) entry.size];
+    try {
+      int n = 0;
+      while (n < data.length) {
+        int read = stream.read(data, n, data.length - n);
+        if (read < 0) throw new EOFException("truncated zip entry: " + entry.name);
+        n += read;
+      }
+    }
+    finally {
+      stream.close();
+    }
+    putInflated(index, entry, data);
+    return new ByteArrayInputStream(data);
+  }
+
+  /**
+   * Reads the data of an entry from the mapped archive, checking that the
+   * archive has not changed when the first read opens the entry.
+   * <p>
+   * The archive can still be truncated after the check; a fault that is
+   * reported by the read fails like any other read of a changed archive.
+   * </p>
+   */
+  private class ArchiveInputStream extends InputStream {
+
+    private final Index index;
+    private final Entry entry;
+    private ByteBufferInputStream data;
+
+    ArchiveInputStream(Index index, Entry entry) {
+      this.index = index;
+      this.entry = entry;
+    }
+
+    private ByteBufferInputStream stream() throws IOException {
+      if (data == null) {
+        check(index);
+        data = new ByteBufferInputStream(ZipSiteProvider.this.data(index, entry));
+      }
+      return data;
+    }
+
+    @Override
+    public int read() throws IOException {
+      try {
+        return stream().read();
+      }
+      catch (InternalError e) {
+        throw new IOException("zip archive changed while it was read: " + file, e);
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      try {
+        return stream().read(b, off, len);
+      }
+      catch (InternalError e) {
+        throw new IOException("zip archive changed while it was read: " + file, e);
+      }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // skipping moves the position without touching the mapping
+      return stream().skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+      return data == null ? (int) entry.compressedSize : data.available();
+    }
+  }
+
+  private static class Index {
+    final long zipTime, length;
+    final ByteBuffer archive;
+    final Map<String, Entry> entries;
+    final Map<String, ZipEntry> vfs;
+
+    Index(long zipTime, long length, ByteBuffer archive, Map<String, Entry> entries, Map<String, ZipEntry> vfs) {
+      this.zipTime = zipTime;
+      this.length = length;
+      this.archive = archive;
+      this.entries = entries;
+      this.vfs = vfs;
+    }
+  }
+
+  private static class Entry {
+    final String name;
+    final int method;
+    final long crc, compressedSize, size, localHeader;
+    volatile int dataOffset = -1;
+
+    Entry(String name, int method, long crc, long compressedSize, long size, int localHeader) {
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.localHeader = localHeader & 0xffffffffL;
+    }
+
+    boolean isDirectory() {
+      return name.endsWith("/");
+    }
   }
 
 }
@@ -5,10 +5,15 @@ import box.star.io.Streams;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Runtime Object Cache
@@ -17,30 +22,54 @@ import java.util.Set;
  * <p>
  * Capable of synchronizing with disk based cache services
  * through the {@link CacheMapMonitor} interface.
+ * <p>
+ * The cache is split into segments by key hash, each with its own lock and its
+ * share of the capacity, so threads working with different keys seldom wait on
+ * each other. A segment keeps its entries in two queues: least recently used
+ * first, for eviction, and soonest to expire first, for culling. Since every
+ * entry lives for the same duration, expired entries are always at the front of
+ * the second queue, and are culled from there as the segment is used, without
+ * scanning the cache.
+ * <p>
+ * Monitor events are sent while the segment of the key is locked, so the events
+ * of one key arrive in order. Entries pushed out by the capacity are reported as
+ * {@link CacheMapMonitor.CacheEvent#EXPIRE}.
+ * <p>
+ * A cache can be kept on disk either as one serialized file, rewritten by every
+ * {@link #synchronize()}, or as a journal of its events, see {@link #setJournal(File, CacheMapLoader)}.
  *
  * @param <K> a serializable key
  * @param <V> an object
  */
 public class CacheMap<K, V> implements CacheMapMonitor<K, V> {
 
+  /**
+   * The capacity of caches created without one.
+   */
+  public final static int DEFAULT_CAPACITY = 200;
+
   protected final static CacheMapMonitor<Object, Object> defaultCacheMapMonitor = new CacheMapMonitor<Object, Object>() {
     @Override
     public void onCacheEvent(CacheEvent action, long timeStamp, Object key, Object value) {}
   };
 
+  private final static int MIN_SEGMENT_CAPACITY = 16;
+  private final static int MAX_SEGMENTS = Integer.highestOneBit(Math.min(1 << 16, Runtime.getRuntime().availableProcessors() * 4));
+
   /**
    * Default: self-monitoring/null-driver
    */
-  private CacheMapMonitor<K, V> cacheMapMonitor = (CacheMapMonitor<K, V>) defaultCacheMapMonitor;
+  private volatile CacheMapMonitor<K, V> cacheMapMonitor = (CacheMapMonitor<K, V>) defaultCacheMapMonitor;
   private CacheMapLoader<K, V> cacheMapLoader;
   private File synchronizationFile;
-  private long maxAge;
-  private Map<K, Entry<V>> map;
-  // Clear out old entries every few queries
-  private int queryCount;
-  private int queryOverflow = 300;
-  private int MAX_ENTRIES = 200;
-  private boolean updateExpirationByRequest;
+  private volatile CacheMapJournal<K, V> journal;
+  private final long maxAge;
+  private final boolean updateExpirationByRequest;
+  private final int capacity;
+  private final EvictionPolicy evictionPolicy;
+  private final Segment[] segments;
+  private final int segmentShift;
+
   /**
    * Creates a shareable runtime state cache where entries expire after an elapsed time.
    * <p>
@@ -49,16 +78,58 @@ public class CacheMap<K, V> implements CacheMapMonitor<K, V> {
    * @param cacheDuration             how long to keep items in the cache.
    * @param updateExpirationByRequest if true, updates the expiration timestamp for every get request.
    */
-  @SuppressWarnings("serial")
   public CacheMap(long cacheDuration, boolean updateExpirationByRequest) {
+    this(cacheDuration, updateExpirationByRequest, DEFAULT_CAPACITY, EvictionPolicy.LRU);
+  }
+
+  /**
+   * Creates a cache that holds at most capacity entries, evicting the least
+   * recently used to make room.
+   *
+   * @param cacheDuration             how long to keep items in the cache.
+   * @param updateExpirationByRequest if true, updates the expiration timestamp for every get request.
+   * @param capacity                  the most entries to hold.
+   */
+  public CacheMap(long cacheDuration, boolean updateExpirationByRequest, int capacity) {
+    this(cacheDuration, updateExpirationByRequest, capacity, EvictionPolicy.LRU);
+  }
+
+  /**
+   * @param cacheDuration             how long to keep items in the cache.
+   * @param updateExpirationByRequest if true, updates the expiration timestamp for every get request.
+   * @param capacity                  the most entries to hold.
+   * @param evictionPolicy            what a full cache does with a new key.
+   * @throws IllegalArgumentException if the capacity is not positive
+   */
+  @SuppressWarnings("unchecked")
+  public CacheMap(long cacheDuration, boolean updateExpirationByRequest, int capacity, EvictionPolicy evictionPolicy) {
+    if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
     this.maxAge = cacheDuration;
     this.updateExpirationByRequest = updateExpirationByRequest;
+    this.capacity = capacity;
+    this.evictionPolicy = evictionPolicy;
+    int count = 1, bits = 0;
+    while (count < MAX_SEGMENTS && capacity / (count << 1) >= MIN_SEGMENT_CAPACITY) {
+      count <<= 1;
+      bits++;
+    }
+    segmentShift = 32 - bits;
+    segments = new CacheMap.Segment[count];
+    for (int i = 0; i < count; i++)
+      segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+  }
 
-    map = new LinkedHashMap<K, Entry<V>>() {
-      protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
-        return size() > MAX_ENTRIES;
-      }
-    };
+  private static int hash(Object key) {
+    int h = key == null ? 0 : key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public EvictionPolicy getEvictionPolicy() {
+    return evictionPolicy;
   }
 
   /**
@@ -89,9 +160,8 @@ public class CacheMap<K, V> implements CacheMapMonitor<K, V> {
     if (synchronizationFile.exists()) {
       try {
         FileInputStream fis = new FileInputStream(synchronizationFile);
-        map = loader.loadMap((Map<K, CacheMap.Entry<V>>) Streams.readSerializable(fis));
+        load(loader.loadMap((Map<K, CacheMap.Entry<V>>) Streams.readSerializable(fis)));
         fis.close();
-        cleanup();
       }
       catch (Exception e) {
         throw new RuntimeException(e);
@@ -99,6 +169,72 @@ public class CacheMap<K, V> implements CacheMapMonitor<K, V> {
     }
   }
 
+  /**
+   * Journal setup function.
+   * <p>
+   * Restores the cache from the journal in the directory, if there is one, and
+   * from then on appends every event to it, instead of writing the whole cache
+   * on {@link #synchronize()}. Keys and values are written with the codecs of
+   * the loader.
+   * <p>
+   * Renewals are only written once the expiration has moved by a sixteenth of
+   * the cache duration, so a restored entry may expire that much sooner.
+   * <p>
+   * Make sure you set the monitor before calling this function, and call it
+   * before the cache is used.
+   *
+   * @param directory the directory of the journal, created if missing.
+   * @param loader    the codecs of keys and values.
+   */
+  public void setJournal(File directory, CacheMapLoader<K, V> loader) {
+    if (cacheMapLoader != null)
+      throw new IllegalStateException("cache map loader already set");
+    cacheMapLoader = loader;
+    CacheMapJournal<K, V> journal = new CacheMapJournal<>(this, directory, loader);
+    Map<K, Entry<V>> entries;
+    try {
+      entries = journal.replay();
+      journal.roll();
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    this.journal = journal;
+    load(entries);
+    journal.compactIfReplayed();
+  }
+
+  /**
+   * Adds loaded entries oldest first, so the newest are kept if there are more than the capacity.
+   */
+  private void load(Map<K, Entry<V>> loaded) {
+    List<Map.Entry<K, Entry<V>>> entries = new ArrayList<>(loaded.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<K, Entry<V>>>() {
+      @Override
+      public int compare(Map.Entry<K, Entry<V>> a, Map.Entry<K, Entry<V>> b) {
+        return Long.compare(a.getValue().timestamp(), b.getValue().timestamp());
+      }
+    });
+    long now = System.currentTimeMillis();
+    for (Map.Entry<K, Entry<V>> entry : entries) {
+      K key = entry.getKey();
+      Entry<V> value = entry.getValue();
+      int hash = hash(key);
+      Segment segment = segmentFor(hash);
+      synchronized (segment) {
+        Node<K, V> node = new Node<K, V>(key, hash, value.timestamp(), value.value());
+        if (segment.isExpired(node, now)) {
+          event(CacheEvent.EXPIRE, node.timestamp(), node);
+          continue;
+        }
+        Node<K, V> existing = segment.map.get(key);
+        if (existing != null) segment.unlink(existing);
+        segment.makeRoom(hash, false);
+        segment.link(node);
+      }
+    }
+  }
+
   /**
    * Run the synchronization function.
    * <p>
@@ -108,16 +244,25 @@ public class CacheMap<K, V> implements CacheMapMonitor<K, V> {
    * If there is no cache map loader set, then only expired entries
    * are culled from the cache.
    * <p>
+   * A journaled cache is already on disk; this only makes sure the journal has
+   * reached the device.
+   * <p>
    * This feature does not notify the monitor of any events. It is assumed
    * that the monitor and loader are a feature-set, quite possibly the same
    * object.
    */
   synchronized public void synchronize() {
-    cleanup();
-    if (cacheMapLoader == null) return;
+    long now = System.currentTimeMillis();
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.cull(now);
+      }
+    }
+    if (journal != null) journal.sync();
+    if (synchronizationFile == null) return;
     try {
       FileOutputStream os = new FileOutputStream(synchronizationFile);
-      Streams.writeSerializable(os, cacheMapLoader.saveMap(map));
+      Streams.writeSerializable(os, cacheMapLoader.saveMap(copyEntries()));
       os.close();
     }
     catch (Exception e) {
@@ -125,82 +270,174 @@ public class CacheMap<K, V> implements CacheMapMonitor<K, V> {
     }
   }
 
-  public synchronized V get(K key) {
-    if (++queryCount >= queryOverflow) {
-      cleanup();
+  /**
+   * @return copies of the entries, one segment at a time
+   */
+  Map<K, Entry<V>> copyEntries() {
+    Map<K, Entry<V>> copy = new LinkedHashMap<K, Entry<V>>();
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        for (Node<K, V> node = segment.expiration.expireNext; node != segment.expiration; node = node.expireNext)
+          copy.put(node.key, new Entry<V>(node.timestamp(), node.value()));
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Sends an event to the journal and the monitor; called with the segment of the node locked.
+   */
+  private void event(CacheEvent action, long timeStamp, Node<K, V> node) {
+    CacheMapJournal<K, V> journal = this.journal;
+    if (journal != null && (action != CacheEvent.RENEW || timeStamp - node.journaled >= maxAge / 16)) {
+      node.journaled = timeStamp;
+      journal.append(action, timeStamp, node.key, node.value());
     }
-    Entry<V> entry = entryFor(key);
-    if (entry != null) {
+    cacheMapMonitor.onCacheEvent(action, timeStamp, node.key, node.value());
+  }
+
+  private Segment segmentFor(int hash) {
+    return segments.length == 1 ? segments[0] : segments[(hash * 0x9E3779B9) >>> segmentShift];
+  }
+
+  public V get(K key) {
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    synchronized (segment) {
+      long now = System.currentTimeMillis();
+      segment.cull(now);
+      if (segment.sketch != null) segment.sketch.increment(hash);
+      Node<K, V> node = segment.find(key, now);
+      if (node == null) return null;
+      segment.touch(node);
       if (updateExpirationByRequest) {
-        entry.setTimestamp(System.currentTimeMillis());
-        cacheMapMonitor.onCacheEvent(CacheEvent.RENEW, entry.timestamp, key, entry.value);
+        segment.renew(node, now);
+        event(CacheEvent.RENEW, now, node);
       }
-      return entry.value();
+      return node.value();
     }
-    return null;
   }
 
-  public synchronized void put(K key, V val) {
-    if (++queryCount >= queryOverflow) {
-      cleanup();
-    }
-    Entry<V> entry = entryFor(key);
-    if (entry != null) {
-      entry.setTimestamp(System.currentTimeMillis());
-      entry.setValue(val);
-      cacheMapMonitor.onCacheEvent(CacheEvent.UPDATE, entry.timestamp, key, val);
-    } else {
-      entry = new Entry<V>(System.currentTimeMillis(), val);
-      map.put(key, entry);
-      cacheMapMonitor.onCacheEvent(CacheEvent.CREATE, entry.timestamp, key, val);
+  /**
+   * Sets the value of a key.
+   * <p>
+   * With {@link EvictionPolicy#TINY_LFU}, a new key may be turned away by a full
+   * segment; nothing is cached and no event is sent.
+   */
+  public void put(K key, V val) {
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    synchronized (segment) {
+      long now = System.currentTimeMillis();
+      segment.cull(now);
+      if (segment.sketch != null) segment.sketch.increment(hash);
+      Node<K, V> node = segment.find(key, now);
+      if (node != null) {
+        node.setValue(val);
+        segment.touch(node);
+        segment.renew(node, now);
+        event(CacheEvent.UPDATE, now, node);
+      } else if (segment.makeRoom(hash, evictionPolicy == EvictionPolicy.TINY_LFU)) {
+        node = new Node<K, V>(key, hash, now, val);
+        segment.link(node);
+        event(CacheEvent.CREATE, now, node);
+      }
     }
   }
 
-  public synchronized void clear() {
-    map.clear();
+  /**
+   * Adds a value for a key that has no live entry.
+   * <p>
+   * The caller is creating the key, so it is not subject to
+   * {@link EvictionPolicy#TINY_LFU} admission.
+   *
+   * @return false if the key is already cached
+   */
+  public boolean putIfAbsent(K key, V val) {
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    synchronized (segment) {
+      long now = System.currentTimeMillis();
+      segment.cull(now);
+      if (segment.sketch != null) segment.sketch.increment(hash);
+      if (segment.find(key, now) != null) return false;
+      segment.makeRoom(hash, false);
+      Node<K, V> node = new Node<K, V>(key, hash, now, val);
+      segment.link(node);
+      event(CacheEvent.CREATE, now, node);
+      return true;
+    }
   }
 
-  private Entry<V> entryFor(K key) {
-    Entry<V> entry = map.get(key);
-    if (entry != null) {
-      long delta = System.currentTimeMillis() - entry.timestamp();
-      if (delta < 0 || delta >= maxAge) {
-        cacheMapMonitor.onCacheEvent(CacheEvent.EXPIRE, entry.timestamp, key, entry.value);
-        map.remove(key);
-        entry = null;
+  /**
+   * Removes every entry, without events; a journal is compacted to match.
+   */
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
       }
     }
-    return entry;
+    CacheMapJournal<K, V> journal = this.journal;
+    if (journal == null) return;
+    try {
+      journal.compact();
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
   }
 
-  private void cleanup() {
-    Set<K> keySet = map.keySet();
-    // Avoid ConcurrentModificationExceptions
-    Object[] keys = new Object[keySet.size()];
-    int i = 0;
-    for (K key : keySet) {
-      keys[i++] = key;
-    }
-    for (int j = 0; j < keys.length; j++) {
-      entryFor((K) keys[j]);
+  /**
+   * @return the number of entries, counting expired entries not yet culled
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.map.size();
+      }
     }
-    queryCount = 0;
+    return size;
   }
 
-  public boolean containsKey(Object key) {return map.containsKey(key);}
+  public boolean containsKey(Object key) {
+    Segment segment = segmentFor(hash(key));
+    synchronized (segment) {
+      return segment.find(key, System.currentTimeMillis()) != null;
+    }
+  }
 
-  public synchronized V remove(Object key) {
-    if (map.containsKey(key)) {
-      Entry<V> entry = map.get(key);
-      cacheMapMonitor.onCacheEvent(CacheEvent.REMOVE, entry.timestamp, (K) key, map.get(key).value);
-      return map.remove(key).value;
+  public V remove(Object key) {
+    Segment segment = segmentFor(hash(key));
+    synchronized (segment) {
+      Node<K, V> node = segment.map.get(key);
+      if (node == null) return null;
+      segment.unlink(node);
+      event(CacheEvent.REMOVE, node.timestamp(), node);
+      return node.value();
     }
-    return null;
   }
 
   @Override
   public void onCacheEvent(CacheEvent action, long timeStamp, K key, V value) {}
 
+  /**
+   * What a full cache does with a new key.
+   */
+  public enum EvictionPolicy {
+    /**
+     * The least recently used entry of the segment makes room for the new key.
+     */
+    LRU,
+    /**
+     * The new key takes the place of the least recently used entry only if it
+     * was asked for more often lately, otherwise it is not cached; keys seen
+     * once can not push out the working set.
+     */
+    TINY_LFU
+  }
+
   /**
    * This class is serializable but it's values may not be. The {@link CacheMapLoader}
    * class allows transformation of the cache to a serializable format.
@@ -214,7 +451,7 @@ public class CacheMap<K, V> implements CacheMapMonitor<K, V> {
     private long timestamp;
     private T value;
 
-    private Entry(long timestamp, T value) {
+    Entry(long timestamp, T value) {
       this.timestamp = timestamp;
       this.value = value;
     }
@@ -231,4 +468,143 @@ public class CacheMap<K, V> implements CacheMapMonitor<K, V> {
 
   }
 
+  /**
+   * A cached entry, linked into both queues of its segment.
+   */
+  private static final class Node<K, V> extends Entry<V> {
+
+    private static final long serialVersionUID = -3818560357411223619L;
+    final K key;
+    final int hash;
+    /**
+     * The timestamp last written to the journal.
+     */
+    long journaled;
+    Node<K, V> accessPrev, accessNext, expirePrev, expireNext;
+
+    Node(K key, int hash, long timestamp, V value) {
+      super(timestamp, value);
+      this.key = key;
+      this.hash = hash;
+      this.journaled = timestamp;
+    }
+
+  }
+
+  private final class Segment {
+
+    final HashMap<K, Node<K, V>> map = new HashMap<>();
+    final int capacity;
+    final FrequencySketch sketch;
+    /**
+     * Queue heads: access order, least recently used first, and expiration order, soonest first.
+     */
+    final Node<K, V> access = new Node<K, V>(null, 0, 0, null), expiration = new Node<K, V>(null, 0, 0, null);
+
+    Segment(int capacity) {
+      this.capacity = capacity;
+      this.sketch = evictionPolicy == EvictionPolicy.TINY_LFU ? new FrequencySketch(capacity) : null;
+      clear();
+    }
+
+    void clear() {
+      map.clear();
+      access.accessPrev = access.accessNext = access;
+      expiration.expirePrev = expiration.expireNext = expiration;
+    }
+
+    boolean isExpired(Node<K, V> node, long now) {
+      long delta = now - node.timestamp();
+      return delta < 0 || delta >= maxAge;
+    }
+
+    /**
+     * @return the live entry of the key; an expired entry is culled
+     */
+    Node<K, V> find(Object key, long now) {
+      Node<K, V> node = map.get(key);
+      if (node != null && isExpired(node, now)) {
+        expire(node);
+        return null;
+      }
+      return node;
+    }
+
+    /**
+     * Culls expired entries from the front of the expiration queue.
+     */
+    void cull(long now) {
+      while (expiration.expireNext != expiration && isExpired(expiration.expireNext, now))
+        expire(expiration.expireNext);
+    }
+
+    void expire(Node<K, V> node) {
+      event(CacheEvent.EXPIRE, node.timestamp(), node);
+      unlink(node);
+    }
+
+    /**
+     * Evicts the least recently used entry if the segment is full.
+     *
+     * @param admission if true, the eviction happens only if the key is more
+     *                  frequent than the entry, according to the sketch
+     * @return false if there is no room for the key
+     */
+    boolean makeRoom(int hash, boolean admission) {
+      if (map.size() < capacity) return true;
+      Node<K, V> victim = access.accessNext;
+      if (admission && sketch.frequency(hash) <= sketch.frequency(victim.hash)) return false;
+      expire(victim);
+      return true;
+    }
+
+    void link(Node<K, V> node) {
+      map.put(node.key, node);
+      linkAccess(node);
+      linkExpiration(node);
+    }
+
+    void unlink(Node<K, V> node) {
+      map.remove(node.key);
+      unlinkAccess(node);
+      unlinkExpiration(node);
+    }
+
+    void touch(Node<K, V> node) {
+      unlinkAccess(node);
+      linkAccess(node);
+    }
+
+    void renew(Node<K, V> node, long now) {
+      node.setTimestamp(now);
+      unlinkExpiration(node);
+      linkExpiration(node);
+    }
+
+    private void linkAccess(Node<K, V> node) {
+      node.accessPrev = access.accessPrev;
+      node.accessNext = access;
+      access.accessPrev.accessNext = node;
+      access.accessPrev = node;
+    }
+
+    private void unlinkAccess(Node<K, V> node) {
+      node.accessPrev.accessNext = node.accessNext;
+      node.accessNext.accessPrev = node.accessPrev;
+    }
+
+    private void linkExpiration(Node<K, V> node) {
+      node.expirePrev = expiration.expirePrev;
+      node.expireNext = expiration;
+      expiration.expirePrev.expireNext = node;
+      expiration.expirePrev = node;
+    }
+
+    private void unlinkExpiration(Node<K, V> node) {
+      node.expirePrev.expireNext = node.expireNext;
+      node.expireNext.expirePrev = node.expirePrev;
+    }
+
+  }
+
 }
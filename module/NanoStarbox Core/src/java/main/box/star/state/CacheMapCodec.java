@@ -0,0 +1,94 @@
+package box.star.state;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes keys or values of a {@link CacheMap} to its journal, and reads them back.
+ * <p>
+ * Codecs are used from many threads at once, so they must not keep state.
+ *
+ * @param <T>
+ */
+public interface CacheMapCodec<T> {
+
+  /**
+   * Strings as UTF-8, null included.
+   */
+  CacheMapCodec<String> STRING = new CacheMapCodec<String>() {
+    @Override
+    public void write(DataOutput output, String value) throws IOException {
+      BYTES.write(output, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String read(DataInput input) throws IOException {
+      byte[] bytes = BYTES.read(input);
+      return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+  };
+
+  /**
+   * Byte arrays, null included.
+   */
+  CacheMapCodec<byte[]> BYTES = new CacheMapCodec<byte[]>() {
+    @Override
+    public void write(DataOutput output, byte[] value) throws IOException {
+      if (value == null) {
+        output.writeInt(-1);
+        return;
+      }
+      output.writeInt(value.length);
+      output.write(value);
+    }
+
+    @Override
+    public byte[] read(DataInput input) throws IOException {
+      int length = input.readInt();
+      if (length < 0) return null;
+      byte[] bytes = new byte[length];
+      input.readFully(bytes);
+      return bytes;
+    }
+  };
+
+  /**
+   * Java serialization, one stream per object; objects that are not
+   * {@link Serializable} are written as null, like {@link CacheMapLoader#saveMap(java.util.Map)} does.
+   */
+  CacheMapCodec<Object> SERIALIZABLE = new CacheMapCodec<Object>() {
+    @Override
+    public void write(DataOutput output, Object value) throws IOException {
+      if (!(value instanceof Serializable)) {
+        BYTES.write(output, null);
+        return;
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream objects = new ObjectOutputStream(bytes);
+      objects.writeObject(value);
+      objects.close();
+      BYTES.write(output, bytes.toByteArray());
+    }
+
+    @Override
+    public Object read(DataInput input) throws IOException {
+      byte[] bytes = BYTES.read(input);
+      if (bytes == null) return null;
+      ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(bytes));
+      try {
+        return objects.readObject();
+      }
+      catch (ClassNotFoundException e) {
+        throw new InvalidClassException(e.getMessage());
+      }
+      finally {
+        objects.close();
+      }
+    }
+  };
+
+  void write(DataOutput output, T value) throws IOException;
+
+  T read(DataInput input) throws IOException;
+
+}
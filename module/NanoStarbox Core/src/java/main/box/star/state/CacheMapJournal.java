@@ -0,0 +1,426 @@
+package box.star.state;
+
+import box.star.state.CacheMapMonitor.CacheEvent;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The write-ahead log of a journaled {@link CacheMap}.
+ * <p>
+ * A directory holds one snapshot and the logs written since: every create,
+ * update, renewal, removal and expiration of an entry is appended to a memory
+ * mapped log, so it costs a copy into the page cache and survives a crash of
+ * the process; {@link #sync()} makes it survive a crash of the machine.
+ * <p>
+ * When a log grows past the size of the snapshot, writing moves on to a new log
+ * and a thread writes a new snapshot of the cache, after which the older files
+ * are deleted. Replaying a log over a snapshot that already has some of its
+ * changes is harmless, since every record sets the state of its key.
+ * <p>
+ * Both kinds of file are a header followed by records, each an int length, the
+ * CRC32 of the body, and the body: the event, the timestamp, the key, and the
+ * value for creates and updates; a snapshot is all creates. A record that is
+ * cut short or fails its check ends the file. Files are decoded by several
+ * threads, and the records applied in order.
+ */
+final class CacheMapJournal<K, V> {
+
+  private static final Logger LOG = Logger.getLogger(CacheMapJournal.class.getName());
+
+  private static final int SNAPSHOT_MAGIC = 0x434d5331, LOG_MAGIC = 0x434d4c31;
+  private static final int HEADER_SIZE = 12;
+  private static final String SNAPSHOT = "snapshot", LOG_PREFIX = "log-", LOG_SUFFIX = ".dat";
+  private static final int MAPPING_SIZE = 1 << 20;
+  private static final long MIN_COMPACTION_SIZE = 4 << 20;
+  private static final int RECORDS_PER_THREAD = 4096;
+
+  private static final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+    @Override
+    protected Encoder initialValue() {
+      return new Encoder();
+    }
+  };
+
+  private final CacheMap<K, V> cacheMap;
+  private final File directory;
+  private final CacheMapCodec<K> keyCodec;
+  private final CacheMapCodec<V> valueCodec;
+  private final Object compaction = new Object();
+
+  private long generation;
+  private FileChannel channel;
+  private MappedByteBuffer buffer;
+  private long mappingOffset, written, snapshotSize, replayed;
+  private boolean compacting;
+
+  CacheMapJournal(CacheMap<K, V> cacheMap, File directory, CacheMapLoader<K, V> loader) {
+    this.cacheMap = cacheMap;
+    this.directory = directory;
+    this.keyCodec = loader.getKeyCodec();
+    this.valueCodec = loader.getValueCodec();
+  }
+
+  private static boolean hasValue(CacheEvent action) {
+    return action == CacheEvent.CREATE || action == CacheEvent.UPDATE;
+  }
+
+  private File logFile(long generation) {
+    return new File(directory, LOG_PREFIX + generation + LOG_SUFFIX);
+  }
+
+  /**
+   * @return the generations of the logs in the directory, in order
+   */
+  private List<Long> logGenerations() {
+    List<Long> generations = new ArrayList<>();
+    String[] names = directory.list();
+    if (names != null) for (String name : names) {
+      if (!name.startsWith(LOG_PREFIX) || !name.endsWith(LOG_SUFFIX)) continue;
+      try {
+        generations.add(Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())));
+      }
+      catch (NumberFormatException ignored) {}
+    }
+    Collections.sort(generations);
+    return generations;
+  }
+
+  /**
+   * Reads the snapshot and the logs after it.
+   *
+   * @return the entries of the cache, expired or not
+   */
+  Map<K, CacheMap.Entry<V>> replay() throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("can't create journal directory: " + directory);
+    Map<K, CacheMap.Entry<V>> entries = new HashMap<>();
+    long first = 0;
+    File snapshot = new File(directory, SNAPSHOT);
+    if (snapshot.exists()) {
+      first = replay(snapshot, SNAPSHOT_MAGIC, entries);
+      snapshotSize = snapshot.length();
+    }
+    for (long generation : logGenerations()) {
+      this.generation = Math.max(this.generation, generation);
+      if (generation >= first) {
+        replay(logFile(generation), LOG_MAGIC, entries);
+        replayed += logFile(generation).length();
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * @return the generation in the header
+   */
+  private long replay(File file, int magic, Map<K, CacheMap.Entry<V>> entries) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_SIZE) return 0;
+      if (size > Integer.MAX_VALUE) throw new IOException("journal file too large: " + file);
+      final ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      if (data.getInt(0) != magic) throw new IOException("not a cache journal file: " + file);
+      long generation = data.getLong(4);
+      // lengths are cheap to walk; decoding is spread over threads
+      List<Integer> offsets = new ArrayList<>();
+      int position = HEADER_SIZE;
+      while (position + 8 <= size) {
+        int length = data.getInt(position);
+        if (length <= 0 || position + 8L + length > size) break;
+        offsets.add(position);
+        position += 8 + length;
+      }
+      final int[] records = new int[offsets.size()];
+      for (int i = 0; i < records.length; i++) records[i] = offsets.get(i);
+      final Object[] decoded = new Object[records.length];
+      int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), records.length / RECORDS_PER_THREAD));
+      if (threads == 1) decode(data, records, decoded, 0, records.length);
+      else {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+          List<Future<Void>> tasks = new ArrayList<>();
+          int chunk = (records.length + threads - 1) / threads;
+          for (int start = 0; start < records.length; start += chunk) {
+            final int from = start, to = Math.min(records.length, start + chunk);
+            tasks.add(executor.submit(new Callable<Void>() {
+              @Override
+              public Void call() throws IOException {
+                decode(data, records, decoded, from, to);
+                return null;
+              }
+            }));
+          }
+          for (Future<Void> task : tasks) task.get();
+        }
+        catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+          throw new RuntimeException(e.getCause());
+        }
+        finally {
+          executor.shutdown();
+        }
+      }
+      for (Object object : decoded) {
+        if (object == null) break;
+        apply((Record<K, V>) object, entries);
+      }
+      return generation;
+    }
+  }
+
+  /**
+   * Decodes records; a record that fails its check is left null.
+   */
+  private void decode(ByteBuffer data, int[] records, Object[] decoded, int from, int to) throws IOException {
+    CRC32 crc = new CRC32();
+    for (int i = from; i < to; i++) {
+      ByteBuffer body = data.duplicate();
+      body.position(records[i] + 8);
+      body.limit(records[i] + 8 + data.getInt(records[i]));
+      crc.reset();
+      crc.update(body.duplicate());
+      if ((int) crc.getValue() != data.getInt(records[i] + 4)) return;
+      DataInputStream input = new DataInputStream(new BufferInput(body));
+      Record<K, V> record = new Record<>();
+      record.action = CacheEvent.values()[input.readUnsignedByte()];
+      record.timestamp = input.readLong();
+      record.key = keyCodec.read(input);
+      if (hasValue(record.action)) record.value = valueCodec.read(input);
+      decoded[i] = record;
+    }
+  }
+
+  private void apply(Record<K, V> record, Map<K, CacheMap.Entry<V>> entries) {
+    switch (record.action) {
+      case CREATE:
+      case UPDATE:
+        entries.put(record.key, new CacheMap.Entry<V>(record.timestamp, record.value));
+        break;
+      case RENEW:
+        CacheMap.Entry<V> entry = entries.get(record.key);
+        if (entry != null) entry.setTimestamp(record.timestamp);
+        break;
+      default:
+        entries.remove(record.key);
+    }
+  }
+
+  private Encoder encode(CacheEvent action, long timestamp, K key, V value) throws IOException {
+    Encoder encoder = encoders.get();
+    encoder.reset();
+    encoder.data.writeLong(0);
+    encoder.data.writeByte(action.ordinal());
+    encoder.data.writeLong(timestamp);
+    keyCodec.write(encoder.data, key);
+    if (hasValue(action)) valueCodec.write(encoder.data, value);
+    encoder.seal();
+    return encoder;
+  }
+
+  /**
+   * Appends an event to the log.
+   */
+  void append(CacheEvent action, long timestamp, K key, V value) {
+    boolean compact;
+    try {
+      Encoder record = encode(action, timestamp, key, value);
+      synchronized (this) {
+        if (channel == null) return;
+        if (buffer.remaining() < record.size()) {
+          mappingOffset += buffer.position();
+          buffer = channel.map(FileChannel.MapMode.READ_WRITE, mappingOffset, Math.max(MAPPING_SIZE, record.size()));
+        }
+        buffer.put(record.bytes(), 0, record.size());
+        written += record.size();
+        compact = !compacting && written > Math.max(MIN_COMPACTION_SIZE, snapshotSize);
+        if (compact) compacting = true;
+      }
+      record.release();
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (compact) startCompaction();
+  }
+
+  /**
+   * Compacts on another thread if the logs read by {@link #replay()} were
+   * larger than the snapshot; called once the cache is loaded.
+   */
+  void compactIfReplayed() {
+    synchronized (this) {
+      if (compacting || replayed <= Math.max(MIN_COMPACTION_SIZE, snapshotSize)) return;
+      compacting = true;
+    }
+    startCompaction();
+  }
+
+  private void startCompaction() {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          compact();
+        }
+        catch (IOException e) {
+          LOG.log(Level.SEVERE, "Could not compact the cache journal in " + directory, e);
+        }
+      }
+    }, "CacheMap journal compaction");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Moves on to a new log.
+   *
+   * @return the generation of the new log
+   */
+  synchronized long roll() throws IOException {
+    long next = generation + 1;
+    FileChannel channel = FileChannel.open(logFile(next).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, MAPPING_SIZE);
+    buffer.putInt(LOG_MAGIC).putLong(next);
+    close();
+    this.channel = channel;
+    this.buffer = buffer;
+    generation = next;
+    mappingOffset = 0;
+    written = HEADER_SIZE;
+    return next;
+  }
+
+  /**
+   * Moves on to a new log, writes a snapshot of the cache, and deletes the files it replaces.
+   */
+  void compact() throws IOException {
+    synchronized (compaction) {
+      long next = roll();
+      try {
+        File snapshot = new File(directory, SNAPSHOT), temporary = new File(directory, SNAPSHOT + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary)) {
+          DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+          output.writeInt(SNAPSHOT_MAGIC);
+          output.writeLong(next);
+          for (Map.Entry<K, CacheMap.Entry<V>> entry : cacheMap.copyEntries().entrySet()) {
+            Encoder record = encode(CacheEvent.CREATE, entry.getValue().timestamp(), entry.getKey(), entry.getValue().value());
+            output.write(record.bytes(), 0, record.size());
+          }
+          output.flush();
+          file.getFD().sync();
+        }
+        Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+          snapshotSize = snapshot.length();
+        }
+        for (long generation : logGenerations()) if (generation < next) logFile(generation).delete();
+      }
+      finally {
+        synchronized (this) {
+          compacting = false;
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the log to the device.
+   */
+  synchronized void sync() {
+    if (channel == null) return;
+    try {
+      channel.force(false);
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  synchronized void close() throws IOException {
+    if (channel == null) return;
+    channel.force(false);
+    channel.close();
+    channel = null;
+    buffer = null;
+  }
+
+  private static final class Record<K, V> {
+    CacheEvent action;
+    long timestamp;
+    K key;
+    V value;
+  }
+
+  /**
+   * A record being written: the length and checksum, then the body.
+   */
+  private static final class Encoder extends ByteArrayOutputStream {
+
+    final DataOutputStream data = new DataOutputStream(this);
+
+    byte[] bytes() {
+      return buf;
+    }
+
+    void seal() {
+      CRC32 crc = new CRC32();
+      crc.update(buf, 8, count - 8);
+      putInt(0, count - 8);
+      putInt(4, (int) crc.getValue());
+    }
+
+    private void putInt(int offset, int value) {
+      buf[offset] = (byte) (value >>> 24);
+      buf[offset + 1] = (byte) (value >>> 16);
+      buf[offset + 2] = (byte) (value >>> 8);
+      buf[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Drops the buffer of an unusually large record.
+     */
+    void release() {
+      if (buf.length > 1 << 16) encoders.remove();
+    }
+
+  }
+
+  private static final class BufferInput extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    BufferInput(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) return 0;
+      if (!buffer.hasRemaining()) return -1;
+      len = Math.min(len, buffer.remaining());
+      buffer.get(b, off, len);
+      return len;
+    }
+
+  }
+
+}
@@ -9,12 +9,38 @@ import java.util.Map;
  * any {@link CacheMap.Entry#value()} that is not serializable,
  * and to inflate these objects when the cache is loaded from a
  * serializable source.
+ * <p>
+ * A journaled cache ({@link CacheMap#setJournal(java.io.File, CacheMapLoader)})
+ * writes each key and value with the codecs of the loader instead. The default
+ * codecs use Java serialization; a loader with compact codecs, such as
+ * {@link CacheMapCodec#STRING}, makes much smaller files.
  *
  * @param <K>
  * @param <V>
  */
 public class CacheMapLoader<K, V> {
 
+  private final CacheMapCodec<K> keyCodec;
+  private final CacheMapCodec<V> valueCodec;
+
+  @SuppressWarnings("unchecked")
+  public CacheMapLoader() {
+    this((CacheMapCodec<K>) (CacheMapCodec) CacheMapCodec.SERIALIZABLE, (CacheMapCodec<V>) (CacheMapCodec) CacheMapCodec.SERIALIZABLE);
+  }
+
+  public CacheMapLoader(CacheMapCodec<K> keyCodec, CacheMapCodec<V> valueCodec) {
+    this.keyCodec = keyCodec;
+    this.valueCodec = valueCodec;
+  }
+
+  public CacheMapCodec<K> getKeyCodec() {
+    return keyCodec;
+  }
+
+  public CacheMapCodec<V> getValueCodec() {
+    return valueCodec;
+  }
+
   /**
    * Convert each map Entry.value to serializable, and return the map.
    *
@@ -3,12 +3,28 @@ package box.star.state;
 import box.star.contract.NotNull;
 import box.star.contract.Nullable;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A key value store that falls back on the configuration of its parent.
+ * <p>
+ * Reads go through a flattened view of the whole parent chain, built on
+ * demand and kept until a write anywhere in the chain changes the version of
+ * the configuration, so a lookup is a single hash probe and listing keys or
+ * values is linear. Listeners hear about every key whose resolved entry may
+ * have changed, including through a parent.
+ */
 public class Configuration<K extends Serializable, V extends Serializable> implements Serializable {
   private static final long serialVersionUID = 6990681513366432002L;
   private Manager<K, V> manager;
@@ -24,7 +40,7 @@ public class Configuration<K extends Serializable, V extends Serializable> imple
     if (entry != null) {
       if (entry.isWritable()) entry.setValue(v);
     } else {
-      manager.map.put(k, new Entry<>(v));
+      manager.set(k, new Entry<>(v));
     }
   }
 
@@ -42,13 +58,13 @@ public class Configuration<K extends Serializable, V extends Serializable> imple
     return (ANY) e.getValue();
   }
 
-  public int size() {return keyList().size();}
+  public int size() {return manager.view().keys.size();}
 
   public void addAll(@NotNull Map<K, V> map) {
     for (K k : map.keySet()) set(k, map.get(k));
   }
 
-  public boolean isEmpty() {return keyList().size() == 0;}
+  public boolean isEmpty() {return manager.view().keys.isEmpty();}
 
   public boolean containsKey(@NotNull K key) {
     return manager.resolveKey(key);
@@ -71,20 +87,63 @@ public class Configuration<K extends Serializable, V extends Serializable> imple
 
   @NotNull
   public List<V> valueList() {
-    List<K> all = keyList();
-    List<V> out = new ArrayList<>();
-    for (K k : all) {
-      Entry<V> e = manager.resolve(k);
-      out.add(e.getValue());
-    }
+    View<K, V> view = manager.view();
+    List<V> out = new ArrayList<>(view.keys.size());
+    for (K k : view.keys) out.add(view.entries.get(k).getValue());
     return out;
   }
 
+  /**
+   * @return a number that changes whenever this configuration or a parent is written
+   */
+  public long getVersion() {
+    return manager.version.get();
+  }
+
+  /**
+   * Calls the listener after each change that may affect a key of this
+   * configuration, on the thread that made it.
+   */
+  public void addListener(@NotNull Listener<K> listener) {
+    manager.listeners.add(listener);
+  }
+
+  public void removeListener(@NotNull Listener<K> listener) {
+    manager.listeners.remove(listener);
+  }
+
+  public interface Listener<K> {
+    /**
+     * @param key a key that was set, removed, or had its entry changed
+     */
+    void onConfigurationChange(K key);
+  }
+
+  /**
+   * The resolved entries of a configuration at one version.
+   */
+  private static final class View<K, V> {
+    final long version;
+    final Map<K, Entry<V>> entries;
+    final List<K> keys;
+
+    View(long version, Map<K, Entry<V>> entries, List<K> keys) {
+      this.version = version;
+      this.entries = entries;
+      this.keys = keys;
+    }
+  }
+
   public static class Entry<V> implements Serializable {
     private static final long serialVersionUID = 7036263767117650059L;
     private boolean enumerable = true, writable = true, configurable = true;
     private long creationTime, modificationTime;
     private V value;
+    /**
+     * The manager holding this entry, and its key there, to report changes to.
+     */
+    private transient Manager<?, ?> owner;
+    private transient Object key;
 
     public Entry(V value) {
       this.creationTime = this.modificationTime = System.currentTimeMillis();
@@ -108,8 +167,8 @@ public class Configuration<K extends Serializable, V extends Serializable> imple
     }
 
     public void setConfigurable(boolean configurable) {
-      this.update();
       this.configurable = configurable;
+      this.update();
     }
 
     public boolean isEnumerable() {
@@ -117,8 +176,8 @@ public class Configuration<K extends Serializable, V extends Serializable> imple
     }
 
     public void setEnumerable(boolean enumerable) {
-      this.update();
       this.enumerable = enumerable;
+      this.update();
     }
 
     public boolean isWritable() {
@@ -126,12 +185,14 @@ public class Configuration<K extends Serializable, V extends Serializable> imple
     }
 
     public void setWritable(boolean writable) {
-      this.update();
       this.writable = writable;
+      this.update();
     }
 
     private void update() {
       this.modificationTime = System.currentTimeMillis();
+      Manager<?, ?> owner = this.owner;
+      if (owner != null) owner.changed(key);
     }
 
     @Nullable
@@ -140,8 +201,8 @@ public class Configuration<K extends Serializable, V extends Serializable> imple
     }
 
     public void setValue(V value) {
-      this.update();
       this.value = value;
+      this.update();
     }
   }
 
@@ -150,15 +211,75 @@ public class Configuration<K extends Serializable, V extends Serializable> imple
     private ConcurrentHashMap<K, Entry<V>> map;
     private String name;
     private Configuration<K, V> parent;
+    private transient AtomicLong version;
+    private transient volatile View<K, V> view;
+    private transient List<WeakReference<Manager<K, V>>> children;
+    private transient List<Listener<K>> listeners;
 
     public Manager(String name) {
       this.name = name;
       map = new ConcurrentHashMap<>();
+      initialize();
     }
 
     public Manager(String name, Configuration<K, V> parent) {
       this(name);
       this.parent = parent;
+      if (parent != null) parent.manager.children.add(new WeakReference<>(this));
+    }
+
+    private void initialize() {
+      version = new AtomicLong();
+      children = new CopyOnWriteArrayList<>();
+      listeners = new CopyOnWriteArrayList<>();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+      in.defaultReadObject();
+      initialize();
+      for (Map.Entry<K, Entry<V>> entry : map.entrySet()) attach(entry.getKey(), entry.getValue());
+      if (parent != null) parent.manager.children.add(new WeakReference<>(this));
+    }
+
+    private void attach(K key, Entry<V> entry) {
+      entry.owner = this;
+      entry.key = key;
+    }
+
+    /**
+     * Moves this configuration and those below it to a new version, and tells their listeners.
+     */
+    @SuppressWarnings("unchecked")
+    void changed(Object key) {
+      version.incrementAndGet();
+      for (Listener<K> listener : listeners) listener.onConfigurationChange((K) key);
+      for (WeakReference<Manager<K, V>> reference : children) {
+        Manager<K, V> child = reference.get();
+        if (child == null) children.remove(reference);
+        else if (child.map.containsKey(key)) child.version.incrementAndGet();
+        else child.changed(key);
+      }
+    }
+
+    /**
+     * @return the flattened entries of the current version
+     */
+    private View<K, V> view() {
+      View<K, V> view = this.view;
+      long version = this.version.get();
+      if (view != null && view.version == version) return view;
+      // a write during the build moves the version on, so the result is only used once
+      Map<K, Entry<V>> entries = new LinkedHashMap<>(map);
+      if (parent != null) {
+        for (Map.Entry<K, Entry<V>> entry : parent.manager.view().entries.entrySet())
+          if (!entries.containsKey(entry.getKey())) entries.put(entry.getKey(), entry.getValue());
+      }
+      List<K> keys = new ArrayList<>(entries.size());
+      for (Map.Entry<K, Entry<V>> entry : entries.entrySet())
+        if (entry.getValue().isEnumerable()) keys.add(entry.getKey());
+      view = new View<>(version, entries, Collections.unmodifiableList(keys));
+      this.view = view;
+      return view;
     }
 
     public Entry<V> get(K key) {
@@ -170,15 +291,19 @@ public class Configuration<K extends Serializable, V extends Serializable> imple
     }
 
     public void set(K key, V value) {
-      map.put(key, create(value));
+      set(key, create(value));
     }
 
     public void set(K key, Entry<V> entry) {
+      attach(key, entry);
       map.put(key, entry);
+      changed(key);
     }
 
     public Entry<V> delete(K key) {
-      return map.remove(key);
+      Entry<V> entry = map.remove(key);
+      if (entry != null) changed(key);
+      return entry;
     }
 
     public Configuration<K, V> getConfiguration() {
@@ -195,38 +320,22 @@ public class Configuration<K extends Serializable, V extends Serializable> imple
     }
 
     public List<K> resolveKeys() {
-      List<K> keys = new ArrayList<>();
-      resolveKeys(keys);
-      return keys;
-    }
-
-    private void resolveKeys(List<K> keyList) {
-      for (K key : map.keySet()) {
-        if (!keyList.contains(key)) {
-          Entry<V> e = map.get(key);
-          if (e.isEnumerable()) keyList.add(key);
-        }
-      }
-      if (parent != null) parent.manager.resolveKeys(keyList);
+      return new ArrayList<>(view().keys);
     }
 
     private boolean resolveKey(K key) {
-      if (map.containsKey(key)) return true;
-      else if (parent != null) return parent.manager.resolveKey(key);
-      else return false;
+      return view().entries.containsKey(key);
     }
 
     private Entry<V> resolve(K key) {
-      if (map.containsKey(key)) return map.get(key);
-      else if (parent != null) return parent.manager.resolve(key);
-      else return null;
+      return view().entries.get(key);
     }
 
     public Entry<V> remove(K key) {
-      if (map.containsKey(key)) {
-        Entry<V> e = map.get(key);
-        if (e.isConfigurable()) {
-          map.remove(key);
+      Entry<V> e = map.get(key);
+      if (e != null) {
+        if (e.isConfigurable() && map.remove(key, e)) {
+          changed(key);
           return e;
         }
         return null;
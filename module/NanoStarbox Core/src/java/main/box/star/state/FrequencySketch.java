@@ -0,0 +1,75 @@
+package box.star.state;
+
+/**
+ * A count-min sketch of how often keys were seen recently, for TinyLFU admission.
+ * <p>
+ * Each key has four 4-bit counters, one in each of four rows, packed sixteen to
+ * a long; the estimate is the smallest of the four. After ten times the capacity
+ * in counts, every counter is halved, so old popularity fades.
+ * <p>
+ * Not thread safe: the owner locks around it.
+ */
+final class FrequencySketch {
+
+  private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long ONE_MASK = 0x1111111111111111L;
+
+  private final long[] table;
+  private final int tableMask;
+  private final int sampleSize;
+  private int size;
+
+  /**
+   * @param capacity the number of keys to tell apart
+   */
+  FrequencySketch(int capacity) {
+    int length = Integer.highestOneBit(Math.max(16, Math.min(capacity, 1 << 24)) - 1) << 1;
+    table = new long[length];
+    tableMask = length - 1;
+    sampleSize = 10 * length;
+  }
+
+  /**
+   * @return the estimated count of the hash, at most 15
+   */
+  int frequency(int hash) {
+    int start = (hash & 3) << 2, frequency = 15;
+    for (int i = 0; i < 4; i++) {
+      int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xF);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  void increment(int hash) {
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) added |= incrementAt(indexOf(hash, i), start + i);
+    if (added && ++size == sampleSize) reset();
+  }
+
+  private boolean incrementAt(int index, int counter) {
+    int offset = counter << 2;
+    long mask = 0xFL << offset;
+    if ((table[index] & mask) == mask) return false;
+    table[index] += 1L << offset;
+    return true;
+  }
+
+  private void reset() {
+    int odd = 0;
+    for (int i = 0; i < table.length; i++) {
+      odd += Long.bitCount(table[i] & ONE_MASK);
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    size = (size >>> 1) - (odd >>> 2);
+  }
+
+  private int indexOf(int hash, int row) {
+    long h = (hash + SEEDS[row]) * SEEDS[row];
+    h += h >>> 32;
+    return (int) h & tableMask;
+  }
+
+}
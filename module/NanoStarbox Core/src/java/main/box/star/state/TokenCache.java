@@ -20,6 +20,14 @@ public class TokenCache<T> extends TokenMap<T> {
     map = new CacheMap<>(duration, true);
   }
 
+  /**
+   * @param map a cache configured for the expected number of tokens
+   */
+  public TokenCache(CacheMap<String, T> map, int... lengths) {
+    tokenFormat = lengths;
+    this.map = map;
+  }
+
   public boolean isConfiguredForDiskSynchronization() {
     return configuredForDiskSynchronization;
   }
@@ -40,16 +48,19 @@ public class TokenCache<T> extends TokenMap<T> {
     return this;
   }
 
-  private String getNextToken() {
-    String token;
-    do { token = tokenGenerator.createNewToken(tokenFormat); }
-    while (map.containsKey(token));
-    return token;
+  /**
+   * Keeps the tokens in a journal, see {@link CacheMap#setJournal(File, CacheMapLoader)}.
+   */
+  public TokenCache<T> setJournal(File directory, CacheMapLoader<String, T> cacheMapLoader) {
+    map.setJournal(directory, cacheMapLoader);
+    configuredForDiskSynchronization = true;
+    return this;
   }
 
   public String put(T value) {
-    String token = getNextToken();
-    map.put(token, value);
+    String token;
+    do { token = tokenGenerator.createNewToken(tokenFormat); }
+    while (!map.putIfAbsent(token, value));
     return token;
   }
 
@@ -21,16 +21,14 @@ public class TokenMap<T> {
     map = new ConcurrentHashMap<>();
   }
 
-  private String getNextToken() {
+  /**
+   * Stores a value under a new token; a token that is already taken is
+   * replaced by another, without holding any lock of the map.
+   */
+  public String put(T value) {
     String token;
     do { token = tokenGenerator.createNewToken(tokenFormat); }
-    while (map.containsKey(token));
-    return token;
-  }
-
-  synchronized public String put(T value) {
-    String token = getNextToken();
-    map.put(token, value);
+    while (map.putIfAbsent(token, value) != null);
     return token;
   }
 
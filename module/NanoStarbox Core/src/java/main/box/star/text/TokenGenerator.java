@@ -1,30 +1,89 @@
 package box.star.text;
 
 import java.io.Serializable;
-import java.util.Random;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 
+/**
+ * Creates random tokens of upper case hex digits, in dash separated groups.
+ * <p>
+ * The digits come from a {@link SecureRandom} of the calling thread, drawn a
+ * buffer of bytes at a time, so threads issuing tokens share no lock or state.
+ */
 public class TokenGenerator implements Serializable {
 
   private static final long serialVersionUID = -3724811841134376499L;
 
-  private static final Random RANDOM = new Random();
   private static final char[] HEX = new char[]{'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
-  private static int TOKEN_SIZE = 16;
+  private static final int BUFFER_SIZE = 256;
+
+  private static final ThreadLocal<RandomBytes> RANDOM = new ThreadLocal<RandomBytes>() {
+    @Override
+    protected RandomBytes initialValue() {
+      return new RandomBytes();
+    }
+  };
 
   public TokenGenerator() {}
 
-  private static String generateToken(int size) {
-    StringBuilder sb = new StringBuilder(size);
-    for (int i = 0; i < size; i++) sb.append(HEX[RANDOM.nextInt(HEX.length)]);
-    return sb.toString();
+  /**
+   * @return a generator that needs no shared lock: the DRBG of JDK 9 and later, or SHA1PRNG
+   */
+  private static SecureRandom newSecureRandom() {
+    for (String algorithm : new String[]{"DRBG", "SHA1PRNG"}) {
+      try {
+        return SecureRandom.getInstance(algorithm);
+      }
+      catch (NoSuchAlgorithmException ignored) {}
+    }
+    return new SecureRandom();
+  }
+
+  private static String generateToken(int... sizes) {
+    int length = sizes.length - 1;
+    for (int size : sizes) length += size;
+    char[] token = new char[Math.max(0, length)];
+    RandomBytes random = RANDOM.get();
+    int position = 0;
+    for (int i = 0; i < sizes.length; i++) {
+      if (i > 0) token[position++] = '-';
+      position = random.fill(token, position, sizes[i]);
+    }
+    return new String(token);
   }
 
   public String createNewToken(int size) { return generateToken(size); }
 
-  public String createNewToken(int[] sizes) {
-    String[] parts = new String[sizes.length];
-    for (int i = 0; i < sizes.length; i++) parts[i] = generateToken(sizes[i]);
-    return (String.join("-", parts));
+  public String createNewToken(int[] sizes) { return generateToken(sizes); }
+
+  /**
+   * The random bytes of one thread.
+   */
+  private static final class RandomBytes {
+
+    private final SecureRandom random = newSecureRandom();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = BUFFER_SIZE;
+
+    /**
+     * Writes count hex digits, two for each random byte.
+     *
+     * @return the position after them
+     */
+    int fill(char[] token, int offset, int count) {
+      int end = offset + count;
+      while (offset < end) {
+        if (position == BUFFER_SIZE) {
+          random.nextBytes(buffer);
+          position = 0;
+        }
+        int value = buffer[position++];
+        token[offset++] = HEX[(value >>> 4) & 0xF];
+        if (offset < end) token[offset++] = HEX[value & 0xF];
+      }
+      return end;
+    }
+
   }
 
 }
@@ -23,6 +23,7 @@ import static box.star.text.Char.*;
  * <li>Character Map Searching through {@link #nextMap(char...)} and {@link #nextMapLength(int, char...)}</li>
  * <li>Character Field Boundary Searching through {@link #nextField(char...)} and {@link #nextFieldLength(int, char...)}</li>
  * <li>Integral Back Step Buffer Control Method through {@link #flushHistory()}</li>
+ * <li>Bounded History, with the source read in blocks</li>
  * <li>Integral Line and Character Escape interface through {@link #setLineEscape(boolean)}, {@link #setLineEscape(boolean, boolean)}, {@link #backSlashMode()}, and {@link #escapeMode()}</li>
  * </ul>
  * <br>
@@ -31,6 +32,11 @@ import static box.star.text.Char.*;
  */
 public class Scanner implements Closeable {
 
+  /**
+   * The number of characters read from the source at a time.
+   */
+  private static final int BLOCK_SIZE = 4096;
+
   private static final CharacterExpander defaultCharacterExpander = new CharacterExpander() {
     @Override
     public String expand(Scanner scanner, char c) {
@@ -43,9 +49,14 @@ public class Scanner implements Closeable {
   protected Reader reader;
   protected boolean closeable;
   protected ScannerState state;
+  /**
+   * The last block read from the reader, and how much of it the state has.
+   */
+  private char[] block;
+  private int blockPosition, blockLength;
 
   public Scanner(@NotNull String path, @NotNull Reader reader) {
-    this.reader = reader.markSupported() ? reader : new BufferedReader(reader);
+    this.reader = reader;
     this.state = new ScannerState(path);
   }
 
@@ -58,6 +69,7 @@ public class Scanner implements Closeable {
   public Scanner(@NotNull String path, @NotNull String s) {
     this(path, new StringReader(s));
     this.closeable = true;
+    this.block = new char[Math.max(1, Math.min(BLOCK_SIZE, s.length()))];
   }
 
   public Scanner(@NotNull File file) {
@@ -196,19 +208,43 @@ public class Scanner implements Closeable {
   public boolean haveNext() throws Exception {
     if (state.haveNext()) return true;
     else if (state.eof) return false;
-    else {
-      try {
-        int c = this.reader.read();
-        if (c <= 0) {
+    else return read();
+  }
+
+  /**
+   * Hands the next character of the source to the state, reading a block if needed.
+   *
+   * @return false at the end of the source, or at a null character
+   * @throws Exception if read fails
+   */
+  private boolean read() throws Exception {
+    if (state.recorded == state.limit) {
+      if (block == null) block = new char[BLOCK_SIZE];
+      if (blockPosition == blockLength) {
+        try {
+          do blockLength = reader.read(block, 0, block.length); while (blockLength == 0);
+        }
+        catch (IOException exception) { throw new Exception(exception); }
+        blockPosition = 0;
+        if (blockLength < 0) {
+          blockLength = 0;
           state.eof = true;
           return false;
         }
-        state.recordCharacter(Char.valueOf(c));
-        state.stepBackward();
-        return true;
       }
-      catch (IOException exception) { throw new Exception(exception); }
+      int end = blockPosition;
+      while (end < blockLength && block[end] != 0) end++;
+      if (end == blockPosition) {
+        // a null character ends the text, without entering the history
+        blockPosition++;
+        state.eof = true;
+        return false;
+      }
+      state.record(block, blockPosition, end - blockPosition);
+      blockPosition = end;
     }
+    state.recorded++;
+    return true;
   }
 
   /**
@@ -234,19 +270,8 @@ public class Scanner implements Closeable {
    * @throws Exception if read fails
    */
   public char next() throws Exception {
-    if (state.haveNext()) return state.next();
-    else {
-      try {
-        int c = this.reader.read();
-        if (c <= 0) {
-          state.eof = true;
-          return 0;
-        }
-        state.recordCharacter(Char.valueOf(c));
-        return Char.valueOf(c);
-      }
-      catch (IOException exception) { throw new Exception(exception); }
-    }
+    if (state.haveNext() || read()) return state.next();
+    return 0;
   }
 
   /**
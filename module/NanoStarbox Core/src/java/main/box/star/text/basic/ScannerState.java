@@ -1,10 +1,19 @@
 package box.star.text.basic;
 
 import java.io.Serializable;
-import java.util.Stack;
 
 import static box.star.text.Char.*;
 
+/**
+ * The position of a {@link Scanner}, and the text it can step back over.
+ * <p>
+ * Characters are kept in a ring buffer by their position in the source: the
+ * history behind the cursor, and the characters read ahead of it. History is
+ * kept for {@link #historySize} characters behind the cursor, or behind a
+ * state lock if that is further back, so the buffer stays the same size
+ * however long the source is. The column of each line break in the history is
+ * kept in a ring of longs, to step back over lines.
+ */
 public class ScannerState implements Cloneable, Serializable {
 
   protected static final int historySize = 1024;
@@ -12,9 +21,18 @@ public class ScannerState implements Cloneable, Serializable {
   protected String path;
   protected long column, index, line;
 
-  protected Stack<Long> columnHistory;
-  protected StringBuilder buffer;
-  protected int bufferPosition;
+  /**
+   * The columns at the line breaks behind the cursor; the ring holds those from
+   * columnFloor up to columnTop.
+   */
+  protected long[] columnHistory;
+  protected long columnFloor, columnTop;
+  /**
+   * The characters from the source positions start up to limit; those up to
+   * recorded have been handed to the scanner, and position is the cursor.
+   */
+  protected char[] buffer;
+  protected long start, position, recorded, limit, lockPosition;
   protected boolean locked, eof, slashing, escaped, escapeLines, escapeUnderscoreLine;
 
   public ScannerState(String path) {
@@ -23,12 +41,13 @@ public class ScannerState implements Cloneable, Serializable {
     state.index = -1;
     state.column = 0;
     state.line = 1;
-    state.clearHistory();
+    state.buffer = new char[256];
+    state.columnHistory = new long[64];
   }
 
   public void trimHistoryLength(int length) {
     if (haveNext()) {
-      // in any case, we don't want to move the user's cursor (bufferPosition).
+      // in any case, we don't want to move the user's cursor (position).
       throw new IllegalStateException("trying to trim history while browsing history");
     }
     int max = getHistoryLength();
@@ -39,35 +58,83 @@ public class ScannerState implements Cloneable, Serializable {
       clearHistory();
       return;
     }
-    Stack<Long> cHist = new Stack<>();
-    // collect the column positions for back-stepping through lines
-    for (int i = 0, y = max, z = columnHistory.size(); i < length; i++) {
-      switch (buffer.charAt(--y)) {
+    forget(Math.min(recorded - length, floor()));
+  }
+
+  public int getHistoryLength() {
+    return (int) (recorded - start);
+  }
+
+  /**
+   * Forgets the history behind the cursor, keeping what a state lock may return to.
+   */
+  public void clearHistory() {
+    forget(floor());
+  }
+
+  /**
+   * @return the first position that must stay in the history
+   */
+  private long floor() {
+    return locked ? Math.min(position, lockPosition) : position;
+  }
+
+  /**
+   * Drops the history before the given position, with the columns of its line breaks.
+   */
+  private void forget(long to) {
+    int mask = buffer.length - 1, breaks = 0;
+    for (long p = start; p < to; p++) {
+      switch (buffer[(int) p & mask]) {
         case LINE_FEED:
         case CARRIAGE_RETURN:
-          cHist.add(0, columnHistory.get(--z));
-          break;
+          breaks++;
       }
     }
-    StringBuilder cbuffer = new StringBuilder(historySize);
-    // trim the buffer
-    cbuffer.append(buffer.substring(max - length));
-    // apply the buffer
-    buffer = cbuffer;
-    // restore the user's cursor
-    bufferPosition = length - 1;
-    // apply the column history
-    columnHistory = cHist;
+    columnFloor = Math.min(columnTop, columnFloor + breaks);
+    start = to;
   }
 
-  public int getHistoryLength() {
-    return buffer.length();
+  /**
+   * Adds characters read from the source after those in the buffer.
+   */
+  protected void record(char[] source, int offset, int count) {
+    long floor = floor() - historySize;
+    if (floor > start) forget(floor);
+    long required = limit + count - start;
+    if (required > buffer.length) {
+      int capacity = buffer.length;
+      while (capacity < required) capacity <<= 1;
+      char[] grown = new char[capacity];
+      for (long p = start; p < limit; ) {
+        int from = (int) p & (buffer.length - 1), to = (int) p & (capacity - 1);
+        int n = (int) Math.min(limit - p, Math.min(buffer.length - from, capacity - to));
+        System.arraycopy(buffer, from, grown, to, n);
+        p += n;
+      }
+      buffer = grown;
+    }
+    int at = (int) limit & (buffer.length - 1);
+    int first = Math.min(count, buffer.length - at);
+    System.arraycopy(source, offset, buffer, at, first);
+    System.arraycopy(source, offset + first, buffer, 0, count - first);
+    limit += count;
   }
 
-  public void clearHistory() {
-    buffer = new StringBuilder(128);
-    bufferPosition = -1;
-    columnHistory = new Stack<>();
+  /**
+   * Returns to the position of a clone taken by a state lock.
+   */
+  protected void restore(ScannerState backup) {
+    position = backup.position;
+    index = backup.index;
+    line = backup.line;
+    column = backup.column;
+    columnTop = Math.max(columnFloor, backup.columnTop);
+    eof = backup.eof;
+    slashing = backup.slashing;
+    escaped = backup.escaped;
+    escapeLines = backup.escapeLines;
+    escapeUnderscoreLine = backup.escapeUnderscoreLine;
   }
 
   protected char escape(char c) {
@@ -90,21 +157,29 @@ public class ScannerState implements Cloneable, Serializable {
   }
 
   public boolean haveNext() {
-    return bufferPosition != (buffer.length() - 1);
+    return position != recorded;
   }
 
   protected char previousCharacter() {
-    if (bufferPosition < 0) return NULL_CHARACTER;
-    return buffer.charAt(bufferPosition);
+    if (position == start) return NULL_CHARACTER;
+    return buffer[(int) (position - 1) & (buffer.length - 1)];
   }
 
   protected long nextColumn() {
-    columnHistory.push(column);
+    if (columnTop - columnFloor == columnHistory.length) {
+      long[] grown = new long[columnHistory.length * 2];
+      for (long p = columnFloor; p < columnTop; p++)
+        grown[(int) p & (grown.length - 1)] = columnHistory[(int) p & (columnHistory.length - 1)];
+      columnHistory = grown;
+    }
+    columnHistory[(int) columnTop++ & (columnHistory.length - 1)] = column;
     return 0;
   }
 
   protected long previousColumn() {
-    return columnHistory.pop();
+    // the column of a line break whose history was dropped is not known
+    if (columnTop == columnFloor) return 0;
+    return columnHistory[(int) --columnTop & (columnHistory.length - 1)];
   }
 
   protected char nextCharacter(char c) {
@@ -124,20 +199,12 @@ public class ScannerState implements Cloneable, Serializable {
     return c;
   }
 
-  protected void recordCharacter(char c) {
-    if (this.buffer.length() == this.buffer.capacity()) {
-      this.buffer.ensureCapacity(this.buffer.length() + historySize);
-    }
-    this.buffer.append(nextCharacter(c));
-    this.bufferPosition++;
-    this.index++;
-  }
-
   protected void stepBackward() {
-    char c = previousCharacter();
-    bufferPosition--;
-    this.index--;
     this.eof = false;
+    // there is nothing to step back over at the start of the history
+    if (position == start) return;
+    char c = buffer[(int) --position & (buffer.length - 1)];
+    this.index--;
     switch (escape(c)) {
       case CARRIAGE_RETURN:
         this.column = previousColumn();
@@ -152,9 +219,10 @@ public class ScannerState implements Cloneable, Serializable {
   }
 
   protected char next() {
+    char c = nextCharacter(buffer[(int) position & (buffer.length - 1)]);
+    this.position++;
     this.index++;
-    this.bufferPosition++;
-    return nextCharacter(previousCharacter());
+    return c;
   }
 
   @Override
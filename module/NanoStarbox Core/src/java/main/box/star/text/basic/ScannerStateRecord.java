@@ -2,8 +2,6 @@ package box.star.text.basic;
 
 import box.star.contract.NotNull;
 
-import java.io.IOException;
-
 public class ScannerStateRecord {
 
   protected Scanner main;
@@ -19,39 +17,23 @@ public class ScannerStateRecord {
     }
     this.main = main;
     this.backupState = main.state.clone();
-    try {
-      main.reader.mark(1000000);
-    }
-    catch (IOException e) {
-      throw new Scanner.Exception("failed to configure source reader", e);
-    }
+    // the state keeps its history from here, until the lock is released
+    main.state.lockPosition = main.state.position;
     main.state.locked = true;
   }
 
   public void restore() throws Scanner.Exception {
     if (main == null) return;
     try {
-      try {
-        main.reader.reset();
-        main.state = backupState;
-      }
-      catch (IOException e) {
-        throw new Scanner.Exception("failed to restore backup state", e);
-      }
+      main.state.restore(backupState);
     }
     finally { free(); }
   }
 
   public void free() {
     if (main == null) return;
-    try {
-      try { main.reader.mark(1);}
-      catch (IOException ignore) {}
-    }
-    finally {
-      this.main.state.locked = false;
-      this.main = null;
-      this.backupState = null;
-    }
+    this.main.state.locked = false;
+    this.main = null;
+    this.backupState = null;
   }
 }
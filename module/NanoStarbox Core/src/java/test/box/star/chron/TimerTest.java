@@ -0,0 +1,111 @@
+package box.star.chron;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerTest {
+
+  @Test
+  void timers_fire_in_parallel_and_cancel() throws InterruptedException {
+    Timer timer = new Timer(1, null);
+    final CountDownLatch slow = new CountDownLatch(1), fast = new CountDownLatch(1), pulses = new CountDownLatch(3);
+    final AtomicInteger cancelled = new AtomicInteger();
+    ITimerMethod<Object> count = new ITimerMethod<Object>() {
+      @Override
+      public void onTimer(Object[] data) {
+        ((CountDownLatch) data[0]).countDown();
+      }
+    };
+    timer.createTimeout(5, new ITimerMethod<Object>() {
+      @Override
+      public void onTimer(Object[] data) {
+        try {
+          slow.await();
+        }
+        catch (InterruptedException ignored) {}
+      }
+    });
+    TimerTask never = timer.createTimeout(40, new ITimerMethod<Object>() {
+      @Override
+      public void onTimer(Object[] data) {
+        cancelled.incrementAndGet();
+      }
+    });
+    timer.createTimeout(20, count, fast);
+    TimerTask pulse = timer.createPulse(10, count, pulses);
+    assertTrue(never.cancel());
+    assertFalse(never.cancel());
+    // the first callback is still blocked
+    assertTrue(fast.await(2, TimeUnit.SECONDS));
+    assertTrue(pulses.await(2, TimeUnit.SECONDS));
+    assertTrue(pulse.cancel());
+    slow.countDown();
+    Thread.sleep(60);
+    assertEquals(0, cancelled.get());
+    assertEquals(0, timer.getPendingCount());
+    assertTrue(timer.getFiredCount() >= 5);
+    assertTrue(timer.getMaxDriftMillis() >= timer.getMeanDriftMillis());
+    timer.cancelTimers();
+  }
+
+  @Test
+  void slow_callback_does_not_hold_up_its_tick() throws InterruptedException {
+    Timer timer = new Timer(50, null);
+    final CountDownLatch slow = new CountDownLatch(1), fast = new CountDownLatch(1);
+    timer.createTimeout(10, new ITimerMethod<Object>() {
+      @Override
+      public void onTimer(Object[] data) {
+        try {
+          slow.await();
+        }
+        catch (InterruptedException ignored) {}
+      }
+    });
+    timer.createTimeout(10, new ITimerMethod<Object>() {
+      @Override
+      public void onTimer(Object[] data) {
+        fast.countDown();
+      }
+    });
+    // both are due in the same tick, and the first never returns until released
+    assertTrue(fast.await(2, TimeUnit.SECONDS));
+    slow.countDown();
+    timer.cancelTimers();
+  }
+
+  @Test
+  void cancelling_the_timer_stops_handed_out_callbacks() throws InterruptedException {
+    final List<Runnable> handedOut = new ArrayList<>();
+    final CountDownLatch handed = new CountDownLatch(1);
+    // an executor that keeps the callbacks instead of running them
+    Timer timer = new Timer(1, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        handedOut.add(command);
+        handed.countDown();
+      }
+    });
+    final AtomicInteger calls = new AtomicInteger();
+    TimerTask task = timer.createTimeout(5, new ITimerMethod<Object>() {
+      @Override
+      public void onTimer(Object[] data) {
+        calls.incrementAndGet();
+      }
+    });
+    assertTrue(handed.await(2, TimeUnit.SECONDS));
+    timer.cancelTimers();
+    handedOut.get(0).run();
+    assertEquals(0, calls.get());
+    assertFalse(task.cancel());
+  }
+
+}
@@ -0,0 +1,107 @@
+package box.star.content;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MimeTypeMapTest {
+
+  private final MimeTypeMap map = new MimeTypeMap();
+
+  /**
+   * The extension of a name as it was found by testing every extension with endsWith.
+   */
+  private String endsWithExtension(String fileName) {
+    String name = new File(fileName).getName();
+    if (!name.contains(".")) return "";
+    String longest = "";
+    for (String extension : map.keySet()) {
+      if (name.endsWith(extension) && extension.length() > longest.length()) longest = extension;
+    }
+    if (!longest.isEmpty()) return longest;
+    return name.substring(name.lastIndexOf('.') + 1);
+  }
+
+  @Test
+  void longest_extension_is_found() {
+    map.put("tar.gz", "application/x-gtar");
+    assertEquals("tar.gz", map.scanFileExtension("/files/archive.tar.gz"));
+    assertEquals("gz", map.scanFileExtension("/files/archive.gz"));
+    assertEquals("html", map.scanFileExtension("/site/index.html"));
+    assertEquals("unknown", map.scanFileExtension("/site/file.unknown"));
+    assertEquals("", map.scanFileExtension("/site.d/README"));
+  }
+
+  @Test
+  void index_follows_changes_to_the_map() {
+    assertEquals("zz", map.scanFileExtension("page.x.zz"));
+    map.put("x.zz", "text/x-test");
+    assertEquals("x.zz", map.scanFileExtension("page.x.zz"));
+    assertEquals("x.zz", map.getFileExtensionForMimeType("text/x-test"));
+    map.remove("x.zz");
+    assertEquals("zz", map.scanFileExtension("page.x.zz"));
+    assertEquals(MimeTypeMap.DEFAULT_MIME_TYPE, map.getFileExtensionForMimeType("text/x-test"));
+    assertEquals(MimeTypeMap.DEFAULT_MIME_TYPE, map.getFileExtensionForMimeType(null));
+  }
+
+  @Test
+  void index_follows_changes_through_any_method_or_view() {
+    map.putIfAbsent("x.zz", "text/x-one");
+    assertEquals("x.zz", map.scanFileExtension("page.x.zz"));
+    map.replace("x.zz", "text/x-two");
+    assertEquals("x.zz", map.getFileExtensionForMimeType("text/x-two"));
+    map.compute("x.zz", new BiFunction<String, String, String>() {
+      @Override
+      public String apply(String key, String value) {
+        return "text/x-three";
+      }
+    });
+    assertEquals("x.zz", map.getFileExtensionForMimeType("text/x-three"));
+    map.merge("y.zz", "text/x-four", new BiFunction<String, String, String>() {
+      @Override
+      public String apply(String value, String other) {
+        return value + " " + other;
+      }
+    });
+    assertEquals("y.zz", map.scanFileExtension("page.y.zz"));
+    for (Map.Entry<String, String> entry : map.entrySet()) {
+      if (entry.getKey().equals("y.zz")) entry.setValue("text/x-five");
+    }
+    assertEquals("y.zz", map.getFileExtensionForMimeType("text/x-five"));
+    map.keySet().remove("y.zz");
+    assertEquals("zz", map.scanFileExtension("page.y.zz"));
+    for (Iterator<String> iterator = map.values().iterator(); iterator.hasNext(); ) {
+      if (iterator.next().equals("text/x-three")) iterator.remove();
+    }
+    assertEquals("zz", map.scanFileExtension("page.x.zz"));
+  }
+
+  @Test
+  void extensions_match_an_endsWith_scan() {
+    map.put("tar.gz", "application/x-gtar");
+    Object[] keys = map.keySet().toArray();
+    Random random = new Random(12);
+    for (int i = 0; i < 5000; i++) {
+      StringBuilder name = new StringBuilder("/dir.d/");
+      for (int n = random.nextInt(3); n >= 0; n--) name.append((char) ('a' + random.nextInt(26)));
+      switch (random.nextInt(4)) {
+        case 0:
+          break;
+        case 1:
+          name.append('.').append((char) ('a' + random.nextInt(26)));
+          break;
+        default:
+          name.append('.').append(keys[random.nextInt(keys.length)]);
+      }
+      String path = name.toString();
+      assertEquals(endsWithExtension(path), map.scanFileExtension(path), path);
+    }
+  }
+
+}
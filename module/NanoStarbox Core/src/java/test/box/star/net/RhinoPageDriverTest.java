@@ -0,0 +1,141 @@
+package box.star.net;
+
+import box.star.net.http.TestSession;
+import box.star.net.tools.ServerContent;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static box.star.net.RhinoPageDriver.NANO_STARBOX_JAVASCRIPT_SERVER_PAGE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RhinoPageDriverTest {
+
+  private static final String PAGE =
+      "%(do 'var id = String(session.headers.get(\"x-id\"));')" +
+          "<p>%(val id)|%(val 'typeof leaked')|%(do 'var leaked = id;')%(val leaked)|" +
+          "%(<script>var s = 0; for (var i = 0; i < 20000; i++) s += i & 7; s</script>)</p>";
+
+  private static final String UNDECLARED_PAGE = "%(val 'typeof x')|%(do 'x = 1;')%(val x)";
+
+  private final WebService server = new WebService();
+  private final RhinoPageDriver driver = new RhinoPageDriver();
+  private final File directory, page, undeclaredPage;
+
+  RhinoPageDriverTest() throws Exception {
+    directory = new File(System.getProperty("java.io.tmpdir"), "rhino-page-driver-test");
+    //noinspection ResultOfMethodCallIgnored
+    directory.mkdirs();
+    page = write(new File(directory, "page.jsp"), PAGE);
+    undeclaredPage = write(new File(directory, "undeclared.jsp"), UNDECLARED_PAGE);
+  }
+
+  private static File write(File file, String text) throws Exception {
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(text.getBytes());
+    out.close();
+    return file;
+  }
+
+  private String render(String id) {
+    return render(page, id);
+  }
+
+  private String render(File file, String id) {
+    ServerContent content = new ServerContent(new TestSession(server, "/" + file.getName()).header("x-id", id), NANO_STARBOX_JAVASCRIPT_SERVER_PAGE, file);
+    // the macro shell ends its output with the scanner's end of stream character
+    return ((String) driver.createMimeTypeResult(content).get()).trim();
+  }
+
+  private static String expected(String id) {
+    int s = 0;
+    for (int i = 0; i < 20000; i++) s += i & 7;
+    return "<p>" + id + "|undefined|" + id + "|" + s + "</p>";
+  }
+
+  /**
+   * @return renders per second
+   */
+  private double run(int threads, final int renders) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final AtomicInteger failures = new AtomicInteger();
+    List<Future<?>> futures = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      futures.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < renders; i++) {
+            String id = thread + "-" + i;
+            if (!expected(id).equals(render(id))) failures.incrementAndGet();
+          }
+        }
+      }));
+    }
+    for (Future<?> future : futures) future.get();
+    long elapsed = System.nanoTime() - start;
+    executor.shutdown();
+    assertEquals(0, failures.get(), "renders saw the scope of another render");
+    return threads * renders * 1e9 / elapsed;
+  }
+
+  @Test
+  void renders_are_isolated() {
+    assertEquals(expected("a"), render("a"));
+    assertEquals(expected("b"), render("b"));
+  }
+
+  @Test
+  void undeclared_variables_stay_in_the_render() {
+    assertEquals("undefined|1", render(undeclaredPage, "a"));
+    assertEquals("undefined|1", render(undeclaredPage, "b"));
+  }
+
+  @Test
+  void pages_are_cached_by_their_source_file() throws Exception {
+    File first = new File(directory, "first"), second = new File(directory, "second");
+    //noinspection ResultOfMethodCallIgnored
+    first.mkdirs();
+    //noinspection ResultOfMethodCallIgnored
+    second.mkdirs();
+    // the same uri and modification time, mounted from another directory
+    File firstPage = write(new File(first, "mounted.jsp"), "%(val \"'first'\")");
+    File secondPage = write(new File(second, "mounted.jsp"), "%(val \"'other'\")");
+    assertTrue(secondPage.setLastModified(firstPage.lastModified()));
+    assertEquals("first", render(firstPage, "a"));
+    assertEquals("other", render(secondPage, "a"));
+    assertEquals("first", render(firstPage, "a"));
+  }
+
+  @Test
+  void macros_expand_on_every_render() throws Exception {
+    File macroPage = write(new File(directory, "macros.jsp"),
+        "%(do 'shell.environment.put(\"ID\", id = String(session.headers.get(\"x-id\")));')%[ID]|%{directory}");
+    assertEquals("a|" + directory, render(macroPage, "a"));
+    assertEquals("b|" + directory, render(macroPage, "b"));
+  }
+
+  @Test
+  void concurrent_renders_are_isolated() throws Exception {
+    run(Math.max(4, Runtime.getRuntime().availableProcessors() * 2), 50);
+  }
+
+  @Test
+  @Disabled("benchmark")
+  void concurrent_renders_scale() throws Exception {
+    int cpus = Runtime.getRuntime().availableProcessors();
+    int threads = Math.max(4, cpus * 2);
+    run(threads, 50);
+    double single = run(1, 400);
+    double parallel = run(threads, 400);
+    if (cpus >= 4) assertTrue(parallel > single * 1.5, "renders do not scale across threads");
+  }
+
+}
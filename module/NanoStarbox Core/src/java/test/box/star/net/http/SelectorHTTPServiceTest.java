@@ -0,0 +1,276 @@
+package box.star.net.http;
+
+import box.star.net.http.request.Method;
+import box.star.net.http.response.Response;
+import box.star.net.http.response.Status;
+import box.star.net.http.threading.SelectorAsyncRunner;
+import box.star.net.http.util.IHandler;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SelectorHTTPServiceTest {
+
+  private final Queue<String> served = new ConcurrentLinkedQueue<String>();
+  private final CountDownLatch blocked = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  /**
+   * Starts a server on a free port, with the selector runner; the handler
+   * answers with the uri, reads the whole body of a POST, and waits for the
+   * test on /block.
+   */
+  private HTTPServer start(int timeout, int workers, int queueSize) throws IOException {
+    HTTPServer server = new HTTPServer() {};
+    server.configuration.set(HTTPServer.CONFIG_PORT, 0);
+    server.configuration.set(HTTPServer.CONFIG_SOCKET_READ_TIMEOUT, timeout);
+    server.configuration.set(HTTPServer.CONFIG_ASYNC_RUNNER, HTTPServer.ASYNC_RUNNER_SELECTOR);
+    server.configuration.set(HTTPServer.CONFIG_MAX_WORKERS, workers);
+    server.configuration.set(HTTPServer.CONFIG_ACCEPT_QUEUE_SIZE, queueSize);
+    server.setHTTPHandler(new IHandler<IHTTPSession, Response>() {
+      @Override
+      public Response handle(IHTTPSession session) {
+        String uri = session.getUri();
+        if (session.getMethod() == Method.POST) {
+          try {
+            InputStream body = session.getInputStream();
+            int read = 0;
+            while (body.read() != -1) read++;
+            uri += " " + read;
+          }
+          catch (IOException e) {
+            uri += " " + e.getClass().getSimpleName();
+          }
+        }
+        else if (uri.equals("/block")) {
+          blocked.countDown();
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          }
+          catch (InterruptedException ignored) {}
+        }
+        served.add(uri);
+        return Response.plainTextResponse(Status.OK, uri);
+      }
+    });
+    server.start();
+    assertTrue(server.getAsyncRunner() instanceof SelectorAsyncRunner);
+    return server;
+  }
+
+  private static Socket connect(HTTPServer server) throws IOException {
+    Socket socket = new Socket("localhost", server.getPort());
+    socket.setSoTimeout(5000);
+    return socket;
+  }
+
+  private static void send(Socket socket, String text) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+    out.flush();
+  }
+
+  private static String get(String uri) {
+    return "GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+  }
+
+  /**
+   * Reads one response, its body delimited by the Content-Length header.
+   */
+  private static String receive(Socket socket) throws IOException {
+    InputStream in = socket.getInputStream();
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1) {
+      head.write(b);
+      if (head.size() >= 4 && new String(head.toByteArray(), StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n")) break;
+    }
+    String text = new String(head.toByteArray(), StandardCharsets.ISO_8859_1);
+    int length = 0;
+    for (String line : text.split("\r\n")) {
+      if (line.toLowerCase().startsWith("content-length:")) length = Integer.parseInt(line.substring(15).trim());
+    }
+    byte[] body = new byte[length];
+    for (int n = 0, read; n < length; n += read) {
+      if ((read = in.read(body, n, length - n)) < 0) throw new IOException("the body was cut short");
+    }
+    return text + new String(body, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * @return true if the server closed the connection within the socket timeout
+   */
+  private static boolean closedByServer(Socket socket) throws IOException {
+    InputStream in = socket.getInputStream();
+    try {
+      while (in.read() != -1) ;
+      return true;
+    }
+    catch (SocketTimeoutException e) {
+      return false;
+    }
+    catch (SocketException e) {
+      return true;
+    }
+  }
+
+  private static void waitFor(String what, Condition condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.met()) {
+      if (System.currentTimeMillis() > deadline) fail("timed out waiting for " + what);
+      Thread.sleep(10);
+    }
+  }
+
+  private interface Condition {
+    boolean met();
+  }
+
+  @Test
+  void keep_alive_connections_are_parked_and_served_again() throws Exception {
+    HTTPServer server = start(5000, 2, 10);
+    final SelectorAsyncRunner runner = (SelectorAsyncRunner) server.getAsyncRunner();
+    try (Socket socket = connect(server)) {
+      send(socket, get("/first"));
+      assertTrue(receive(socket).endsWith("\r\n\r\n/first"));
+      assertEquals(1, runner.getConnections().size());
+      final SelectorHTTPClient client = (SelectorHTTPClient) runner.getConnections().iterator().next();
+      waitFor("the connection to be parked", new Condition() {
+        @Override
+        public boolean met() {
+          return client.getSelectionKey().interestOps() == SelectionKey.OP_READ;
+        }
+      });
+      send(socket, get("/second"));
+      assertTrue(receive(socket).endsWith("\r\n\r\n/second"));
+      assertEquals(1, runner.getConnections().size());
+      assertSame(client, runner.getConnections().iterator().next());
+    }
+    finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  void pipelined_requests_are_answered_in_order() throws Exception {
+    HTTPServer server = start(5000, 2, 10);
+    try (Socket socket = connect(server)) {
+      send(socket, get("/a") + get("/b") + get("/c"));
+      assertTrue(receive(socket).endsWith("/a"));
+      assertTrue(receive(socket).endsWith("/b"));
+      assertTrue(receive(socket).endsWith("/c"));
+      assertEquals("[/a, /b, /c]", served.toString());
+    }
+    finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  void peer_closing_mid_head_is_not_served() throws Exception {
+    HTTPServer server = start(5000, 2, 10);
+    final SelectorAsyncRunner runner = (SelectorAsyncRunner) server.getAsyncRunner();
+    try (Socket cut = connect(server); Socket after = connect(server)) {
+      send(cut, "GET /cut HTTP/1.1\r\nHost: loc");
+      cut.shutdownOutput();
+      assertTrue(closedByServer(cut));
+      assertTrue(served.isEmpty());
+      assertTrue(runner.getConnections().isEmpty());
+      send(after, get("/after"));
+      assertTrue(receive(after).endsWith("/after"));
+    }
+    finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  void peer_closing_mid_body_ends_the_connection() throws Exception {
+    HTTPServer server = start(5000, 2, 10);
+    final SelectorAsyncRunner runner = (SelectorAsyncRunner) server.getAsyncRunner();
+    try (Socket socket = connect(server)) {
+      send(socket, "POST /cut HTTP/1.1\r\nHost: localhost\r\nContent-Length: 100\r\n\r\n0123456789");
+      socket.shutdownOutput();
+      assertTrue(closedByServer(socket));
+      waitFor("the connection to be released", new Condition() {
+        @Override
+        public boolean met() {
+          return runner.getConnections().isEmpty();
+        }
+      });
+      assertFalse(served.contains("/cut 100"));
+    }
+    finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  void idle_and_stalled_connections_time_out() throws Exception {
+    HTTPServer server = start(300, 2, 10);
+    final SelectorAsyncRunner runner = (SelectorAsyncRunner) server.getAsyncRunner();
+    try (Socket idle = connect(server); Socket stalled = connect(server)) {
+      send(stalled, "POST /stalled HTTP/1.1\r\nHost: localhost\r\nContent-Length: 100\r\n\r\n0123456789");
+      long start = System.currentTimeMillis();
+      assertTrue(closedByServer(idle));
+      assertTrue(closedByServer(stalled));
+      assertTrue(System.currentTimeMillis() - start < 4000);
+      assertFalse(served.contains("/stalled 100"));
+      waitFor("the connections to be released", new Condition() {
+        @Override
+        public boolean met() {
+          return runner.getConnections().isEmpty();
+        }
+      });
+    }
+    finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  void requests_over_the_queue_get_503() throws Exception {
+    HTTPServer server = start(5000, 1, 1);
+    final SelectorAsyncRunner runner = (SelectorAsyncRunner) server.getAsyncRunner();
+    try (Socket running = connect(server); Socket waiting = connect(server); Socket refused = connect(server)) {
+      send(running, get("/block"));
+      assertTrue(blocked.await(5, TimeUnit.SECONDS));
+      send(waiting, get("/waiting"));
+      waitFor("the request to be queued", new Condition() {
+        @Override
+        public boolean met() {
+          return runner.getQueueLength() == 1;
+        }
+      });
+      send(refused, get("/refused"));
+      String response = receive(refused);
+      assertTrue(response.startsWith("HTTP/1.1 503 "), response);
+      assertTrue(response.contains("Retry-After: 1\r\n"));
+      assertTrue(closedByServer(refused));
+      assertEquals(1, runner.getRejectedCount());
+      release.countDown();
+      assertTrue(receive(running).endsWith("/block"));
+      assertTrue(receive(waiting).endsWith("/waiting"));
+      assertFalse(served.contains("/refused"));
+    }
+    finally {
+      release.countDown();
+      server.stop();
+    }
+  }
+
+}
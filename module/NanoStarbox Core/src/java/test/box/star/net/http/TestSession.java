@@ -0,0 +1,90 @@
+package box.star.net.http;
+
+import box.star.net.WebService;
+import box.star.net.http.content.CookieHandler;
+import box.star.net.http.request.Method;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The session of a request that was never read from a connection, for the
+ * tests of what is served for a uri and its headers.
+ */
+public class TestSession implements IHTTPSession<WebService> {
+
+  private final WebService server;
+  private final String uri;
+  private final Map<String, String> headers = new HashMap<>();
+  private Method method = Method.GET;
+
+  public TestSession(String uri) {
+    this(null, uri);
+  }
+
+  public TestSession(WebService server, String uri) {
+    this.server = server;
+    this.uri = uri;
+  }
+
+  /**
+   * Adds a request header, unless the value is null; names are lower case, as
+   * the server reads them.
+   */
+  public TestSession header(String name, String value) {
+    if (value != null) headers.put(name.toLowerCase(), value);
+    return this;
+  }
+
+  public TestSession method(Method method) {
+    this.method = method;
+    return this;
+  }
+
+  @Override
+  public String getAddress() { return "http://localhost"; }
+
+  @Override
+  public void execute() {}
+
+  @Override
+  public CookieHandler getCookies() { return null; }
+
+  @Override
+  public Map<String, String> getHeaders() { return headers; }
+
+  @Override
+  public InputStream getInputStream() { return null; }
+
+  @Override
+  public Method getMethod() { return method; }
+
+  @Override
+  public WebService getServer() { return server; }
+
+  @Override
+  @Deprecated
+  public Map<String, String> getParms() { return Collections.emptyMap(); }
+
+  @Override
+  public Map<String, List<String>> getParameters() { return Collections.emptyMap(); }
+
+  @Override
+  public String getQueryParameterString() { return null; }
+
+  @Override
+  public String getUri() { return uri; }
+
+  @Override
+  public void parseBody(Map<String, String> files) {}
+
+  @Override
+  public String getRemoteIpAddress() { return "127.0.0.1"; }
+
+  @Override
+  public String getRemoteHostName() { return "localhost"; }
+
+}
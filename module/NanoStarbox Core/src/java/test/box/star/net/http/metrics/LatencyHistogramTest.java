@@ -0,0 +1,83 @@
+package box.star.net.http.metrics;
+
+import box.star.net.http.response.Status;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+  @Test
+  void buckets_cover_their_values() {
+    Random random = new Random(5);
+    for (int i = 0; i < 100000; i++) {
+      long value = random.nextLong() >>> random.nextInt(64);
+      int bucket = LatencyHistogram.bucket(value);
+      assertTrue(value <= LatencyHistogram.highestValue(bucket), "value " + value);
+      assertTrue(bucket == 0 || value > LatencyHistogram.highestValue(bucket - 1), "value " + value);
+    }
+    assertEquals(LatencyHistogram.highestValue(LatencyHistogram.bucket(Long.MAX_VALUE)), Long.MAX_VALUE);
+  }
+
+  @Test
+  void percentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 10000; i++) histogram.record(i * 1000);
+    assertEquals(10000, histogram.getCount());
+    assertEquals(10000000, histogram.getMax());
+    assertTrue(Math.abs(histogram.getMean() - 5000500) < 1);
+    long p50 = histogram.getValueAtPercentile(50), p99 = histogram.getValueAtPercentile(99);
+    assertTrue(Math.abs(p50 - 5000000) <= 5000000 / LatencyHistogram.SUB_BUCKETS, "p50 " + p50);
+    assertTrue(Math.abs(p99 - 9900000) <= 9900000 / LatencyHistogram.SUB_BUCKETS, "p99 " + p99);
+    assertEquals(10000000, histogram.getValueAtPercentile(100));
+    histogram.reset();
+    assertEquals(0, histogram.getValueAtPercentile(50));
+  }
+
+  @Test
+  void concurrent_recording() throws Exception {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 100000; i++) histogram.record(i);
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) thread.join();
+    assertEquals(800000, histogram.getCount());
+    assertEquals(99999, histogram.getMax());
+  }
+
+  @Test
+  void recording_does_not_allocate() {
+    java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) return;
+    com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+    ServerMetrics metrics = new ServerMetrics();
+    String route = "/static";
+    for (int i = 0; i < 100000; i++) record(metrics, route, i);
+    long id = Thread.currentThread().getId();
+    long before = allocation.getThreadAllocatedBytes(id);
+    for (int i = 0; i < 100000; i++) record(metrics, route, i);
+    long allocated = allocation.getThreadAllocatedBytes(id) - before;
+    assertTrue(allocated < 10000, "allocated " + allocated + " bytes");
+    assertEquals(200000, metrics.getRequests());
+    assertEquals(200000, (long) metrics.getRouteCounts().get(route));
+  }
+
+  private static void record(ServerMetrics metrics, String route, int i) {
+    metrics.requestStarted(i > 0);
+    metrics.headerParse.record(i);
+    metrics.handler.record(i * 10L);
+    metrics.send.record(i * 3L);
+    metrics.requestEnded(route, Status.OK, 100, 1000);
+  }
+
+}
@@ -0,0 +1,82 @@
+package box.star.net.http.request;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BodyInputStreamTest {
+
+  private static InputStream connection(String bytes) {
+    return new ByteArrayInputStream(bytes.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static String readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[3];
+    int read;
+    while ((read = in.read(buffer, 0, buffer.length)) != -1) out.write(buffer, 0, read);
+    return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+  }
+
+  @Test
+  void fixed_length_body_ends_before_the_next_request() throws IOException {
+    InputStream in = connection("helloGET / HTTP/1.1\r\n\r\n");
+    BodyInputStream body = new BodyInputStream(in, 5);
+    assertEquals("hello", readAll(body));
+    assertTrue(body.isFinished());
+    assertEquals(5, body.getBytesRead());
+    assertEquals('G', in.read());
+  }
+
+  @Test
+  void chunked_body_is_decoded() throws IOException {
+    InputStream in = connection("5;name=value\r\nhello\r\n6\r\n world\r\n0\r\nTrailer: x\r\n\r\nGET");
+    BodyInputStream body = new BodyInputStream(in);
+    assertEquals(-1, body.getRemaining());
+    assertEquals("hello world", readAll(body));
+    assertTrue(body.isFinished());
+    assertEquals(11, body.getBytesRead());
+    assertEquals('G', in.read());
+  }
+
+  @Test
+  void drain_is_limited() throws IOException {
+    InputStream in = connection("0123456789GET");
+    BodyInputStream body = new BodyInputStream(in, 10);
+    assertEquals('0', body.read());
+    assertFalse(body.drain(8));
+    assertEquals(9, body.getRemaining());
+    assertTrue(body.drain(9));
+    assertEquals('G', in.read());
+
+    body = new BodyInputStream(connection("a\r\n0123456789\r\n0\r\n\r\n"));
+    assertFalse(body.drain(4));
+    assertTrue(body.drain(64));
+  }
+
+  @Test
+  void truncated_body_fails() throws IOException {
+    BodyInputStream body = new BodyInputStream(connection("abc"), 10);
+    try {
+      readAll(body);
+      fail("the connection ended inside the body");
+    }
+    catch (EOFException expected) {
+    }
+    body = new BodyInputStream(connection("zz\r\n"));
+    try {
+      body.read();
+      fail("malformed chunk size");
+    }
+    catch (IOException expected) {
+    }
+  }
+
+}
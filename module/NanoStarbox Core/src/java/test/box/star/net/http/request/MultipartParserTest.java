@@ -0,0 +1,128 @@
+package box.star.net.http.request;
+
+import box.star.net.http.HTTPServer;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultipartParserTest {
+
+  private static final String BOUNDARY = "----FormBoundary7MA4YWxkTrZu0gW";
+
+  private static class Collector implements MultipartParser.Handler {
+    final List<MultipartParser.Part> parts = new ArrayList<>();
+    final List<byte[]> data = new ArrayList<>();
+    private ByteArrayOutputStream current;
+
+    @Override
+    public void startPart(MultipartParser.Part part) {
+      parts.add(part);
+      current = new ByteArrayOutputStream();
+    }
+
+    @Override
+    public void partData(MultipartParser.Part part, byte[] buffer, int offset, int length) {
+      current.write(buffer, offset, length);
+    }
+
+    @Override
+    public void endPart(MultipartParser.Part part) {
+      data.add(current.toByteArray());
+    }
+  }
+
+  /**
+   * Returns a single byte from every read, to split the body at every position.
+   */
+  private static InputStream trickle(byte[] body) {
+    return new FilterInputStream(new ByteArrayInputStream(body)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, 1));
+      }
+    };
+  }
+
+  private static byte[] body(byte[] upload) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(("preamble\r\n--" + BOUNDARY + "\r\n" +
+        "Content-Disposition: form-data; name=\"field\"\r\n\r\n" +
+        "hello world\r\n" +
+        "--" + BOUNDARY + "  \r\n" +
+        "Content-Disposition: form-data; name=\"upload\"; filename=\"a.bin\"\r\n" +
+        "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+    body.write(upload);
+    body.write(("\r\n--" + BOUNDARY + "--\r\nepilogue").getBytes(StandardCharsets.US_ASCII));
+    return body.toByteArray();
+  }
+
+  private static void assertParts(Collector collector, byte[] upload) {
+    assertEquals(2, collector.parts.size());
+    assertEquals("field", collector.parts.get(0).getName());
+    assertNull(collector.parts.get(0).getContentType());
+    assertEquals("hello world", new String(collector.data.get(0), StandardCharsets.US_ASCII));
+    MultipartParser.Part file = collector.parts.get(1);
+    assertEquals("upload", file.getName());
+    assertEquals("a.bin", file.getFileName());
+    assertEquals("application/octet-stream", file.getContentType());
+    assertEquals("application/octet-stream", file.getHeaders().get("content-type"));
+    assertTrue(Arrays.equals(upload, collector.data.get(1)));
+  }
+
+  @Test
+  void parts_across_reads() throws Exception {
+    byte[] upload = new byte[200 * 1024];
+    Random random = new Random(7);
+    random.nextBytes(upload);
+    // partial delimiters in the data must not end the part
+    byte[] near = ("\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1)).getBytes(StandardCharsets.US_ASCII);
+    for (int i = 0; i < 64; i++) System.arraycopy(near, 0, upload, random.nextInt(upload.length - near.length), near.length);
+    byte[] body = body(upload);
+
+    Collector collector = new Collector();
+    ByteArrayInputStream input = new ByteArrayInputStream(body);
+    new MultipartParser(BOUNDARY, StandardCharsets.US_ASCII, 1024).parse(input, body.length, collector);
+    assertParts(collector, upload);
+    assertEquals(0, input.available(), "the epilogue is read");
+
+    collector = new Collector();
+    new MultipartParser(BOUNDARY, StandardCharsets.US_ASCII, 1024).parse(trickle(body), body.length, collector);
+    assertParts(collector, upload);
+  }
+
+  @Test
+  void stops_at_body_length() throws Exception {
+    byte[] body = body(new byte[10]);
+    byte[] stream = Arrays.copyOf(body, body.length + 5);
+    ByteArrayInputStream input = new ByteArrayInputStream(stream);
+    new MultipartParser(BOUNDARY, StandardCharsets.US_ASCII, 1024).parse(input, body.length, new Collector());
+    assertEquals(5, input.available(), "the next request is not read");
+  }
+
+  private static void assertRejected(String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.US_ASCII);
+    try {
+      new MultipartParser(BOUNDARY, StandardCharsets.US_ASCII, 1024).parse(new ByteArrayInputStream(bytes), bytes.length, new Collector());
+      fail("accepted a malformed body: " + body);
+    }
+    catch (HTTPServer.ResponseException expected) {}
+  }
+
+  @Test
+  void malformed_bodies() throws Exception {
+    assertRejected("no delimiters here");
+    assertRejected("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nvalue");
+  }
+
+}
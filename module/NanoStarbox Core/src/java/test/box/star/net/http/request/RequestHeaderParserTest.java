@@ -0,0 +1,138 @@
+package box.star.net.http.request;
+
+import box.star.net.http.HTTPServer;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestHeaderParserTest {
+
+  private static final byte[] REQUEST = (
+      "GET /site/index.html?name=Jack%20Daniels&pass=Single%20Malt HTTP/1.1\r\n" +
+          "Host: localhost:8080\r\n" +
+          "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:66.0) Gecko/20100101 Firefox/66.0\r\n" +
+          "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+          "Accept-Language: en-US,en;q=0.5\r\n" +
+          "Accept-Encoding: gzip, deflate\r\n" +
+          "Connection: keep-alive\r\n" +
+          "Cookie: session=0123456789ABCDEF; theme=dark\r\n" +
+          "X-Custom-Header :  custom value  \r\n" +
+          "Upgrade-Insecure-Requests: 1\r\n" +
+          "\r\n").getBytes();
+
+  @Test
+  void request_line_and_headers() throws Exception {
+    RequestHeaderParser parser = new RequestHeaderParser();
+    Map<String, String> headers = new HashMap<>();
+    parser.parse(REQUEST, REQUEST.length, headers);
+    assertEquals(Method.GET, parser.getMethod());
+    assertEquals("/site/index.html?name=Jack%20Daniels&pass=Single%20Malt", parser.getUri());
+    assertEquals("HTTP/1.1", parser.getProtocolVersion());
+    assertEquals("localhost:8080", headers.get("host"));
+    assertEquals("custom value", headers.get("x-custom-header"));
+    assertEquals("session=0123456789ABCDEF; theme=dark", headers.get("cookie"));
+    assertEquals(9, headers.size());
+  }
+
+  @Test
+  void same_view_as_reader_decoding() throws Exception {
+    Map<String, String> expected = new HashMap<>(), actual = new HashMap<>();
+    Map<String, String> pre = new HashMap<>();
+    legacyDecodeHeader(REQUEST, REQUEST.length, pre, expected);
+    RequestHeaderParser parser = new RequestHeaderParser();
+    parser.parse(REQUEST, REQUEST.length, actual);
+    assertEquals(expected, actual);
+    assertEquals(pre.get("method"), parser.getMethodName());
+    assertEquals(pre.get("uri"), parser.getUri());
+  }
+
+  @Test
+  void common_header_names_are_interned() throws Exception {
+    RequestHeaderParser parser = new RequestHeaderParser();
+    Map<String, String> headers = new HashMap<>();
+    parser.parse(REQUEST, REQUEST.length, headers);
+    for (String name : headers.keySet()) {
+      if (!name.startsWith("x-")) assertSame(name.intern(), name);
+    }
+  }
+
+  @Test
+  void tolerant_line_endings_and_unknown_methods() throws Exception {
+    byte[] request = "BREW /pot\n\nignored: body".getBytes();
+    RequestHeaderParser parser = new RequestHeaderParser();
+    Map<String, String> headers = new HashMap<>();
+    parser.parse(request, request.length, headers);
+    assertNull(parser.getMethod());
+    assertEquals("BREW", parser.getMethodName());
+    assertEquals("HTTP/1.1", parser.getProtocolVersion());
+    assertTrue(headers.isEmpty());
+    try {
+      byte[] empty = "\r\n\r\n".getBytes();
+      parser.parse(empty, empty.length, headers);
+      fail("expected a bad request");
+    }
+    catch (HTTPServer.ResponseException e) {
+      assertEquals(400, e.getStatus().getRequestStatus());
+    }
+  }
+
+  /**
+   * Compares the decoding throughput of the reader based header decoding with
+   * the byte parser.
+   */
+  @Test
+  @Disabled("benchmark")
+  void benchmark() throws Exception {
+    int rounds = 200000;
+    RequestHeaderParser parser = new RequestHeaderParser();
+    Map<String, String> headers = new HashMap<>();
+    for (int i = 0; i < rounds / 10; i++) {
+      headers.clear();
+      legacyDecodeHeader(REQUEST, REQUEST.length, new HashMap<String, String>(), headers);
+      headers.clear();
+      parser.parse(REQUEST, REQUEST.length, headers);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      headers.clear();
+      legacyDecodeHeader(REQUEST, REQUEST.length, new HashMap<String, String>(), headers);
+    }
+    long legacy = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      headers.clear();
+      parser.parse(REQUEST, REQUEST.length, headers);
+    }
+    long parsed = System.nanoTime() - start;
+    assertTrue(parsed < legacy, "the byte parser is slower than the reader");
+  }
+
+  /**
+   * The reader based decoding that the byte parser replaced.
+   */
+  private static void legacyDecodeHeader(byte[] buf, int rlen, Map<String, String> pre, Map<String, String> headers) throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, rlen)));
+    StringTokenizer st = new StringTokenizer(in.readLine());
+    pre.put("method", st.nextToken());
+    pre.put("uri", st.nextToken());
+    String line = in.readLine();
+    while (line != null && !line.trim().isEmpty()) {
+      int p = line.indexOf(':');
+      if (p >= 0) {
+        headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
+      }
+      line = in.readLine();
+    }
+  }
+
+}
@@ -0,0 +1,211 @@
+package box.star.net.http.response;
+
+import box.star.net.http.content.ContentType;
+import box.star.net.http.sockets.ChannelOutputStream;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseTest {
+
+  private static final String DATE = "Sun, 18 Oct 2026 12:00:00 GMT";
+
+  private static class CountingOutputStream extends OutputStream {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    int writes;
+
+    @Override
+    public void write(int b) {
+      writes++;
+      bytes.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      writes++;
+      bytes.write(b, off, len);
+    }
+  }
+
+  private static Response plainText(String text) {
+    Response response = Response.plainTextResponse(Status.OK, text);
+    response.setUseGzip(false);
+    response.addHeader("Date", DATE);
+    return response;
+  }
+
+  @Test
+  void head_and_small_body_in_one_write() {
+    CountingOutputStream out = new CountingOutputStream();
+    plainText("hello").send(out, new ResponseHeadEncoder());
+    assertEquals("HTTP/1.1 200 OK \r\nContent-Type: text/plain\r\nDate: " + DATE + "\r\n" +
+        "Connection: keep-alive\r\nContent-Length: 5\r\n\r\nhello", new String(out.bytes.toByteArray(), StandardCharsets.US_ASCII));
+    assertEquals(1, out.writes);
+
+    char[] large = new char[ResponseHeadEncoder.COALESCED_BODY_SIZE + 1];
+    java.util.Arrays.fill(large, 'x');
+    out = new CountingOutputStream();
+    plainText(new String(large)).send(out, new ResponseHeadEncoder());
+    assertTrue(out.writes > 1, "a large body is not copied behind the head");
+    assertTrue(new String(out.bytes.toByteArray(), StandardCharsets.US_ASCII).endsWith(new String(large)));
+  }
+
+  @Test
+  void encoder_is_reused() {
+    ResponseHeadEncoder head = new ResponseHeadEncoder();
+    ByteArrayOutputStream first = new ByteArrayOutputStream(), second = new ByteArrayOutputStream();
+    Response response = Response.newFixedLengthResponse(Status.NOT_FOUND, "text/html; charset=UTF-8", "<p>café</p>");
+    response.setUseGzip(false);
+    response.addHeader("Date", DATE);
+    response.addHeader("X-Name", "café");
+    response.send(first, head);
+    plainText("hello").send(second, head);
+    String text = new String(first.toByteArray(), StandardCharsets.UTF_8);
+    assertTrue(text.startsWith("HTTP/1.1 404 Not Found \r\n"));
+    assertTrue(text.contains("X-Name: café\r\n"), "header values use the charset of the response");
+    assertTrue(text.endsWith("\r\n\r\n<p>café</p>"));
+    assertTrue(new String(second.toByteArray(), StandardCharsets.US_ASCII).startsWith("HTTP/1.1 200 OK \r\n"));
+  }
+
+  @Test
+  void cached_date_and_content_types() throws Exception {
+    String date = ResponseHeadEncoder.getDate();
+    SimpleDateFormat format = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    assertTrue(Math.abs(format.parse(date).getTime() - System.currentTimeMillis()) < 2000);
+    assertSame(ContentType.valueOf("text/html; charset=UTF-8"), ContentType.valueOf("text/html; charset=UTF-8"));
+    assertEquals("UTF-8", ContentType.valueOf("text/html; charset=UTF-8").getEncoding());
+  }
+
+  /**
+   * Compares the throughput of small plain text responses, sent through the
+   * writer based head serialization and through the head encoder.
+   */
+  @Test
+  void file_is_transferred_to_a_socket_channel() throws Exception {
+    File file = File.createTempFile("response-test", ".bin");
+    file.deleteOnExit();
+    byte[] content = new byte[300 * 1024];
+    for (int i = 0; i < content.length; i++) content[i] = (byte) (i * 31);
+    FileOutputStream fileOut = new FileOutputStream(file);
+    fileOut.write(content);
+    fileOut.close();
+    ServerSocketChannel server = ServerSocketChannel.open();
+    server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    final SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+    SocketChannel accepted = server.accept();
+    final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          InputStream in = client.socket().getInputStream();
+          byte[] buffer = new byte[8192];
+          int read;
+          while ((read = in.read(buffer)) > 0) received.write(buffer, 0, read);
+        }
+        catch (IOException ignored) {}
+      }
+    });
+    reader.start();
+    ChannelOutputStream out = new ChannelOutputStream(accepted, 5000);
+    // a range of the file, as for a partial content response
+    Response.newFileResponse(Status.OK, "application/octet-stream", file, 1000, content.length - 2000).send(out, new ResponseHeadEncoder());
+    accepted.close();
+    reader.join(5000);
+    client.close();
+    server.close();
+    byte[] response = received.toByteArray();
+    String text = new String(response, StandardCharsets.ISO_8859_1);
+    int body = text.indexOf("\r\n\r\n") + 4;
+    assertTrue(text.contains("Content-Length: " + (content.length - 2000) + "\r\n"));
+    assertEquals(content.length - 2000, response.length - body);
+    for (int i = 0; i < content.length - 2000; i++) assertEquals(content[1000 + i], response[body + i]);
+    assertEquals(response.length, out.getBytesWritten());
+  }
+
+  @Test
+  void accepted_encodings() {
+    assertTrue(Response.acceptsEncoding("gzip, deflate", "gzip"));
+    assertTrue(Response.acceptsEncoding("deflate, GZIP;q=0.5", "gzip"));
+    assertFalse(Response.acceptsEncoding("gzip;q=0", "gzip"));
+    assertFalse(Response.acceptsEncoding("gzip; q=0.000", "gzip"));
+    assertFalse(Response.acceptsEncoding("deflate", "gzip"));
+    assertFalse(Response.acceptsEncoding(null, "gzip"));
+    // an entry for the encoding overrides *
+    assertTrue(Response.acceptsEncoding("*", "br"));
+    assertTrue(Response.acceptsEncoding("*;q=0, gzip", "gzip"));
+    assertFalse(Response.acceptsEncoding("*;q=0, gzip", "br"));
+    assertFalse(Response.acceptsEncoding("*, gzip;q=0", "gzip"));
+    // identity is acceptable unless it is refused
+    assertTrue(Response.acceptsEncoding(null, "identity"));
+    assertTrue(Response.acceptsEncoding("gzip", "identity"));
+    assertFalse(Response.acceptsEncoding("gzip, identity;q=0", "identity"));
+    assertFalse(Response.acceptsEncoding("gzip, *;q=0", "identity"));
+    assertTrue(Response.acceptsEncoding("identity, *;q=0", "identity"));
+  }
+
+  /**
+   * Compares the serialization of a small response by the writer with the
+   * head encoder.
+   */
+  @Test
+  @Disabled("benchmark")
+  void benchmark() throws Exception {
+    int rounds = 200000;
+    OutputStream sink = new OutputStream() {
+      @Override
+      public void write(int b) {}
+
+      @Override
+      public void write(byte[] b, int off, int len) {}
+    };
+    ResponseHeadEncoder head = new ResponseHeadEncoder();
+    for (int i = 0; i < rounds / 10; i++) {
+      legacySend(Response.plainTextResponse(Status.OK, "hello world"), sink);
+      Response.plainTextResponse(Status.OK, "hello world").setUseGzip(false).send(sink, head);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) legacySend(Response.plainTextResponse(Status.OK, "hello world"), sink);
+    long legacy = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) Response.plainTextResponse(Status.OK, "hello world").setUseGzip(false).send(sink, head);
+    long encoded = System.nanoTime() - start;
+    assertTrue(encoded < legacy, "the head encoder is slower than the writer");
+  }
+
+  /**
+   * The writer based serialization that the head encoder replaced, for a
+   * fixed length response without added headers.
+   */
+  private static void legacySend(Response response, OutputStream outputStream) throws IOException {
+    SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+    PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(outputStream, new ContentType(response.getMimeType()).getEncoding())), false);
+    pw.append("HTTP/1.1 ").append(response.getStatus().getDescription()).append(" \r\n");
+    pw.append("Content-Type").append(": ").append(response.getMimeType()).append("\r\n");
+    pw.append("Date").append(": ").append(gmtFrmt.format(new Date())).append("\r\n");
+    pw.append("Connection").append(": ").append("keep-alive").append("\r\n");
+    InputStream data = response.getData();
+    pw.print("Content-Length: " + data.available() + "\r\n");
+    pw.append("\r\n");
+    pw.flush();
+    byte[] buff = new byte[16 * 1024];
+    int read = data.read(buff);
+    if (read > 0) outputStream.write(buff, 0, read);
+    outputStream.flush();
+  }
+
+}
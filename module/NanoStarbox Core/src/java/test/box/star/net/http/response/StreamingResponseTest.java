@@ -0,0 +1,150 @@
+package box.star.net.http.response;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingResponseTest {
+
+  private static String body(byte[] response) {
+    String text = new String(response, StandardCharsets.ISO_8859_1);
+    return text.substring(text.indexOf("\r\n\r\n") + 4);
+  }
+
+  private static byte[] unchunk(String body) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int position = 0;
+    while (true) {
+      int end = body.indexOf("\r\n", position);
+      int size = Integer.parseInt(body.substring(position, end), 16);
+      if (size == 0) break;
+      out.write(body.substring(end + 2, end + 2 + size).getBytes(StandardCharsets.ISO_8859_1), 0, size);
+      position = end + 2 + size + 2;
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  void chunks_are_written_as_they_are_pushed() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Response response = Response.newStreamingResponse(Status.OK, "application/octet-stream", new StreamingResponse.Producer() {
+      @Override
+      public void open(ResponseStream stream) throws IOException {
+        assertTrue(stream.write("hello "));
+        assertTrue(stream.write("world"));
+        stream.close();
+        assertFalse(stream.isOpen());
+        try {
+          stream.write("more");
+          fail("the stream is closed");
+        }
+        catch (IOException expected) {
+        }
+      }
+    });
+    response.send(out, new ResponseHeadEncoder());
+    String text = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    assertTrue(text.contains("Transfer-Encoding: chunked\r\n"));
+    assertEquals("6\r\nhello \r\n5\r\nworld\r\n0\r\n\r\n", body(out.toByteArray()));
+  }
+
+  @Test
+  void gzip_is_flushed_per_flush() throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final int[] sizes = new int[2];
+    Response response = Response.newStreamingResponse(Status.OK, "text/plain", new StreamingResponse.Producer() {
+      @Override
+      public void open(ResponseStream stream) throws IOException {
+        sizes[0] = out.size();
+        stream.write("first line\n");
+        stream.flush();
+        sizes[1] = out.size();
+        stream.write("second line\n");
+        stream.close();
+      }
+    });
+    response.setUseGzip(true);
+    response.send(out, new ResponseHeadEncoder());
+    assertTrue(sizes[1] > sizes[0], "a flush sends the compressed data");
+    assertTrue(new String(out.toByteArray(), StandardCharsets.ISO_8859_1).contains("Content-Encoding: gzip\r\n"));
+    InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(unchunk(body(out.toByteArray()))));
+    ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+    int b;
+    while ((b = gzip.read()) != -1) decoded.write(b);
+    assertEquals("first line\nsecond line\n", new String(decoded.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void event_stream_format() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Response response = EventStream.newResponse(new EventStream.Handler() {
+      @Override
+      public void open(EventStream events) throws IOException {
+        events.retry(500);
+        events.send("update", "7", "one\r\ntwo");
+        events.comment("ping");
+        events.close();
+      }
+    });
+    response.send(out, new ResponseHeadEncoder());
+    String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    assertTrue(text.contains("Content-Type: text/event-stream; charset=UTF-8\r\n"));
+    assertFalse(text.contains("Content-Encoding"));
+    assertEquals("retry: 500\n\nid: 7\nevent: update\ndata: one\ndata: two\n\n: ping\n\n",
+        new String(unchunk(body(out.toByteArray())), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void blocking_send_returns_when_the_response_has_ended() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StreamingResponse response = Response.newStreamingResponse(Status.OK, "text/plain", new StreamingResponse.Producer() {
+      @Override
+      public void open(final ResponseStream stream) {
+        // a slow listener widens the gap between the stream closing and the response ending
+        stream.setListener(new ResponseStream.Listener() {
+          @Override
+          public void writable(ResponseStream stream) {}
+
+          @Override
+          public void closed(ResponseStream stream, IOException error) {
+            try {
+              Thread.sleep(200);
+            }
+            catch (InterruptedException ignored) {}
+          }
+        });
+        new Thread(new Runnable() {
+          @Override
+          public void run() {
+            stream.close();
+          }
+        }).start();
+      }
+    });
+    response.send(out, new ResponseHeadEncoder());
+    assertFalse(response.isOpen(), "the worker does not hand a blocking connection to the stream");
+  }
+
+  @Test
+  void head_request_has_no_body() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StreamingResponse response = Response.newStreamingResponse(Status.OK, "text/plain", new StreamingResponse.Producer() {
+      @Override
+      public void open(ResponseStream stream) {
+        fail("no body is sent for HEAD");
+      }
+    });
+    response.setRequestMethod(box.star.net.http.request.Method.HEAD);
+    response.send(out, new ResponseHeadEncoder());
+    assertFalse(response.isOpen());
+    assertTrue(new String(out.toByteArray(), StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n"));
+  }
+
+}
@@ -0,0 +1,143 @@
+package box.star.net.http.sockets;
+
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.PrivateKey;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TLSConfigurationTest {
+
+  private static final File KEY_STORE = new File("src/java/resource/test/Starbox.jks");
+
+  private final File keyStore;
+  private final TLSConfiguration configuration;
+
+  TLSConfigurationTest() throws IOException {
+    // a copy, so that its modification time can be changed
+    keyStore = File.createTempFile("tls-configuration-test", ".jks");
+    keyStore.deleteOnExit();
+    InputStream in = new FileInputStream(KEY_STORE);
+    OutputStream out = new FileOutputStream(keyStore);
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) > 0) out.write(buffer, 0, read);
+    in.close();
+    out.close();
+    configuration = new TLSConfiguration(keyStore, "Starbox".toCharArray()).setProtocols("TLSv1.2", "SSLv9");
+  }
+
+  private SSLServerSocket listen() throws IOException {
+    SSLServerSocket server = (SSLServerSocket) configuration.getSSLContext().getServerSocketFactory().createServerSocket(0);
+    configuration.configure(server);
+    return server;
+  }
+
+  /**
+   * Makes a connection to the server, with the client context, and echoes one byte.
+   */
+  private SSLSession connect(final SSLServerSocket server, SSLContext client) throws Exception {
+    Thread accept = new Thread() {
+      @Override
+      public void run() {
+        try {
+          SSLSocket socket = (SSLSocket) server.accept();
+          socket.getOutputStream().write(socket.getInputStream().read());
+          socket.getOutputStream().flush();
+          socket.close();
+        }
+        catch (IOException ignored) {}
+      }
+    };
+    accept.start();
+    SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("localhost", server.getLocalPort());
+    socket.getOutputStream().write(7);
+    socket.getOutputStream().flush();
+    assertEquals(7, socket.getInputStream().read());
+    SSLSession session = socket.getSession();
+    socket.close();
+    accept.join(5000);
+    return session;
+  }
+
+  @Test
+  void context_is_made_once_and_sized() throws IOException {
+    SSLContext context = configuration.getSSLContext();
+    assertSame(context, configuration.getSSLContext());
+    assertEquals(TLSConfiguration.DEFAULT_SESSION_CACHE_SIZE, context.getServerSessionContext().getSessionCacheSize());
+    configuration.setSessionCacheSize(10).setSessionTimeout(60);
+    assertEquals(10, context.getServerSessionContext().getSessionCacheSize());
+    assertEquals(60, context.getServerSessionContext().getSessionTimeout());
+  }
+
+  @Test
+  void unsupported_protocols_are_left_out() throws IOException {
+    SSLServerSocket server = listen();
+    assertEquals(Arrays.asList("TLSv1.2"), Arrays.asList(server.getSSLParameters().getProtocols()));
+    assertTrue(server.getSSLParameters().getUseCipherSuitesOrder());
+    server.close();
+  }
+
+  @Test
+  void returning_client_resumes_its_session() throws Exception {
+    SSLServerSocket server = listen();
+    // the key store is also the trust store of the client
+    SSLContext client = new TLSConfiguration(keyStore, "Starbox".toCharArray()).getSSLContext();
+    SSLSession first = connect(server, client);
+    SSLSession second = connect(server, client);
+    assertEquals("TLSv1.2", first.getProtocol());
+    assertTrue(Arrays.equals(first.getId(), second.getId()), "the session was not resumed");
+    server.close();
+  }
+
+  @Test
+  void changed_key_store_is_reloaded() throws IOException {
+    configuration.getSSLContext();
+    assertFalse(configuration.reloadIfModified());
+    assertTrue(keyStore.setLastModified(keyStore.lastModified() + 2000));
+    assertTrue(configuration.reloadIfModified());
+    assertFalse(configuration.reloadIfModified());
+  }
+
+  @Test
+  void changed_key_store_is_reloaded_in_the_background() throws Exception {
+    configuration.setReloadInterval(50).getSSLContext();
+    assertEquals(1, configuration.getGeneration());
+    assertTrue(keyStore.setLastModified(keyStore.lastModified() + 2000));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (configuration.getGeneration() == 1 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+    assertEquals(2, configuration.getGeneration());
+    configuration.setReloadInterval(0);
+  }
+
+  @Test
+  void chosen_alias_keeps_its_key_store_across_a_reload() throws Exception {
+    configuration.setReloadInterval(0).getSSLContext();
+    X509ExtendedKeyManager keyManager = configuration.getKeyManager();
+    String alias = keyManager.chooseServerAlias("RSA", null, null);
+    assertEquals("1/localhost", alias);
+    PrivateKey key = keyManager.getPrivateKey(alias);
+    configuration.reload();
+    assertEquals("2/localhost", keyManager.chooseServerAlias("RSA", null, null));
+    assertNotSame(key, keyManager.getPrivateKey("2/localhost"));
+    // the handshake under way still finds the certificate and key it started with
+    assertSame(key, keyManager.getPrivateKey(alias));
+    assertNotNull(keyManager.getCertificateChain(alias));
+    configuration.reload();
+    assertNull(keyManager.getPrivateKey(alias), "the key store is gone after two reloads");
+    assertNull(keyManager.getPrivateKey("localhost"));
+  }
+
+}
@@ -0,0 +1,107 @@
+package box.star.net.http.threading;
+
+import box.star.net.http.HTTPClient;
+import box.star.net.http.HTTPServer;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BoundedAsyncRunnerTest {
+
+  private final HTTPServer server = new HTTPServer() {};
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final AtomicInteger rejected = new AtomicInteger();
+  private final AtomicInteger closed = new AtomicInteger();
+
+  private HTTPClient client() {
+    return new HTTPClient(server, null, null) {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ignored) {}
+      }
+
+      @Override
+      public void close() {
+        closed.incrementAndGet();
+      }
+
+      @Override
+      public void reject() {
+        rejected.incrementAndGet();
+      }
+    };
+  }
+
+  @Test
+  void clients_over_the_queue_are_refused() throws InterruptedException {
+    BoundedAsyncRunner runner = new BoundedAsyncRunner(1, 1);
+    HTTPClient running = client(), waiting = client(), refused = client();
+    runner.exec(running);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    runner.exec(waiting);
+    runner.exec(refused);
+    assertEquals(1, runner.getQueueLength());
+    assertEquals(1, rejected.get());
+    assertEquals(1, runner.getRejectedCount());
+    assertEquals(2, runner.getRunning().size());
+    assertFalse(runner.getRunning().contains(refused));
+    release.countDown();
+    runner.shutdown();
+  }
+
+  @Test
+  void without_a_queue_clients_are_refused_when_all_workers_are_busy() throws InterruptedException {
+    BoundedAsyncRunner runner = new BoundedAsyncRunner(1, 0);
+    runner.exec(client());
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    runner.exec(client());
+    assertEquals(1, runner.getRejectedCount());
+    release.countDown();
+    runner.shutdown();
+  }
+
+  @Test
+  void close_all_closes_running_and_waiting_clients() throws InterruptedException {
+    BoundedAsyncRunner runner = new BoundedAsyncRunner(1, 1);
+    runner.exec(client());
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    runner.exec(client());
+    runner.closeAll();
+    assertEquals(2, closed.get());
+    release.countDown();
+    runner.shutdown();
+  }
+
+  @Test
+  void shutdown_stops_the_workers_and_refuses_new_clients() throws InterruptedException {
+    BoundedAsyncRunner runner = new BoundedAsyncRunner(1, 1);
+    runner.exec(client());
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    runner.shutdown();
+    assertEquals(1, closed.get());
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!runner.isTerminated() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+    assertTrue(runner.isTerminated(), "the blocked worker is interrupted");
+    runner.exec(client());
+    assertEquals(1, rejected.get());
+  }
+
+  @Test
+  void the_server_creates_the_configured_runner_before_it_starts() {
+    assertTrue(new HTTPServer() {}.getAsyncRunner() instanceof DefaultAsyncRunner);
+    server.configuration.set(HTTPServer.CONFIG_ASYNC_RUNNER, HTTPServer.ASYNC_RUNNER_BOUNDED);
+    IAsyncRunner runner = server.getAsyncRunner();
+    assertTrue(runner instanceof BoundedAsyncRunner);
+    assertSame(runner, server.getAsyncRunner());
+  }
+
+}
@@ -0,0 +1,54 @@
+package box.star.net.http.threading;
+
+import box.star.net.http.HTTPClient;
+import box.star.net.http.HTTPServer;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SelectorAsyncRunnerTest {
+
+  private final HTTPServer server = new HTTPServer() {};
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final AtomicInteger rejected = new AtomicInteger();
+
+  private HTTPClient client() {
+    return new HTTPClient(server, null, null) {
+      @Override
+      public void run() {
+        started.countDown();
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ignored) {}
+      }
+
+      @Override
+      public void reject() {
+        rejected.incrementAndGet();
+      }
+    };
+  }
+
+  @Test
+  void requests_over_the_queue_are_refused() throws InterruptedException {
+    SelectorAsyncRunner runner = new SelectorAsyncRunner(1, 1);
+    HTTPClient running = client(), waiting = client(), refused = client();
+    runner.exec(running);
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    runner.exec(waiting);
+    runner.exec(refused);
+    assertEquals(1, runner.getQueueLength());
+    assertEquals(1, rejected.get());
+    assertEquals(1, runner.getRejectedCount());
+    assertFalse(runner.getConnections().contains(refused));
+    assertTrue(runner.getConnections().contains(waiting));
+    release.countDown();
+  }
+
+}
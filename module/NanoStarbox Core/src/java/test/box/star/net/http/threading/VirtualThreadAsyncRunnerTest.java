@@ -0,0 +1,34 @@
+package box.star.net.http.threading;
+
+import box.star.net.http.HTTPClient;
+import box.star.net.http.HTTPServer;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VirtualThreadAsyncRunnerTest {
+
+  @Test
+  void clients_run_on_virtual_threads_or_fall_back_to_platform_threads() throws InterruptedException {
+    final CountDownLatch ran = new CountDownLatch(1);
+    final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+    VirtualThreadAsyncRunner runner = new VirtualThreadAsyncRunner();
+    runner.exec(new HTTPClient(new HTTPServer() {}, null, null) {
+      @Override
+      public void run() {
+        thread.set(Thread.currentThread());
+        ran.countDown();
+      }
+    });
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+    assertEquals("NanoHttpd Request Processor (#1)", thread.get().getName());
+    assertTrue(thread.get().isDaemon());
+    // a platform thread of the DefaultAsyncRunner is a plain Thread
+    assertEquals(VirtualThreadAsyncRunner.isSupported(), thread.get().getClass() != Thread.class);
+  }
+
+}
@@ -0,0 +1,111 @@
+package box.star.net.http.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WebSocketTest {
+
+  private static final byte[] MASKED_HELLO = {(byte) 0x81, (byte) 0x85, 0x37, (byte) 0xfa, 0x21, 0x3d, 0x7f, (byte) 0x9f, 0x4d, 0x51, 0x58};
+
+  private static FrameReader reader(final List<String> frames) {
+    return new FrameReader(new FrameReader.Frames() {
+      @Override
+      public void frame(boolean fin, boolean compressed, int opcode, byte[] payload) {
+        frames.add(opcode + (fin ? "" : "+") + ":" + new String(payload, StandardCharsets.UTF_8));
+      }
+    });
+  }
+
+  @Test
+  void accept_key_of_the_rfc_example() {
+    assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocket.acceptKey("dGhlIHNhbXBsZSBub25jZQ=="));
+  }
+
+  @Test
+  void masked_frames_are_read_in_any_pieces() throws IOException {
+    List<String> frames = new ArrayList<String>();
+    FrameReader reader = reader(frames);
+    for (byte b : MASKED_HELLO) reader.read(new byte[]{b}, 0, 1);
+    byte[] twice = new byte[MASKED_HELLO.length * 2];
+    System.arraycopy(MASKED_HELLO, 0, twice, 0, MASKED_HELLO.length);
+    System.arraycopy(MASKED_HELLO, 0, twice, MASKED_HELLO.length, MASKED_HELLO.length);
+    twice[MASKED_HELLO.length] = 0x01;
+    reader.read(twice, 0, twice.length);
+    assertEquals("[1:Hello, 1:Hello, 1+:Hello]", frames.toString());
+  }
+
+  @Test
+  void unmasked_and_oversized_frames_fail() {
+    FrameReader reader = reader(new ArrayList<String>());
+    try {
+      reader.read(new byte[]{(byte) 0x81, 0x05, 'H', 'e', 'l', 'l', 'o'}, 0, 7);
+      fail("client frames must be masked");
+    }
+    catch (IOException e) {
+      assertEquals(WebSocket.PROTOCOL_ERROR, ((WebSocketException) e).getCode());
+    }
+    reader = reader(new ArrayList<String>());
+    reader.setMaxPayload(100);
+    try {
+      reader.read(new byte[]{(byte) 0x82, (byte) 0xFE, 0x01, 0x00, 1, 2, 3, 4}, 0, 8);
+      fail("the frame is over the limit");
+    }
+    catch (IOException e) {
+      assertEquals(WebSocket.MESSAGE_TOO_BIG, ((WebSocketException) e).getCode());
+    }
+  }
+
+  @Test
+  void compressed_control_frames_fail() throws IOException {
+    List<String> frames = new ArrayList<String>();
+    FrameReader reader = reader(frames);
+    reader.setAllowCompressed(true);
+    try {
+      reader.read(new byte[]{(byte) 0xC9, (byte) 0x80, 1, 2, 3, 4}, 0, 6);
+      fail("control frames cannot be compressed");
+    }
+    catch (IOException e) {
+      assertEquals(WebSocket.PROTOCOL_ERROR, ((WebSocketException) e).getCode());
+    }
+    reader = reader(frames);
+    reader.setAllowCompressed(true);
+    reader.read(new byte[]{(byte) 0x89, (byte) 0x80, 1, 2, 3, 4}, 0, 6);
+    assertEquals("[9:]", frames.toString());
+  }
+
+  @Test
+  void deflate_negotiation() {
+    assertNull(PerMessageDeflate.negotiate("x-webkit-deflate-frame"));
+    assertNull(PerMessageDeflate.negotiate("permessage-deflate; server_max_window_bits=10"));
+    assertEquals("permessage-deflate; client_no_context_takeover",
+        PerMessageDeflate.negotiate("permessage-deflate; server_max_window_bits=10, permessage-deflate; client_no_context_takeover; client_max_window_bits").getResponseHeader());
+  }
+
+  @Test
+  void deflate_of_the_rfc_example() throws IOException {
+    PerMessageDeflate deflate = PerMessageDeflate.negotiate("permessage-deflate");
+    byte[] hello = {(byte) 0xf2, 0x48, (byte) 0xcd, (byte) 0xc9, (byte) 0xc9, 0x07, 0x00};
+    assertEquals("Hello", new String(deflate.decompress(hello, 100), StandardCharsets.UTF_8));
+    byte[] text = "Hello Hello Hello Hello".getBytes(StandardCharsets.UTF_8);
+    PerMessageDeflate peer = PerMessageDeflate.negotiate("permessage-deflate");
+    for (int i = 0; i < 2; i++) {
+      assertArrayEquals(text, peer.decompress(deflate.compress(text, 0, text.length), 100));
+    }
+    try {
+      peer.decompress(deflate.compress(text, 0, text.length), 10);
+      fail("the message inflates over the limit");
+    }
+    catch (IOException e) {
+      assertEquals(WebSocket.MESSAGE_TOO_BIG, ((WebSocketException) e).getCode());
+    }
+    deflate.end();
+    peer.end();
+  }
+
+}
@@ -0,0 +1,42 @@
+package box.star.net.tools;
+
+import box.star.net.http.TestSession;
+import box.star.net.http.response.Response;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressedContentCacheTest {
+
+  private final CompressedContentCache cache = new CompressedContentCache();
+  private final File file;
+
+  CompressedContentCacheTest() throws Exception {
+    File directory = new File(System.getProperty("java.io.tmpdir"), "compressed-content-cache-test");
+    //noinspection ResultOfMethodCallIgnored
+    directory.mkdirs();
+    file = new File(directory, "page.html");
+    FileOutputStream out = new FileOutputStream(file);
+    for (int i = 0; i < 100; i++) out.write("<p>compressible text</p>\n".getBytes());
+    out.close();
+  }
+
+  private Response respond(String acceptEncoding) {
+    return cache.getResponse(new ServerResult(new ServerContent(new TestSession("/page.html").header("accept-encoding", acceptEncoding), "text/html", file)));
+  }
+
+  @Test
+  void encoding_follows_accept_encoding() {
+    assertEquals("gzip", respond("gzip").getHeader("content-encoding"));
+    assertEquals("gzip", respond("*;q=0, gzip").getHeader("content-encoding"));
+    assertEquals("gzip", respond("gzip, identity;q=0").getHeader("content-encoding"));
+    assertEquals("gzip", respond("*").getHeader("content-encoding"));
+    assertNull(respond("gzip;q=0").getHeader("content-encoding"));
+    assertNull(respond("*, gzip;q=0").getHeader("content-encoding"));
+    assertNull(respond(null).getHeader("content-encoding"));
+  }
+
+}
@@ -0,0 +1,167 @@
+package box.star.net.tools;
+
+import box.star.net.http.TestSession;
+import box.star.net.http.response.Response;
+import box.star.net.http.response.Status;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConditionalContentTest {
+
+  private static final byte[] CONTENT = "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII);
+  private static final long MODIFIED = 1500000000000L;
+
+  private final ConditionalContent conditionalContent = new ConditionalContent();
+  private final String tag = ConditionalContent.getEntityTag(result(new TestSession("/")));
+
+  private static ServerResult result(TestSession session) {
+    return new ServerResult(new ServerContent(session, "text/plain", CONTENT.clone(), MODIFIED));
+  }
+
+  private Response respond(TestSession session) {
+    return conditionalContent.getResponse(result(session));
+  }
+
+  private static TestSession request(String header, String value) {
+    return new TestSession("/content.txt").header(header, value);
+  }
+
+  private static String body(Response response) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    InputStream data = response.getData();
+    int b;
+    while ((b = data.read()) != -1) out.write(b);
+    return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+  }
+
+  private void assertRanges(String header, long length, long... expected) {
+    long[] ranges = conditionalContent.parseRanges(header, length);
+    assertTrue(Arrays.equals(expected, ranges), header + " -> " + Arrays.toString(ranges));
+  }
+
+  @Test
+  void byte_ranges() {
+    assertRanges("bytes=0-99", 1000, 0, 99);
+    assertRanges("bytes=900-", 1000, 900, 999);
+    assertRanges("bytes=-100", 1000, 900, 999);
+    assertRanges("bytes=-5000", 1000, 0, 999);
+    assertRanges("bytes=990-2000", 1000, 990, 999);
+    assertRanges("bytes= 0-0 , 10-19, -1", 1000, 0, 0, 10, 19, 999, 999);
+    // unsatisfiable ranges are dropped
+    assertRanges("bytes=1000-,0-1", 1000, 0, 1);
+    assertRanges("bytes=1000-1001", 1000);
+    assertRanges("bytes=-0", 1000);
+  }
+
+  @Test
+  void ignored_headers() {
+    assertNull(conditionalContent.parseRanges("items=0-1", 1000));
+    assertNull(conditionalContent.parseRanges("bytes=5", 1000));
+    assertNull(conditionalContent.parseRanges("bytes=9-1", 1000));
+    assertNull(conditionalContent.parseRanges("bytes=a-b", 1000));
+    conditionalContent.setMaxRanges(2);
+    assertNull(conditionalContent.parseRanges("bytes=0-1,2-3,4-5", 1000));
+  }
+
+  @Test
+  void unchanged_content_is_not_modified() {
+    Response response = respond(request("if-none-match", "\"other\", " + tag));
+    assertEquals(Status.NOT_MODIFIED, response.getStatus());
+    assertEquals(tag, response.getHeader("etag"));
+    assertEquals(ConditionalContent.formatDate(MODIFIED), response.getHeader("last-modified"));
+    assertEquals(Status.NOT_MODIFIED, respond(request("if-modified-since", ConditionalContent.formatDate(MODIFIED))).getStatus());
+    assertNull(respond(request("if-none-match", "\"other\"")));
+    assertNull(respond(request("if-modified-since", ConditionalContent.formatDate(MODIFIED - 1000))));
+  }
+
+  @Test
+  void changed_content_fails_the_precondition() {
+    assertEquals(Status.PRECONDITION_FAILED, respond(request("if-match", "\"other\"")).getStatus());
+    assertEquals(Status.PRECONDITION_FAILED, respond(request("if-unmodified-since", ConditionalContent.formatDate(MODIFIED - 1000))).getStatus());
+    assertNull(respond(request("if-match", tag)));
+    assertNull(respond(request("if-match", "*")));
+    assertNull(respond(request("if-unmodified-since", ConditionalContent.formatDate(MODIFIED))));
+  }
+
+  @Test
+  void if_range_sends_the_range_only_for_the_current_content() {
+    assertEquals(Status.PARTIAL_CONTENT, respond(request("range", "bytes=0-4").header("if-range", tag)).getStatus());
+    assertEquals(Status.PARTIAL_CONTENT, respond(request("range", "bytes=0-4").header("if-range", ConditionalContent.formatDate(MODIFIED))).getStatus());
+    assertNull(respond(request("range", "bytes=0-4").header("if-range", "\"stale\"")));
+    assertNull(respond(request("range", "bytes=0-4").header("if-range", ConditionalContent.formatDate(MODIFIED - 1000))));
+  }
+
+  @Test
+  void single_range() throws IOException {
+    Response response = respond(request("range", "bytes=5-9"));
+    assertEquals(Status.PARTIAL_CONTENT, response.getStatus());
+    assertEquals("bytes 5-9/20", response.getHeader("content-range"));
+    assertEquals(tag, response.getHeader("etag"));
+    assertEquals("56789", body(response));
+  }
+
+  @Test
+  void multiple_ranges() throws IOException {
+    Response response = respond(request("range", "bytes=0-1,-2"));
+    assertEquals(Status.PARTIAL_CONTENT, response.getStatus());
+    assertTrue(response.getMimeType().startsWith("multipart/byteranges; boundary="));
+    String boundary = response.getMimeType().substring(response.getMimeType().indexOf('=') + 1);
+    assertEquals("--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-1/20\r\n\r\n01" +
+        "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 18-19/20\r\n\r\nij" +
+        "\r\n--" + boundary + "--\r\n", body(response));
+    // the declared length matches the parts
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    respond(request("range", "bytes=0-1,-2")).send(out);
+    String sent = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    String length = sent.substring(sent.indexOf("Content-Length: ") + 16, sent.indexOf("\r\n", sent.indexOf("Content-Length: ")));
+    assertEquals(sent.length() - sent.indexOf("\r\n\r\n") - 4, Integer.parseInt(length));
+  }
+
+  @Test
+  void unsatisfiable_range() {
+    Response response = respond(request("range", "bytes=20-30"));
+    assertEquals(Status.RANGE_NOT_SATISFIABLE, response.getStatus());
+    assertEquals("bytes */20", response.getHeader("content-range"));
+  }
+
+  @Test
+  void encoded_responses_get_a_suffixed_tag() {
+    ServerResult result = result(request("accept-encoding", "gzip"));
+    Response response = result.getResponse();
+    response.setUseGzip(true);
+    conditionalContent.addValidators(result, response);
+    String gzipTag = tag.substring(0, tag.length() - 1) + "-gzip\"";
+    assertEquals(gzipTag, response.getHeader("etag"));
+
+    result = result(new TestSession("/content.txt"));
+    response = result.getResponse();
+    response.addHeader("Content-Encoding", "br");
+    conditionalContent.addValidators(result, response);
+    assertEquals(tag.substring(0, tag.length() - 1) + "-br\"", response.getHeader("etag"));
+
+    result = result(new TestSession("/content.txt"));
+    response = result.getResponse();
+    conditionalContent.addValidators(result, response);
+    assertEquals(tag, response.getHeader("etag"));
+  }
+
+  @Test
+  void weak_comparison_accepts_suffixed_and_weak_tags() {
+    String gzipTag = tag.substring(0, tag.length() - 1) + "-gzip\"";
+    assertEquals(Status.NOT_MODIFIED, respond(request("if-none-match", gzipTag)).getStatus());
+    assertEquals(Status.NOT_MODIFIED, respond(request("if-none-match", "W/" + tag)).getStatus());
+    // If-Match compares strongly
+    assertEquals(Status.PRECONDITION_FAILED, respond(request("if-match", gzipTag)).getStatus());
+    assertEquals(Status.PRECONDITION_FAILED, respond(request("if-match", "W/" + tag)).getStatus());
+    // a tag that only shares a prefix is another content
+    assertNull(respond(request("if-none-match", tag.substring(0, tag.length() - 1) + "0\"")));
+  }
+
+}
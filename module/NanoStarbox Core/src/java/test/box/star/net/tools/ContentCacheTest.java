@@ -0,0 +1,99 @@
+package box.star.net.tools;
+
+import box.star.net.WebService;
+import box.star.net.http.TestSession;
+import box.star.net.http.response.Status;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentCacheTest {
+
+  private final WebService server = new WebService();
+  private final ContentCache cache = new ContentCache(150, 100);
+  private final File directory;
+
+  ContentCacheTest() {
+    directory = new File(System.getProperty("java.io.tmpdir"), "content-cache-test");
+    //noinspection ResultOfMethodCallIgnored
+    directory.mkdirs();
+  }
+
+  private File write(String name, int size, char c) throws Exception {
+    File file = new File(directory, name);
+    FileOutputStream out = new FileOutputStream(file);
+    for (int i = 0; i < size; i++) out.write(c);
+    out.close();
+    return file;
+  }
+
+  private ContentCache.CachedFile request(File file) {
+    ServerContent content = cache.getContent(new TestSession(server, "/"), "text/plain", file);
+    assertEquals(Status.OK, content.status);
+    return (ContentCache.CachedFile) content.get();
+  }
+
+  @Test
+  void file_is_held_on_its_second_request() throws Exception {
+    File file = write("held.txt", 80, 'a');
+    assertNull(request(file).getBody());
+    ContentCache.CachedFile cached = request(file);
+    ByteBuffer body = cached.getBody();
+    assertNotNull(body);
+    assertEquals(80, body.remaining());
+    assertEquals('a', body.get(79));
+    assertEquals(80, cache.getSize());
+    assertEquals(1, cache.getLoads());
+    assertEquals(1, cache.getHits());
+    assertNotNull(ContentCache.newHeldResponse(Status.OK, "text/plain", cached, 0, 80));
+    // files over the entry size are never held
+    File large = write("large.txt", 120, 'b');
+    request(large);
+    assertNull(request(large).getBody());
+  }
+
+  @Test
+  void changed_file_is_checked_again_after_its_time_to_live() throws Exception {
+    cache.setTimeToLive(0);
+    File file = write("changed.txt", 50, 'a');
+    request(file);
+    assertNotNull(request(file).getBody());
+    write("changed.txt", 60, 'b');
+    ContentCache.CachedFile cached = request(file);
+    assertEquals(60, cached.length());
+    assertNull(cached.getBody());
+    assertEquals(0, cache.getSize());
+    assertEquals('b', request(file).getBody().get(0));
+  }
+
+  @Test
+  void held_files_are_evicted_beyond_capacity() throws Exception {
+    File first = write("first.txt", 100, 'a'), second = write("second.txt", 100, 'b');
+    request(first);
+    request(first);
+    request(second);
+    request(second);
+    assertEquals(100, cache.getSize());
+    assertEquals(1, cache.getEvictions());
+    assertEquals(1, cache.getHeldCount());
+  }
+
+  @Test
+  void directory_resolves_to_its_index_file() throws Exception {
+    File site = new File(directory, "site");
+    //noinspection ResultOfMethodCallIgnored
+    site.mkdirs();
+    File index = new File(site, "index.html");
+    FileOutputStream out = new FileOutputStream(index);
+    out.write("<p>index</p>".getBytes());
+    out.close();
+    ServerContent content = cache.getContent(new TestSession(server, "/"), "application/octet-stream", site);
+    assertEquals(index.getPath(), ((File) content.get()).getPath());
+    assertEquals("text/html", content.mimeType);
+  }
+
+}
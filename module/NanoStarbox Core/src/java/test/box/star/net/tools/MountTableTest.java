@@ -0,0 +1,79 @@
+package box.star.net.tools;
+
+import box.star.net.WebService;
+import box.star.net.http.IHTTPSession;
+import box.star.net.http.TestSession;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MountTableTest {
+
+  /**
+   * Answers with its base URI, for the uris that start with the prefix it is given.
+   */
+  private static ContentProvider provider(final String baseUri, final String answers) {
+    return new ContentProvider(baseUri) {
+      @Override
+      public ServerContent getContent(IHTTPSession session) {
+        if (!session.getUri().startsWith(answers)) return null;
+        return new ServerContent(session, "text/plain", getBaseUri());
+      }
+    };
+  }
+
+  private static String resolve(MountTable table, String uri) {
+    ServerContent content = table.getContent(new TestSession(uri));
+    return content == null ? null : (String) content.data;
+  }
+
+  @Test
+  void longest_mount_first() {
+    MountTable table = new MountTable(Arrays.asList(
+        provider("/", "/"),
+        provider("/a", "/"),
+        provider("/a/b", "/"),
+        provider("/ab", "/")));
+    assertEquals("/a/b", resolve(table, "/a/b/c"));
+    assertEquals("/a/b", resolve(table, "/a/b"));
+    assertEquals("/a", resolve(table, "/a/bc"));
+    assertEquals("/a", resolve(table, "/a"));
+    assertEquals("/ab", resolve(table, "/ab/x"));
+    // a mount is not a parent of a uri that only starts with its characters
+    assertEquals("/", resolve(table, "/abc"));
+    assertEquals("/", resolve(table, "/"));
+    assertEquals("/a/b", table.getRoute("/a/b/c"));
+    assertEquals("/", table.getRoute("/abc"));
+  }
+
+  @Test
+  void parent_mounts_are_tried_until_one_has_content() {
+    MountTable table = new MountTable(Arrays.asList(
+        provider("/", "/"),
+        provider("/docs", "/docs/old"),
+        provider("/docs", "/docs/new"),
+        provider("/docs/api", "/docs/api/v1")));
+    assertEquals("/docs/api", resolve(table, "/docs/api/v1/index"));
+    assertEquals("/", resolve(table, "/docs/api/v2/index"));
+    assertEquals("/docs", resolve(table, "/docs/new/page"));
+    assertEquals("/docs", resolve(table, "/docs/old/page"));
+    assertEquals("/", resolve(table, "/docs/other"));
+    assertNull(new MountTable(Collections.singletonList(provider("/docs", "/docs"))).getContent(new TestSession("/other")));
+  }
+
+  @Test
+  void web_service_sees_new_mounts() {
+    WebService service = new WebService();
+    service.mount(provider("/", "/"));
+    assertEquals("/", service.getContent(new TestSession("/a/page")).data);
+    service.mount(provider("/a", "/"));
+    assertEquals("/a", service.getContent(new TestSession("/a/page")).data);
+    service.contentProviders.set(1, provider("/b", "/"));
+    assertEquals("/", service.getContent(new TestSession("/a/page")).data);
+    assertEquals("/b", service.getContent(new TestSession("/b/page")).data);
+  }
+
+}
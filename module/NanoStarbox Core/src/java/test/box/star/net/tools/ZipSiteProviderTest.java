@@ -0,0 +1,86 @@
+package box.star.net.tools;
+
+import box.star.net.http.TestSession;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ZipSiteProviderTest {
+
+  private final File archive;
+
+  ZipSiteProviderTest() throws IOException {
+    archive = File.createTempFile("zip-site-provider-test", ".zip");
+    archive.deleteOnExit();
+  }
+
+  private static byte[] data(int size, int seed) {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) data[i] = (byte) (i * seed);
+    return data;
+  }
+
+  private void write(byte[] stored, String deflated) throws IOException {
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive));
+    ZipEntry entry = new ZipEntry("stored.bin");
+    CRC32 crc = new CRC32();
+    crc.update(stored);
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(stored.length);
+    entry.setCrc(crc.getValue());
+    zip.putNextEntry(entry);
+    zip.write(stored);
+    zip.closeEntry();
+    zip.putNextEntry(new ZipEntry("page.txt"));
+    zip.write(deflated.getBytes("UTF-8"));
+    zip.closeEntry();
+    zip.close();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) > 0) out.write(buffer, 0, read);
+    in.close();
+    return out.toByteArray();
+  }
+
+  @Test
+  void entries_are_served_from_the_archive() throws IOException {
+    byte[] stored = data(100000, 7);
+    write(stored, "hello zip");
+    ZipSiteProvider provider = new ZipSiteProvider("/site", archive);
+    assertArrayEquals(stored, readAll((InputStream) provider.getContent(new TestSession("/site/stored.bin")).data));
+    assertEquals("hello zip", new String(readAll((InputStream) provider.getContent(new TestSession("/site/page.txt")).data), "UTF-8"));
+    assertEquals(Integer.valueOf(404), Integer.valueOf(provider.getContent(new TestSession("/site/missing")).status.getRequestStatus()));
+  }
+
+  @Test
+  void archive_changed_before_it_is_read() throws IOException {
+    write(data(1 << 20, 7), "first");
+    ZipSiteProvider provider = new ZipSiteProvider("/site", archive);
+    InputStream in = (InputStream) provider.getContent(new TestSession("/site/stored.bin")).data;
+    // the archive is truncated in place under the mapping, before the entry is opened
+    RandomAccessFile access = new RandomAccessFile(archive, "rw");
+    access.setLength(1000);
+    access.close();
+    try {
+      readAll(in);
+      fail("a changed archive is not read");
+    }
+    catch (IOException expected) {
+    }
+    // and the next request sees the new archive
+    byte[] stored = data(5000, 3);
+    write(stored, "second");
+    assertArrayEquals(stored, readAll((InputStream) provider.getContent(new TestSession("/site/stored.bin")).data));
+    assertEquals("second", new String(readAll((InputStream) provider.getContent(new TestSession("/site/page.txt")).data), "UTF-8"));
+  }
+
+}
@@ -0,0 +1,114 @@
+package box.star.state;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheMapTest {
+
+  private static <K, V> List<String> monitor(CacheMap<K, V> cache) {
+    final List<String> events = new ArrayList<String>();
+    cache.setMonitor(new CacheMapMonitor<K, V>() {
+      @Override
+      public void onCacheEvent(CacheEvent action, long timeStamp, K key, V value) {
+        events.add(action + " " + key);
+      }
+    });
+    return events;
+  }
+
+  @Test
+  void least_recently_used_entry_is_evicted() {
+    CacheMap<String, Integer> cache = new CacheMap<>(60000, false, 3);
+    List<String> events = monitor(cache);
+    cache.put("a", 1);
+    cache.put("b", 2);
+    cache.put("c", 3);
+    assertEquals(Integer.valueOf(1), cache.get("a"));
+    cache.put("d", 4);
+    assertEquals(3, cache.size());
+    assertFalse(cache.containsKey("b"));
+    assertTrue(cache.containsKey("a"));
+    assertEquals("[CREATE a, CREATE b, CREATE c, EXPIRE b, CREATE d]", events.toString());
+    assertEquals(Integer.valueOf(3), cache.remove("c"));
+    assertEquals("REMOVE c", events.get(events.size() - 1));
+  }
+
+  @Test
+  void entries_expire_in_order() throws InterruptedException {
+    CacheMap<String, Integer> cache = new CacheMap<>(100, true, 16);
+    List<String> events = monitor(cache);
+    cache.put("a", 1);
+    cache.put("b", 2);
+    Thread.sleep(60);
+    cache.get("a");
+    Thread.sleep(60);
+    cache.put("c", 3);
+    assertEquals("[CREATE a, CREATE b, RENEW a, EXPIRE b, CREATE c]", events.toString());
+    Thread.sleep(120);
+    cache.synchronize();
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  void frequent_keys_survive_a_scan() {
+    for (CacheMap.EvictionPolicy policy : CacheMap.EvictionPolicy.values()) {
+      CacheMap<Integer, Integer> cache = new CacheMap<>(60000, false, 16, policy);
+      int hits = 0;
+      for (int key = 1000; key < 2000; key++) {
+        cache.put(key, key);
+        if (cache.get(key % 16) != null) hits++;
+        else cache.put(key % 16, key % 16);
+      }
+      if (policy == CacheMap.EvictionPolicy.TINY_LFU) assertTrue(hits > 900, "hits: " + hits);
+      else assertTrue(hits < 100, "hits: " + hits);
+    }
+  }
+
+  @Test
+  void journal_restores_the_cache() throws IOException {
+    File directory = Files.createTempDirectory("cache-journal").toFile();
+    CacheMapLoader<String, String> loader = new CacheMapLoader<>(CacheMapCodec.STRING, CacheMapCodec.STRING);
+    CacheMap<String, String> cache = new CacheMap<>(60000, true, 1000);
+    cache.setJournal(directory, loader);
+    for (int i = 0; i < 100; i++) cache.put("key" + i, "value" + i);
+    cache.put("key1", "changed");
+    cache.remove("key2");
+    cache.synchronize();
+
+    CacheMap<String, String> restored = new CacheMap<>(60000, true, 1000);
+    restored.setJournal(directory, loader);
+    assertEquals(99, restored.size());
+    assertEquals("changed", restored.get("key1"));
+    assertFalse(restored.containsKey("key2"));
+    assertEquals("value99", restored.get("key99"));
+
+    restored.put("torn", "write");
+    restored.synchronize();
+    File log = null;
+    long newest = -1;
+    for (String name : directory.list()) {
+      if (!name.startsWith("log-")) continue;
+      long generation = Long.parseLong(name.substring(4, name.indexOf('.')));
+      if (generation > newest) log = new File(directory, name);
+      newest = Math.max(newest, generation);
+    }
+    try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+      // the record of "torn" starts after the header; damage its last byte
+      file.seek(12 + 8 + 1 + 8 + 4 + 4 + 4);
+      file.write('X');
+    }
+    CacheMap<String, String> recovered = new CacheMap<>(60000, true, 1000);
+    recovered.setJournal(directory, loader);
+    assertEquals(99, recovered.size());
+    assertFalse(recovered.containsKey("torn"));
+  }
+
+}
@@ -0,0 +1,63 @@
+package box.star.state;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConfigurationTest {
+
+  @Test
+  void children_see_parent_writes() {
+    Configuration.Manager<String, Serializable> defaults = new Configuration.Manager<>("defaults");
+    Configuration<String, Serializable> parent = defaults.getConfiguration();
+    parent.set("host", "localhost");
+    parent.set("port", 8080);
+    Configuration<String, Serializable> child = new Configuration.Manager<>("child", parent).getConfiguration();
+    child.set("name", "child");
+    List<String> keys = child.keyList();
+    assertEquals("name", keys.get(0));
+    assertEquals(new HashSet<>(Arrays.asList("name", "host", "port")), new HashSet<>(keys));
+    assertEquals(Integer.valueOf(8080), child.get("port"));
+
+    long version = child.getVersion();
+    defaults.set("port", 9090);
+    assertNotEquals(version, child.getVersion());
+    assertEquals(Integer.valueOf(9090), child.get("port"));
+    defaults.get("host").setEnumerable(false);
+    assertEquals(2, child.size());
+    assertTrue(child.containsKey("host"));
+    assertEquals(Arrays.<Serializable>asList("child", 9090), child.valueList());
+    assertEquals("localhost", child.remove("host"));
+    assertNull(parent.get("host"));
+  }
+
+  @Test
+  void listeners_hear_visible_changes() {
+    Configuration.Manager<String, Serializable> defaults = new Configuration.Manager<>("defaults");
+    Configuration<String, Serializable> parent = defaults.getConfiguration();
+    Configuration.Manager<String, Serializable> manager = new Configuration.Manager<>("child", parent);
+    Configuration<String, Serializable> child = manager.getConfiguration();
+    final List<String> changes = new ArrayList<>();
+    child.addListener(new Configuration.Listener<String>() {
+      @Override
+      public void onConfigurationChange(String key) {
+        changes.add(key);
+      }
+    });
+    parent.set("a", 1);
+    child.set("b", 2);
+    manager.set("a", 3);
+    parent.set("a", 4);
+    child.set("a", 5);
+    assertEquals("[a, b, a, a]", changes.toString());
+    assertEquals(Integer.valueOf(5), child.get("a"));
+    assertEquals(Integer.valueOf(4), parent.get("a"));
+  }
+
+}
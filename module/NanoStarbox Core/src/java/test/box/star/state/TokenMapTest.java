@@ -0,0 +1,130 @@
+package box.star.state;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenMapTest {
+
+  private static final int[] FORMAT = {8, 4, 4, 4, 12};
+
+  /**
+   * Issues tokens from threads at once and returns how long it took.
+   */
+  private static long issue(int threads, final int tokens, final TokenIssuer issuer) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final int count = tokens / threads;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < count; i++) issuer.issue(i);
+          }
+          catch (InterruptedException ignored) {}
+          finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    long began = System.nanoTime();
+    start.countDown();
+    done.await();
+    return System.nanoTime() - began;
+  }
+
+  @Test
+  void tokens_are_unique_and_formatted() throws InterruptedException {
+    final TokenMap<Integer> map = new TokenMap<>(FORMAT);
+    final Set<String> tokens = ConcurrentHashMap.newKeySet();
+    issue(8, 8000, new TokenIssuer() {
+      @Override
+      public void issue(int value) {
+        tokens.add(map.put(value));
+      }
+    });
+    assertEquals(8000, tokens.size());
+    for (String token : tokens) assertTrue(token.matches("[0-9A-F]{8}-[0-9A-F]{4}-[0-9A-F]{4}-[0-9A-F]{4}-[0-9A-F]{12}"), token);
+    TokenCache<Integer> cache = new TokenCache<>(new CacheMap<String, Integer>(60000, true, 100000), 5);
+    Set<String> cached = new HashSet<>();
+    for (int i = 0; i < 1000; i++) cached.add(cache.put(i));
+    assertEquals(1000, cached.size());
+    for (String token : cached) assertNotNull(cache.get(token));
+  }
+
+  /**
+   * Compares token issuance of the lock held, shared Random map it replaced
+   * with TokenMap and TokenCache, from 1 to 64 threads.
+   */
+  @Test
+  @Disabled("benchmark")
+  void benchmark() throws Exception {
+    final int tokens = 64000;
+    final LegacyTokenMap legacy = new LegacyTokenMap();
+    final TokenMap<Integer> map = new TokenMap<>(FORMAT);
+    final TokenCache<Integer> cache = new TokenCache<>(new CacheMap<String, Integer>(60000, true, tokens * 8), FORMAT);
+    TokenIssuer[] issuers = {
+        new TokenIssuer() {
+          @Override
+          public void issue(int value) { legacy.put(value); }
+        },
+        new TokenIssuer() {
+          @Override
+          public void issue(int value) { map.put(value); }
+        },
+        new TokenIssuer() {
+          @Override
+          public void issue(int value) { cache.put(value); }
+        }};
+    for (TokenIssuer issuer : issuers) issue(4, tokens, issuer);
+    long[] elapsed = new long[issuers.length];
+    for (int threads = 1; threads <= 64; threads *= 2) {
+      for (int i = 0; i < issuers.length; i++) elapsed[i] += issue(threads, tokens, issuers[i]);
+    }
+    assertTrue(elapsed[1] < elapsed[0], "TokenMap is slower than the legacy map");
+    assertTrue(elapsed[2] < elapsed[0], "TokenCache is slower than the legacy map");
+  }
+
+  interface TokenIssuer {
+    void issue(int value);
+  }
+
+  /**
+   * The synchronized, shared Random token map that TokenMap replaced.
+   */
+  private static final class LegacyTokenMap {
+
+    private static final Random RANDOM = new Random();
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private final ConcurrentHashMap<String, Integer> map = new ConcurrentHashMap<>();
+
+    private static String generateToken(int size) {
+      StringBuilder sb = new StringBuilder(size);
+      for (int i = 0; i < size; i++) sb.append(HEX[RANDOM.nextInt(HEX.length)]);
+      return sb.toString();
+    }
+
+    synchronized String put(Integer value) {
+      String token;
+      do {
+        String[] parts = new String[FORMAT.length];
+        for (int i = 0; i < FORMAT.length; i++) parts[i] = generateToken(FORMAT[i]);
+        token = String.join("-", parts);
+      }
+      while (map.containsKey(token));
+      map.put(token, value);
+      return token;
+    }
+
+  }
+
+}
@@ -1,9 +1,14 @@
 package box.star.text.basic;
 
 import box.star.contract.NotNull;
+import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 import static box.star.text.Char.*;
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -11,6 +16,33 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class TextScannerTest {
 
+  /**
+   * The mixed content page, repeated to a few megabytes.
+   */
+  private static String template(int size) throws IOException {
+    String page = new String(Files.readAllBytes(new File("src/java/resource/mixed-content-page.html").toPath()), StandardCharsets.UTF_8);
+    StringBuilder out = new StringBuilder(size + page.length());
+    while (out.length() < size) out.append(page).append('\n');
+    return out.toString();
+  }
+
+  /**
+   * Scans the text, a character at a time or a tag at a time, and returns how long it took.
+   */
+  private static long scan(Scanner scanner, boolean tags) {
+    long started = System.nanoTime();
+    if (tags) {
+      while (!scanner.endOfSource()) {
+        scanner.nextField('<');
+        scanner.nextField('>');
+        scanner.next();
+      }
+    } else {
+      while (scanner.next() != 0) ;
+    }
+    return System.nanoTime() - started;
+  }
+
   @Test
   void general_testing() {
     Scanner x = new Scanner(new File("src/java/resource/mixed-content-page.html"));
@@ -109,4 +141,69 @@ class TextScannerTest {
     assertEquals(9 - 2, x.getIndex());
   }
 
-}
\ No newline at end of file
+  @Test
+  void bounded_history() throws IOException {
+    String text = template(1 << 20);
+    Scanner x = new Scanner("test-string", text);
+    long lines = 1, column = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = x.next();
+      assertEquals(text.charAt(i), c);
+      if (c == '\n') {
+        lines++;
+        column = 0;
+      } else column++;
+      assertTrue(x.historySize() <= 1 << 16, "history is bounded");
+    }
+    assertEquals(lines, x.getLine());
+    assertEquals(column, x.getColumn());
+    assertEquals(0, x.next());
+    // step back over a few lines, and forward again
+    for (int i = 0; i < 500; i++) x.back();
+    assertEquals(text.length() - 501, x.getIndex());
+    assertEquals(text.substring(text.length() - 500), x.nextLength(500));
+    assertEquals(lines, x.getLine());
+    assertEquals(column, x.getColumn());
+  }
+
+  @Test
+  void snapshot_of_large_text() throws IOException {
+    String text = template(1 << 20);
+    Scanner x = new Scanner("test-string", new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+    x.nextLength(1000);
+    long line = x.getLine(), column = x.getColumn();
+    ScannerStateRecord s = x.getStateLock();
+    // the lock keeps the whole history from where it was taken
+    String locked = x.nextLength(text.length() - 2000);
+    assertEquals(text.substring(1000, text.length() - 1000), locked);
+    s.restore();
+    assertEquals(999, x.getIndex());
+    assertEquals(line, x.getLine());
+    assertEquals(column, x.getColumn());
+    assertEquals(text.substring(1000), x.nextLength(text.length() - 1000));
+  }
+
+  /**
+   * Scans an 8 MB page with next(), from a string and from a stream, and with
+   * nextField(); the history of the scanners stays bounded, and a stream is
+   * read in blocks, at close to the speed of a string.
+   */
+  @Test
+  @Disabled("benchmark")
+  void benchmark() throws IOException {
+    String text = template(8 << 20);
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    long string = Long.MAX_VALUE, stream = Long.MAX_VALUE;
+    for (int round = 0; round < 3; round++) {
+      Scanner strings = new Scanner("string", text), streams = new Scanner("stream", new ByteArrayInputStream(bytes));
+      Scanner tags = new Scanner("tags", text);
+      string = Math.min(string, scan(strings, false));
+      stream = Math.min(stream, scan(streams, false));
+      scan(tags, true);
+      for (Scanner scanner : new Scanner[]{strings, streams, tags})
+        assertTrue(scanner.state.buffer.length <= 16 * 1024, "the history of " + scanner.getPath() + " is not bounded");
+    }
+    assertTrue(stream < string * 3, "a stream is scanned at less than a third of the speed of a string");
+  }
+
+}